@@ -98,7 +98,6 @@ public interface Constants {
    */
   public static final String REFSPEC = "REFSPEC";
   public static final String VCS_DEBUG_ENABLED = "VCS_DEBUG_ENABLED";
-  public static final String THREAD_DUMP_FILE = "THREAD_DUMP_FILE";
 
   public static final String USERNAME_FOR_TAGS = "userForTags";
 
@@ -129,5 +128,4 @@ public interface Constants {
 
   String SHOW_CUSTOM_CLONE_PATH = "teamcity.git.showCustomClonePath";
   String CUSTOM_CLONE_PATH_ENABLED = "teamcity.git.customClonePathEnabled";
-  String AMAZON_HOSTS = "teamcity.git.amazonHosts";
 }
@@ -24,25 +24,39 @@ import org.eclipse.jgit.lib.StoredConfig;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.io.File;
-import java.io.FileFilter;
-import java.io.IOException;
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
+ * Map file is an append-only journal of 'url = dir name' lines, a later line
+ * for the same url overrides an earlier one. The invalid file is a journal of
+ * invalidated dir names. Invalidation only appends to the invalid file, mappings
+ * to invalid dirs are ignored on load. The map file is rewritten without such
+ * lines once their number exceeds the number of live mappings.
+ *
+ * Lookups don't take locks, new mappings are added under a lock.
+ *
  * @author dmitry.neverov
  */
 public class MirrorManagerImpl implements MirrorManager {
 
   private static Logger LOG = Logger.getInstance(MirrorManagerImpl.class.getName());
+  private static final String SEPARATOR = " = ";
+  private static final int MIN_GARBAGE_LINES_TO_COMPACT = 1000;
 
   private final File myBaseMirrorsDir;
   private final File myMapFile;
   private final File myInvalidDirsFile;
   /*url -> dir name*/
-  private final Map<String, String> myMirrorMap = new HashMap<String, String>();
-  private final Set<String> myInvalidDirNames = new HashSet<String>();
+  private final ConcurrentMap<String, String> myMirrorMap = new ConcurrentHashMap<String, String>();
+  private final Set<String> myOccupiedDirNames = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  private final Set<String> myInvalidDirNames = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  /*guards modifications of mappings and files*/
   private final Object myLock = new Object();
+  /*number of lines in the map file, guarded by myLock*/
+  private int myMapFileLines;
   private final HashCalculator myHashCalculator;
 
 
@@ -71,23 +85,27 @@ public class MirrorManagerImpl implements MirrorManager {
   public void invalidate(@NotNull final File dir) {
     synchronized (myLock) {
       List<String> urlsMappedToDir = getUrlsMappedToDir(dir);
+      List<String> invalidated = new ArrayList<String>();
       for (String url : urlsMappedToDir) {
         String dirName = myMirrorMap.remove(url);
-        myInvalidDirNames.add(dirName);
+        if (dirName == null)
+          continue;
+        myOccupiedDirNames.remove(dirName);
+        if (myInvalidDirNames.add(dirName))
+          invalidated.add(dirName);
       }
-      saveMappingToFile();
-      saveInvalidDirsToFile();
+      if (!invalidated.isEmpty()) {
+        LOG.debug("Save invalid dirs to " + myInvalidDirsFile.getAbsolutePath());
+        appendLines(myInvalidDirsFile, invalidated);
+      }
+      compactMapFileIfNeeded();
     }
   }
 
 
   public Map<String, File> getMappings() {
-    Map<String, String> mirrorMapSnapshot;
-    synchronized (myLock) {
-      mirrorMapSnapshot = new HashMap<String, String>(myMirrorMap);
-    }
     Map<String, File> result = new HashMap<String, File>();
-    for (Map.Entry<String, String> entry : mirrorMapSnapshot.entrySet()) {
+    for (Map.Entry<String, String> entry : myMirrorMap.entrySet()) {
       String url = entry.getKey();
       String dir = entry.getValue();
       result.put(url, new File(myBaseMirrorsDir, dir));
@@ -116,16 +134,14 @@ public class MirrorManagerImpl implements MirrorManager {
 
   @NotNull
   private List<String> getUrlsMappedToDir(@NotNull final File dir) {
-    synchronized (myLock) {
-      List<String> urlsMappedToDir = new ArrayList<String>();
-      for (Map.Entry<String, String> entry : myMirrorMap.entrySet()) {
-        String url = entry.getKey();
-        String dirName = entry.getValue();
-        if (dir.equals(new File(myBaseMirrorsDir, dirName)))
-          urlsMappedToDir.add(url);
-      }
-      return urlsMappedToDir;
+    List<String> urlsMappedToDir = new ArrayList<String>();
+    for (Map.Entry<String, String> entry : myMirrorMap.entrySet()) {
+      String url = entry.getKey();
+      String dirName = entry.getValue();
+      if (dir.equals(new File(myBaseMirrorsDir, dirName)))
+        urlsMappedToDir.add(url);
     }
+    return urlsMappedToDir;
   }
 
 
@@ -136,13 +152,19 @@ public class MirrorManagerImpl implements MirrorManager {
    */
   @NotNull
   private String getDirNameForUrl(@NotNull final String url) {
+    String dirName = myMirrorMap.get(url);
+    if (dirName != null)
+      return dirName;
     synchronized (myLock) {
-      String dirName = myMirrorMap.get(url);
+      dirName = myMirrorMap.get(url);
       if (dirName != null)
         return dirName;
       dirName = getUniqueDirNameForUrl(url);
+      myOccupiedDirNames.add(dirName);
       myMirrorMap.put(url, dirName);
-      saveMappingToFile();
+      LOG.debug("Save mapping to " + myMapFile.getAbsolutePath());
+      if (appendLines(myMapFile, Collections.singletonList(url + SEPARATOR + dirName)))
+        myMapFileLines++;
       return dirName;
     }
   }
@@ -152,11 +174,9 @@ public class MirrorManagerImpl implements MirrorManager {
   private String getUniqueDirNameForUrl(@NotNull final String url) {
     String dirName = calculateDirNameForUrl(url);
     int i = 0;
-    synchronized (myLock) {
-      while (isOccupiedDirName(dirName) || isInvalidDirName(dirName)) {
-        dirName = calculateDirNameForUrl(url + i);
-        i++;
-      }
+    while (isOccupiedDirName(dirName) || isInvalidDirName(dirName)) {
+      dirName = calculateDirNameForUrl(url + i);
+      i++;
     }
     return dirName;
   }
@@ -169,15 +189,20 @@ public class MirrorManagerImpl implements MirrorManager {
 
 
   private boolean isOccupiedDirName(@NotNull final String dirName) {
-    synchronized (myLock) {
-      return myMirrorMap.values().contains(dirName)/* || new File(myBaseMirrorsDir, dirName).exists()*/;
-    }
+    return myOccupiedDirNames.contains(dirName)/* || new File(myBaseMirrorsDir, dirName).exists()*/;
   }
 
 
   private boolean isInvalidDirName(@NotNull final String dirName) {
+    return myInvalidDirNames.contains(dirName);
+  }
+
+
+  private void compactMapFileIfNeeded() {
     synchronized (myLock) {
-      return myInvalidDirNames.contains(dirName);
+      int garbageLines = myMapFileLines - myMirrorMap.size();
+      if (garbageLines > Math.max(MIN_GARBAGE_LINES_TO_COMPACT, myMirrorMap.size()))
+        saveMappingToFile();
     }
   }
 
@@ -185,25 +210,14 @@ public class MirrorManagerImpl implements MirrorManager {
   private void saveMappingToFile() {
     synchronized (myLock) {
       LOG.debug("Save mapping to " + myMapFile.getAbsolutePath());
-      StringBuilder sb = new StringBuilder();
+      List<String> lines = new ArrayList<String>();
       for (Map.Entry<String, String> mirror : myMirrorMap.entrySet()) {
         String url = mirror.getKey();
         String dir = mirror.getValue();
-        sb.append(url).append(" = ").append(dir).append("\n");
-      }
-      FileUtil.writeFile(myMapFile, sb.toString());
-    }
-  }
-
-
-  private void saveInvalidDirsToFile() {
-    synchronized (myLock) {
-      LOG.debug("Save invalid dirs to " + myInvalidDirsFile.getAbsolutePath());
-      StringBuilder sb = new StringBuilder();
-      for (String dirName : myInvalidDirNames) {
-        sb.append(dirName).append("\n");
+        lines.add(url + SEPARATOR + dir);
       }
-      FileUtil.writeFile(myInvalidDirsFile, sb.toString());
+      if (rewriteFile(myMapFile, lines))
+        myMapFileLines = lines.size();
     }
   }
 
@@ -212,11 +226,14 @@ public class MirrorManagerImpl implements MirrorManager {
     synchronized (myLock) {
       LOG.debug("Parse invalid dirs file " + myInvalidDirsFile.getAbsolutePath());
       if (myInvalidDirsFile.exists()) {
-        for (String line : readLines(myInvalidDirsFile)) {
+        Journal journal = readJournal(myInvalidDirsFile);
+        for (String line : journal.myLines) {
           String dirName = line.trim();
           if (dirName.length() > 0)
             myInvalidDirNames.add(dirName);
         }
+        if (journal.myIncomplete)
+          rewriteFile(myInvalidDirsFile, new ArrayList<String>(myInvalidDirNames));
       }
     }
   }
@@ -236,34 +253,111 @@ public class MirrorManagerImpl implements MirrorManager {
 
   private void readMappings() {
     synchronized (myLock) {
-      for (String line : readLines(myMapFile)) {
-        int separatorIndex = line.lastIndexOf(" = ");
+      Journal journal = readJournal(myMapFile);
+      for (String line : journal.myLines) {
+        int separatorIndex = line.lastIndexOf(SEPARATOR);
         if (separatorIndex == -1) {
           if (!line.equals(""))
             LOG.warn("Cannot parse mapping '" + line + "', skip it.");
         } else {
           String url = line.substring(0, separatorIndex);
-          String dirName = line.substring(separatorIndex + 3);
-          if (myMirrorMap.values().contains(dirName)) {
+          String dirName = line.substring(separatorIndex + SEPARATOR.length());
+          if (myInvalidDirNames.contains(dirName))
+            continue;
+          if (dirName.equals(myMirrorMap.get(url)))
+            continue;
+          if (myOccupiedDirNames.contains(dirName)) {
             LOG.error("Skip mapping " + line + ": " + dirName + " is used for url other than " + url);
           } else {
-            myMirrorMap.put(url, dirName);
+            String previousDirName = myMirrorMap.put(url, dirName);
+            if (previousDirName != null)
+              myOccupiedDirNames.remove(previousDirName);
+            myOccupiedDirNames.add(dirName);
           }
         }
       }
+      myMapFileLines = journal.myLines.size();
+      if (journal.myIncomplete) {
+        saveMappingToFile();
+      } else {
+        compactMapFileIfNeeded();
+      }
+    }
+  }
+
+
+  /**
+   * Reads lines of the journal, the last line is ignored if it doesn't end
+   * with a line separator, i.e. if the process appending it was terminated
+   */
+  @NotNull
+  private Journal readJournal(@NotNull final File file) {
+    Journal result = new Journal();
+    Reader reader = null;
+    try {
+      reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+      StringBuilder line = new StringBuilder();
+      int c;
+      while ((c = reader.read()) != -1) {
+        if (c == '\n') {
+          int length = line.length();
+          if (length > 0 && line.charAt(length - 1) == '\r')
+            line.setLength(length - 1);
+          result.myLines.add(line.toString());
+          line.setLength(0);
+        } else {
+          line.append((char) c);
+        }
+      }
+      if (line.length() > 0) {
+        LOG.warn("Skip incomplete line '" + line + "' in " + file.getAbsolutePath());
+        result.myIncomplete = true;
+      }
+    } catch (IOException e) {
+      LOG.error("Error while reading file " + file.getAbsolutePath() + " assume it is empty", e);
+      result.myLines.clear();
+    } finally {
+      FileUtil.close(reader);
+    }
+    return result;
+  }
+
+
+  private boolean appendLines(@NotNull final File file, @NotNull final List<String> lines) {
+    Writer writer = null;
+    try {
+      writer = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+      StringBuilder sb = new StringBuilder();
+      for (String line : lines) {
+        sb.append(line).append("\n");
+      }
+      writer.write(sb.toString());
+      writer.close();
+      writer = null;
+      return true;
+    } catch (IOException e) {
+      LOG.error("Error while writing to file " + file.getAbsolutePath(), e);
+      return false;
+    } finally {
+      FileUtil.close(writer);
     }
   }
 
 
-  private List<String> readLines(@NotNull final File file) {
-    synchronized (myLock) {
-      try {
-        return FileUtil.readFile(file);
-      } catch (IOException e) {
-        LOG.error("Error while reading file " + file.getAbsolutePath() + " assume it is empty", e);
-        return new ArrayList<String>();
+  private boolean rewriteFile(@NotNull final File file, @NotNull final List<String> lines) {
+    File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+    FileUtil.delete(tmp);
+    if (!appendLines(tmp, lines))
+      return false;
+    if (!tmp.renameTo(file)) {
+      FileUtil.delete(file);
+      if (!tmp.renameTo(file)) {
+        LOG.error("Cannot rename " + tmp.getAbsolutePath() + " to " + file.getAbsolutePath());
+        FileUtil.delete(tmp);
+        return false;
       }
     }
+    return true;
   }
 
 
@@ -292,7 +386,10 @@ public class MirrorManagerImpl implements MirrorManager {
     synchronized (myLock) {
       LOG.info("Restore mapping from existing repositories");
       Map<String, String> restoredMappings = restoreMappings();
-      myMirrorMap.putAll(restoredMappings);
+      for (Map.Entry<String, String> e : restoredMappings.entrySet()) {
+        if (myOccupiedDirNames.add(e.getValue()))
+          myMirrorMap.put(e.getKey(), e.getValue());
+      }
       saveMappingToFile();
     }
   }
@@ -343,4 +440,10 @@ public class MirrorManagerImpl implements MirrorManager {
       return null;
     }
   }
+
+
+  private static final class Journal {
+    private final List<String> myLines = new ArrayList<String>();
+    private boolean myIncomplete;
+  }
 }
@@ -16,25 +16,49 @@
 
 package jetbrains.buildServer.buildTriggers.vcs.git;
 
+import com.intellij.openapi.diagnostic.Logger;
+import org.eclipse.jgit.internal.storage.file.FileRepository;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.lib.RepositoryCache;
 import org.eclipse.jgit.util.FS;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Cache of repositories.
  *
- * Tracks number of usages of the repository and once it becomes
- * zero repository is closed and removed from the cache.
+ * Tracks number of usages of the repository. Once it becomes zero the
+ * repository is kept open for {@link ServerPluginConfig#getRepositoryCacheIdleTimeoutSeconds()},
+ * so back-to-back operations reuse its loaded refs, config and pack list.
+ * Idle repositories are closed in the LRU order when their number exceeds
+ * {@link ServerPluginConfig#getRepositoryCacheMaxIdleRepositories()} or when
+ * the estimated number of files they keep open exceeds
+ * {@link ServerPluginConfig#getRepositoryCacheMaxOpenFiles()}. Limits are
+ * enforced when repositories are added or released. While the cache has idle
+ * repositories a background sweep closes them once their idle timeout expires,
+ * so they don't stay open until the next repository usage.
+ *
+ * Repository must be evicted via {@link #evict} before its directory is removed.
  */
 final class AutoCloseRepositoryCache {
 
-  private final Map<RepositoryCache.FileKey, CachedRepository> myRepositories = new HashMap<RepositoryCache.FileKey, CachedRepository>();
+  private static final Logger LOG = Logger.getInstance(AutoCloseRepositoryCache.class.getName());
+  private static final long MIN_SWEEP_DELAY_MILLIS = 100;
+  private static volatile ScheduledExecutorService ourSweepExecutor;
+
+  private final ServerPluginConfig myConfig;
+  private final ConcurrentMap<RepositoryCache.FileKey, CachedRepository> myRepositories = new ConcurrentHashMap<RepositoryCache.FileKey, CachedRepository>();
+  private final ReentrantLock myEvictionLock = new ReentrantLock();
+  private final AtomicBoolean mySweepScheduled = new AtomicBoolean();
+
+  AutoCloseRepositoryCache(@NotNull ServerPluginConfig config) {
+    myConfig = config;
+  }
 
   /**
    * Returns a repository for the given key or null if repository is not found
@@ -45,70 +69,303 @@ final class AutoCloseRepositoryCache {
    * @return see above
    */
   @Nullable
-  synchronized Repository get(@NotNull RepositoryCache.FileKey key) {
+  Repository get(@NotNull RepositoryCache.FileKey key) {
     CachedRepository cachedRepository = myRepositories.get(key);
-    if (cachedRepository != null) {
-      Repository result = cachedRepository.getRepository();
-      cachedRepository.inc();
-      return result;
+    if (cachedRepository == null)
+      return null;
+    if (!cachedRepository.getRepository().getDirectory().isDirectory()) {
+      //dir was removed, the repository will be closed once all its users release it
+      cachedRepository.markEvicted();
+      myRepositories.remove(key, cachedRepository);
+      cachedRepository.closeIfIdle();
+      return null;
     }
+    if (cachedRepository.acquire())
+      return cachedRepository.getRepository();
+    myRepositories.remove(key, cachedRepository);
     return null;
   }
 
   /**
    * Adds a new repository with the specified key in cache. Returns the added
    * repository if there was no repository in cache associated with the given
-   * key, otherwise existing repository associated with the key is returned
-   * and its openCounter is incremented. When the caller is done with repository
-   * it must call the {@link #release} method.
+   * key, otherwise existing repository associated with the key is returned,
+   * its openCounter is incremented and the given repository is closed. When
+   * the caller is done with repository it must call the {@link #release} method.
    * @param key repository key
    * @param db repository
    * @return see above
    */
   @NotNull
-  synchronized Repository add(@NotNull RepositoryCache.FileKey key, @NotNull Repository db) {
-    CachedRepository existing = myRepositories.get(key);
-    if (existing == null) {
-      myRepositories.put(key, new CachedRepository(db));
-      return db;
-    } else {
-      Repository result = existing.getRepository();
-      existing.inc();
-      return result;
+  Repository add(@NotNull RepositoryCache.FileKey key, @NotNull Repository db) {
+    CachedRepository added = new CachedRepository(db);
+    while (true) {
+      CachedRepository existing = myRepositories.putIfAbsent(key, added);
+      if (existing == null) {
+        evictIdle();
+        return db;
+      }
+      if (existing.acquire()) {
+        db.close();
+        return existing.getRepository();
+      }
+      if (myRepositories.replace(key, existing, added)) {
+        evictIdle();
+        return db;
+      }
     }
   }
 
   /**
    * Releases the repository acquired via {@link #add} or {@link #get} method.
-   * Decrements an openCounter for the repository and if it reaches 0 repository
-   * is closed and removed from the cache. Does nothing if repository is not
-   * present found in the cache.
+   * Decrements an openCounter for the repository, when it reaches 0 repository
+   * becomes idle. Idle repository is closed and removed from the cache when
+   * idle timeout is not positive. Does nothing if repository is not present
+   * in the cache.
    * @param db repository to release
    */
-  synchronized void release(@NotNull Repository db) {
+  void release(@NotNull Repository db) {
     RepositoryCache.FileKey key = RepositoryCache.FileKey.exact(db.getDirectory(), FS.DETECTED);
     CachedRepository cachedRepository = myRepositories.get(key);
-    if (cachedRepository != null && cachedRepository.getRepository() == db && cachedRepository.dec() == 0) {
-      myRepositories.remove(key);
-      db.close();
+    if (cachedRepository == null || cachedRepository.getRepository() != db)
+      return;
+    if (cachedRepository.release() && getIdleTimeoutMillis() <= 0)
+      cachedRepository.closeIfIdle();
+    if (cachedRepository.isClosed()) {
+      myRepositories.remove(key, cachedRepository);
+      return;
+    }
+    evictIdle();
+    scheduleSweep();
+  }
+
+  /**
+   * Closes the repository in the given dir if it is idle. If repository is
+   * in use, it will be closed when released.
+   */
+  void evict(@NotNull RepositoryCache.FileKey key) {
+    CachedRepository cachedRepository = myRepositories.get(key);
+    if (cachedRepository == null)
+      return;
+    cachedRepository.markEvicted();
+    close(key, cachedRepository);
+  }
+
+  /**
+   * @return number of repositories in cache including idle ones
+   */
+  int size() {
+    return myRepositories.size();
+  }
+
+  /**
+   * Closes idle repositories exceeding idle timeout or cache limits
+   */
+  private void evictIdle() {
+    if (!myEvictionLock.tryLock())
+      return;//eviction is already in progress
+    try {
+      long time = System.currentTimeMillis();
+      long idleTimeout = getIdleTimeoutMillis();
+      List<Map.Entry<RepositoryCache.FileKey, CachedRepository>> idle = new ArrayList<Map.Entry<RepositoryCache.FileKey, CachedRepository>>();
+      int openFiles = 0;
+      for (Map.Entry<RepositoryCache.FileKey, CachedRepository> e : myRepositories.entrySet()) {
+        CachedRepository cachedRepository = e.getValue();
+        long idleSince = cachedRepository.getIdleSince();
+        if (idleSince < 0)
+          continue;
+        if (time - idleSince >= idleTimeout) {
+          close(e.getKey(), cachedRepository);
+        } else {
+          idle.add(e);
+          openFiles += cachedRepository.getOpenFilesEstimate();
+        }
+      }
+      int maxIdle = myConfig.getRepositoryCacheMaxIdleRepositories();
+      int maxOpenFiles = myConfig.getRepositoryCacheMaxOpenFiles();
+      if (idle.size() <= maxIdle && openFiles <= maxOpenFiles)
+        return;
+      Collections.sort(idle, new Comparator<Map.Entry<RepositoryCache.FileKey, CachedRepository>>() {
+        public int compare(Map.Entry<RepositoryCache.FileKey, CachedRepository> e1, Map.Entry<RepositoryCache.FileKey, CachedRepository> e2) {
+          long idleSince1 = e1.getValue().getIdleSince();
+          long idleSince2 = e2.getValue().getIdleSince();
+          return idleSince1 < idleSince2 ? -1 : (idleSince1 == idleSince2 ? 0 : 1);
+        }
+      });
+      int idleCount = idle.size();
+      for (Map.Entry<RepositoryCache.FileKey, CachedRepository> e : idle) {
+        if (idleCount <= maxIdle && openFiles <= maxOpenFiles)
+          break;
+        int files = e.getValue().getOpenFilesEstimate();
+        if (close(e.getKey(), e.getValue())) {
+          idleCount--;
+          openFiles -= files;
+        }
+      }
+    } finally {
+      myEvictionLock.unlock();
+    }
+  }
+
+  /**
+   * Schedules eviction of idle repositories at the moment when the earliest
+   * idle timeout expires, does nothing if there are no idle repositories or
+   * the sweep is already scheduled
+   */
+  private void scheduleSweep() {
+    long delay = getNextSweepDelayMillis();
+    if (delay < 0 || !mySweepScheduled.compareAndSet(false, true))
+      return;
+    Runnable sweepTask = new Runnable() {
+      public void run() {
+        mySweepScheduled.set(false);
+        evictIdle();
+        scheduleSweep();
+      }
+    };
+    try {
+      getSweepExecutor().schedule(sweepTask, delay, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      mySweepScheduled.set(false);
+    }
+  }
+
+  /**
+   * @return time until the earliest idle timeout expiration or -1 if there
+   * are no idle repositories
+   */
+  private long getNextSweepDelayMillis() {
+    long idleTimeout = getIdleTimeoutMillis();
+    if (idleTimeout <= 0)
+      return -1;
+    long earliestIdleSince = -1;
+    for (CachedRepository cachedRepository : myRepositories.values()) {
+      long idleSince = cachedRepository.getIdleSince();
+      if (idleSince >= 0 && (earliestIdleSince < 0 || idleSince < earliestIdleSince))
+        earliestIdleSince = idleSince;
     }
+    if (earliestIdleSince < 0)
+      return -1;
+    //don't spin while expired repositories are being closed by a concurrent eviction
+    return Math.max(MIN_SWEEP_DELAY_MILLIS, earliestIdleSince + idleTimeout - System.currentTimeMillis());
   }
 
+  @NotNull
+  private static ScheduledExecutorService getSweepExecutor() {
+    ScheduledExecutorService executor = ourSweepExecutor;
+    if (executor == null) {
+      synchronized (AutoCloseRepositoryCache.class) {
+        if (ourSweepExecutor == null) {
+          ourSweepExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(@NotNull Runnable r) {
+              Thread t = new Thread(r, "Git idle repositories sweep");
+              t.setDaemon(true);
+              return t;
+            }
+          });
+        }
+        executor = ourSweepExecutor;
+      }
+    }
+    return executor;
+  }
+
+  private boolean close(@NotNull RepositoryCache.FileKey key, @NotNull CachedRepository cachedRepository) {
+    if (!cachedRepository.closeIfIdle())
+      return false;
+    myRepositories.remove(key, cachedRepository);
+    if (LOG.isDebugEnabled())
+      LOG.debug("Close repository " + cachedRepository.getRepository().getDirectory().getAbsolutePath());
+    return true;
+  }
+
+  private long getIdleTimeoutMillis() {
+    return myConfig.getRepositoryCacheIdleTimeoutSeconds() * 1000L;
+  }
+
+
   private final static class CachedRepository {
     private final Repository myRepository;
-    private final AtomicInteger myOpenCounter = new AtomicInteger(1);
-    public CachedRepository(@NotNull Repository repository) {
+    private int myOpenCounter = 1;
+    private long myIdleSince = -1;
+    private int myOpenFilesEstimate = 0;
+    private boolean myClosed = false;
+    private boolean myEvicted = false;
+
+    CachedRepository(@NotNull Repository repository) {
       myRepository = repository;
     }
+
     @NotNull
-    public Repository getRepository() {
+    Repository getRepository() {
       return myRepository;
     }
-    public void inc() {
-      myOpenCounter.incrementAndGet();
+
+    /**
+     * @return false if repository is already closed
+     */
+    synchronized boolean acquire() {
+      if (myClosed)
+        return false;
+      myOpenCounter++;
+      myIdleSince = -1;
+      return true;
+    }
+
+    /**
+     * @return true if repository became idle
+     */
+    synchronized boolean release() {
+      if (myClosed || myOpenCounter == 0)
+        return false;
+      myOpenCounter--;
+      if (myOpenCounter > 0)
+        return false;
+      myIdleSince = System.currentTimeMillis();
+      myOpenFilesEstimate = estimateOpenFiles(myRepository);
+      if (myEvicted)
+        closeIfIdle();
+      return true;
+    }
+
+    synchronized void markEvicted() {
+      myEvicted = true;
+    }
+
+    /**
+     * @return time when repository became idle or -1 if it is in use or closed
+     */
+    synchronized long getIdleSince() {
+      return myClosed ? -1 : myIdleSince;
+    }
+
+    synchronized boolean isClosed() {
+      return myClosed;
+    }
+
+    synchronized int getOpenFilesEstimate() {
+      return myOpenFilesEstimate;
     }
-    public int dec() {
-      return myOpenCounter.decrementAndGet();
+
+    /**
+     * @return true if repository was closed by this call
+     */
+    synchronized boolean closeIfIdle() {
+      if (myClosed || myOpenCounter > 0)
+        return false;
+      myClosed = true;
+      myRepository.close();
+      return true;
     }
   }
+
+
+  /**
+   * Repository keeps pack files open while their data is in the window cache
+   */
+  private static int estimateOpenFiles(@NotNull Repository db) {
+    if (db instanceof FileRepository)
+      return ((FileRepository) db).getObjectDatabase().getPacks().size() + 1;
+    return 1;
+  }
 }
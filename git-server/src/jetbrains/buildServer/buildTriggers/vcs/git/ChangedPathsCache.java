@@ -0,0 +1,403 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.vcs.VcsChange;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * Persistent cache of paths changed in commits. It is stored in the
+ * {@link #CACHE_DIR} directory of every mirror and is shared by all VCS roots
+ * using the mirror.
+ *
+ * An entry is addressed by a hash of the commit id and ids of its parents,
+ * so entries never become stale. Entries are appended to a few segment files,
+ * so the cache doesn't create a file per commit. Every mirror cache is limited
+ * by {@link ServerPluginConfig#getChangedPathsCacheMaxSizeMb()}, the oldest
+ * segment is removed when the limit is exceeded. Entries used from older
+ * segments are appended again, so recently used entries survive eviction.
+ *
+ * Only changes computed without submodules are cached: changes in roots with
+ * submodules depend on the state of submodule repositories.
+ */
+public final class ChangedPathsCache {
+
+  private static final Logger LOG = Logger.getInstance(ChangedPathsCache.class.getName());
+  static final String CACHE_DIR = "teamcity-changed-paths";
+  private static final String SEGMENT_SUFFIX = ".seg";
+  private static final int FORMAT_VERSION = 2;
+  private static final int SEGMENTS_COUNT = 8;
+
+  private final ServerPluginConfig myConfig;
+  private final Map<File, MirrorCache> myCaches = new HashMap<File, MirrorCache>();
+
+  public ChangedPathsCache(@NotNull ServerPluginConfig config) {
+    myConfig = config;
+  }
+
+
+  boolean isEnabled() {
+    return myConfig.getChangedPathsCacheMaxSizeMb() > 0;
+  }
+
+
+  /**
+   * @return cached paths changed in the commit or null if they are not cached
+   */
+  @Nullable
+  public List<ChangedPath> get(@NotNull File repositoryDir, @NotNull RevCommit commit) {
+    if (!isEnabled())
+      return null;
+    return getMirrorCache(repositoryDir).get(key(commit), getMaxSize());
+  }
+
+
+  public void put(@NotNull File repositoryDir, @NotNull RevCommit commit, @NotNull List<ChangedPath> paths) {
+    if (!isEnabled())
+      return;
+    getMirrorCache(repositoryDir).put(key(commit), paths, getMaxSize());
+  }
+
+
+  private long getMaxSize() {
+    return myConfig.getChangedPathsCacheMaxSizeMb() * 1024L * 1024L;
+  }
+
+
+  @NotNull
+  private MirrorCache getMirrorCache(@NotNull File repositoryDir) {
+    synchronized (myCaches) {
+      MirrorCache cache = myCaches.get(repositoryDir);
+      if (cache == null) {
+        cache = new MirrorCache(new File(repositoryDir, CACHE_DIR));
+        myCaches.put(repositoryDir, cache);
+      }
+      return cache;
+    }
+  }
+
+
+  @NotNull
+  private static ObjectId key(@NotNull RevCommit commit) {
+    MessageDigest digest = Constants.newMessageDigest();
+    byte[] buf = new byte[Constants.OBJECT_ID_LENGTH];
+    commit.getId().copyRawTo(buf, 0);
+    digest.update(buf);
+    for (RevCommit parent : commit.getParents()) {
+      parent.getId().copyRawTo(buf, 0);
+      digest.update(buf);
+    }
+    return ObjectId.fromRaw(digest.digest());
+  }
+
+
+  /**
+   * Path changed in a commit, contains all data needed to create a VcsChange
+   */
+  public static final class ChangedPath {
+    private static final String FILE_MODE_CHANGED = "File mode changed";
+    private final VcsChange.Type myType;
+    private final String myPath;
+    private final boolean myFileModeChanged;
+
+    public ChangedPath(@NotNull VcsChange.Type type, @NotNull String path, boolean fileModeChanged) {
+      myType = type;
+      myPath = path;
+      myFileModeChanged = fileModeChanged;
+    }
+
+    @NotNull
+    public VcsChange toVcsChange(@NotNull String currentVersion, @NotNull String parentVersion) {
+      return new VcsChange(myType, myFileModeChanged ? FILE_MODE_CHANGED : null, myPath, myPath, parentVersion, currentVersion);
+    }
+  }
+
+
+  /**
+   * Location of an entry in a segment file
+   */
+  private static final class Entry {
+    private final long mySegment;
+    private final long myOffset;
+    private final int myLength;
+
+    private Entry(long segment, long offset, int length) {
+      mySegment = segment;
+      myOffset = offset;
+      myLength = length;
+    }
+  }
+
+
+  /**
+   * Entries of a single mirror. Segment files are named by increasing numbers,
+   * a segment starts with the format version followed by records: entry key,
+   * length of entry data and the data. Entries are appended to the last segment
+   * until it reaches 1/{@link #SEGMENTS_COUNT} of the cache size. The index of
+   * entries is loaded by scanning segments on the first access, a segment which
+   * was written when the server stopped is never appended to again, its
+   * incomplete last record is skipped. Files are read outside of the cache
+   * lock, appends and eviction are done under the lock.
+   */
+  private static final class MirrorCache {
+    private final File myDir;
+    private final Map<ObjectId, Entry> myIndex = new HashMap<ObjectId, Entry>();
+    private final TreeMap<Long, Long> mySegments = new TreeMap<Long, Long>(); //segment -> size
+    private boolean myIndexLoaded = false;
+    private long mySize = 0;
+    private long myAppendSegment = -1;
+    private long myNextSegment = 0;
+
+    private MirrorCache(@NotNull File dir) {
+      myDir = dir;
+    }
+
+    @Nullable
+    List<ChangedPath> get(@NotNull ObjectId key, long maxSize) {
+      Entry entry;
+      synchronized (this) {
+        loadIndex();
+        entry = myIndex.get(key);
+      }
+      if (entry == null)
+        return null;
+      File f = getSegmentFile(entry.mySegment);
+      byte[] data;
+      List<ChangedPath> result;
+      try {
+        data = readData(f, entry);
+        result = parse(data);
+      } catch (FileNotFoundException e) {
+        //the segment was just evicted
+        return null;
+      } catch (IOException e) {
+        LOG.debug("Cannot read changed paths cache entry " + key.name() + " from " + f.getAbsolutePath() + ", remove it", e);
+        synchronized (this) {
+          if (myIndex.get(key) == entry)
+            myIndex.remove(key);
+        }
+        return null;
+      }
+      synchronized (this) {
+        //move the entry from old segments to keep it on eviction
+        if (myIndex.get(key) == entry && isOld(entry.mySegment))
+          append(key, data, maxSize);
+      }
+      return result;
+    }
+
+    void put(@NotNull ObjectId key, @NotNull List<ChangedPath> paths, long maxSize) {
+      byte[] data;
+      try {
+        data = serialize(paths);
+      } catch (IOException e) {
+        LOG.debug("Cannot serialize changed paths of cache entry " + key.name(), e);
+        return;
+      }
+      synchronized (this) {
+        loadIndex();
+        append(key, data, maxSize);
+      }
+    }
+
+    private boolean isOld(long segment) {
+      return mySegments.headMap(segment).size() < mySegments.size() / 2;
+    }
+
+    private void append(@NotNull ObjectId key, @NotNull byte[] data, long maxSize) {
+      long segmentSize = Math.max(1, maxSize / SEGMENTS_COUNT);
+      if (myAppendSegment < 0 || mySegments.get(myAppendSegment) >= segmentSize) {
+        myAppendSegment = myNextSegment++;
+        mySegments.put(myAppendSegment, 0L);
+      }
+      File f = getSegmentFile(myAppendSegment);
+      long size = mySegments.get(myAppendSegment);
+      try {
+        if (!myDir.isDirectory() && !myDir.mkdirs())
+          throw new IOException("Cannot create directory " + myDir.getAbsolutePath());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length + 32);
+        DataOutputStream record = new DataOutputStream(bytes);
+        if (size == 0)
+          record.writeInt(FORMAT_VERSION);
+        byte[] rawKey = new byte[Constants.OBJECT_ID_LENGTH];
+        key.copyRawTo(rawKey, 0);
+        record.write(rawKey);
+        record.writeInt(data.length);
+        record.write(data);
+        FileOutputStream out = new FileOutputStream(f, true);
+        try {
+          out.write(bytes.toByteArray());
+        } finally {
+          out.close();
+        }
+        long offset = size + bytes.size() - data.length;
+        setSegmentSize(myAppendSegment, size + bytes.size());
+        myIndex.put(key, new Entry(myAppendSegment, offset, data.length));
+      } catch (IOException e) {
+        LOG.debug("Cannot write changed paths cache entry " + key.name() + " to " + f.getAbsolutePath(), e);
+        //the segment can end with an incomplete record, don't append to it
+        setSegmentSize(myAppendSegment, f.length());
+        myAppendSegment = -1;
+      }
+      evict(maxSize);
+    }
+
+    private void evict(long maxSize) {
+      while (mySize > maxSize && !mySegments.isEmpty()) {
+        long segment = mySegments.firstKey();
+        setSegmentSize(segment, 0);
+        mySegments.remove(segment);
+        if (segment == myAppendSegment)
+          myAppendSegment = -1;
+        Iterator<Entry> iter = myIndex.values().iterator();
+        while (iter.hasNext()) {
+          if (iter.next().mySegment == segment)
+            iter.remove();
+        }
+        FileUtil.delete(getSegmentFile(segment));
+      }
+    }
+
+    private void setSegmentSize(long segment, long size) {
+      Long prevSize = mySegments.put(segment, size);
+      if (prevSize != null)
+        mySize -= prevSize;
+      mySize += size;
+    }
+
+    private void loadIndex() {
+      if (myIndexLoaded)
+        return;
+      myIndexLoaded = true;
+      File[] files = myDir.listFiles();
+      if (files == null)
+        return;
+      for (File f : files) {
+        String name = f.getName();
+        if (f.isDirectory()) {
+          //entries of the previous format were stored in a file per commit
+          FileUtil.delete(f);
+          continue;
+        }
+        if (!name.endsWith(SEGMENT_SUFFIX))
+          continue;
+        try {
+          long segment = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+          setSegmentSize(segment, f.length());
+          myNextSegment = Math.max(myNextSegment, segment + 1);
+        } catch (NumberFormatException e) {
+          //not a segment
+        }
+      }
+      for (Long segment : new ArrayList<Long>(mySegments.keySet())) {
+        File f = getSegmentFile(segment);
+        try {
+          readRecords(segment, f);
+        } catch (IOException e) {
+          LOG.debug("Cannot read changed paths cache segment " + f.getAbsolutePath() + ", remove it", e);
+          setSegmentSize(segment, 0);
+          mySegments.remove(segment);
+          FileUtil.delete(f);
+        }
+      }
+    }
+
+    private void readRecords(long segment, @NotNull File f) throws IOException {
+      long length = f.length();
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+      try {
+        int version = in.readInt();
+        if (version != FORMAT_VERSION)
+          throw new IOException("Unsupported format version " + version);
+        long offset = 4;
+        byte[] rawKey = new byte[Constants.OBJECT_ID_LENGTH];
+        while (offset + rawKey.length + 4 <= length) {
+          in.readFully(rawKey);
+          int dataLength = in.readInt();
+          offset += rawKey.length + 4;
+          if (dataLength < 0 || offset + dataLength > length)
+            break; //incomplete record
+          myIndex.put(ObjectId.fromRaw(rawKey), new Entry(segment, offset, dataLength));
+          in.skipBytes(dataLength);
+          offset += dataLength;
+        }
+      } finally {
+        in.close();
+      }
+    }
+
+    @NotNull
+    private File getSegmentFile(long segment) {
+      return new File(myDir, segment + SEGMENT_SUFFIX);
+    }
+
+    @NotNull
+    private static byte[] readData(@NotNull File f, @NotNull Entry entry) throws IOException {
+      RandomAccessFile raf = new RandomAccessFile(f, "r");
+      try {
+        byte[] data = new byte[entry.myLength];
+        raf.seek(entry.myOffset);
+        raf.readFully(data);
+        return data;
+      } finally {
+        raf.close();
+      }
+    }
+
+    @NotNull
+    private static List<ChangedPath> parse(@NotNull byte[] data) throws IOException {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+      int count = in.readInt();
+      List<ChangedPath> result = new ArrayList<ChangedPath>(count);
+      for (int i = 0; i < count; i++) {
+        VcsChange.Type type;
+        try {
+          type = VcsChange.Type.valueOf(in.readUTF());
+        } catch (IllegalArgumentException e) {
+          throw new IOException("Unknown change type: " + e.getMessage());
+        }
+        boolean fileModeChanged = in.readBoolean();
+        result.add(new ChangedPath(type, in.readUTF(), fileModeChanged));
+      }
+      return result;
+    }
+
+    @NotNull
+    private static byte[] serialize(@NotNull List<ChangedPath> paths) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(paths.size());
+      for (ChangedPath path : paths) {
+        out.writeUTF(path.myType.name());
+        out.writeBoolean(path.myFileModeChanged);
+        out.writeUTF(path.myPath);
+      }
+      out.flush();
+      return bytes.toByteArray();
+    }
+  }
+}
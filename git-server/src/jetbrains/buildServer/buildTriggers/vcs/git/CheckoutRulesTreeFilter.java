@@ -0,0 +1,167 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import jetbrains.buildServer.vcs.CheckoutRules;
+import jetbrains.buildServer.vcs.FileRule;
+import jetbrains.buildServer.vcs.IncludeRule;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Tree filter skipping paths which are not mapped by checkout rules, allows
+ * to not read excluded subtrees at all.
+ *
+ * A path is included when the most specific rule containing it is an include
+ * rule, a directory is also included when some include rule is inside it.
+ * Include rules are compared ignoring case and exclude rules are compared
+ * exactly, so the filter never excludes a path mapped by rules; the exact
+ * rules are applied to collected changes later.
+ */
+public final class CheckoutRulesTreeFilter extends TreeFilter {
+
+  private final String[] myIncludes;
+  private final String[] myExcludes;
+
+  private CheckoutRulesTreeFilter(@NotNull List<String> includes, @NotNull List<String> excludes) {
+    myIncludes = includes.toArray(new String[includes.size()]);
+    myExcludes = excludes.toArray(new String[excludes.size()]);
+  }
+
+
+  /**
+   * @return filter for the given rules or null if rules include all paths
+   */
+  @Nullable
+  public static CheckoutRulesTreeFilter create(@NotNull CheckoutRules rules) {
+    List<String> includes = new ArrayList<String>();
+    for (IncludeRule rule : rules.getIncludeRules()) {
+      includes.add(normalize(rule.getFrom()).toLowerCase(Locale.ENGLISH));
+    }
+    List<String> excludes = new ArrayList<String>();
+    for (FileRule rule : rules.getExcludeRules()) {
+      excludes.add(normalize(rule.getFrom()));
+    }
+    if (includes.isEmpty())
+      includes.add("");
+    if (excludes.isEmpty() && includes.contains(""))
+      return null;
+    return new CheckoutRulesTreeFilter(includes, excludes);
+  }
+
+
+  /**
+   * @return lower case paths of include rules or null if some rule includes
+   * the whole repository
+   */
+  @Nullable
+  Collection<String> getIncludePaths() {
+    for (String include : myIncludes) {
+      if (include.length() == 0)
+        return null;
+    }
+    return Arrays.asList(myIncludes);
+  }
+
+
+  @Override
+  public boolean include(TreeWalk walker) {
+    String path = walker.getPathString();
+    String lowerCasePath = path.toLowerCase(Locale.ENGLISH);
+    int include = findMostSpecificRule(myIncludes, lowerCasePath);
+    if (include >= 0 && include >= findMostSpecificRule(myExcludes, path))
+      return true;
+    return walker.isSubtree() && hasIncludeRuleInside(lowerCasePath);
+  }
+
+
+  @Override
+  public boolean shouldBeRecursive() {
+    return false;
+  }
+
+
+  @Override
+  public TreeFilter clone() {
+    return this;
+  }
+
+
+  @Override
+  public String toString() {
+    StringBuilder result = new StringBuilder("CHECKOUT_RULES(");
+    for (String include : myIncludes) {
+      result.append("+:").append(include).append(" ");
+    }
+    for (String exclude : myExcludes) {
+      result.append("-:").append(exclude).append(" ");
+    }
+    return result.toString().trim() + ")";
+  }
+
+
+  /**
+   * @return length of the longest rule containing the path or -1 if no rule contains it
+   */
+  private static int findMostSpecificRule(@NotNull String[] rules, @NotNull String path) {
+    int result = -1;
+    for (String rule : rules) {
+      if (rule.length() > result && isAncestorOrSelf(rule, path))
+        result = rule.length();
+    }
+    return result;
+  }
+
+
+  private boolean hasIncludeRuleInside(@NotNull String dir) {
+    for (String include : myIncludes) {
+      if (include.length() > dir.length() && isAncestorOrSelf(dir, include))
+        return true;
+    }
+    return false;
+  }
+
+
+  private static boolean isAncestorOrSelf(@NotNull String ancestor, @NotNull String path) {
+    if (ancestor.length() == 0)
+      return true;
+    if (!path.startsWith(ancestor))
+      return false;
+    return path.length() == ancestor.length() || path.charAt(ancestor.length()) == '/';
+  }
+
+
+  @NotNull
+  private static String normalize(@NotNull String path) {
+    String result = path.replace('\\', '/');
+    while (result.startsWith("./"))
+      result = result.substring(2);
+    while (result.startsWith("/"))
+      result = result.substring(1);
+    while (result.endsWith("/"))
+      result = result.substring(0, result.length() - 1);
+    return ".".equals(result) ? "" : result;
+  }
+}
@@ -32,6 +32,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 
@@ -57,9 +58,22 @@ public class Cleanup {
     } else if (myConfig.isRunNativeGC()) {
       runNativeGC();
     }
+    logLockStats();
+    updateWindowCacheSettings();
+    LOG.info("JGit window cache usage: " + GitServerUtil.getWindowCacheStats());
     LOG.info("Git cleanup finished");
   }
 
+  /**
+   * Automatic window cache sizing depends on the number of mirrors which
+   * grows after server start, the cache is reinstalled only if its settings change
+   */
+  private void updateWindowCacheSettings() {
+    int mirrorsCount = myRepositoryManager.getMappings().size();
+    if (GitServerUtil.configureWindowCache(myConfig, GitServerUtil.getStreamFileThresholdBytes(myConfig), mirrorsCount))
+      LOG.info("JGit window cache settings are updated for " + mirrorsCount + " mirrors");
+  }
+
   private void removeUnusedRepositories() {
     List<File> unusedDirs = getUnusedDirs();
     LOG.debug("Remove unused git repository clones started");
@@ -69,6 +83,7 @@ public class Cleanup {
       rmLock.lock();
       boolean deleted = false;
       try {
+        myRepositoryManager.evictRepository(dir);
         deleted = FileUtil.delete(dir);
       } finally {
         rmLock.unlock();
@@ -83,6 +98,14 @@ public class Cleanup {
     LOG.debug("Remove unused git repository clones finished");
   }
 
+  private void logLockStats() {
+    if (!LOG.isDebugEnabled())
+      return;
+    for (Map.Entry<File, LockStats> e : myRepositoryManager.getLockStats().entrySet()) {
+      LOG.debug("Lock times of " + e.getKey().getAbsolutePath() + ": " + e.getValue());
+    }
+  }
+
   @NotNull
   private List<File> getUnusedDirs() {
     return myRepositoryManager.getExpiredDirs();
@@ -131,8 +154,12 @@ public class Cleanup {
     Collections.shuffle(allDirs);
     int runGCCounter = 0;
     for (File gitDir : allDirs) {
-      synchronized (myRepositoryManager.getWriteLock(gitDir)) {
+      Lock writeLock = myRepositoryManager.getWriteLock(gitDir);
+      writeLock.lock();
+      try {
         runNativeGC(gitDir);
+      } finally {
+        writeLock.unlock();
       }
       runGCCounter++;
       final long repositoryFinishNanos = System.nanoTime();
@@ -158,7 +185,9 @@ public class Cleanup {
     Boolean nativeGitInstalled = null;
     boolean enableNativeGitLogged = false;
     for (File gitDir : allDirs) {
-      synchronized (myRepositoryManager.getWriteLock(gitDir)) {
+      Lock writeLock = myRepositoryManager.getWriteLock(gitDir);
+      writeLock.lock();
+      try {
         try {
           LOG.info("Start garbage collection in " + gitDir.getAbsolutePath());
           long repositoryStartNanos = System.nanoTime();
@@ -182,6 +211,8 @@ public class Cleanup {
             }
           }
         }
+      } finally {
+        writeLock.unlock();
       }
       runGCCounter++;
       final long repositoryFinishNanos = System.nanoTime();
@@ -0,0 +1,780 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.util.FileUtil;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevFlag;
+import org.eclipse.jgit.revwalk.RevObject;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+import org.eclipse.jgit.util.NB;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Commit graph of a mirror: for every indexed commit it stores indexes of
+ * its parents, commit time and generation number (1 for root commits, 1 +
+ * max generation of parents otherwise). Ancestry queries use only this data
+ * and don't parse commit objects; a commit cannot reach commits with the
+ * same or greater generation, so walks skip them.
+ *
+ * Commits are indexed on demand before a query and after every fetch into
+ * the mirror. Commit objects are read without holding the graph monitor, so
+ * queries about already indexed commits are not blocked by indexing of a long
+ * history; only one thread indexes at a time. Commits are stored in dense
+ * arrays in the order they were indexed, parents always precede their
+ * children. New commits are appended to the {@link #FILE_NAME} file in the
+ * mirror.
+ *
+ * For commits indexed after a fetch the graph also keeps Bloom filters of
+ * changed paths, they are appended to the {@link #FILTERS_FILE_NAME} file.
+ * Path-limited walks use them to skip commits which didn't touch interesting
+ * paths without diffing their trees. Filters are computed outside of the graph
+ * monitor and published when complete, their reads don't take the monitor.
+ */
+public final class CommitGraph {
+
+  private static final Logger LOG = Logger.getInstance(CommitGraph.class.getName());
+  static final String FILE_NAME = "teamcity-commit-graph";
+  private static final int MAGIC = 0x54434347;
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 8;
+  static final String FILTERS_FILE_NAME = "teamcity-changed-path-filters";
+  private static final int FILTERS_MAGIC = 0x54435046;
+  private static final int MAX_FILTER_PATHS = 512;
+  private static final int FILTER_BITS_PER_PATH = 10;
+  private static final int FILTER_HASHES = 7;
+
+  private final File myFile;
+  private final File myFiltersFile;
+  private final Object myIndexLock = new Object();
+  private volatile boolean myLoaded = false;
+  private int myCount = 0;
+  private int myPersistedCount = 0;
+  private int[] myIds = new int[5 * 1024];
+  private int[] myTimes = new int[1024];
+  private int[] myGenerations = new int[1024];
+  private int[] myParentsStart = new int[1025];
+  private int[] myParents = new int[1024];
+  private int[] myTable = new int[2048]; //open addressing hash table: commit index + 1
+  private int[] myFlags = new int[0]; //merge base flags, all zeros between queries
+  //no filter - filter is not computed, empty filter - too many changed paths
+  private final ConcurrentMap<ObjectId, long[]> myFilters = new ConcurrentHashMap<ObjectId, long[]>();
+
+  public CommitGraph(@NotNull File repositoryDir) {
+    myFile = new File(repositoryDir, FILE_NAME);
+    myFiltersFile = new File(repositoryDir, FILTERS_FILE_NAME);
+  }
+
+
+  /**
+   * @return a common ancestor of the given commits with the max generation
+   * number or null if commits have no common ancestors
+   */
+  @Nullable
+  public ObjectId getMergeBase(@NotNull Repository db, @NotNull AnyObjectId commit1, @NotNull AnyObjectId commit2) throws IOException {
+    index(db, Arrays.asList(commit1, commit2));
+    synchronized (this) {
+      int c1 = find(commit1);
+      int c2 = find(commit2);
+      if (c1 < 0 || c2 < 0)
+        throw new IOException("Cannot find commit " + (c1 < 0 ? commit1.name() : commit2.name()) + " in " + db.getDirectory().getAbsolutePath());
+      int base = getMergeBase(c1, c2);
+      return base >= 0 ? getId(base) : null;
+    }
+  }
+
+
+  /**
+   * @return true if the ancestor commit is reachable from the descendant commit
+   */
+  public boolean isAncestor(@NotNull Repository db, @NotNull AnyObjectId ancestor, @NotNull AnyObjectId descendant) throws IOException {
+    index(db, Arrays.asList(ancestor, descendant));
+    synchronized (this) {
+      int target = find(ancestor);
+      int start = find(descendant);
+      if (target < 0 || start < 0)
+        throw new IOException("Cannot find commit " + (target < 0 ? ancestor.name() : descendant.name()) + " in " + db.getDirectory().getAbsolutePath());
+      return isAncestor(target, start);
+    }
+  }
+
+
+  private boolean isAncestor(int target, int start) {
+    int targetGeneration = myGenerations[target];
+    BitSet visited = new BitSet(myCount);
+    int[] stack = new int[16];
+    int size = 0;
+    stack[size++] = start;
+    visited.set(start);
+    while (size > 0) {
+      int c = stack[--size];
+      if (c == target)
+        return true;
+      if (myGenerations[c] <= targetGeneration)
+        continue;
+      for (int i = myParentsStart[c]; i < myParentsStart[c + 1]; i++) {
+        int p = myParents[i];
+        if (!visited.get(p)) {
+          visited.set(p);
+          if (size == stack.length)
+            stack = Arrays.copyOf(stack, 2 * size);
+          stack[size++] = p;
+        }
+      }
+    }
+    return false;
+  }
+
+
+  /**
+   * Indexes commits reachable from the given tips and computes changed path
+   * filters for them. Filters are not computed when the graph is created,
+   * i.e. for the history existed before the first update.
+   */
+  public void update(@NotNull Repository db, @NotNull Collection<? extends AnyObjectId> tips) throws IOException {
+    boolean created;
+    synchronized (this) {
+      load();
+      created = myCount == 0;
+    }
+    List<ObjectId> commits = index(db, tips);
+    if (created || commits.isEmpty())
+      return;
+    List<ObjectId> firstParents = new ArrayList<ObjectId>();
+    synchronized (this) {
+      for (ObjectId commit : commits) {
+        int c = find(commit);
+        int parentsStart = myParentsStart[c];
+        firstParents.add(parentsStart == myParentsStart[c + 1] ? null : getId(myParents[parentsStart]));
+      }
+    }
+    computeFilters(db, commits, firstParents);
+  }
+
+
+  /**
+   * Checks the changed path filter of the commit: the filter contains paths
+   * changed in the commit relatively to its first parent and all their parent
+   * directories, paths are in lower case.
+   * @param paths lower case paths relative to the repository root
+   * @return false if the commit certainly did not change any of the given paths
+   * or files inside them, true if it did or if it is unknown
+   */
+  boolean mayChangePaths(@NotNull AnyObjectId commit, @NotNull Collection<String> paths) {
+    if (!myLoaded) {
+      synchronized (this) {
+        load();
+      }
+    }
+    long[] filter = myFilters.get(commit);
+    if (filter == null || filter.length == 0)
+      return true;
+    for (String path : paths) {
+      if (mightContain(filter, path))
+        return true;
+    }
+    return false;
+  }
+
+
+  private int getMergeBase(int c1, int c2) {
+    if (c1 == c2)
+      return c1;
+    //paint commits reachable from c1 and c2 in the order of decreasing generation,
+    //the first commit reachable from both is a merge base: all its descendants
+    //have greater generations, so its flags are final when it is polled
+    if (myFlags.length < myCount)
+      myFlags = new int[myTimes.length];
+    CommitQueue queue = new CommitQueue();
+    try {
+      myFlags[c1] = 1;
+      myFlags[c2] = 2;
+      queue.add(c1);
+      queue.add(c2);
+      while (!queue.isEmpty()) {
+        int c = queue.poll();
+        int f = myFlags[c];
+        if (f == 3)
+          return c;
+        for (int i = myParentsStart[c]; i < myParentsStart[c + 1]; i++) {
+          int p = myParents[i];
+          int old = myFlags[p];
+          if ((old | f) == old)
+            continue;
+          myFlags[p] = old | f;
+          if (old == 0)
+            queue.add(p);
+        }
+      }
+      return -1;
+    } finally {
+      queue.clearFlags();
+    }
+  }
+
+
+  /**
+   * Indexes commits reachable from the given tips. Commit objects are read
+   * without holding the graph monitor, found commits are added under the
+   * monitor at once.
+   * @return ids of commits added to the graph by this call
+   */
+  @NotNull
+  private List<ObjectId> index(@NotNull Repository db, @NotNull Collection<? extends AnyObjectId> tips) throws IOException {
+    if (isIndexed(tips))
+      return Collections.emptyList();
+    synchronized (myIndexLock) {
+      if (isIndexed(tips))
+        return Collections.emptyList();
+      List<RevCommit> commits = readNewCommits(db, tips);
+      List<ObjectId> added = new ArrayList<ObjectId>(commits.size());
+      synchronized (this) {
+        for (RevCommit c : commits) {
+          add(c);
+          added.add(c.copy());
+        }
+        if (!added.isEmpty())
+          persist();
+      }
+      return added;
+    }
+  }
+
+
+  private synchronized boolean isIndexed(@NotNull Collection<? extends AnyObjectId> commits) {
+    load();
+    for (AnyObjectId commit : commits) {
+      if (find(commit) < 0)
+        return false;
+    }
+    return true;
+  }
+
+
+  private synchronized boolean isIndexed(@NotNull AnyObjectId commit) {
+    return find(commit) >= 0;
+  }
+
+
+  /**
+   * @return commits reachable from the tips which are not indexed yet, parents
+   * precede their children
+   */
+  @NotNull
+  private List<RevCommit> readNewCommits(@NotNull Repository db, @NotNull Collection<? extends AnyObjectId> tips) throws IOException {
+    List<RevCommit> result = new ArrayList<RevCommit>();
+    RevWalk walk = new RevWalk(db);
+    walk.setRetainBody(false);
+    try {
+      RevFlag read = walk.newFlag("read");
+      LinkedList<RevCommit> stack = new LinkedList<RevCommit>();
+      for (AnyObjectId tip : tips) {
+        if (isIndexed(tip))
+          continue;
+        RevObject obj = walk.peel(walk.parseAny(tip));
+        if (obj instanceof RevCommit)
+          stack.push((RevCommit) obj);
+      }
+      while (!stack.isEmpty()) {
+        RevCommit c = stack.peek();
+        if (c.has(read) || isIndexed(c)) {
+          stack.pop();
+          continue;
+        }
+        boolean parentsRead = true;
+        for (RevCommit parent : c.getParents()) {
+          if (!parent.has(read) && !isIndexed(parent)) {
+            walk.parseHeaders(parent);
+            stack.push(parent);
+            parentsRead = false;
+          }
+        }
+        if (parentsRead) {
+          stack.pop();
+          c.add(read);
+          result.add(c);
+        }
+      }
+    } finally {
+      walk.release();
+    }
+    return result;
+  }
+
+
+  private void add(@NotNull RevCommit c) {
+    RevCommit[] parents = c.getParents();
+    ensureCapacity(parents.length);
+    int index = myCount;
+    byte[] raw = new byte[20];
+    c.getId().copyRawTo(raw, 0);
+    for (int i = 0; i < 5; i++) {
+      myIds[5 * index + i] = NB.decodeInt32(raw, 4 * i);
+    }
+    int[] parentIndexes = new int[parents.length];
+    for (int i = 0; i < parents.length; i++) {
+      parentIndexes[i] = find(parents[i]);
+    }
+    add(c.getCommitTime(), parentIndexes);
+    insert(c, index);
+  }
+
+
+  private void add(int time, @NotNull int[] parents) {
+    int index = myCount;
+    int generation = 0;
+    int start = myParentsStart[index];
+    for (int i = 0; i < parents.length; i++) {
+      myParents[start + i] = parents[i];
+      generation = Math.max(generation, myGenerations[parents[i]]);
+    }
+    myParentsStart[index + 1] = start + parents.length;
+    myTimes[index] = time;
+    myGenerations[index] = generation + 1;
+    myCount++;
+  }
+
+
+  private void ensureCapacity(int parentsCount) {
+    if (myCount == myTimes.length) {
+      int capacity = 2 * myTimes.length;
+      myIds = Arrays.copyOf(myIds, 5 * capacity);
+      myTimes = Arrays.copyOf(myTimes, capacity);
+      myGenerations = Arrays.copyOf(myGenerations, capacity);
+      myParentsStart = Arrays.copyOf(myParentsStart, capacity + 1);
+    }
+    int parentsEnd = myParentsStart[myCount] + parentsCount;
+    if (parentsEnd > myParents.length)
+      myParents = Arrays.copyOf(myParents, Math.max(2 * myParents.length, parentsEnd));
+    if (2 * (myCount + 1) > myTable.length)
+      rehash(2 * myTable.length);
+  }
+
+
+  private int find(@NotNull AnyObjectId id) {
+    int mask = myTable.length - 1;
+    for (int slot = id.hashCode() & mask; ; slot = (slot + 1) & mask) {
+      int entry = myTable[slot];
+      if (entry == 0)
+        return -1;
+      if (id.compareTo(myIds, 5 * (entry - 1)) == 0)
+        return entry - 1;
+    }
+  }
+
+
+  private void insert(@NotNull AnyObjectId id, int index) {
+    int mask = myTable.length - 1;
+    int slot = id.hashCode() & mask;
+    while (myTable[slot] != 0) {
+      slot = (slot + 1) & mask;
+    }
+    myTable[slot] = index + 1;
+  }
+
+
+  private void rehash(int size) {
+    myTable = new int[size];
+    for (int i = 0; i < myCount; i++) {
+      insert(getId(i), i);
+    }
+  }
+
+
+  @NotNull
+  private ObjectId getId(int index) {
+    return ObjectId.fromRaw(myIds, 5 * index);
+  }
+
+
+  private void load() {
+    if (myLoaded)
+      return;
+    readGraph();
+    myLoaded = true;
+  }
+
+
+  private void readGraph() {
+    if (!myFile.isFile())
+      return;
+    long validLength = HEADER_SIZE;
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(myFile)));
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        in.close();
+        in = null;
+        FileUtil.delete(myFile);
+        return;
+      }
+      while (true) {
+        int[] id = new int[5];
+        try {
+          id[0] = in.readInt();
+        } catch (EOFException e) {
+          break;
+        }
+        for (int i = 1; i < 5; i++) {
+          id[i] = in.readInt();
+        }
+        int time = in.readInt();
+        int generation = in.readInt();
+        int parentsCount = in.readInt();
+        if (parentsCount < 0)
+          break;
+        int[] parents = new int[parentsCount];
+        boolean valid = true;
+        for (int i = 0; i < parentsCount; i++) {
+          parents[i] = in.readInt();
+          valid &= parents[i] >= 0 && parents[i] < myCount;
+        }
+        if (!valid)
+          break;
+        ensureCapacity(parentsCount);
+        System.arraycopy(id, 0, myIds, 5 * myCount, 5);
+        int index = myCount;
+        add(time, parents);
+        if (myGenerations[index] != generation) {
+          myCount--;
+          break;
+        }
+        insert(getId(index), index);
+        validLength += 4 * (8 + parentsCount);
+      }
+    } catch (EOFException e) {
+      //incomplete last record, it will be removed
+    } catch (IOException e) {
+      LOG.warn("Error while reading commit graph " + myFile.getAbsolutePath() + ", graph will be rebuilt", e);
+      reset();
+      FileUtil.delete(myFile);
+      return;
+    } finally {
+      if (in != null)
+        FileUtil.close(in);
+    }
+    myPersistedCount = myCount;
+    if (myFile.length() > validLength)
+      truncate(validLength);
+    loadFilters();
+  }
+
+
+  private void computeFilters(@NotNull Repository db, @NotNull List<ObjectId> commits, @NotNull List<ObjectId> firstParents) throws IOException {
+    Map<ObjectId, long[]> filters = new LinkedHashMap<ObjectId, long[]>();
+    RevWalk walk = new RevWalk(db);
+    walk.setRetainBody(false);
+    TreeWalk tw = new TreeWalk(walk.getObjectReader());
+    tw.setRecursive(true);
+    tw.setFilter(TreeFilter.ANY_DIFF);
+    try {
+      for (int i = 0; i < commits.size(); i++) {
+        tw.reset();
+        ObjectId firstParent = firstParents.get(i);
+        if (firstParent == null) {
+          tw.addTree(new EmptyTreeIterator());
+        } else {
+          tw.addTree(walk.parseCommit(firstParent).getTree());
+        }
+        tw.addTree(walk.parseCommit(commits.get(i)).getTree());
+        Set<String> paths = new HashSet<String>();
+        while (tw.next() && paths.size() <= MAX_FILTER_PATHS) {
+          String path = tw.getPathString().toLowerCase(Locale.ENGLISH);
+          while (paths.add(path)) {
+            int idx = path.lastIndexOf('/');
+            if (idx < 0)
+              break;
+            path = path.substring(0, idx);
+          }
+        }
+        filters.put(commits.get(i), createFilter(paths));
+      }
+    } finally {
+      tw.release();
+      walk.release();
+      publishFilters(filters);
+    }
+  }
+
+
+  private synchronized void publishFilters(@NotNull Map<ObjectId, long[]> filters) {
+    if (filters.isEmpty())
+      return;
+    myFilters.putAll(filters);
+    persistFilters(filters);
+  }
+
+
+  @NotNull
+  private static long[] createFilter(@NotNull Set<String> paths) {
+    if (paths.size() > MAX_FILTER_PATHS)
+      return new long[0];
+    int words = Math.max(1, (paths.size() * FILTER_BITS_PER_PATH + 63) / 64);
+    long[] filter = new long[words];
+    for (String path : paths) {
+      int h1 = path.hashCode();
+      int h2 = secondHash(path);
+      for (int i = 0; i < FILTER_HASHES; i++) {
+        int bit = ((h1 + i * h2) & 0x7fffffff) % (64 * words);
+        filter[bit >>> 6] |= 1L << (bit & 63);
+      }
+    }
+    return filter;
+  }
+
+
+  private static boolean mightContain(@NotNull long[] filter, @NotNull String path) {
+    int h1 = path.hashCode();
+    int h2 = secondHash(path);
+    for (int i = 0; i < FILTER_HASHES; i++) {
+      int bit = ((h1 + i * h2) & 0x7fffffff) % (64 * filter.length);
+      if ((filter[bit >>> 6] & (1L << (bit & 63))) == 0)
+        return false;
+    }
+    return true;
+  }
+
+
+  private static int secondHash(@NotNull String path) {
+    int h = 0x811c9dc5;
+    for (int i = 0; i < path.length(); i++) {
+      h ^= path.charAt(i);
+      h *= 16777619;
+    }
+    return h | 1;
+  }
+
+
+  /**
+   * Filters file contains records: commit id, number of filter words, filter
+   * words; filters of commits missing in the graph are ignored
+   */
+  private void loadFilters() {
+    if (!myFiltersFile.isFile())
+      return;
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(myFiltersFile)));
+      if (in.readInt() != FILTERS_MAGIC || in.readInt() != VERSION) {
+        in.close();
+        in = null;
+        FileUtil.delete(myFiltersFile);
+        return;
+      }
+      int[] id = new int[5];
+      while (true) {
+        try {
+          id[0] = in.readInt();
+        } catch (EOFException e) {
+          break;
+        }
+        for (int i = 1; i < 5; i++) {
+          id[i] = in.readInt();
+        }
+        int words = in.readInt();
+        if (words < 0 || words > MAX_FILTER_PATHS * FILTER_BITS_PER_PATH / 64 + 1)
+          throw new IOException("Unexpected filter size " + words);
+        long[] filter = new long[words];
+        for (int i = 0; i < words; i++) {
+          filter[i] = in.readLong();
+        }
+        ObjectId commit = ObjectId.fromRaw(id);
+        if (find(commit) >= 0)
+          myFilters.put(commit, filter);
+      }
+    } catch (IOException e) {
+      //filters are optional, just recompute them for new commits
+      LOG.debug("Error while reading changed path filters " + myFiltersFile.getAbsolutePath() + ", remove them", e);
+      FileUtil.close(in);
+      in = null;
+      FileUtil.delete(myFiltersFile);
+      myFilters.clear();
+    } finally {
+      FileUtil.close(in);
+    }
+  }
+
+
+  /**
+   * Appends the given filters to the filters file, rewrites the file with all
+   * known filters if it doesn't exist
+   */
+  private void persistFilters(@NotNull Map<ObjectId, long[]> newFilters) {
+    boolean append = myFiltersFile.isFile();
+    DataOutputStream out = null;
+    try {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(myFiltersFile, append)));
+      if (!append) {
+        out.writeInt(FILTERS_MAGIC);
+        out.writeInt(VERSION);
+      }
+      byte[] raw = new byte[20];
+      for (Map.Entry<ObjectId, long[]> e : (append ? newFilters : myFilters).entrySet()) {
+        e.getKey().copyRawTo(raw, 0);
+        out.write(raw);
+        long[] filter = e.getValue();
+        out.writeInt(filter.length);
+        for (long word : filter) {
+          out.writeLong(word);
+        }
+      }
+      out.close();
+      out = null;
+    } catch (IOException e) {
+      LOG.warn("Cannot write changed path filters " + myFiltersFile.getAbsolutePath(), e);
+      FileUtil.close(out);
+      FileUtil.delete(myFiltersFile);
+    }
+  }
+
+
+  private void truncate(long length) {
+    RandomAccessFile file = null;
+    try {
+      file = new RandomAccessFile(myFile, "rw");
+      file.setLength(length);
+    } catch (IOException e) {
+      LOG.warn("Cannot truncate commit graph " + myFile.getAbsolutePath() + ", graph will be rebuilt", e);
+      FileUtil.close(file);
+      file = null;
+      FileUtil.delete(myFile);
+      myPersistedCount = 0;
+    } finally {
+      FileUtil.close(file);
+    }
+  }
+
+
+  private void reset() {
+    myCount = 0;
+    myPersistedCount = 0;
+    Arrays.fill(myTable, 0);
+    myFilters.clear();
+  }
+
+
+  private void persist() {
+    if (!myFile.isFile())
+      myPersistedCount = 0;
+    DataOutputStream out = null;
+    try {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(myFile, myPersistedCount > 0)));
+      if (myPersistedCount == 0) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+      }
+      for (int c = myPersistedCount; c < myCount; c++) {
+        for (int i = 0; i < 5; i++) {
+          out.writeInt(myIds[5 * c + i]);
+        }
+        out.writeInt(myTimes[c]);
+        out.writeInt(myGenerations[c]);
+        out.writeInt(myParentsStart[c + 1] - myParentsStart[c]);
+        for (int i = myParentsStart[c]; i < myParentsStart[c + 1]; i++) {
+          out.writeInt(myParents[i]);
+        }
+      }
+      out.close();
+      out = null;
+      myPersistedCount = myCount;
+    } catch (IOException e) {
+      LOG.warn("Cannot write commit graph " + myFile.getAbsolutePath(), e);
+      FileUtil.close(out);
+      FileUtil.delete(myFile);
+      myPersistedCount = 0;
+    }
+  }
+
+  /**
+   * Binary heap of commit indexes: commits with greater generation go first,
+   * commits with the same generation are ordered by decreasing commit time.
+   * Remembers added commits to clear their merge base flags.
+   */
+  private final class CommitQueue {
+    private int[] myHeap = new int[16];
+    private int mySize = 0;
+    private int[] myAdded = new int[16];
+    private int myAddedCount = 0;
+
+    void add(int c) {
+      if (myAddedCount == myAdded.length)
+        myAdded = Arrays.copyOf(myAdded, 2 * myAddedCount);
+      myAdded[myAddedCount++] = c;
+      if (mySize == myHeap.length)
+        myHeap = Arrays.copyOf(myHeap, 2 * mySize);
+      int i = mySize++;
+      while (i > 0) {
+        int parent = (i - 1) >>> 1;
+        if (!before(c, myHeap[parent]))
+          break;
+        myHeap[i] = myHeap[parent];
+        i = parent;
+      }
+      myHeap[i] = c;
+    }
+
+    int poll() {
+      int result = myHeap[0];
+      int last = myHeap[--mySize];
+      int i = 0;
+      while (true) {
+        int child = 2 * i + 1;
+        if (child >= mySize)
+          break;
+        if (child + 1 < mySize && before(myHeap[child + 1], myHeap[child]))
+          child++;
+        if (!before(myHeap[child], last))
+          break;
+        myHeap[i] = myHeap[child];
+        i = child;
+      }
+      myHeap[i] = last;
+      return result;
+    }
+
+    boolean isEmpty() {
+      return mySize == 0;
+    }
+
+    void clearFlags() {
+      for (int i = 0; i < myAddedCount; i++) {
+        myFlags[myAdded[i]] = 0;
+      }
+    }
+
+    private boolean before(int c1, int c2) {
+      int g1 = myGenerations[c1];
+      int g2 = myGenerations[c2];
+      if (g1 != g2)
+        return g1 > g2;
+      return myTimes[c1] > myTimes[c2];
+    }
+  }
+}
@@ -29,6 +29,7 @@ import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.util.Collection;
+import java.util.Set;
 
 /**
  * Encapsulates logic for loading, fetching and finding commits in repository
@@ -50,4 +51,20 @@ public interface CommitLoader {
 
   @Nullable
   public RevCommit findCommit(@NotNull Repository r, @NotNull String sha);
+
+  /**
+   * Checks if the repository contains an object with the given id without
+   * parsing it, i.e. the object type is not checked
+   */
+  boolean hasCommit(@NotNull Repository r, @NotNull ObjectId commitId);
+
+  /**
+   * Batch version of {@link #hasCommit(Repository, ObjectId)}
+   * @return ids of objects missing in the repository
+   */
+  @NotNull
+  Set<ObjectId> getMissingCommits(@NotNull Repository r, @NotNull Collection<ObjectId> commitIds);
+
+  @NotNull
+  CommitGraph getCommitGraph(@NotNull Repository r);
 }
@@ -21,7 +21,7 @@ import jetbrains.buildServer.vcs.VcsException;
 import org.eclipse.jgit.errors.NotSupportedException;
 import org.eclipse.jgit.errors.TransportException;
 import org.eclipse.jgit.lib.ObjectId;
-import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevWalk;
@@ -32,10 +32,12 @@ import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
+import java.lang.ref.SoftReference;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static java.util.Arrays.asList;
 
@@ -43,14 +45,22 @@ public class CommitLoaderImpl implements CommitLoader {
 
   private static final Logger LOG = Logger.getInstance(CommitLoaderImpl.class.getName());
   private static final Logger PERFORMANCE_LOG = Logger.getInstance(CommitLoaderImpl.class.getName() + ".Performance");
+  private static final Pattern REF_NAME = Pattern.compile("refs/[^\\s'\",:()]+");
 
   private final RepositoryManager myRepositoryManager;
   private final FetchCommand myFetchCommand;
   private final GitMapFullPath myMapFullPath;
+  private final FetchScheduler myScheduler;
+  private final FetchCoalescer myFetchCoalescer;
+  private final AtomicLong myWriteLockWaitMillis = new AtomicLong();
+  private final Map<File, SoftReference<CommitGraph>> myCommitGraphs = new HashMap<File, SoftReference<CommitGraph>>();
 
-  public CommitLoaderImpl(@NotNull RepositoryManager repositoryManager,
+  public CommitLoaderImpl(@NotNull ServerPluginConfig config,
+                          @NotNull RepositoryManager repositoryManager,
                           @NotNull FetchCommand fetchCommand,
                           @NotNull GitMapFullPath mapFullPath) {
+    myScheduler = new FetchScheduler(config);
+    myFetchCoalescer = new FetchCoalescer(myScheduler);
     myRepositoryManager = repositoryManager;
     myFetchCommand = fetchCommand;
     myMapFullPath = mapFullPath;
@@ -71,7 +81,8 @@ public class CommitLoaderImpl implements CommitLoader {
     }
 
     LOG.debug("Cannot find commit " + commitSHA + " in repository " + root.debugInfo() + ", fetch branch " + root.getRef());
-    fetchBranchData(root, db);
+    FetchSettings settings = new FetchSettings(root.getAuthSettings(), GitProgress.NO_OP, context.getFetchPriority());
+    fetchBranchData(root, db, settings);
 
     try {
       return getCommit(db, commitId);
@@ -79,7 +90,7 @@ public class CommitLoaderImpl implements CommitLoader {
       LOG.debug("Cannot find commit " + commitSHA + " in the branch " + root.getRef() +
                 " of repository " + root.debugInfo() + ", fetch all branches");
       RefSpec spec = new RefSpec().setSourceDestination("refs/heads/*", "refs/heads/*").setForceUpdate(true);
-      fetch(db, root.getRepositoryFetchURL(), asList(spec), new FetchSettings(root.getAuthSettings()));
+      fetch(db, root.getRepositoryFetchURL(), asList(spec), settings);
       try {
         return getCommit(db, commitId);
       } catch (IOException e1) {
@@ -94,23 +105,177 @@ public class CommitLoaderImpl implements CommitLoader {
                     @NotNull FetchSettings settings) throws NotSupportedException, VcsException, TransportException {
     File repositoryDir = db.getDirectory();
     assert repositoryDir != null : "Non-local repository";
+    FetchCoalescer.Request request = myFetchCoalescer.join(repositoryDir, fetchURI, settings.getAuthSettings(), settings.getPriority(), refspecs);
+    if (request.isLeader()) {
+      Throwable error = null;
+      try {
+        fetch(db, fetchURI, request, refspecs, settings);
+      } catch (VcsException e) {
+        error = e;
+      } catch (TransportException e) {
+        error = e;
+      } catch (NotSupportedException e) {
+        error = e;
+      } catch (RuntimeException e) {
+        error = e;
+      } catch (Error e) {
+        error = e;
+      } finally {
+        request.finish(error);
+      }
+      if (error != null)
+        handleBatchError(db, fetchURI, request, refspecs, settings, error);
+    } else {
+      try {
+        request.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new VcsException("Interrupted while waiting for fetch in repository " + repositoryDir.getAbsolutePath());
+      }
+      Throwable error = request.getError();
+      if (error != null)
+        handleBatchError(db, fetchURI, request, refspecs, settings, error);
+    }
+  }
+
+  /**
+   * Fetch of the merged batch can fail because of refspecs of other requests,
+   * e.g. when a ref of another request doesn't exist in the remote repository.
+   * In this case the request fetches its own refspecs separately. Other errors,
+   * e.g. network or authentication failures, are reported to all requests of
+   * the batch, fetching separately would fail the same way.
+   */
+  private void handleBatchError(@NotNull Repository db,
+                                @NotNull URIish fetchURI,
+                                @NotNull FetchCoalescer.Request request,
+                                @NotNull Collection<RefSpec> refspecs,
+                                @NotNull FetchSettings settings,
+                                @NotNull Throwable error) throws NotSupportedException, VcsException, TransportException {
+    if (request.getBatchSize() > 1 && isCausedByOtherRefSpecs(error, refspecs, request.getRefSpecs())) {
+      LOG.debug("Merged fetch in repository " + db.getDirectory().getAbsolutePath() + " failed, fetch " + refspecs + " separately", error);
+      fetch(db, fetchURI, null, refspecs, settings);
+      return;
+    }
+    if (error instanceof VcsException)
+      throw (VcsException) error;
+    if (error instanceof TransportException)
+      throw (TransportException) error;
+    if (error instanceof NotSupportedException)
+      throw (NotSupportedException) error;
+    if (error instanceof RuntimeException)
+      throw (RuntimeException) error;
+    if (error instanceof Error)
+      throw (Error) error;
+    throw new VcsException(error);
+  }
+
+  /**
+   * @return true if the error mentions a ref which is fetched only by refspecs
+   * of other requests of the batch
+   */
+  private static boolean isCausedByOtherRefSpecs(@NotNull Throwable error,
+                                                 @NotNull Collection<RefSpec> ownRefSpecs,
+                                                 @NotNull Collection<RefSpec> batchRefSpecs) {
+    List<RefSpec> otherRefSpecs = new ArrayList<RefSpec>(batchRefSpecs);
+    otherRefSpecs.removeAll(ownRefSpecs);
+    if (otherRefSpecs.isEmpty())
+      return false;
+    for (Throwable e = error; e != null; e = e.getCause() == e ? null : e.getCause()) {
+      String message = e.getMessage();
+      if (message == null)
+        continue;
+      Matcher m = REF_NAME.matcher(message);
+      while (m.find()) {
+        String ref = m.group();
+        while (ref.endsWith("."))
+          ref = ref.substring(0, ref.length() - 1);
+        if (matches(otherRefSpecs, ref) && !matches(ownRefSpecs, ref))
+          return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean matches(@NotNull Collection<RefSpec> refSpecs, @NotNull String ref) {
+    for (RefSpec spec : refSpecs) {
+      if (spec.getSource() != null && spec.matchSource(ref))
+        return true;
+      if (spec.getDestination() != null && spec.matchDestination(ref))
+        return true;
+    }
+    return false;
+  }
+
+  private void fetch(@NotNull Repository db,
+                     @NotNull URIish fetchURI,
+                     @Nullable FetchCoalescer.Request request,
+                     @NotNull Collection<RefSpec> refspecs,
+                     @NotNull FetchSettings settings) throws NotSupportedException, VcsException, TransportException {
+    File repositoryDir = db.getDirectory();
+    //wait for the turn before taking the write lock, otherwise a fetch of low priority
+    //waiting here would block fetches of higher priority into the same repository
     Lock rmLock = myRepositoryManager.getRmLock(repositoryDir).readLock();
-    rmLock.lock();
+    Lock writeLock = myRepositoryManager.getWriteLock(repositoryDir);
+    FetchScheduler.Ticket ticket = acquireTicket(fetchURI, request != null ? request.newTicket(fetchURI) : myScheduler.newTicket(fetchURI, settings.getPriority()));
+    try {
+      lockInterruptibly(rmLock, repositoryDir);
+    } catch (VcsException e) {
+      myScheduler.release(ticket);
+      throw e;
+    }
     try {
-      final long start = System.currentTimeMillis();
-      synchronized (myRepositoryManager.getWriteLock(repositoryDir)) {
-        final long finish = System.currentTimeMillis();
-        Map<String, Ref> oldRefs = new HashMap<String, Ref>(db.getAllRefs());
-        PERFORMANCE_LOG.debug("[waitForWriteLock] repository: " + repositoryDir.getAbsolutePath() + ", took " + (finish - start) + "ms");
-        myFetchCommand.fetch(db, fetchURI, refspecs, settings);
-        Map<String, Ref> newRefs = new HashMap<String, Ref>(db.getAllRefs());
-        myMapFullPath.invalidateRevisionsCache(db, oldRefs, newRefs);
+      FetchRefUpdates updates;
+      try {
+        final long start = System.currentTimeMillis();
+        lockInterruptibly(writeLock, repositoryDir);
+        try {
+          final long finish = System.currentTimeMillis();
+          myWriteLockWaitMillis.addAndGet(finish - start);
+          Collection<RefSpec> specsToFetch = request != null ? request.start() : refspecs;
+          PERFORMANCE_LOG.debug("[waitForWriteLock] repository: " + repositoryDir.getAbsolutePath() + ", took " + (finish - start) + "ms" +
+                                ", total wait: " + myWriteLockWaitMillis.get() + "ms");
+          if (request != null && request.getBatchSize() > 1)
+            PERFORMANCE_LOG.debug("[fetch] repository: " + repositoryDir.getAbsolutePath() + ", merged requests: " + request.getBatchSize() +
+                                  ", total merged requests: " + myFetchCoalescer.getMergedRequestsCount());
+          FetchSettings fetchSettings = request != null ? settings.withPriority(request.getPriority()) : settings;
+          updates = myFetchCommand.fetch(db, fetchURI, specsToFetch, fetchSettings);
+          myMapFullPath.invalidateRevisionsCache(db, updates);
+        } finally {
+          writeLock.unlock();
+        }
+      } finally {
+        //the fetch slot is not needed to update the commit graph
+        myScheduler.release(ticket);
       }
+      //changed path filters are computed for new commits, don't block other fetches meanwhile
+      updateCommitGraph(db, updates);
     } finally {
       rmLock.unlock();
     }
   }
 
+  /**
+   * Fetch can be cancelled while it waits for repository locks
+   */
+  private static void lockInterruptibly(@NotNull Lock lock, @NotNull File repositoryDir) throws VcsException {
+    try {
+      lock.lockInterruptibly();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new VcsException("Interrupted while waiting for the lock of " + repositoryDir.getAbsolutePath());
+    }
+  }
+
+  @NotNull
+  private FetchScheduler.Ticket acquireTicket(@NotNull URIish fetchURI, @NotNull FetchScheduler.Ticket ticket) throws VcsException {
+    try {
+      return myScheduler.acquire(ticket);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new VcsException("Interrupted while waiting for fetch from " + fetchURI);
+    }
+  }
+
   @NotNull
   public RevCommit getCommit(@NotNull Repository repository, @NotNull ObjectId commitId) throws IOException {
     final long start = System.currentTimeMillis();
@@ -129,16 +294,79 @@ public class CommitLoaderImpl implements CommitLoader {
   @Nullable
   public RevCommit findCommit(@NotNull Repository r, @NotNull String sha) {
     try {
-      return getCommit(r, ObjectId.fromString(sha));
+      ObjectId commitId = ObjectId.fromString(sha);
+      if (!hasCommit(r, commitId))
+        return null;
+      return getCommit(r, commitId);
     } catch (Exception e) {
       return null;
     }
   }
 
-  private void fetchBranchData(@NotNull GitVcsRoot root, @NotNull Repository repository)
+  public boolean hasCommit(@NotNull Repository r, @NotNull ObjectId commitId) {
+    return getMissingCommits(r, Collections.singleton(commitId)).isEmpty();
+  }
+
+  @NotNull
+  public Set<ObjectId> getMissingCommits(@NotNull Repository r, @NotNull Collection<ObjectId> commitIds) {
+    Set<ObjectId> result = new HashSet<ObjectId>();
+    ObjectReader reader = r.newObjectReader();
+    try {
+      for (ObjectId commitId : commitIds) {
+        try {
+          if (!reader.has(commitId))
+            result.add(commitId);
+        } catch (IOException e) {
+          result.add(commitId);
+        }
+      }
+    } finally {
+      reader.release();
+    }
+    return result;
+  }
+
+  /**
+   * @return total number of fetch requests merged into fetches of other requests
+   */
+  public long getMergedFetchRequestsCount() {
+    return myFetchCoalescer.getMergedRequestsCount();
+  }
+
+  @NotNull
+  public CommitGraph getCommitGraph(@NotNull Repository r) {
+    File dir = r.getDirectory();
+    synchronized (myCommitGraphs) {
+      SoftReference<CommitGraph> ref = myCommitGraphs.get(dir);
+      CommitGraph graph = ref != null ? ref.get() : null;
+      if (graph == null) {
+        graph = new CommitGraph(dir);
+        myCommitGraphs.put(dir, new SoftReference<CommitGraph>(graph));
+      }
+      return graph;
+    }
+  }
+
+  private void updateCommitGraph(@NotNull Repository db, @NotNull FetchRefUpdates updates) {
+    if (!updates.isKnown() || updates.getUpdates().isEmpty())
+      return;
+    List<ObjectId> tips = new ArrayList<ObjectId>();
+    for (FetchRefUpdates.Update update : updates.getUpdates()) {
+      ObjectId newId = update.getNewId();
+      if (!ObjectId.zeroId().equals(newId))
+        tips.add(newId);
+    }
+    try {
+      getCommitGraph(db).update(db, tips);
+    } catch (IOException e) {
+      LOG.warn("Cannot update commit graph in " + db.getDirectory().getAbsolutePath(), e);
+    }
+  }
+
+  private void fetchBranchData(@NotNull GitVcsRoot root, @NotNull Repository repository, @NotNull FetchSettings settings)
     throws VcsException, TransportException, NotSupportedException {
     final String refName = GitUtils.expandRef(root.getRef());
     RefSpec spec = new RefSpec().setSource(refName).setDestination(refName).setForceUpdate(true);
-    fetch(repository, root.getRepositoryFetchURL(), asList(spec), new FetchSettings(root.getAuthSettings()));
+    fetch(repository, root.getRepositoryFetchURL(), asList(spec), settings);
   }
 }
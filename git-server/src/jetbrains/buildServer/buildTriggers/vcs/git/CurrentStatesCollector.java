@@ -0,0 +1,216 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.vcs.VcsException;
+import jetbrains.buildServer.vcs.VcsRoot;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Computes current states of many VCS roots in parallel. Roots with the same
+ * fetch url and credentials share a single ls-remote. Remote calls run on a
+ * shared bounded pool, the number of concurrent calls to a single host is
+ * limited across all requests so a slow host cannot occupy all threads, and
+ * every request is bounded by time: roots whose state is not computed in time
+ * get an error.
+ */
+class CurrentStatesCollector {
+
+  private static final Logger LOG = Logger.getInstance(CurrentStatesCollector.class.getName());
+  private static final Logger PERFORMANCE_LOG = Logger.getInstance(CurrentStatesCollector.class.getName() + ".Performance");
+  private static final AtomicInteger ourThreadsCount = new AtomicInteger();
+
+  private final GitVcsSupport myVcs;
+  private final RepositoryManager myRepositoryManager;
+  private final ServerPluginConfig myConfig;
+  private final ConcurrentMap<String, Semaphore> myHostPermits = new ConcurrentHashMap<String, Semaphore>();
+  private final ThreadPoolExecutor myExecutor;
+
+  CurrentStatesCollector(@NotNull GitVcsSupport vcs,
+                         @NotNull RepositoryManager repositoryManager,
+                         @NotNull ServerPluginConfig config) {
+    myVcs = vcs;
+    myRepositoryManager = repositoryManager;
+    myConfig = config;
+    int threads = Math.max(1, config.getCurrentStateThreads());
+    myExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+      public Thread newThread(@NotNull Runnable r) {
+        Thread t = new Thread(r, "Git current state " + ourThreadsCount.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    myExecutor.allowCoreThreadTimeOut(true);
+  }
+
+
+  @NotNull
+  Map<VcsRoot, RepositoryStateResult> getCurrentStates(@NotNull Collection<VcsRoot> roots) {
+    long start = System.currentTimeMillis();
+    final Map<VcsRoot, RepositoryStateResult> result = new ConcurrentHashMap<VcsRoot, RepositoryStateResult>();
+    Map<String, Map<Object, List<GitVcsRoot>>> hostGroups = new HashMap<String, Map<Object, List<GitVcsRoot>>>();
+    for (VcsRoot root : roots) {
+      GitVcsRoot gitRoot;
+      try {
+        gitRoot = new GitVcsRoot(myRepositoryManager, root);
+      } catch (VcsException e) {
+        result.put(root, RepositoryStateResult.error(e));
+        continue;
+      }
+      String host = getHost(gitRoot);
+      Map<Object, List<GitVcsRoot>> groups = hostGroups.get(host);
+      if (groups == null) {
+        groups = new LinkedHashMap<Object, List<GitVcsRoot>>();
+        hostGroups.put(host, groups);
+      }
+      Object key = RemoteRefsCache.keyOf(gitRoot);
+      List<GitVcsRoot> group = groups.get(key);
+      if (group == null) {
+        group = new ArrayList<GitVcsRoot>();
+        groups.put(key, group);
+      }
+      group.add(gitRoot);
+    }
+
+    int timeoutSeconds = myConfig.getCurrentStateTimeoutSeconds();
+    final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(Math.max(1, timeoutSeconds));
+    int groupsCount = 0;
+    final AtomicBoolean cancelled = new AtomicBoolean();
+    List<Runnable> workers = new ArrayList<Runnable>();
+    for (Map.Entry<String, Map<Object, List<GitVcsRoot>>> hostEntry : hostGroups.entrySet()) {
+      Map<Object, List<GitVcsRoot>> groups = hostEntry.getValue();
+      groupsCount += groups.size();
+      final Semaphore hostPermits = getHostPermits(hostEntry.getKey());
+      final Queue<List<GitVcsRoot>> hostQueue = new ConcurrentLinkedQueue<List<GitVcsRoot>>(groups.values());
+      int hostWorkers = Math.min(groups.size(), Math.max(1, myConfig.getCurrentStatePerHostThreads()));
+      for (int i = 0; i < hostWorkers; i++) {
+        workers.add(new Runnable() {
+          public void run() {
+            List<GitVcsRoot> group;
+            while (!cancelled.get() && (group = hostQueue.poll()) != null) {
+              //wait for the host no longer than the request lasts, otherwise workers
+              //of timed out requests to a slow host would pile up in the pool
+              try {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0 || !hostPermits.tryAcquire(remaining, TimeUnit.MILLISECONDS))
+                  return;
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+              }
+              try {
+                if (!cancelled.get())
+                  collectGroupState(group, result);
+              } finally {
+                hostPermits.release();
+              }
+            }
+          }
+        });
+      }
+    }
+
+    if (!workers.isEmpty())
+      runInParallel(workers, deadline, timeoutSeconds);
+    cancelled.set(true);
+
+    Map<VcsRoot, RepositoryStateResult> orderedResult = new LinkedHashMap<VcsRoot, RepositoryStateResult>();
+    for (VcsRoot root : roots) {
+      RepositoryStateResult rootResult = result.get(root);
+      if (rootResult == null)
+        rootResult = RepositoryStateResult.error(new VcsException("Current state of the VCS root " + LogUtil.describe(root) +
+                                                                  " was not computed in " + timeoutSeconds + " seconds"));
+      orderedResult.put(root, rootResult);
+    }
+    PERFORMANCE_LOG.debug("[getCurrentStates] roots: " + roots.size() + ", distinct repositories: " + groupsCount +
+                          ", hosts: " + hostGroups.size() + ", took " + (System.currentTimeMillis() - start) + "ms");
+    return orderedResult;
+  }
+
+
+  private void runInParallel(@NotNull List<Runnable> workers, long deadline, int timeoutSeconds) {
+    List<Future<?>> futures = new ArrayList<Future<?>>();
+    for (Runnable worker : workers) {
+      futures.add(myExecutor.submit(worker));
+    }
+    try {
+      for (Future<?> f : futures) {
+        try {
+          f.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+          LOG.warn("Error while computing current states", e.getCause());
+        }
+      }
+    } catch (TimeoutException e) {
+      LOG.warn("Current states were not computed in " + timeoutSeconds + " seconds, report an error for remaining VCS roots");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      //workers which have not started yet do nothing, running workers are interrupted,
+      //remote calls which don't react to interruption are bounded by the git idle timeout
+      for (Future<?> f : futures) {
+        f.cancel(true);
+      }
+    }
+  }
+
+
+  @NotNull
+  private Semaphore getHostPermits(@NotNull String host) {
+    Semaphore permits = myHostPermits.get(host);
+    if (permits == null) {
+      permits = new Semaphore(Math.max(1, myConfig.getCurrentStatePerHostThreads()));
+      Semaphore existing = myHostPermits.putIfAbsent(host, permits);
+      if (existing != null)
+        permits = existing;
+    }
+    return permits;
+  }
+
+
+  private void collectGroupState(@NotNull List<GitVcsRoot> group, @NotNull Map<VcsRoot, RepositoryStateResult> result) {
+    RefsState refs;
+    try {
+      refs = myVcs.getRemoteRefsState(group.get(0).getOriginalRoot());
+    } catch (VcsException e) {
+      for (GitVcsRoot gitRoot : group) {
+        result.put(gitRoot.getOriginalRoot(), RepositoryStateResult.error(e));
+      }
+      return;
+    }
+    for (GitVcsRoot gitRoot : group) {
+      try {
+        result.put(gitRoot.getOriginalRoot(), RepositoryStateResult.success(myVcs.getCurrentState(gitRoot, refs)));
+      } catch (VcsException e) {
+        result.put(gitRoot.getOriginalRoot(), RepositoryStateResult.error(e));
+      }
+    }
+  }
+
+
+  @NotNull
+  private static String getHost(@NotNull GitVcsRoot gitRoot) {
+    String host = gitRoot.getRepositoryFetchURL().getHost();
+    return host != null ? host : "";
+  }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.URIish;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Merges fetch requests into the same repository which arrive while another
+ * fetch is running. The first request of a batch becomes its leader: it waits
+ * for the repository write lock and then fetches the union of refspecs of all
+ * requests joined the batch so far. Other requests just wait for the leader.
+ *
+ * Only requests with the same fetch url and credentials are merged. A request
+ * joining a batch whose leader already waits in the {@link FetchScheduler}
+ * promotes the leader's ticket to the request priority.
+ */
+final class FetchCoalescer {
+
+  private final FetchScheduler myScheduler;
+  private final Map<Key, Batch> myPendingBatches = new HashMap<Key, Batch>();
+  private final AtomicLong myMergedRequests = new AtomicLong();
+
+  FetchCoalescer(@NotNull FetchScheduler scheduler) {
+    myScheduler = scheduler;
+  }
+
+  @NotNull
+  Request join(@NotNull File repositoryDir,
+               @NotNull URIish fetchURI,
+               @NotNull AuthSettings authSettings,
+               @NotNull FetchPriority priority,
+               @NotNull Collection<RefSpec> refSpecs) {
+    Key key = new Key(repositoryDir, fetchURI, authSettings);
+    synchronized (myPendingBatches) {
+      Batch batch = myPendingBatches.get(key);
+      boolean leader = batch == null;
+      if (leader) {
+        batch = new Batch(key);
+        myPendingBatches.put(key, batch);
+      } else {
+        myMergedRequests.incrementAndGet();
+      }
+      batch.add(refSpecs, priority);
+      if (batch.myTicket != null)
+        myScheduler.promote(batch.myTicket, batch.myPriority);
+      return new Request(batch, leader);
+    }
+  }
+
+  /**
+   * @return total number of requests which were merged into fetches of other requests
+   */
+  long getMergedRequestsCount() {
+    return myMergedRequests.get();
+  }
+
+
+  final class Request {
+    private final Batch myBatch;
+    private final boolean myLeader;
+
+    private Request(@NotNull Batch batch, boolean leader) {
+      myBatch = batch;
+      myLeader = leader;
+    }
+
+    boolean isLeader() {
+      return myLeader;
+    }
+
+    /**
+     * Creates a scheduler ticket of the batch, should be called by the leader
+     * before it acquires the ticket. The ticket is promoted when requests
+     * of higher priority join the batch.
+     */
+    @NotNull
+    FetchScheduler.Ticket newTicket(@NotNull URIish fetchURI) {
+      synchronized (myPendingBatches) {
+        myBatch.myTicket = myScheduler.newTicket(fetchURI, myBatch.myPriority);
+        return myBatch.myTicket;
+      }
+    }
+
+    /**
+     * Closes the batch for new requests, should be called by the leader
+     * after it acquires the repository write lock
+     * @return refspecs of all requests in the batch
+     */
+    @NotNull
+    Collection<RefSpec> start() {
+      synchronized (myPendingBatches) {
+        if (myPendingBatches.get(myBatch.myKey) == myBatch)
+          myPendingBatches.remove(myBatch.myKey);
+        return new ArrayList<RefSpec>(myBatch.myRefSpecs);
+      }
+    }
+
+    /**
+     * Releases all requests waiting for the batch
+     * @param error fetch error or null if fetch was successful
+     */
+    void finish(@Nullable Throwable error) {
+      synchronized (myPendingBatches) {
+        if (myPendingBatches.get(myBatch.myKey) == myBatch)
+          myPendingBatches.remove(myBatch.myKey);
+      }
+      myBatch.myError = error;
+      myBatch.myDone.countDown();
+    }
+
+    void await() throws InterruptedException {
+      myBatch.myDone.await();
+    }
+
+    /**
+     * @return refspecs of all requests joined the batch so far
+     */
+    @NotNull
+    Collection<RefSpec> getRefSpecs() {
+      synchronized (myPendingBatches) {
+        return new ArrayList<RefSpec>(myBatch.myRefSpecs);
+      }
+    }
+
+    @Nullable
+    Throwable getError() {
+      return myBatch.myError;
+    }
+
+    /**
+     * @return the highest priority among requests in the batch
+     */
+    @NotNull
+    FetchPriority getPriority() {
+      synchronized (myPendingBatches) {
+        return myBatch.myPriority;
+      }
+    }
+
+    /**
+     * @return number of requests in the batch
+     */
+    int getBatchSize() {
+      synchronized (myPendingBatches) {
+        return myBatch.myRequestsCount;
+      }
+    }
+  }
+
+
+  private static final class Batch {
+    private final Key myKey;
+    private final Set<RefSpec> myRefSpecs = new LinkedHashSet<RefSpec>();
+    private final CountDownLatch myDone = new CountDownLatch(1);
+    private int myRequestsCount = 0;
+    private FetchPriority myPriority;
+    private FetchScheduler.Ticket myTicket;
+    private volatile Throwable myError;
+
+    private Batch(@NotNull Key key) {
+      myKey = key;
+    }
+
+    void add(@NotNull Collection<RefSpec> refSpecs, @NotNull FetchPriority priority) {
+      myRefSpecs.addAll(refSpecs);
+      myRequestsCount++;
+      if (myPriority == null || priority.compareTo(myPriority) < 0)
+        myPriority = priority;
+    }
+  }
+
+
+  private static final class Key {
+    private final File myRepositoryDir;
+    private final String myFetchUrl;
+    private final Map<String, String> myAuth;
+    private final String myTeamCitySshKeyId;
+
+    private Key(@NotNull File repositoryDir, @NotNull URIish fetchURI, @NotNull AuthSettings authSettings) {
+      myRepositoryDir = repositoryDir;
+      myFetchUrl = fetchURI.toString();
+      myAuth = authSettings.toMap();
+      myTeamCitySshKeyId = authSettings.getTeamCitySshKeyId();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o)
+        return true;
+      if (o == null || getClass() != o.getClass())
+        return false;
+      Key key = (Key) o;
+      return myRepositoryDir.equals(key.myRepositoryDir) &&
+             myFetchUrl.equals(key.myFetchUrl) &&
+             myAuth.equals(key.myAuth) &&
+             (myTeamCitySshKeyId == null ? key.myTeamCitySshKeyId == null : myTeamCitySshKeyId.equals(key.myTeamCitySshKeyId));
+    }
+
+    @Override
+    public int hashCode() {
+      int result = myRepositoryDir.hashCode();
+      result = 31 * result + myFetchUrl.hashCode();
+      result = 31 * result + myAuth.hashCode();
+      result = 31 * result + (myTeamCitySshKeyId != null ? myTeamCitySshKeyId.hashCode() : 0);
+      return result;
+    }
+  }
+}
@@ -33,8 +33,10 @@ public interface FetchCommand {
 
   /**
    * Makes a fetch into local repository (db.getDirectory() should be not null)
+   * @return local refs updated by the fetch
    */
-  public void fetch(@NotNull Repository db,
+  @NotNull
+  public FetchRefUpdates fetch(@NotNull Repository db,
                     @NotNull URIish fetchURI,
                     @NotNull Collection<RefSpec> refspecs,
                     @NotNull FetchSettings settings) throws NotSupportedException, TransportException, VcsException;
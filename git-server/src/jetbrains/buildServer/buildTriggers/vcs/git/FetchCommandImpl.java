@@ -19,11 +19,11 @@ package jetbrains.buildServer.buildTriggers.vcs.git;
 import com.intellij.execution.configurations.GeneralCommandLine;
 import com.intellij.openapi.diagnostic.Logger;
 import jetbrains.buildServer.ExecResult;
+import jetbrains.buildServer.LineAwareByteArrayOutputStream;
 import jetbrains.buildServer.SimpleCommandLineProcessRunner;
 import jetbrains.buildServer.log.Loggers;
 import jetbrains.buildServer.ssh.TeamCitySshKey;
 import jetbrains.buildServer.ssh.VcsRootSshKeyManager;
-import jetbrains.buildServer.util.Dates;
 import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.vcs.VcsException;
 import jetbrains.buildServer.vcs.VcsRoot;
@@ -44,7 +44,7 @@ import org.jetbrains.annotations.NotNull;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
+import java.nio.charset.Charset;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -62,6 +62,7 @@ public class FetchCommandImpl implements FetchCommand {
   private final TransportFactory myTransportFactory;
   private final FetcherProperties myFetcherProperties;
   private final VcsRootSshKeyManager mySshKeyManager;
+  private final FetcherDaemonPool myDaemonPool;
 
   public FetchCommandImpl(@NotNull ServerPluginConfig config,
                           @NotNull TransportFactory transportFactory,
@@ -71,18 +72,20 @@ public class FetchCommandImpl implements FetchCommand {
     myTransportFactory = transportFactory;
     myFetcherProperties = fetcherProperties;
     mySshKeyManager = sshKeyManager;
+    myDaemonPool = new FetcherDaemonPool(config);
   }
 
 
-  public void fetch(@NotNull Repository db,
-                    @NotNull URIish fetchURI,
-                    @NotNull Collection<RefSpec> refspecs,
-                    @NotNull FetchSettings settings) throws NotSupportedException, VcsException, TransportException {
+  @NotNull
+  public FetchRefUpdates fetch(@NotNull Repository db,
+                               @NotNull URIish fetchURI,
+                               @NotNull Collection<RefSpec> refspecs,
+                               @NotNull FetchSettings settings) throws NotSupportedException, VcsException, TransportException {
     unlockRefs(db);
     if (myConfig.isSeparateProcessForFetch()) {
-      fetchInSeparateProcess(db, fetchURI, refspecs, settings);
+      return fetchInSeparateProcess(db, fetchURI, refspecs, settings);
     } else {
-      fetchInSameProcess(db, fetchURI, refspecs, settings);
+      return fetchInSameProcess(db, fetchURI, refspecs, settings);
     }
   }
 
@@ -123,10 +126,11 @@ public class FetchCommandImpl implements FetchCommand {
   }
 
 
-  private void fetchInSeparateProcess(@NotNull Repository repository,
-                                      @NotNull URIish uri,
-                                      @NotNull Collection<RefSpec> specs,
-                                      @NotNull FetchSettings settings) throws VcsException {
+  @NotNull
+  private FetchRefUpdates fetchInSeparateProcess(@NotNull Repository repository,
+                                                 @NotNull URIish uri,
+                                                 @NotNull Collection<RefSpec> specs,
+                                                 @NotNull FetchSettings settings) throws VcsException {
     final long fetchStart = System.currentTimeMillis();
     final String debugInfo = getDebugInfo(repository, uri, specs);
 
@@ -137,7 +141,6 @@ public class FetchCommandImpl implements FetchCommand {
       if (LOG.isDebugEnabled())
         LOG.debug("Start fetch process for " + debugInfo);
 
-      File threadDump = getThreadDumpFile(repository);
       gitPropertiesFile = myFetcherProperties.getPropertiesFile();
       FetcherEventHandler processEventHandler = new FetcherEventHandler(debugInfo);
       teamcityPrivateKey = getTeamCityPrivateKey(settings.getAuthSettings());
@@ -148,22 +151,27 @@ public class FetchCommandImpl implements FetchCommand {
         properties.put(Constants.PRIVATE_KEY_PATH, teamcityPrivateKey.getAbsolutePath());
         preparedSettings = new AuthSettings(properties, settings.getAuthSettings().getRoot());
       }
-      byte[] fetchProcessInput = getFetchProcessInputBytes(preparedSettings, repository.getDirectory(), uri, specs, threadDump, gitPropertiesFile);
-      ByteArrayOutputStream stdoutBuffer = settings.createStdoutBuffer();
-      ByteArrayOutputStream stderrBuffer = new ByteArrayOutputStream();
+      byte[] fetchProcessInput = getFetchProcessInputBytes(preparedSettings, repository.getDirectory(), uri, specs, gitPropertiesFile);
+      FetchEventsParser events = new FetchEventsParser(settings.getProgress(), debugInfo);
+      ByteArrayOutputStream stdoutBuffer = new LineAwareByteArrayOutputStream(Charset.forName("UTF-8"), events, false);
       settings.getProgress().reportProgress("git fetch " + uri);
+      if (myConfig.isFetcherDaemonEnabled()) {
+        return fetchInDaemon(repository, debugInfo, fetchProcessInput, stdoutBuffer, events, fetchStart);
+      }
+      ByteArrayOutputStream stderrBuffer = new ByteArrayOutputStream();
       ExecResult result = SimpleCommandLineProcessRunner.runCommandSecure(cl, cl.getCommandLineString(), fetchProcessInput,
                                                                           processEventHandler, stdoutBuffer, stderrBuffer);
 
       if (PERFORMANCE_LOG.isDebugEnabled())
-        PERFORMANCE_LOG.debug("[fetch in separate process] root=" + debugInfo + ", took " + (System.currentTimeMillis() - fetchStart) + "ms");
+        PERFORMANCE_LOG.debug("[fetch in separate process] root=" + debugInfo + ", took " + (System.currentTimeMillis() - fetchStart) + "ms" +
+                              ", received " + events.getReceivedBytes() + " bytes");
 
       VcsException commandError = CommandLineUtil.getCommandLineError("git fetch", result);
       if (commandError != null) {
         if (isOutOfMemoryError(result))
           LOG.warn("There is not enough memory for git fetch, teamcity.git.fetch.process.max.memory=" + myConfig.getFetchProcessMaxMemory() + ", try to increase it.");
         if (isTimeout(result))
-          logTimeout(debugInfo, threadDump);
+          logTimeout(debugInfo, events);
         clean(repository);
         throw commandError;
       }
@@ -171,7 +179,8 @@ public class FetchCommandImpl implements FetchCommand {
         LOG.warn("Error output produced by git fetch:\n" + result.getStderr());
       }
 
-      LOG.debug("Fetch process output:\n" + result.getStdout());
+      GitServerUtil.openPacks(repository, events.getNewPacks());
+      return events.getRefUpdates();
     } finally {
       settings.getProgress().reportProgress("git fetch " + uri + " finished");
       if (teamcityPrivateKey != null)
@@ -181,6 +190,34 @@ public class FetchCommandImpl implements FetchCommand {
     }
   }
 
+  @NotNull
+  private FetchRefUpdates fetchInDaemon(@NotNull Repository repository,
+                                        @NotNull String debugInfo,
+                                        @NotNull byte[] fetchProcessInput,
+                                        @NotNull ByteArrayOutputStream stdoutBuffer,
+                                        @NotNull FetchEventsParser events,
+                                        long fetchStart) throws VcsException {
+    FetcherDaemonPool.Result result = myDaemonPool.run(fetchProcessInput, stdoutBuffer);
+
+    if (PERFORMANCE_LOG.isDebugEnabled())
+      PERFORMANCE_LOG.debug("[fetch in fetcher daemon] root=" + debugInfo + ", took " + (System.currentTimeMillis() - fetchStart) + "ms" +
+                            ", received " + events.getReceivedBytes() + " bytes");
+
+    if (!result.isSuccessful()) {
+      if (result.isOutOfMemory())
+        LOG.warn("There is not enough memory for git fetch, teamcity.git.fetch.process.max.memory=" + myConfig.getFetchProcessMaxMemory() + ", try to increase it.");
+      if (result.isTimeout())
+        logTimeout(debugInfo, events);
+      clean(repository);
+      String error = result.getError();
+      throw new VcsException("'git fetch' command failed." +
+                             (result.isTimeout() ? "\nexception: " + error : "\nstderr: " + (error != null ? error.trim() : "")));
+    }
+
+    GitServerUtil.openPacks(repository, events.getNewPacks());
+    return events.getRefUpdates();
+  }
+
   private File getTeamCityPrivateKey(@NotNull AuthSettings authSettings) throws VcsException {
     if (authSettings.getAuthMethod() != AuthenticationMethod.TEAMCITY_SSH_KEY)
       return null;
@@ -206,28 +243,18 @@ public class FetchCommandImpl implements FetchCommand {
     }
   }
 
-  private void logTimeout(@NotNull String debugInfo, @NotNull File threadDump) {
+  private void logTimeout(@NotNull String debugInfo, @NotNull FetchEventsParser events) {
     StringBuilder message = new StringBuilder();
     message.append("Fetch in root ").append(debugInfo)
       .append(" took more than ")
       .append(myConfig.getFetchTimeout())
       .append(" second(s), try increasing a timeout using the " + PluginConfigImpl.TEAMCITY_GIT_IDLE_TIMEOUT_SECONDS + " property.");
-    if (threadDump.exists())
-      message.append(" Fetch progress details can be found in ").append(threadDump.getAbsolutePath());
+    String lastEvent = events.getLastEvent();
+    if (lastEvent != null)
+      message.append(" The last reported fetch progress: ").append(lastEvent);
     LOG.warn(message.toString());
   }
 
-  private File getThreadDumpFile(@NotNull Repository repository) {
-    File threadDumpsDir = getMonitoringDir(repository);
-    threadDumpsDir.mkdirs();
-    SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd_HH.mm.ss");
-    return new File(threadDumpsDir, sdf.format(Dates.now()) + ".txt");
-  }
-
-  private File getMonitoringDir(@NotNull Repository repository) {
-    return new File(repository.getDirectory(), myConfig.getMonitoringDirName());
-  }
-
   private GeneralCommandLine createFetcherCommandLine(@NotNull final Repository repository, @NotNull final URIish uri) {
     GeneralCommandLine cl = new GeneralCommandLine();
     cl.setWorkingDirectory(repository.getDirectory());
@@ -244,23 +271,45 @@ public class FetchCommandImpl implements FetchCommand {
   }
 
 
-  private void fetchInSameProcess(@NotNull Repository db,
-                                  @NotNull URIish uri,
-                                  @NotNull Collection<RefSpec> refSpecs,
-                                  @NotNull FetchSettings settings) throws NotSupportedException, VcsException, TransportException {
+  @NotNull
+  private FetchRefUpdates fetchInSameProcess(@NotNull Repository db,
+                                             @NotNull URIish uri,
+                                             @NotNull Collection<RefSpec> refSpecs,
+                                             @NotNull FetchSettings settings) throws NotSupportedException, VcsException, TransportException {
     final String debugInfo = getDebugInfo(db, uri, refSpecs);
     if (LOG.isDebugEnabled()) {
       LOG.debug("Fetch in server process: " + debugInfo);
     }
     final long fetchStart = System.currentTimeMillis();
-    final Transport tn = myTransportFactory.createTransport(db, uri, settings.getAuthSettings());
+    Transport tn = myTransportFactory.createTransport(db, uri, settings.getAuthSettings());
     try {
-      pruneRemovedBranches(db, tn, uri, settings.getAuthSettings());
-      FetchResult result = tn.fetch(settings.createProgressMonitor(), refSpecs);
+      FetchResult result;
+      try {
+        result = tn.fetch(settings.createProgressMonitor(), refSpecs);
+      } catch (TransportException e) {
+        //fetch fails without advertised refs when stale refs cannot be updated, prune them using a new connection and fetch again
+        tn.close();
+        tn = myTransportFactory.createTransport(db, uri, settings.getAuthSettings());
+        if (!pruneRemovedBranches(db, tn))
+          throw e;
+        tn.close();
+        tn = myTransportFactory.createTransport(db, uri, settings.getAuthSettings());
+        result = tn.fetch(settings.createProgressMonitor(), refSpecs);
+      }
+      FetchRefUpdates updates = FetchRefUpdates.fromFetchResult(result);
+      if (pruneRemovedBranches(db, result) && GitServerUtil.hasFailedUpdates(result)) {
+        //removed refs could prevent creation of new refs (e.g. refs/heads/a and refs/heads/a/b), fetch them again
+        tn.close();
+        tn = myTransportFactory.createTransport(db, uri, settings.getAuthSettings());
+        result = tn.fetch(settings.createProgressMonitor(), refSpecs);
+        updates = updates.merge(FetchRefUpdates.fromFetchResult(result));
+      }
       GitServerUtil.checkFetchSuccessful(result);
+      return updates;
     } catch (OutOfMemoryError oom) {
       LOG.warn("There is not enough memory for git fetch, try to run fetch in a separate process.");
       clean(db);
+      return FetchRefUpdates.unknown();
     } finally {
       clean(db);
       tn.close();
@@ -270,22 +319,29 @@ public class FetchCommandImpl implements FetchCommand {
     }
   }
 
-  private void pruneRemovedBranches(@NotNull Repository db, @NotNull Transport tn, @NotNull URIish uri, @NotNull AuthSettings authSettings) throws NotSupportedException, VcsException, TransportException {
-    if ("ssh".equals(uri.getScheme()) && GitServerUtil.isAmazonCodeCommit(uri.getHost(), myConfig)) {
-      Transport transport = null;
-      try {
-        transport = myTransportFactory.createTransport(db, uri, authSettings);
-        GitServerUtil.pruneRemovedBranches(db, transport);
-      } finally {
-        if (transport != null)
-          transport.close();
-      }
-    } else {
-      try {
-        GitServerUtil.pruneRemovedBranches(db, tn);
-      } catch (Exception e) {
-        LOG.error("Error while pruning removed branches", e);
-      }
+  /**
+   * Removes local refs which were not advertised to the fetch
+   * @return true if some refs were removed
+   */
+  private boolean pruneRemovedBranches(@NotNull Repository db, @NotNull FetchResult result) {
+    try {
+      return !GitServerUtil.pruneRemovedBranches(db, result).isEmpty();
+    } catch (Exception e) {
+      LOG.error("Error while pruning removed branches", e);
+      return false;
+    }
+  }
+
+  /**
+   * Removes local refs which are not advertised to a new fetch connection of the given transport
+   * @return true if some refs were removed
+   */
+  private boolean pruneRemovedBranches(@NotNull Repository db, @NotNull Transport tn) {
+    try {
+      return !GitServerUtil.pruneRemovedBranches(db, tn).isEmpty();
+    } catch (Exception e) {
+      LOG.error("Error while pruning removed branches", e);
+      return false;
     }
   }
 
@@ -357,7 +413,6 @@ public class FetchCommandImpl implements FetchCommand {
                                            @NotNull File repositoryDir,
                                            @NotNull URIish uri,
                                            @NotNull Collection<RefSpec> specs,
-                                           @NotNull File threadDump,
                                            @NotNull File gitProperties) throws VcsException {
     try {
       Map<String, String> properties = new HashMap<String, String>(authSettings.toMap());
@@ -365,7 +420,6 @@ public class FetchCommandImpl implements FetchCommand {
       properties.put(Constants.FETCH_URL, uri.toString());
       properties.put(Constants.REFSPEC, serializeSpecs(specs));
       properties.put(Constants.VCS_DEBUG_ENABLED, String.valueOf(Loggers.VCS.isDebugEnabled()));
-      properties.put(Constants.THREAD_DUMP_FILE, threadDump.getAbsolutePath());
       properties.put(Constants.FETCHER_INTERNAL_PROPERTIES_FILE, gitProperties.getAbsolutePath());
       return VcsUtil.propertiesToStringSecure(properties).getBytes("UTF-8");
     } catch (IOException e) {
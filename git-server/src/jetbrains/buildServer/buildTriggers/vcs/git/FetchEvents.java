@@ -0,0 +1,64 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Events reported by the fetch process in its stdout, one event per line:
+ * <pre>
+ * progress: &lt;done&gt; &lt;total or 0 if unknown&gt; &lt;task&gt;
+ * received: &lt;bytes of the incoming pack&gt;
+ * ref update: &lt;local ref&gt; &lt;old id&gt; &lt;new id&gt;
+ * new pack: &lt;pack file name&gt;
+ * error: &lt;message&gt;
+ * </pre>
+ * Other lines are informational. Server parses events as they arrive,
+ * see {@link FetchEventsParser}.
+ */
+public final class FetchEvents {
+
+  public static final String PROGRESS = "progress: ";
+  public static final String RECEIVED = "received: ";
+  public static final String REF_UPDATE = "ref update: ";
+  public static final String NEW_PACK = "new pack: ";
+  public static final String ERROR = "error: ";
+
+  private FetchEvents() {
+  }
+
+  @NotNull
+  static String progress(@NotNull String task, int done, int total) {
+    return PROGRESS + done + " " + Math.max(total, 0) + " " + task;
+  }
+
+  @NotNull
+  static String received(long bytes) {
+    return RECEIVED + bytes;
+  }
+
+  @NotNull
+  static String newPack(@NotNull String packName) {
+    return NEW_PACK + packName;
+  }
+
+  @NotNull
+  static String error(@NotNull String message) {
+    return ERROR + message.trim().replaceAll("\\s*[\r\n]+\\s*", " ");
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.LineAwareByteArrayOutputStream;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.intellij.openapi.util.text.StringUtil.isEmpty;
+
+/**
+ * Consumes {@link FetchEvents events} of the fetch process as they arrive:
+ * forwards progress and throughput to the {@link GitProgress}, collects ref
+ * updates and new packs.
+ */
+class FetchEventsParser implements LineAwareByteArrayOutputStream.LineListener {
+
+  private static final Logger LOG = Logger.getInstance(FetchEventsParser.class.getName());
+
+  private final GitProgress myProgress;
+  private final String myDebugInfo;
+  private final long myStartTime = System.currentTimeMillis();
+  private final List<FetchRefUpdates.Update> myRefUpdates = new ArrayList<FetchRefUpdates.Update>();
+  private final List<String> myNewPacks = new ArrayList<String>();
+  private boolean myRefUpdatesKnown = true;
+  private long myReceivedBytes;
+  private String myError;
+  private String myLastEvent;
+
+  FetchEventsParser(@NotNull GitProgress progress, @NotNull String debugInfo) {
+    myProgress = progress;
+    myDebugInfo = debugInfo;
+  }
+
+  public synchronized void newLineDetected(@NotNull String line) {
+    String event = line.trim();
+    if (isEmpty(event))
+      return;
+    if (event.startsWith(FetchEvents.PROGRESS)) {
+      myLastEvent = event;
+      onProgress(event.substring(FetchEvents.PROGRESS.length()));
+    } else if (event.startsWith(FetchEvents.RECEIVED)) {
+      myLastEvent = event;
+      onReceived(event.substring(FetchEvents.RECEIVED.length()));
+    } else if (event.startsWith(FetchEvents.REF_UPDATE)) {
+      FetchRefUpdates.Update update = FetchRefUpdates.parseUpdate(event.substring(FetchEvents.REF_UPDATE.length()));
+      if (update != null) {
+        myRefUpdates.add(update);
+      } else {
+        LOG.warn("Cannot parse ref update reported by fetch" + myDebugInfo + ": " + event);
+        myRefUpdatesKnown = false;
+      }
+    } else if (event.startsWith(FetchEvents.NEW_PACK)) {
+      myNewPacks.add(event.substring(FetchEvents.NEW_PACK.length()));
+    } else if (event.startsWith(FetchEvents.ERROR)) {
+      myError = event.substring(FetchEvents.ERROR.length());
+      myLastEvent = event;
+    } else if (LOG.isDebugEnabled()) {
+      LOG.debug("[fetch" + myDebugInfo + "] " + event);
+    }
+  }
+
+  private void onProgress(@NotNull String progress) {
+    String[] parts = progress.split(" ", 3);
+    if (parts.length < 3)
+      return;
+    try {
+      int done = Integer.parseInt(parts[0]);
+      int total = Integer.parseInt(parts[1]);
+      String task = parts[2];
+      if (total > 0) {
+        myProgress.reportProgress((float) done / total, task);
+      } else {
+        myProgress.reportProgress(-1, task + ": " + done);
+      }
+    } catch (NumberFormatException e) {
+      myProgress.reportProgress(-1, progress);
+    }
+  }
+
+  private void onReceived(@NotNull String bytes) {
+    try {
+      myReceivedBytes = Long.parseLong(bytes);
+    } catch (NumberFormatException e) {
+      return;
+    }
+    long seconds = Math.max(1, (System.currentTimeMillis() - myStartTime) / 1000);
+    myProgress.reportProgress("Received " + formatSize(myReceivedBytes) + " (" + formatSize(myReceivedBytes / seconds) + "/s)");
+  }
+
+  @NotNull
+  synchronized FetchRefUpdates getRefUpdates() {
+    return myRefUpdatesKnown ? FetchRefUpdates.of(myRefUpdates) : FetchRefUpdates.unknown();
+  }
+
+  @NotNull
+  synchronized List<String> getNewPacks() {
+    return new ArrayList<String>(myNewPacks);
+  }
+
+  synchronized long getReceivedBytes() {
+    return myReceivedBytes;
+  }
+
+  /**
+   * @return error reported by the fetch process or null
+   */
+  @Nullable
+  synchronized String getError() {
+    return myError;
+  }
+
+  /**
+   * @return the last progress, throughput or error event, useful to see where a fetch got stuck
+   */
+  @Nullable
+  synchronized String getLastEvent() {
+    return myLastEvent;
+  }
+
+  @NotNull
+  private static String formatSize(long bytes) {
+    if (bytes >= GitServerUtil.MB)
+      return String.format("%.1f MB", (double) bytes / GitServerUtil.MB);
+    if (bytes >= GitServerUtil.KB)
+      return String.format("%.1f KB", (double) bytes / GitServerUtil.KB);
+    return bytes + " bytes";
+  }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+/**
+ * Priority of a fetch in the {@link FetchScheduler}, the first constant has the
+ * highest priority
+ */
+public enum FetchPriority {
+  /**
+   * Fetch somebody is waiting for: patch building for a starting build,
+   * commit, merge, content requests
+   */
+  INTERACTIVE,
+  /**
+   * Fetch during collecting changes
+   */
+  POLLING,
+  /**
+   * Fetch for collecting commits info in the background
+   */
+  COMMIT_INFO
+}
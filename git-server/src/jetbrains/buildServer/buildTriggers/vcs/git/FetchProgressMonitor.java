@@ -14,136 +14,63 @@
  * limitations under the License.
  */
 
+
 package jetbrains.buildServer.buildTriggers.vcs.git;
 
 import org.eclipse.jgit.lib.ProgressMonitor;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.PrintStream;
-import java.text.SimpleDateFormat;
-import java.util.Date;
 
 /**
- * Exactly the same as {@link org.eclipse.jgit.lib.TextProgressMonitor}, but writes to the given PrintStream and System.out
+ * Reports progress of the fetch process as {@link FetchEvents#PROGRESS} events.
+ * Like {@link org.eclipse.jgit.lib.TextProgressMonitor} reports a task only when
+ * its percentage changes, tasks with unknown amount of work are reported at most
+ * once per second.
  * @author dmitry.neverov
  */
 public class FetchProgressMonitor implements ProgressMonitor {
 
-  private final SimpleDateFormat myDateFormat = new SimpleDateFormat("[yyyy-MM-dd HH:mm:ss,SS]");
-
-  private final PrintStream myPrintStream;
-
-  private boolean output;
+  private static final long UNKNOWN_WORK_REPORT_INTERVAL_MILLIS = 1000;
 
-  private long taskBeganAt;
+  private final PrintStream myEvents;
 
-  private String msg;
+  private String myTask;
+  private int myTotalWork;
+  private int myLastWorked;
+  private int myReportedWorked;
+  private long myLastReportTime;
 
-  private int lastWorked;
-
-  private int totalWork;
-
-  /** Initialize a new progress monitor. */
-  public FetchProgressMonitor(@NotNull PrintStream output) {
-    taskBeganAt = System.currentTimeMillis();
-    myPrintStream = output;
+  public FetchProgressMonitor(@NotNull PrintStream events) {
+    myEvents = events;
   }
 
   public void start(final int totalTasks) {
     // Ignore the number of tasks.
-    taskBeganAt = System.currentTimeMillis();
   }
 
   public void beginTask(final String title, final int total) {
     endTask();
-    msg = title;
-    lastWorked = 0;
-    totalWork = total;
+    myTask = title;
+    myTotalWork = total;
+    myLastWorked = 0;
+    myReportedWorked = -1;
+    myLastReportTime = 0;
   }
 
   public void update(final int completed) {
-    if (msg == null)
+    if (myTask == null)
       return;
-
-    final int cmp = lastWorked + completed;
-    if (!output && System.currentTimeMillis() - taskBeganAt < 500)
-      return;
-    if (totalWork == UNKNOWN) {
-      display(cmp);
-      myPrintStream.flush();
-      System.out.flush();
-    } else {
-      if ((cmp * 100 / totalWork) != (lastWorked * 100) / totalWork) {
-        display(cmp);
-        myPrintStream.flush();
-        System.out.flush();
+    myLastWorked += completed;
+    if (myTotalWork == UNKNOWN) {
+      long now = System.currentTimeMillis();
+      if (now - myLastReportTime >= UNKNOWN_WORK_REPORT_INTERVAL_MILLIS) {
+        report();
+        myLastReportTime = now;
       }
+    } else if (myReportedWorked < 0 || myLastWorked * 100L / myTotalWork != myReportedWorked * 100L / myTotalWork) {
+      report();
     }
-    lastWorked = cmp;
-    output = true;
-  }
-
-  @NotNull
-  private synchronized String getTimestamp() {
-    return myDateFormat.format(new Date());
-  }
-
-  private void display(final int cmp) {
-    final StringBuilder m = new StringBuilder();
-    m.append(getTimestamp()).append(" ");
-    m.append(msg);
-    m.append(": ");
-    while (m.length() < 25)
-      m.append(' ');
-
-    if (totalWork == UNKNOWN) {
-      m.append(cmp);
-    } else {
-      final String twstr = String.valueOf(totalWork);
-      String cmpstr = String.valueOf(cmp);
-      while (cmpstr.length() < twstr.length())
-        cmpstr = " " + cmpstr;
-      final int pcnt = (cmp * 100 / totalWork);
-      if (pcnt < 100)
-        m.append(' ');
-      if (pcnt < 10)
-        m.append(' ');
-      m.append(pcnt);
-      m.append("% (");
-      m.append(cmpstr);
-      m.append("/");
-      m.append(twstr);
-      m.append(")");
-    }
-
-    myPrintStream.println(m);
-    displayStdout(cmp);
-  }
-
-  private void displayStdout(final int cmp) {
-    final StringBuilder m = new StringBuilder();
-    m.append(msg);
-    m.append(": ");
-    while (m.length() < 25)
-      m.append(' ');
-
-    if (totalWork == UNKNOWN) {
-      m.append(cmp);
-    } else {
-      final String twstr = String.valueOf(totalWork);
-      String cmpstr = String.valueOf(cmp);
-      while (cmpstr.length() < twstr.length())
-        cmpstr = " " + cmpstr;
-      final int pcnt = (cmp * 100 / totalWork);
-      if (pcnt < 100)
-        m.append(' ');
-      if (pcnt < 10)
-        m.append(' ');
-      m.append(pcnt);
-      m.append("%");
-    }
-
-    System.out.println(m);
   }
 
   public boolean isCancelled() {
@@ -151,13 +78,13 @@ public class FetchProgressMonitor implements ProgressMonitor {
   }
 
   public void endTask() {
-    if (output) {
-      if (totalWork != UNKNOWN)
-        display(totalWork);
-      myPrintStream.println();
-      System.out.println();
-    }
-    output = false;
-    msg = null;
+    if (myTask != null && myReportedWorked != myLastWorked)
+      report();
+    myTask = null;
+  }
+
+  private void report() {
+    myEvents.println(FetchEvents.progress(myTask, myLastWorked, myTotalWork));
+    myReportedWorked = myLastWorked;
   }
 }
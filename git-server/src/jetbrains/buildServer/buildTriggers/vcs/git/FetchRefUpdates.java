@@ -0,0 +1,176 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.transport.FetchResult;
+import org.eclipse.jgit.transport.TrackingRefUpdate;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Local refs updated by a fetch. Fetch in the server process collects
+ * them from the {@link FetchResult}, fetch in a separate process reports
+ * them in its output.
+ */
+public final class FetchRefUpdates {
+
+  private static final FetchRefUpdates UNKNOWN = new FetchRefUpdates(false, Collections.<Update>emptyList());
+
+  private final boolean myKnown;
+  private final List<Update> myUpdates;
+
+  private FetchRefUpdates(boolean known, @NotNull List<Update> updates) {
+    myKnown = known;
+    myUpdates = updates;
+  }
+
+  /**
+   * @return updates of a fetch which didn't report them, all refs could be changed
+   */
+  @NotNull
+  public static FetchRefUpdates unknown() {
+    return UNKNOWN;
+  }
+
+  @NotNull
+  public static FetchRefUpdates fromFetchResult(@NotNull FetchResult result) {
+    List<Update> updates = new ArrayList<Update>();
+    for (TrackingRefUpdate update : result.getTrackingRefUpdates()) {
+      if (isApplied(update))
+        updates.add(new Update(update.getLocalName(), update.getOldObjectId(), update.getNewObjectId()));
+    }
+    return new FetchRefUpdates(true, updates);
+  }
+
+  @NotNull
+  static FetchRefUpdates of(@NotNull List<Update> updates) {
+    return new FetchRefUpdates(true, new ArrayList<Update>(updates));
+  }
+
+  /**
+   * Parses an update reported by {@link #format(FetchRefUpdates)} in the output of the fetch process
+   * @param update update without the {@link FetchEvents#REF_UPDATE} prefix
+   * @return parsed update or null if update has unexpected format
+   */
+  @Nullable
+  static Update parseUpdate(@NotNull String update) {
+    String[] parts = update.trim().split(" ");
+    if (parts.length != 3 || !ObjectId.isId(parts[1]) || !ObjectId.isId(parts[2]))
+      return null;
+    return new Update(parts[0], ObjectId.fromString(parts[1]), ObjectId.fromString(parts[2]));
+  }
+
+  /**
+   * @return lines describing the given known updates, one update per line
+   */
+  @NotNull
+  static String format(@NotNull FetchRefUpdates updates) {
+    StringBuilder sb = new StringBuilder();
+    for (Update update : updates.myUpdates) {
+      sb.append(FetchEvents.REF_UPDATE).append(update.getRefName())
+        .append(" ").append(update.getOldId().name())
+        .append(" ").append(update.getNewId().name())
+        .append("\n");
+    }
+    return sb.toString();
+  }
+
+  /**
+   * @return updates of both fetches, unknown if any of them is unknown
+   */
+  @NotNull
+  FetchRefUpdates merge(@NotNull FetchRefUpdates other) {
+    if (!myKnown || !other.myKnown)
+      return unknown();
+    List<Update> updates = new ArrayList<Update>(myUpdates);
+    updates.addAll(other.myUpdates);
+    return new FetchRefUpdates(true, updates);
+  }
+
+  /**
+   * @return false if fetch didn't report its updates
+   */
+  public boolean isKnown() {
+    return myKnown;
+  }
+
+  @NotNull
+  public List<Update> getUpdates() {
+    return myUpdates;
+  }
+
+  @Override
+  public String toString() {
+    return myKnown ? myUpdates.toString() : "unknown";
+  }
+
+  private static boolean isApplied(@NotNull TrackingRefUpdate update) {
+    RefUpdate.Result result = update.getResult();
+    return result != RefUpdate.Result.NO_CHANGE &&
+           result != RefUpdate.Result.REJECTED &&
+           result != RefUpdate.Result.LOCK_FAILURE &&
+           result != RefUpdate.Result.IO_FAILURE &&
+           result != RefUpdate.Result.NOT_ATTEMPTED &&
+           !update.getNewObjectId().equals(update.getOldObjectId());
+  }
+
+
+  public static final class Update {
+    private final String myRefName;
+    private final ObjectId myOldId;
+    private final ObjectId myNewId;
+
+    Update(@NotNull String refName, @NotNull ObjectId oldId, @NotNull ObjectId newId) {
+      myRefName = refName;
+      myOldId = oldId.copy();
+      myNewId = newId.copy();
+    }
+
+    @NotNull
+    public String getRefName() {
+      return myRefName;
+    }
+
+    /**
+     * @return ref id before the fetch, zero id if ref was created
+     */
+    @NotNull
+    public ObjectId getOldId() {
+      return myOldId;
+    }
+
+    /**
+     * @return ref id after the fetch, zero id if ref was deleted
+     */
+    @NotNull
+    public ObjectId getNewId() {
+      return myNewId;
+    }
+
+    @Override
+    public String toString() {
+      return myRefName + " " + myOldId.name() + ".." + myNewId.name();
+    }
+  }
+}
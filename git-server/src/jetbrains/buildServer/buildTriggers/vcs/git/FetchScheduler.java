@@ -0,0 +1,261 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import com.intellij.openapi.diagnostic.Logger;
+import org.eclipse.jgit.transport.URIish;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the number of fetches running simultaneously, globally and per host.
+ *
+ * Waiting fetches are started in order of their {@link FetchPriority}, fetches
+ * of the same priority are started in order of arrival. A fetch is promoted by
+ * one priority for every {@link ServerPluginConfig#getFetchPriorityAgingSeconds()}
+ * it waits, so fetches of low priority are not starved by a constant flow of
+ * fetches of higher priority.
+ *
+ * A ticket is acquired before the repository write lock, so a fetch waiting
+ * here never holds the lock other fetches of the same repository wait for.
+ * Requests into the same repository arriving meanwhile are merged into a
+ * single fetch by the {@link FetchCoalescer}, a request of higher priority
+ * joining a waiting fetch {@link #promote promotes} its ticket.
+ */
+public class FetchScheduler {
+
+  private static final Logger PERFORMANCE_LOG = Logger.getInstance(FetchScheduler.class.getName() + ".Performance");
+
+  private final ServerPluginConfig myConfig;
+  private final Clock myClock;
+  private final Object myLock = new Object();
+  private final List<Ticket> myQueue = new ArrayList<Ticket>();
+  private final Map<String, Integer> myRunningPerHost = new HashMap<String, Integer>();
+  private int myRunning = 0;
+  private long mySequence = 0;
+  private final Map<FetchPriority, AtomicLong> myQueueTimeMillis = new EnumMap<FetchPriority, AtomicLong>(FetchPriority.class);
+  private final Map<FetchPriority, AtomicLong> myScheduledCount = new EnumMap<FetchPriority, AtomicLong>(FetchPriority.class);
+
+  public FetchScheduler(@NotNull ServerPluginConfig config) {
+    this(config, new Clock() {
+      public long currentTimeMillis() {
+        return System.currentTimeMillis();
+      }
+    });
+  }
+
+  public FetchScheduler(@NotNull ServerPluginConfig config, @NotNull Clock clock) {
+    myConfig = config;
+    myClock = clock;
+    for (FetchPriority p : FetchPriority.values()) {
+      myQueueTimeMillis.put(p, new AtomicLong());
+      myScheduledCount.put(p, new AtomicLong());
+    }
+  }
+
+
+  /**
+   * Waits until fetch from the given url with the given priority can be started
+   * @return ticket which must be released when fetch is finished
+   */
+  @NotNull
+  public Ticket acquire(@NotNull URIish uri, @NotNull FetchPriority priority) throws InterruptedException {
+    return acquire(newTicket(uri, priority));
+  }
+
+
+  /**
+   * Creates a ticket for fetch from the given url, the ticket is not queued
+   * until it is {@link #acquire(Ticket) acquired}
+   */
+  @NotNull
+  public Ticket newTicket(@NotNull URIish uri, @NotNull FetchPriority priority) {
+    return new Ticket(getHost(uri), priority);
+  }
+
+
+  /**
+   * Queues the ticket and waits until fetch can be started
+   * @return the given ticket which must be released when fetch is finished
+   */
+  @NotNull
+  public Ticket acquire(@NotNull Ticket ticket) throws InterruptedException {
+    long start = System.currentTimeMillis();
+    FetchPriority priority;
+    synchronized (myLock) {
+      ticket.myQueuedTime = myClock.currentTimeMillis();
+      ticket.mySequence = mySequence++;
+      myQueue.add(ticket);
+      dispatch();
+      try {
+        while (!ticket.myStarted) {
+          myLock.wait();
+        }
+      } catch (InterruptedException e) {
+        if (ticket.myStarted) {
+          release(ticket);
+        } else {
+          myQueue.remove(ticket);
+        }
+        throw e;
+      }
+      priority = ticket.myPriority;
+    }
+    long waitTime = System.currentTimeMillis() - start;
+    myQueueTimeMillis.get(priority).addAndGet(waitTime);
+    myScheduledCount.get(priority).incrementAndGet();
+    if (PERFORMANCE_LOG.isDebugEnabled())
+      PERFORMANCE_LOG.debug("[fetchQueue] host: " + ticket.myHost + ", priority: " + priority + ", waited " + waitTime + "ms, " + getStats());
+    return ticket;
+  }
+
+
+  /**
+   * Raises the priority of the ticket if the given priority is higher, a queued
+   * ticket is reordered right away
+   */
+  public void promote(@NotNull Ticket ticket, @NotNull FetchPriority priority) {
+    synchronized (myLock) {
+      if (priority.compareTo(ticket.myPriority) >= 0)
+        return;
+      ticket.myPriority = priority;
+      if (!ticket.myStarted)
+        dispatch();
+    }
+  }
+
+
+  /**
+   * Releases the ticket, releasing the same ticket again has no effect
+   */
+  public void release(@NotNull Ticket ticket) {
+    synchronized (myLock) {
+      if (!ticket.myStarted || ticket.myReleased)
+        return;
+      ticket.myReleased = true;
+      myRunning--;
+      Integer hostRunning = myRunningPerHost.get(ticket.myHost);
+      if (hostRunning == null || hostRunning <= 1) {
+        myRunningPerHost.remove(ticket.myHost);
+      } else {
+        myRunningPerHost.put(ticket.myHost, hostRunning - 1);
+      }
+      dispatch();
+    }
+  }
+
+
+  @NotNull
+  public String getStats() {
+    StringBuilder sb = new StringBuilder();
+    synchronized (myLock) {
+      sb.append("running: ").append(myRunning).append(", queued: ").append(myQueue.size());
+    }
+    for (FetchPriority p : FetchPriority.values()) {
+      long count = myScheduledCount.get(p).get();
+      if (count > 0)
+        sb.append(", ").append(p).append(" avg queue time: ").append(myQueueTimeMillis.get(p).get() / count).append("ms");
+    }
+    return sb.toString();
+  }
+
+
+  /**
+   * Starts waiting fetches while limits permit, must be called under myLock
+   */
+  private void dispatch() {
+    if (myQueue.isEmpty())
+      return;
+    long agingMillis = myConfig.getFetchPriorityAgingSeconds() * 1000L;
+    long now = myClock.currentTimeMillis();
+    for (Ticket ticket : myQueue) {
+      ticket.updateRank(now, agingMillis);
+    }
+    Collections.sort(myQueue);
+    int maxRunning = myConfig.getFetchMaxConcurrency();
+    int maxRunningPerHost = myConfig.getFetchMaxConcurrencyPerHost();
+    boolean started = false;
+    Iterator<Ticket> iter = myQueue.iterator();
+    while (iter.hasNext()) {
+      if (maxRunning > 0 && myRunning >= maxRunning)
+        break;
+      Ticket ticket = iter.next();
+      Integer hostRunning = myRunningPerHost.get(ticket.myHost);
+      int running = hostRunning != null ? hostRunning : 0;
+      if (maxRunningPerHost > 0 && running >= maxRunningPerHost)
+        continue;
+      iter.remove();
+      ticket.myStarted = true;
+      myRunning++;
+      myRunningPerHost.put(ticket.myHost, running + 1);
+      started = true;
+    }
+    if (started)
+      myLock.notifyAll();
+  }
+
+
+  @NotNull
+  private static String getHost(@NotNull URIish uri) {
+    String host = uri.getHost();
+    return host != null ? host : "";
+  }
+
+
+  /**
+   * Source of time used for aging of waiting fetches
+   */
+  public interface Clock {
+    long currentTimeMillis();
+  }
+
+
+  /**
+   * Fetch slot, all fields are guarded by the scheduler lock
+   */
+  public static final class Ticket implements Comparable<Ticket> {
+    private final String myHost;
+    private FetchPriority myPriority;
+    private long mySequence;
+    private long myQueuedTime;
+    private int myRank;
+    private boolean myStarted;
+    private boolean myReleased;
+
+    private Ticket(@NotNull String host, @NotNull FetchPriority priority) {
+      myHost = host;
+      myPriority = priority;
+      myRank = priority.ordinal();
+    }
+
+    /**
+     * Computes the priority rank taking the waiting time into account
+     */
+    private void updateRank(long now, long agingMillis) {
+      int promotion = agingMillis > 0 ? (int) Math.min(Integer.MAX_VALUE, (now - myQueuedTime) / agingMillis) : 0;
+      myRank = Math.max(0, myPriority.ordinal() - promotion);
+    }
+
+    public int compareTo(@NotNull Ticket other) {
+      if (myRank != other.myRank)
+        return myRank < other.myRank ? -1 : 1;
+      return mySequence < other.mySequence ? -1 : (mySequence == other.mySequence ? 0 : 1);
+    }
+  }
+}
@@ -16,44 +16,48 @@
 
 package jetbrains.buildServer.buildTriggers.vcs.git;
 
-import jetbrains.buildServer.LineAwareByteArrayOutputStream;
 import org.eclipse.jgit.lib.NullProgressMonitor;
 import org.eclipse.jgit.lib.ProgressMonitor;
 import org.eclipse.jgit.lib.TextProgressMonitor;
 import org.jetbrains.annotations.NotNull;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.Writer;
-import java.nio.charset.Charset;
 
 public class FetchSettings {
   private final AuthSettings myAuthSettings;
   private final GitProgress myProgress;
+  private final FetchPriority myPriority;
 
   public FetchSettings(@NotNull AuthSettings authSettings) {
     this(authSettings, GitProgress.NO_OP);
   }
 
   public FetchSettings(@NotNull AuthSettings authSettings, @NotNull GitProgress progress) {
+    this(authSettings, progress, FetchPriority.INTERACTIVE);
+  }
+
+  public FetchSettings(@NotNull AuthSettings authSettings, @NotNull GitProgress progress, @NotNull FetchPriority priority) {
     myAuthSettings = authSettings;
     myProgress = progress;
+    myPriority = priority;
   }
 
   @NotNull
-  public AuthSettings getAuthSettings() {
-    return myAuthSettings;
+  public FetchPriority getPriority() {
+    return myPriority;
   }
 
   @NotNull
-  public ByteArrayOutputStream createStdoutBuffer() {
-    ByteArrayOutputStream stdoutBuffer;
-    if (myProgress != GitProgress.NO_OP) {
-      stdoutBuffer = new LineAwareByteArrayOutputStream(Charset.forName("UTF-8"), new JGitProgressParser(myProgress));
-    } else {
-      stdoutBuffer = new ByteArrayOutputStream();
-    }
-    return stdoutBuffer;
+  public FetchSettings withPriority(@NotNull FetchPriority priority) {
+    if (priority == myPriority)
+      return this;
+    return new FetchSettings(myAuthSettings, myProgress, priority);
+  }
+
+  @NotNull
+  public AuthSettings getAuthSettings() {
+    return myAuthSettings;
   }
 
   @NotNull
@@ -16,11 +16,9 @@
 
 package jetbrains.buildServer.buildTriggers.vcs.git;
 
-import jetbrains.buildServer.util.DiagnosticUtil;
-import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.vcs.VcsException;
 import jetbrains.buildServer.vcs.VcsUtil;
-import org.eclipse.jgit.errors.NotSupportedException;
+import org.eclipse.jgit.errors.TransportException;
 import org.eclipse.jgit.lib.ProgressMonitor;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.lib.RepositoryBuilder;
@@ -33,6 +31,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -49,7 +48,6 @@ public class Fetcher {
     ScheduledExecutorService exec = Executors.newScheduledThreadPool(1);
     try {
       Map<String, String> properties = VcsUtil.stringToProperties(GitServerUtil.readInput());
-      String threadDumpFilePath = properties.remove(Constants.THREAD_DUMP_FILE);
       String repositoryPath = properties.remove(Constants.REPOSITORY_DIR_PROPERTY_NAME);
       debug = "true".equals(properties.remove(Constants.VCS_DEBUG_ENABLED));
 
@@ -57,18 +55,15 @@ public class Fetcher {
 
       String internalPropsFile = properties.remove(Constants.FETCHER_INTERNAL_PROPERTIES_FILE);
       GitServerUtil.configureInternalProperties(new File(internalPropsFile));
+      GitServerUtil.configureWindowCache(new PluginConfigImpl(), Integer.MAX_VALUE, 1);
 
-      ByteArrayOutputStream output = new ByteArrayOutputStream();
-      FetchProgressMonitor progress = new FetchProgressMonitor(new PrintStream(output));
-      exec.scheduleAtFixedRate(new Monitoring(threadDumpFilePath, output), 10, 10, TimeUnit.SECONDS);
-      fetch(new File(repositoryPath), properties, progress);
-      FileUtil.delete(new File(threadDumpFilePath));
+      File repositoryDir = new File(repositoryPath);
+      FetchProgressMonitor progress = new FetchProgressMonitor(System.out);
+      exec.scheduleAtFixedRate(new ReceivedBytesMonitoring(repositoryDir, System.out), 5, 5, TimeUnit.SECONDS);
+      fetch(repositoryDir, properties, progress);
     } catch (Throwable t) {
-      if (debug || isImportant(t)) {
-        t.printStackTrace(System.err);
-      } else {
-        System.err.println(t.getMessage());
-      }
+      System.out.println(FetchEvents.error(String.valueOf(t.getMessage())));
+      System.err.print(describeError(t, debug));
       System.exit(1);
     } finally {
       exec.shutdown();
@@ -76,7 +71,8 @@ public class Fetcher {
   }
 
   /**
-   * Do fetch in directory <code>repositoryDir</code> with vcsRootProperties from <code>vcsRootProperties</code>
+   * Do fetch in directory <code>repositoryDir</code> with vcsRootProperties from <code>vcsRootProperties</code>.
+   * The caller is responsible for configuring the jgit window cache.
    *
    * @param repositoryDir     directory where run fetch
    * @param vcsRootProperties properties of vcsRoot
@@ -84,54 +80,94 @@ public class Fetcher {
    * @throws VcsException
    * @throws URISyntaxException
    */
-  private static void fetch(@NotNull File repositoryDir,
-                            @NotNull Map<String, String> vcsRootProperties,
-                            @NotNull ProgressMonitor progressMonitor) throws IOException, VcsException, URISyntaxException {
+  static void fetch(@NotNull File repositoryDir,
+                    @NotNull Map<String, String> vcsRootProperties,
+                    @NotNull ProgressMonitor progressMonitor) throws IOException, VcsException, URISyntaxException {
+    Repository repository = new RepositoryBuilder().setBare().setGitDir(repositoryDir).build();
+    try {
+      fetch(repository, vcsRootProperties, progressMonitor);
+    } finally {
+      repository.close();
+    }
+  }
+
+  /**
+   * Do fetch into the given repository, the repository is not closed, so a
+   * long-living caller can keep it open between fetches
+   */
+  static void fetch(@NotNull Repository repository,
+                    @NotNull Map<String, String> vcsRootProperties,
+                    @NotNull ProgressMonitor progressMonitor) throws IOException, VcsException, URISyntaxException {
     final String fetchUrl = vcsRootProperties.get(Constants.FETCH_URL);
     final String refspecs = vcsRootProperties.get(Constants.REFSPEC);
     AuthSettings auth = new AuthSettings(vcsRootProperties);
     PluginConfigImpl config = new PluginConfigImpl();
 
-    GitServerUtil.configureStreamFileThreshold(Integer.MAX_VALUE);
-
     TransportFactory transportFactory = new TransportFactoryImpl(config, new EmptyVcsRootSshKeyManager());
     Transport tn = null;
+    File repositoryDir = repository.getDirectory();
     try {
-      Repository repository = new RepositoryBuilder().setBare().setGitDir(repositoryDir).build();
-      workaroundRacyGit();
+      Set<String> packsBeforeFetch = GitServerUtil.listPacks(repositoryDir);
       tn = transportFactory.createTransport(repository, new URIish(fetchUrl), auth);
+      Collection<RefSpec> specs = parseRefspecs(refspecs);
+      FetchResult result;
       try {
-        pruneRemovedBranches(config, repository, transportFactory, tn, new URIish(fetchUrl), auth);
-      } catch (Exception e) {
-        System.err.println("Error while pruning removed branches: " + e.getMessage());
-        e.printStackTrace(System.err);
+        result = tn.fetch(progressMonitor, specs);
+      } catch (TransportException e) {
+        //fetch fails without advertised refs when stale refs cannot be updated, prune them using a new connection and fetch again
+        tn.close();
+        tn = transportFactory.createTransport(repository, new URIish(fetchUrl), auth);
+        if (!pruneRemovedBranches(repository, tn))
+          throw e;
+        tn.close();
+        tn = transportFactory.createTransport(repository, new URIish(fetchUrl), auth);
+        result = tn.fetch(progressMonitor, specs);
+      }
+      FetchRefUpdates updates = FetchRefUpdates.fromFetchResult(result);
+      if (pruneRemovedBranches(repository, result) && GitServerUtil.hasFailedUpdates(result)) {
+        //removed refs could prevent creation of new refs (e.g. refs/heads/a and refs/heads/a/b), fetch them again
+        logFetchResults(result);
+        tn.close();
+        tn = transportFactory.createTransport(repository, new URIish(fetchUrl), auth);
+        result = tn.fetch(progressMonitor, specs);
+        updates = updates.merge(FetchRefUpdates.fromFetchResult(result));
       }
-      FetchResult result = tn.fetch(progressMonitor, parseRefspecs(refspecs));
       GitServerUtil.checkFetchSuccessful(result);
       logFetchResults(result);
+      //updates of both attempts are applied to the repository, report them once the fetch succeeds
+      System.out.print(FetchRefUpdates.format(updates));
+      logNewPacks(repositoryDir, packsBeforeFetch);
     } finally {
       if (tn != null)
         tn.close();
     }
   }
 
-  private static void pruneRemovedBranches(@NotNull ServerPluginConfig config,
-                                           @NotNull Repository db,
-                                           @NotNull TransportFactory transportFactory,
-                                           @NotNull Transport tn,
-                                           @NotNull URIish uri,
-                                           @NotNull AuthSettings authSettings) throws NotSupportedException, VcsException, org.eclipse.jgit.errors.TransportException {
-    if ("ssh".equals(uri.getScheme()) && GitServerUtil.isAmazonCodeCommit(uri.getHost(), config)) {
-      Transport transport = null;
-      try {
-        transport = transportFactory.createTransport(db, uri, authSettings);
-        GitServerUtil.pruneRemovedBranches(db, transport);
-      } finally {
-        if (transport != null)
-          transport.close();
-      }
-    } else {
-      GitServerUtil.pruneRemovedBranches(db, tn);
+  /**
+   * Removes local refs which were not advertised to the fetch
+   * @return true if some refs were removed
+   */
+  private static boolean pruneRemovedBranches(@NotNull Repository db, @NotNull FetchResult result) {
+    try {
+      return !GitServerUtil.pruneRemovedBranches(db, result).isEmpty();
+    } catch (Exception e) {
+      System.err.println("Error while pruning removed branches: " + e.getMessage());
+      e.printStackTrace(System.err);
+      return false;
+    }
+  }
+
+  /**
+   * Removes local refs which are not advertised to a new fetch connection of the given transport
+   * @return true if some refs were removed
+   */
+  private static boolean pruneRemovedBranches(@NotNull Repository db, @NotNull Transport tn) {
+    try {
+      return !GitServerUtil.pruneRemovedBranches(db, tn).isEmpty();
+    } catch (Exception e) {
+      System.err.println("Error while pruning removed branches: " + e.getMessage());
+      e.printStackTrace(System.err);
+      return false;
     }
   }
 
@@ -151,29 +187,35 @@ public class Fetcher {
     }
   }
 
-  private static boolean isImportant(Throwable t) {
-    return t instanceof NullPointerException ||
-           t instanceof Error ||
-           t instanceof InterruptedException ||
-           t instanceof InterruptedIOException;
+  @NotNull
+  static String describeError(@NotNull Throwable t, boolean debug) {
+    if (debug || isImportant(t)) {
+      StringWriter stackTrace = new StringWriter();
+      t.printStackTrace(new PrintWriter(stackTrace));
+      return stackTrace.toString();
+    } else {
+      return t.getMessage() + "\n";
+    }
   }
 
   /**
-   * Fetch could be so fast that even though it downloads some new packs
-   * a timestamp of objects/packs dir is not changed (at least on linux).
-   * If timestamp of that dir is not changed from the last read, jgit assumes
-   * there is nothing new there and could not find object even if it already
-   * exists in repository. This method sleeps for 1 second, so subsequent
-   * write to objects/pack dir will change its timestamp.
+   * Reports packs written by fetch, server adds them to its pack list
+   * explicitly since it cannot rely on the timestamp of the pack directory
    */
-  private static void workaroundRacyGit() {
-    try {
-      Thread.sleep(1000);
-    } catch (InterruptedException e) {
-      Thread.currentThread().interrupt();
+  private static void logNewPacks(@NotNull File repositoryDir, @NotNull Set<String> packsBeforeFetch) {
+    for (String pack : GitServerUtil.listPacks(repositoryDir)) {
+      if (!packsBeforeFetch.contains(pack))
+        System.out.println(FetchEvents.newPack(pack));
     }
   }
 
+  private static boolean isImportant(Throwable t) {
+    return t instanceof NullPointerException ||
+           t instanceof Error ||
+           t instanceof InterruptedException ||
+           t instanceof InterruptedIOException;
+  }
+
   private static Collection<RefSpec> parseRefspecs(String refspecs) {
     String[] specs = refspecs.split(Constants.RECORD_SEPARATOR);
     List<RefSpec> result = new ArrayList<RefSpec>();
@@ -183,20 +225,35 @@ public class Fetcher {
     return result;
   }
 
-  private static class Monitoring implements Runnable {
+  /**
+   * Reports the size of the pack being received, a cheap way to show
+   * throughput of long fetches
+   */
+  static class ReceivedBytesMonitoring implements Runnable {
 
-    private final File myFile;
-    private final ByteArrayOutputStream myGitOutput;
+    private final File myObjectsDir;
+    private final PrintStream myEvents;
+    private long myReportedBytes = 0;
 
-    Monitoring(@NotNull String threadDumpFilePath, @NotNull ByteArrayOutputStream gitOutput) {
-      myFile = new File(threadDumpFilePath);
-      myGitOutput = gitOutput;
+    ReceivedBytesMonitoring(@NotNull File repositoryDir, @NotNull PrintStream events) {
+      myObjectsDir = new File(repositoryDir, "objects");
+      myEvents = events;
     }
 
     public void run() {
-      String threadDump = DiagnosticUtil.threadDumpToString();
-      String gitProgress = myGitOutput.toString();
-      FileUtil.writeFile(myFile, threadDump + "\ngit progress:\n" + gitProgress);
+      File[] files = myObjectsDir.listFiles();
+      if (files == null)
+        return;
+      long bytes = 0;
+      for (File f : files) {
+        String name = f.getName();
+        if (name.startsWith("incoming_") && name.endsWith(".pack"))
+          bytes += f.length();
+      }
+      if (bytes > myReportedBytes) {
+        myEvents.println(FetchEvents.received(bytes));
+        myReportedBytes = bytes;
+      }
     }
   }
 }
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import jetbrains.buildServer.vcs.VcsUtil;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.RepositoryBuilder;
+import org.eclipse.jgit.lib.RepositoryCache;
+import org.eclipse.jgit.util.FS;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-living version of the {@link Fetcher}: runs fetch jobs one by one
+ * until its stdin is closed or it stays idle for too long.
+ *
+ * Server writes a job as an int length followed by the fetcher input in UTF-8
+ * (the same input the {@link Fetcher} reads). The daemon answers with a
+ * sequence of {@link #PROGRESS} frames carrying {@link FetchEvents events}
+ * of the job followed by a single {@link #RESULT} frame. Log output goes to
+ * stderr.
+ *
+ * Repositories are kept open between jobs and closed once they stay idle for
+ * {@link ServerPluginConfig#getRepositoryCacheIdleTimeoutSeconds()}, so the
+ * daemon reuses their pack lists and cached pack windows.
+ *
+ * The process exits after OutOfMemoryError, server starts a new one for the
+ * next job.
+ */
+public class FetcherDaemon {
+
+  public static final String IDLE_TIMEOUT_PROPERTY = "teamcity.git.fetcherDaemon.idleTimeoutSeconds";
+  static final byte PROGRESS = 'P';
+  static final byte RESULT = 'R';
+
+  private static volatile long ourLastJobFinishTime = System.currentTimeMillis();
+  private static volatile boolean ourJobInProgress = false;
+  private static final AutoCloseRepositoryCache ourRepositories = new AutoCloseRepositoryCache(new PluginConfigImpl());
+
+  public static void main(String[] args) throws IOException {
+    final DataOutputStream protocol = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+    System.setOut(System.err);
+    GitServerUtil.configureExternalProcessLogger(false);
+    startIdleWatchdog(Long.getLong(IDLE_TIMEOUT_PROPERTY, 600) * 1000);
+
+    DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+    ScheduledExecutorService exec = Executors.newScheduledThreadPool(1);
+    while (true) {
+      String input;
+      try {
+        input = readString(in);
+      } catch (EOFException e) {
+        System.exit(0);
+        return;
+      }
+      ourJobInProgress = true;
+      try {
+        runJob(input, protocol, exec);
+      } finally {
+        ourLastJobFinishTime = System.currentTimeMillis();
+        ourJobInProgress = false;
+      }
+    }
+  }
+
+
+  private static void runJob(@NotNull String input, @NotNull DataOutputStream protocol, @NotNull ScheduledExecutorService exec) throws IOException {
+    boolean debug = false;
+    PrintStream out = System.out;
+    JobOutput jobOutput = new JobOutput(protocol);
+    ScheduledFuture<?> monitoring = null;
+    try {
+      Map<String, String> properties = VcsUtil.stringToProperties(input);
+      String repositoryPath = properties.remove(Constants.REPOSITORY_DIR_PROPERTY_NAME);
+      debug = "true".equals(properties.remove(Constants.VCS_DEBUG_ENABLED));
+      GitServerUtil.configureExternalProcessLogLevel(debug);
+
+      //settings of the previous job must not leak into this one: internal properties
+      //and the log level are reset for every job, the window cache is reinstalled
+      //only when its settings change since installation flushes the cache
+      String internalPropsFile = properties.remove(Constants.FETCHER_INTERNAL_PROPERTIES_FILE);
+      GitServerUtil.configureInternalProperties(new File(internalPropsFile));
+      GitServerUtil.configureWindowCache(new PluginConfigImpl(), Integer.MAX_VALUE, 1);
+
+      PrintStream events = new PrintStream(jobOutput, true, "UTF-8");
+      System.setOut(events);
+      File repositoryDir = new File(repositoryPath);
+      monitoring = exec.scheduleAtFixedRate(new Fetcher.ReceivedBytesMonitoring(repositoryDir, events), 5, 5, TimeUnit.SECONDS);
+      fetch(repositoryDir, properties, new FetchProgressMonitor(events));
+      monitoring.cancel(false);
+      writeResult(protocol, true, jobOutput.getUnflushedOutput(), "");
+    } catch (Throwable t) {
+      if (monitoring != null)
+        monitoring.cancel(false);
+      System.out.println(FetchEvents.error(String.valueOf(t.getMessage())));
+      writeResult(protocol, false, jobOutput.getUnflushedOutput(), Fetcher.describeError(t, debug));
+      if (t instanceof OutOfMemoryError)
+        System.exit(1);
+    } finally {
+      System.setOut(out);
+    }
+  }
+
+
+  private static void fetch(@NotNull File repositoryDir,
+                            @NotNull Map<String, String> properties,
+                            @NotNull FetchProgressMonitor progress) throws Exception {
+    RepositoryCache.FileKey key = RepositoryCache.FileKey.exact(repositoryDir, FS.DETECTED);
+    Repository db = ourRepositories.get(key);
+    if (db == null)
+      db = ourRepositories.add(key, new RepositoryBuilder().setBare().setGitDir(repositoryDir).build());
+    boolean success = false;
+    try {
+      Fetcher.fetch(db, properties, progress);
+      success = true;
+    } finally {
+      ourRepositories.release(db);
+      //the repository could be broken or removed by the server, open it again for the next job
+      if (!success)
+        ourRepositories.evict(key);
+    }
+  }
+
+
+  private static void startIdleWatchdog(final long idleTimeoutMillis) {
+    Thread watchdog = new Thread(new Runnable() {
+      public void run() {
+        while (true) {
+          try {
+            Thread.sleep(1000);
+          } catch (InterruptedException e) {
+            return;
+          }
+          if (!ourJobInProgress && System.currentTimeMillis() - ourLastJobFinishTime > idleTimeoutMillis)
+            System.exit(0);
+        }
+      }
+    }, "Fetcher daemon idle watchdog");
+    watchdog.setDaemon(true);
+    watchdog.start();
+  }
+
+
+  private static void writeResult(@NotNull DataOutputStream protocol, boolean success, @NotNull String output, @NotNull String error) throws IOException {
+    synchronized (protocol) {
+      protocol.writeByte(RESULT);
+      protocol.writeBoolean(success);
+      writeString(protocol, output);
+      writeString(protocol, error);
+      protocol.flush();
+    }
+  }
+
+
+  static void writeString(@NotNull DataOutputStream out, @NotNull String str) throws IOException {
+    byte[] bytes = str.getBytes("UTF-8");
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+
+  @NotNull
+  static String readString(@NotNull DataInputStream in) throws IOException {
+    int length = in.readInt();
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, "UTF-8");
+  }
+
+
+  /**
+   * Forwards every flushed chunk of the job output to the server as a
+   * progress frame, so the server can process job events as they arrive
+   */
+  private static class JobOutput extends OutputStream {
+    private final DataOutputStream myProtocol;
+    private final ByteArrayOutputStream myBuffer = new ByteArrayOutputStream();
+
+    JobOutput(@NotNull DataOutputStream protocol) {
+      myProtocol = protocol;
+    }
+
+    @Override
+    public synchronized void write(int b) {
+      myBuffer.write(b);
+    }
+
+    @Override
+    public synchronized void write(@NotNull byte[] b, int off, int len) {
+      myBuffer.write(b, off, len);
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+      if (myBuffer.size() == 0)
+        return;
+      String chunk = myBuffer.toString("UTF-8");
+      myBuffer.reset();
+      synchronized (myProtocol) {
+        myProtocol.writeByte(PROGRESS);
+        writeString(myProtocol, chunk);
+        myProtocol.flush();
+      }
+    }
+
+    /**
+     * @return output written after the last flush
+     */
+    @NotNull
+    synchronized String getUnflushedOutput() {
+      try {
+        String result = myBuffer.toString("UTF-8");
+        myBuffer.reset();
+        return result;
+      } catch (UnsupportedEncodingException e) {
+        return "";
+      }
+    }
+  }
+}
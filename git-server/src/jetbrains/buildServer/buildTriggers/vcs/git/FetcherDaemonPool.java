@@ -0,0 +1,371 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import com.intellij.execution.ExecutionException;
+import com.intellij.execution.configurations.GeneralCommandLine;
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.vcs.VcsException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of long-living fetch processes running {@link FetcherDaemon}.
+ *
+ * Processes are started on demand, at most {@link ServerPluginConfig#getFetcherDaemonWorkers()}
+ * of them run fetches simultaneously. A process is discarded when it crashes,
+ * when a job exceeds the idle timeout, after OutOfMemoryError or after it has
+ * executed {@link ServerPluginConfig#getFetcherDaemonMaxJobs()} jobs. Processes
+ * exit by themselves when they are idle for too long or when the server
+ * process exits.
+ */
+class FetcherDaemonPool {
+
+  private static final Logger LOG = Logger.getInstance(FetcherDaemonPool.class.getName());
+  private static final int STDERR_TAIL_SIZE = 64 * 1024;
+  private static final AtomicInteger ourWorkersCount = new AtomicInteger();
+
+  private final ServerPluginConfig myConfig;
+  private final BlockingDeque<Worker> myIdleWorkers = new LinkedBlockingDeque<Worker>();
+  private volatile Semaphore myPermits;
+
+  FetcherDaemonPool(@NotNull ServerPluginConfig config) {
+    myConfig = config;
+  }
+
+
+  /**
+   * Runs a fetch job in one of the pooled processes
+   * @param input fetcher input, the same as the {@link Fetcher} reads from stdin
+   * @param output receives the job output, i.e. {@link FetchEvents events}, as it arrives
+   * @return job result
+   */
+  @NotNull
+  Result run(@NotNull byte[] input, @NotNull OutputStream output) throws VcsException {
+    Semaphore permits = getPermits();
+    try {
+      permits.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new VcsException("Interrupted while waiting for a fetch process");
+    }
+    try {
+      Worker worker = null;
+      boolean reuse = false;
+      try {
+        worker = acquireWorker(input);
+        Result result = worker.await(output, myConfig.getFetchTimeout() * 1000L);
+        reuse = !result.isTimeout() && !result.isOutOfMemory();
+        return result;
+      } finally {
+        if (worker != null)
+          releaseWorker(worker, reuse);
+      }
+    } finally {
+      permits.release();
+    }
+  }
+
+
+  @NotNull
+  private Semaphore getPermits() {
+    Semaphore permits = myPermits;
+    if (permits == null) {
+      synchronized (this) {
+        if (myPermits == null)
+          myPermits = new Semaphore(Math.max(1, myConfig.getFetcherDaemonWorkers()), true);
+        permits = myPermits;
+      }
+    }
+    return permits;
+  }
+
+
+  /**
+   * Finds an alive idle worker or starts a new one and sends the job to it.
+   * An idle worker could exit between jobs, in this case the job is sent to
+   * a new worker.
+   */
+  @NotNull
+  private Worker acquireWorker(@NotNull byte[] input) throws VcsException {
+    Worker worker;
+    while ((worker = myIdleWorkers.pollFirst()) != null) {
+      if (!worker.isUsable()) {
+        worker.destroy();
+        continue;
+      }
+      try {
+        worker.send(input);
+        return worker;
+      } catch (IOException e) {
+        LOG.debug("Fetch process " + worker + " does not accept jobs, start a new one", e);
+        worker.destroy();
+      }
+    }
+    worker = startWorker();
+    try {
+      worker.send(input);
+      return worker;
+    } catch (IOException e) {
+      worker.destroy();
+      throw new VcsException("Cannot send a job to the fetch process: " + e.getMessage() + worker.getStderrTail(), e);
+    }
+  }
+
+
+  private void releaseWorker(@NotNull Worker worker, boolean reuse) {
+    if (reuse && worker.isAlive() && worker.getJobsCount() < myConfig.getFetcherDaemonMaxJobs()) {
+      myIdleWorkers.offerFirst(worker);
+    } else {
+      worker.destroy();
+    }
+  }
+
+
+  @NotNull
+  private Worker startWorker() throws VcsException {
+    GeneralCommandLine cl = new GeneralCommandLine();
+    cl.setExePath(myConfig.getFetchProcessJavaPath());
+    cl.addParameters(myConfig.getProxySettingsForSeparateProcess());
+    cl.setPassParentEnvs(myConfig.passEnvToChildProcess());
+    cl.addParameters(myConfig.getSslTrustStoreSettingsForSeparateProcess());
+    cl.addParameters("-Xmx" + myConfig.getFetchProcessMaxMemory(),
+                     "-D" + FetcherDaemon.IDLE_TIMEOUT_PROPERTY + "=" + myConfig.getFetcherDaemonIdleTimeoutSeconds(),
+                     "-cp", myConfig.getFetchClasspath(),
+                     FetcherDaemon.class.getName());
+    try {
+      Worker worker = new Worker(cl.createProcess(), "fetch process " + ourWorkersCount.incrementAndGet());
+      LOG.info("Started " + worker);
+      return worker;
+    } catch (ExecutionException e) {
+      throw new VcsException("Cannot start fetch process: " + e.getMessage(), e);
+    }
+  }
+
+
+  static final class Result {
+    private final boolean mySuccessful;
+    private final boolean myTimeout;
+    private final String myError;
+
+    private Result(boolean successful, boolean timeout, @Nullable String error) {
+      mySuccessful = successful;
+      myTimeout = timeout;
+      myError = error;
+    }
+
+    boolean isSuccessful() {
+      return mySuccessful;
+    }
+
+    boolean isTimeout() {
+      return myTimeout;
+    }
+
+    boolean isOutOfMemory() {
+      return myError != null && myError.contains("java.lang.OutOfMemoryError");
+    }
+
+    /**
+     * @return error reported by the fetch job or the reason why the process failed
+     */
+    @Nullable
+    String getError() {
+      return myError;
+    }
+  }
+
+
+  private final class Worker {
+    private final Process myProcess;
+    private final String myName;
+    private final DataOutputStream myInput;
+    private final BlockingQueue<Frame> myFrames = new LinkedBlockingQueue<Frame>();
+    private final StringBuffer myStderrTail = new StringBuffer();
+    private volatile boolean myExited = false;
+    private int myJobsCount = 0;
+    private long myLastUsedTime = System.currentTimeMillis();
+
+    Worker(@NotNull Process process, @NotNull String name) {
+      myProcess = process;
+      myName = name;
+      myInput = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+      startDaemonThread(new Runnable() {
+        public void run() {
+          readFrames();
+        }
+      }, name + " reader");
+      startDaemonThread(new Runnable() {
+        public void run() {
+          readStderr();
+        }
+      }, name + " stderr reader");
+    }
+
+    void send(@NotNull byte[] input) throws IOException {
+      myJobsCount++;
+      myFrames.clear();
+      myInput.writeInt(input.length);
+      myInput.write(input);
+      myInput.flush();
+    }
+
+    @NotNull
+    Result await(@NotNull OutputStream output, long idleTimeoutMillis) throws VcsException {
+      try {
+        while (true) {
+          Frame frame = myFrames.poll(idleTimeoutMillis, TimeUnit.MILLISECONDS);
+          if (frame == null) {
+            LOG.warn("No output from " + this + " for " + idleTimeoutMillis + "ms, destroy it");
+            destroy();
+            return new Result(false, true, "Timeout exception");
+          }
+          switch (frame.myType) {
+            case FetcherDaemon.PROGRESS:
+              output.write(frame.myOutput.getBytes("UTF-8"));
+              output.flush();
+              break;
+            case FetcherDaemon.RESULT:
+              myLastUsedTime = System.currentTimeMillis();
+              output.write(frame.myOutput.getBytes("UTF-8"));
+              output.flush();
+              return new Result(frame.mySuccessful, false, frame.mySuccessful ? null : frame.myError);
+            default:
+              return new Result(false, false, "Fetch process exited unexpectedly" + getStderrTail());
+          }
+        }
+      } catch (InterruptedException e) {
+        destroy();
+        Thread.currentThread().interrupt();
+        throw new VcsException("Fetch was interrupted");
+      } catch (IOException e) {
+        throw new VcsException(e);
+      }
+    }
+
+    private void readFrames() {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(myProcess.getInputStream()));
+      try {
+        while (true) {
+          byte type = in.readByte();
+          if (type == FetcherDaemon.PROGRESS) {
+            myFrames.add(new Frame(type, false, FetcherDaemon.readString(in), null));
+          } else if (type == FetcherDaemon.RESULT) {
+            boolean successful = in.readBoolean();
+            String output = FetcherDaemon.readString(in);
+            String error = FetcherDaemon.readString(in);
+            myFrames.add(new Frame(type, successful, output, error));
+          } else {
+            LOG.warn("Unexpected output from " + this + ": " + type);
+            break;
+          }
+        }
+      } catch (IOException e) {
+        //process exited
+      } finally {
+        myExited = true;
+        myFrames.add(new Frame((byte) 0, false, "", null));
+      }
+    }
+
+    private void readStderr() {
+      try {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(myProcess.getErrorStream(), "UTF-8"));
+        String line;
+        while ((line = reader.readLine()) != null) {
+          if (LOG.isDebugEnabled())
+            LOG.debug("[" + myName + "] " + line);
+          myStderrTail.append(line).append("\n");
+          if (myStderrTail.length() > STDERR_TAIL_SIZE)
+            myStderrTail.delete(0, myStderrTail.length() - STDERR_TAIL_SIZE);
+        }
+      } catch (IOException e) {
+        //process exited
+      }
+    }
+
+    @NotNull
+    String getStderrTail() {
+      String tail = myStderrTail.toString().trim();
+      return tail.length() > 0 ? "\nstderr: " + tail : "";
+    }
+
+    int getJobsCount() {
+      return myJobsCount;
+    }
+
+    boolean isAlive() {
+      if (myExited)
+        return false;
+      try {
+        myProcess.exitValue();
+        return false;
+      } catch (IllegalThreadStateException e) {
+        return true;
+      }
+    }
+
+    /**
+     * @return true if worker is alive and is not going to exit due to idle timeout soon
+     */
+    boolean isUsable() {
+      long idleMillis = System.currentTimeMillis() - myLastUsedTime;
+      long maxIdleMillis = myConfig.getFetcherDaemonIdleTimeoutSeconds() * 1000L - 10000;
+      return isAlive() && idleMillis < maxIdleMillis;
+    }
+
+    void destroy() {
+      try {
+        myInput.close();
+      } catch (IOException e) {
+        //ignore
+      }
+      myProcess.destroy();
+    }
+
+    @Override
+    public String toString() {
+      return myName;
+    }
+  }
+
+
+  private static void startDaemonThread(@NotNull Runnable runnable, @NotNull String name) {
+    Thread t = new Thread(runnable, name);
+    t.setDaemon(true);
+    t.start();
+  }
+
+
+  private static final class Frame {
+    private final byte myType;
+    private final boolean mySuccessful;
+    private final String myOutput;
+    private final String myError;
+
+    private Frame(byte type, boolean successful, @NotNull String output, @Nullable String error) {
+      myType = type;
+      mySuccessful = successful;
+      myOutput = output;
+      myError = error;
+    }
+  }
+}
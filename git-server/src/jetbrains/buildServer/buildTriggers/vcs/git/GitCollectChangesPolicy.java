@@ -23,13 +23,11 @@ import org.eclipse.jgit.errors.NotSupportedException;
 import org.eclipse.jgit.errors.TransportException;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
-import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevObject;
 import org.eclipse.jgit.revwalk.RevSort;
 import org.eclipse.jgit.revwalk.RevWalk;
-import org.eclipse.jgit.revwalk.filter.RevFilter;
 import org.eclipse.jgit.transport.RefSpec;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -50,15 +48,18 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRoots, Coll
   private final VcsOperationProgressProvider myProgressProvider;
   private final CommitLoader myCommitLoader;
   private final ServerPluginConfig myConfig;
+  private final ChangedPathsCache myChangedPathsCache;
 
   public GitCollectChangesPolicy(@NotNull GitVcsSupport vcs,
                                  @NotNull VcsOperationProgressProvider progressProvider,
                                  @NotNull CommitLoader commitLoader,
-                                 @NotNull ServerPluginConfig config) {
+                                 @NotNull ServerPluginConfig config,
+                                 @NotNull ChangedPathsCache changedPathsCache) {
     myVcs = vcs;
     myProgressProvider = progressProvider;
     myCommitLoader = commitLoader;
     myConfig = config;
+    myChangedPathsCache = changedPathsCache;
   }
 
 
@@ -77,23 +78,54 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRoots, Coll
                                                @NotNull RepositoryStateData toState,
                                                @NotNull CheckoutRules checkoutRules) throws VcsException {
     List<ModificationData> changes = new ArrayList<ModificationData>();
+    collectChanges(root, fromState, toState, checkoutRules, addTo(changes), false);
+    return changes;
+  }
+
+  /**
+   * Streaming version of {@link #collectChanges(VcsRoot, RepositoryStateData, RepositoryStateData, CheckoutRules)}:
+   * passes changes to the consumer in the same order as soon as they are collected.
+   * Collection stops with the {@link ModificationDataConsumer#truncated(String)} call
+   * when changes exceed the configured budget.
+   * @return true if all changes were reported, false if collection was truncated
+   */
+  public boolean collectChanges(@NotNull VcsRoot root,
+                                @NotNull RepositoryStateData fromState,
+                                @NotNull RepositoryStateData toState,
+                                @NotNull CheckoutRules checkoutRules,
+                                @NotNull ModificationDataConsumer consumer) throws VcsException {
+    return collectChanges(root, fromState, toState, checkoutRules, consumer, true);
+  }
+
+  private boolean collectChanges(@NotNull VcsRoot root,
+                                 @NotNull RepositoryStateData fromState,
+                                 @NotNull RepositoryStateData toState,
+                                 @NotNull CheckoutRules checkoutRules,
+                                 @NotNull ModificationDataConsumer consumer,
+                                 boolean applyBudget) throws VcsException {
     OperationContext context = myVcs.createContext(root, "collecting changes", createProgress());
+    context.setFetchPriority(FetchPriority.POLLING);
     try {
       Repository r = context.getRepository();
-      ModificationDataRevWalk revWalk = new ModificationDataRevWalk(myConfig, context);
-      revWalk.sort(RevSort.TOPO);
-      ensureRepositoryStateLoadedFor(context, r, true, toState, fromState);
-      markStart(r, revWalk, toState);
-      markUninteresting(r, revWalk, fromState, toState);
-      while (revWalk.next() != null) {
-        changes.add(revWalk.createModificationData());
+      ModificationDataRevWalk revWalk = new ModificationDataRevWalk(myConfig, myChangedPathsCache, context);
+      revWalk.filterByCheckoutRules(checkoutRules);
+      try {
+        revWalk.sort(RevSort.TOPO);
+        ensureRepositoryStateLoadedFor(context, r, true, toState, fromState);
+        markStart(r, revWalk, toState);
+        markUninteresting(r, revWalk, fromState, toState);
+        if (applyBudget)
+          return revWalk.walk(consumer);
+        revWalk.walkAll(consumer);
+        return true;
+      } finally {
+        revWalk.release();
       }
     } catch (Exception e) {
       throw context.wrapException(e);
     } finally {
       context.close();
     }
-    return changes;
   }
 
   @NotNull
@@ -123,6 +155,7 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRoots, Coll
                                                @NotNull CheckoutRules checkoutRules) throws VcsException {
     List<ModificationData> result = new ArrayList<ModificationData>();
     OperationContext context = myVcs.createContext(root, "collecting changes", createProgress());
+    context.setFetchPriority(FetchPriority.POLLING);
     try {
       logCollectChanges(fromVersion, currentVersion, context);
       if (currentVersion == null) {
@@ -133,7 +166,7 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRoots, Coll
       myCommitLoader.loadCommit(context, context.getGitRoot(), upperBoundSHA);
       String lowerBoundSHA = GitUtils.versionRevision(fromVersion);
       Repository r = context.getRepository();
-      result.addAll(getModifications(context, r, upperBoundSHA, lowerBoundSHA));
+      result.addAll(getModifications(context, r, upperBoundSHA, lowerBoundSHA, checkoutRules));
     } catch (Exception e) {
       throw context.wrapException(e);
     } finally {
@@ -153,7 +186,7 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRoots, Coll
         isFirst = false;
       }
     } else {
-      FetchAllRefs fetch = new FetchAllRefs(context.getProgress(), repo, context.getGitRoot(), states);
+      FetchAllRefs fetch = new FetchAllRefs(context.getProgress(), context.getFetchPriority(), repo, context.getGitRoot(), states);
       for (RepositoryStateData state : states) {
         ensureRepositoryStateLoaded(context, repo, state, fetch, isFirst);
         isFirst = false;
@@ -161,12 +194,15 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRoots, Coll
     }
   }
 
+  /**
+   * Fetches all refs of the root with the {@link OperationContext#getFetchPriority() priority} of the context
+   */
   @NotNull
   public RepositoryStateData fetchAllRefs(@NotNull final OperationContext context,
                                           @NotNull final GitVcsRoot root) throws VcsException {
     try {
       final RepositoryStateData currentState = myVcs.getCurrentState(root);
-      new FetchAllRefs(context.getProgress(), context.getRepository(), context.getGitRoot(), currentState).run();
+      new FetchAllRefs(context.getProgress(), context.getFetchPriority(), context.getRepository(), context.getGitRoot(), currentState).run();
       return currentState;
     } catch (TransportException e) {
       throw new VcsException(e.getMessage(), e);
@@ -178,6 +214,7 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRoots, Coll
   @NotNull
   public RepositoryStateData fetchAllRefs(@NotNull VcsRoot root) throws VcsException {
     final OperationContext context = myVcs.createContext(root, "fetch all");
+    context.setFetchPriority(FetchPriority.POLLING);
     try {
       return fetchAllRefs(context, context.getGitRoot());
     } finally {
@@ -189,34 +226,32 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRoots, Coll
   public void fetchChangesInfo(@NotNull VcsRoot root,
                                @NotNull CheckoutRules checkoutRules,
                                @NotNull Collection<String> revisions,
-                               @NotNull ChangesConsumer consumer) throws VcsException {
+                               @NotNull final ChangesConsumer consumer) throws VcsException {
     OperationContext context = myVcs.createContext(root, "collecting changes");
+    context.setFetchPriority(FetchPriority.POLLING);
     try {
       final Repository r = context.getRepository();
-
-      for (String commitId : revisions) {
-        final String branch = "fake-branch-" + commitId;
-        final RepositoryStateData oneCommitData = RepositoryStateData.createVersionState(branch, commitId);
-
-        final ModificationDataRevWalk revWalk = new ModificationDataRevWalk(myConfig, context);
-
-        revWalk.sort(RevSort.TOPO);
-        markStart(r, revWalk, oneCommitData);
-
-        final List<RevCommit> commits = getCommits(oneCommitData, r, revWalk);
-        if (commits.isEmpty()) {
-          throw new VcsException("Commit was not found: " + commitId);
+      final ModificationDataRevWalk revWalk = new ModificationDataRevWalk(myConfig, myChangedPathsCache, context);
+      try {
+        revWalk.setRetainBody(false);
+        revWalk.filterByCheckoutRules(checkoutRules);
+        List<RevCommit> commits = new ArrayList<RevCommit>(revisions.size());
+        for (String commitId : revisions) {
+          RevCommit commit = findCommit(r, revWalk, commitId);
+          if (commit == null)
+            throw new VcsException("Commit was not found: " + commitId);
+          commits.add(commit);
         }
-
-        for (RevCommit commit : commits) {
-          for (RevCommit parent : commit.getParents()) {
-            revWalk.markUninteresting(parent);
+        revWalk.walk(commits, new ModificationDataConsumer() {
+          public void consume(@NotNull ModificationData data) {
+            consumer.consumeChange(data);
           }
-        }
 
-        while (revWalk.next() != null) {
-          consumer.consumeChange(revWalk.createModificationData());
-        }
+          public void truncated(@NotNull String reason) {
+          }
+        });
+      } finally {
+        revWalk.release();
       }
     } catch (Exception e) {
       throw context.wrapException(e);
@@ -231,11 +266,17 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRoots, Coll
                                            @NotNull FetchAllRefs fetch,
                                            boolean throwErrors) throws Exception {
     GitVcsRoot root = context.getGitRoot();
+    List<ObjectId> commitIds = new ArrayList<ObjectId>();
+    for (String revision : state.getBranchRevisions().values()) {
+      String sha = GitUtils.versionRevision(revision);
+      if (ObjectId.isId(sha))
+        commitIds.add(ObjectId.fromString(sha));
+    }
+    Set<ObjectId> missing = myCommitLoader.getMissingCommits(db, commitIds);
     for (Map.Entry<String, String> entry : state.getBranchRevisions().entrySet()) {
       String ref = entry.getKey();
       String revision = GitUtils.versionRevision(entry.getValue());
-      RevCommit commit = myCommitLoader.findCommit(db, revision);
-      if (commit != null)
+      if (ObjectId.isId(revision) && !missing.contains(ObjectId.fromString(revision)))
         continue;
 
       if (!fetch.isInvoked())
@@ -291,15 +332,22 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRoots, Coll
   }
 
 
+  @Nullable
+  private RevCommit findCommit(@NotNull Repository r, @NotNull RevWalk walk, @NotNull String revision) throws IOException {
+    ObjectId id = ObjectId.fromString(GitUtils.versionRevision(revision));
+    if (!r.hasObject(id))
+      return null;
+    RevObject obj = walk.parseAny(id);
+    return obj.getType() == Constants.OBJ_COMMIT ? (RevCommit) obj : null;
+  }
+
+
   private List<RevCommit> getCommits(@NotNull RepositoryStateData state, @NotNull Repository r, @NotNull RevWalk walk) throws IOException {
     List<RevCommit> revisions = new ArrayList<RevCommit>();
     for (String revision : state.getBranchRevisions().values()) {
-      ObjectId id = ObjectId.fromString(GitUtils.versionRevision(revision));
-      if (r.hasObject(id)) {
-        RevObject obj = walk.parseAny(id);
-        if (obj.getType() == Constants.OBJ_COMMIT)
-          revisions.add((RevCommit) obj);
-      }
+      RevCommit commit = findCommit(r, walk, revision);
+      if (commit != null)
+        revisions.add(commit);
     }
     return revisions;
   }
@@ -310,40 +358,35 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRoots, Coll
                                       @NotNull VcsRoot tipRoot,
                                       @NotNull String tipVersion) throws VcsException {
     OperationContext context = myVcs.createContext(tipRoot, "find fork version");
+    context.setFetchPriority(FetchPriority.POLLING);
     GitVcsRoot baseGitRoot = context.getGitRoot(baseRoot);
     GitVcsRoot tipGitRoot = context.getGitRoot();
     logFindLastCommonAncestor(baseVersion, tipVersion, baseGitRoot, tipGitRoot);
-    RevWalk walk = null;
     try {
       RevCommit baseCommit = myCommitLoader.loadCommit(context, baseGitRoot, baseVersion);
       RevCommit tipCommit = myCommitLoader.loadCommit(context, tipGitRoot, tipVersion);
       Repository tipRepository = context.getRepository(tipGitRoot);
-      walk = new RevWalk(tipRepository);
-      walk.setRevFilter(RevFilter.MERGE_BASE);
-      walk.markStart(walk.parseCommit(baseCommit.getId()));
-      walk.markStart(walk.parseCommit(tipCommit.getId()));
-      final RevCommit base = walk.next();
-      String result = base.getId().name();
+      ObjectId base = myCommitLoader.getCommitGraph(tipRepository).getMergeBase(tipRepository, baseCommit, tipCommit);
+      if (base == null)
+        throw new VcsException("Commits " + baseCommit.name() + " and " + tipCommit.name() + " have no common ancestor");
+      String result = base.name();
       logLastCommonAncestor(baseGitRoot, tipGitRoot, result);
       return result;
     } catch (Exception e) {
       throw context.wrapException(e);
     } finally {
-      try {
-        if (walk != null)
-          walk.release();
-      } finally {
-        context.close();
-      }
+      context.close();
     }
   }
 
   private List<ModificationData> getModifications(@NotNull final OperationContext context,
                                                   @NotNull final Repository r,
                                                   @NotNull final String upperBoundSHA,
-                                                  @NotNull final String lowerBoundSHA) throws VcsException, IOException {
+                                                  @NotNull final String lowerBoundSHA,
+                                                  @NotNull final CheckoutRules checkoutRules) throws VcsException, IOException {
     List<ModificationData> modifications = new ArrayList<ModificationData>();
-    ModificationDataRevWalk revWalk = new ModificationDataRevWalk(myConfig, context);
+    ModificationDataRevWalk revWalk = new ModificationDataRevWalk(myConfig, myChangedPathsCache, context);
+    revWalk.filterByCheckoutRules(checkoutRules);
     revWalk.sort(RevSort.TOPO);
     try {
       revWalk.markStart(revWalk.parseCommit(ObjectId.fromString(upperBoundSHA)));
@@ -354,15 +397,26 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRoots, Coll
         logFromRevisionNotFound(lowerBoundSHA);
         revWalk.limitByNumberOfCommits(myConfig.getNumberOfCommitsWhenFromVersionNotFound());
       }
-      while (revWalk.next() != null) {
-        modifications.add(revWalk.createModificationData());
-      }
+      revWalk.walkAll(addTo(modifications));
       return modifications;
     } finally {
       revWalk.release();
     }
   }
 
+  @NotNull
+  private static ModificationDataConsumer addTo(@NotNull final List<ModificationData> changes) {
+    return new ModificationDataConsumer() {
+      public void consume(@NotNull ModificationData data) {
+        changes.add(data);
+      }
+
+      public void truncated(@NotNull String reason) {
+        throw new IllegalStateException("Changes returned as a list must not be truncated: " + reason);
+      }
+    };
+  }
+
   private void logCollectChanges(@NotNull VcsRoot fromRoot,
                                  @NotNull String fromVersion,
                                  @NotNull VcsRoot toRoot,
@@ -407,16 +461,19 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRoots, Coll
 
   private class FetchAllRefs {
     private final GitProgress myProgress;
+    private final FetchPriority myPriority;
     private final Repository myDb;
     private final GitVcsRoot myRoot;
     private final Set<String> myAllRefNames;
     private boolean myInvoked = false;
 
     private FetchAllRefs(@NotNull GitProgress progress,
+                         @NotNull FetchPriority priority,
                          @NotNull Repository db,
                          @NotNull GitVcsRoot root,
                          @NotNull RepositoryStateData... states) {
       myProgress = progress;
+      myPriority = priority;
       myDb = db;
       myRoot = root;
       myAllRefNames = getAllRefNames(states);
@@ -424,7 +481,7 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRoots, Coll
 
     void run() throws NotSupportedException, VcsException, TransportException {
       myInvoked = true;
-      FetchSettings settings = new FetchSettings(myRoot.getAuthSettings(), myProgress);
+      FetchSettings settings = new FetchSettings(myRoot.getAuthSettings(), myProgress, myPriority);
       myCommitLoader.fetch(myDb, myRoot.getRepositoryFetchURL(), calculateRefSpecsForFetch(), settings);
     }
 
@@ -434,9 +491,9 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRoots, Coll
 
     private Collection<RefSpec> calculateRefSpecsForFetch() throws VcsException {
       List<RefSpec> specs = new ArrayList<RefSpec>();
-      Map<String, Ref> remoteRepositoryRefs = myVcs.getRemoteRefs(myRoot.getOriginalRoot());
+      RefsState remoteRepositoryRefs = myVcs.getRemoteRefsState(myRoot.getOriginalRoot());
       for (String ref : myAllRefNames) {
-        if (remoteRepositoryRefs.containsKey(ref))
+        if (remoteRepositoryRefs.contains(ref))
           specs.add(new RefSpec(ref + ":" + ref).setForceUpdate(true));
       }
       return specs;
@@ -40,6 +40,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.*;
+import java.util.concurrent.locks.Lock;
 
 import static java.util.Arrays.asList;
 
@@ -153,7 +154,9 @@ public class GitCommitSupport implements CommitSupport, GitServerExtension {
 
         ObjectId commitId = createCommit(gitRoot, lastCommit, treeId, commitSettings.getUserName(), nonEmptyMessage(commitSettings));
 
-        synchronized (myRepositoryManager.getWriteLock(gitRoot.getRepositoryDir())) {
+        Lock writeLock = myRepositoryManager.getWriteLock(gitRoot.getRepositoryDir());
+        writeLock.lock();
+        try {
           final Transport tn = myTransportFactory.createTransport(myDb, gitRoot.getRepositoryPushURL(), gitRoot.getAuthSettings());
           try {
             final PushConnection c = tn.openPush();
@@ -181,7 +184,10 @@ public class GitCommitSupport implements CommitSupport, GitServerExtension {
             throw e;
           } finally {
             tn.close();
+            myVcs.invalidateRemoteRefs(gitRoot);
           }
+        } finally {
+          writeLock.unlock();
         }
       } catch (Exception e) {
         throw myContext.wrapException(e);
@@ -276,15 +282,15 @@ public class GitCommitSupport implements CommitSupport, GitServerExtension {
 
     @NotNull
     private RevCommit getLastCommit(@NotNull GitVcsRoot gitRoot) throws VcsException, IOException {
-      Map<String, Ref> refs = myVcs.getRemoteRefs(gitRoot.getOriginalRoot());
-      Ref ref = refs.get(GitUtils.expandRef(gitRoot.getRef()));
+      RefsState refs = myVcs.getRemoteRefsState(gitRoot.getOriginalRoot());
+      ObjectId ref = refs.get(GitUtils.expandRef(gitRoot.getRef()));
       if (!refs.isEmpty() && ref == null)
         throw new VcsException("The '" + gitRoot.getRef() + "' destination branch doesn't exist");
       RevWalk revWalk = new RevWalk(myDb);
       try {
         if (ref == null)
           return revWalk.lookupCommit(ObjectId.zeroId());
-        return revWalk.parseCommit(ref.getObjectId());
+        return revWalk.parseCommit(ref);
       } catch (Exception e) {
         //will try to fetch
       } finally {
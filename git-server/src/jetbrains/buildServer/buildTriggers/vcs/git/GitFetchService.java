@@ -40,6 +40,7 @@ public class GitFetchService implements FetchService, GitServerExtension {
                               @NotNull final CheckoutRules rules,
                               @NotNull final FetchRepositoryCallback callback) throws VcsException {
     final OperationContext ctx = myVcs.createContext(root, "Fetch", new FetchCallbackProgress(callback));
+    ctx.setFetchPriority(FetchPriority.COMMIT_INFO);
     try {
       fetchRepositoryImpl(ctx);
     } catch (Exception e) {
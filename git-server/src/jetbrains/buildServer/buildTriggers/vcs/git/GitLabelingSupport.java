@@ -110,6 +110,7 @@ class GitLabelingSupport implements LabelingSupport {
         if (c != null)
           c.close();
         tn.close();
+        myVcs.invalidateRemoteRefs(gitRoot);
       }
     } catch (Exception e) {
       throw context.wrapException(e);
@@ -23,14 +23,9 @@ import jetbrains.buildServer.util.RecentEntriesCache;
 import jetbrains.buildServer.util.filters.Filter;
 import jetbrains.buildServer.vcs.VcsException;
 import jetbrains.buildServer.vcs.VcsRootEntry;
-import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
-import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.Repository;
-import org.eclipse.jgit.revwalk.RevCommit;
-import org.eclipse.jgit.revwalk.RevObject;
-import org.eclipse.jgit.revwalk.RevSort;
-import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.transport.URIish;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -105,7 +100,7 @@ public class GitMapFullPath {
       return hasRevision;
     } else {
       LOG.debug("RevisionCache miss: root " + LogUtil.describe(rootEntry.getVcsRoot()) + ", revision " + revision + ", lookup commit in repository");
-      hasRevision = myCommitLoader.findCommit(context.getRepository(), revision) != null;
+      hasRevision = ObjectId.isId(revision) && myCommitLoader.hasCommit(context.getRepository(), ObjectId.fromString(revision));
       LOG.debug("Root " + LogUtil.describe(rootEntry.getVcsRoot()) + ", revision " + revision + (hasRevision ? " was found" : " wasn't found") + ", cache the result");
       repositoryCache.saveRevision(revision, hasRevision);
       return hasRevision;
@@ -150,57 +145,48 @@ public class GitMapFullPath {
     return (branchSeparatorIndex > 0) ? url.substring(0, branchSeparatorIndex) : url;
   }
 
-  public void invalidateRevisionsCache(@NotNull Repository db, @NotNull Map<String, Ref> oldRefs, @NotNull Map<String, Ref> newRefs) {
+  public void invalidateRevisionsCache(@NotNull Repository db, @NotNull FetchRefUpdates updates) {
     if (myConfig.ignoreFetchedCommits()) {
       myCache.invalidateCache(db);
-    } else {
-      try {
-        Set<String> newCommits = getNewCommits(db, oldRefs, newRefs);
-        myCache.invalidateCache(db, newCommits);
-      } catch (IOException e) {
-        LOG.warn("Error while calculating new commits for repository " + db.getDirectory(), e);
-        myCache.invalidateCache(db);
-      }
+      return;
+    }
+    if (updates.isKnown() && updates.getUpdates().isEmpty())
+      return;
+    RepositoryRevisionCache repositoryCache = myCache.findRepositoryCache(db);
+    if (repositoryCache == null)
+      return;
+    Set<String> missingRevisions = repositoryCache.getNegativeEntries();
+    if (missingRevisions.isEmpty())
+      return;
+    try {
+      Set<String> fetchedRevisions = getFetchedRevisions(db, missingRevisions);
+      if (LOG.isDebugEnabled())
+        LOG.debug("Invalidate cache for repository " + db.getDirectory() + ", fetched commits " + fetchedRevisions);
+      repositoryCache.removeNegativeEntries(fetchedRevisions);
+    } catch (IOException e) {
+      LOG.warn("Error while checking fetched commits for repository " + db.getDirectory(), e);
+      myCache.invalidateCache(db);
     }
   }
 
-  private Set<String> getNewCommits(@NotNull Repository db, @NotNull Map<String, Ref> oldRefs, @NotNull Map<String, Ref> newRefs) throws IOException {
-    Set<ObjectId> updatedHeads = new HashSet<ObjectId>();
-    Set<ObjectId> uninteresting = new HashSet<ObjectId>();
-    for (Map.Entry<String, Ref> e : newRefs.entrySet()) {
-      String refName = e.getKey();
-      if (!refName.startsWith("refs/"))
-        continue;
-      Ref newRef = e.getValue();
-      Ref oldRef = oldRefs.get(refName);
-      if (oldRef == null || !oldRef.getObjectId().equals(newRef.getObjectId()))
-        updatedHeads.add(newRef.getObjectId());
-      if (oldRef != null)
-        uninteresting.add(oldRef.getObjectId());
-    }
-
-    RevWalk revWalk = new RevWalk(db);
+  /**
+   * Checks which of the missing revisions appeared in repository. Takes time
+   * proportional to the number of negative cache entries rather than to the
+   * number of fetched commits.
+   */
+  @NotNull
+  private Set<String> getFetchedRevisions(@NotNull Repository db, @NotNull Set<String> missingRevisions) throws IOException {
+    Set<String> result = new HashSet<String>();
+    ObjectReader reader = db.newObjectReader();
     try {
-      revWalk.sort(RevSort.TOPO);
-      for (ObjectId id : updatedHeads) {
-        RevObject obj = revWalk.parseAny(id);
-        if (obj.getType() == Constants.OBJ_COMMIT)
-          revWalk.markStart((RevCommit) obj);
-      }
-      for (ObjectId id : uninteresting) {
-        RevObject obj = revWalk.parseAny(id);
-        if (obj.getType() == Constants.OBJ_COMMIT)
-          revWalk.markUninteresting((RevCommit) obj);
-      }
-      Set<String> newCommits = new HashSet<String>();
-      RevCommit newCommit = null;
-      while ((newCommit = revWalk.next()) != null) {
-        newCommits.add(newCommit.name());
+      for (String revision : missingRevisions) {
+        if (ObjectId.isId(revision) && reader.has(ObjectId.fromString(revision)))
+          result.add(revision);
       }
-      return newCommits;
     } finally {
-      revWalk.dispose();
+      reader.release();
     }
+    return result;
   }
 
   /**
@@ -223,14 +209,9 @@ public class GitMapFullPath {
         repositoryCache.removeNegativeEntries();
     }
 
-    void invalidateCache(@NotNull final Repository db, @NotNull Set<String> newCommits) {
-      String repositoryId = getRepositoryId(db);
-      RepositoryRevisionCache repositoryCache = myCache.get(repositoryId);
-      if (repositoryCache != null) {
-        if (LOG.isDebugEnabled())
-          LOG.debug("Invalidate cache for repository " + db.getDirectory() + ", new commits " + newCommits);
-        repositoryCache.removeNegativeEntries(newCommits);
-      }
+    @Nullable
+    RepositoryRevisionCache findRepositoryCache(@NotNull final Repository db) {
+      return myCache.get(getRepositoryId(db));
     }
 
     RepositoryRevisionCache getRepositoryCache(@NotNull final GitVcsRoot root) throws VcsException {
@@ -304,6 +285,18 @@ public class GitMapFullPath {
       });
     }
 
+    @NotNull
+    Set<String> getNegativeEntries() {
+      synchronized (myCache) {
+        Set<String> result = new HashSet<String>();
+        for (String commit : new ArrayList<String>(myCache.keySet())) {
+          if (Boolean.FALSE.equals(myCache.get(commit)))
+            result.add(commit);
+        }
+        return result;
+      }
+    }
+
     void removeNegativeEntries(@NotNull Set<String> newCommits) {
       synchronized (myCache) {
         Set<String> forRemove = new HashSet<String>();
@@ -35,6 +35,7 @@ import org.jetbrains.annotations.NotNull;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.locks.Lock;
 
 import static java.util.Arrays.asList;
 
@@ -152,7 +153,9 @@ public class GitMergeSupport implements MergeSupport, GitServerExtension {
       return MergeResult.createMergeError(e.getConflicts());
     }
 
-    synchronized (myRepositoryManager.getWriteLock(gitRoot.getRepositoryDir())) {
+    Lock writeLock = myRepositoryManager.getWriteLock(gitRoot.getRepositoryDir());
+    writeLock.lock();
+    try {
       final Transport tn = myTransportFactory.createTransport(db, gitRoot.getRepositoryPushURL(), gitRoot.getAuthSettings());
       try {
         final PushConnection c = tn.openPush();
@@ -174,7 +177,10 @@ public class GitMergeSupport implements MergeSupport, GitServerExtension {
         throw e;
       } finally {
         tn.close();
+        myVcs.invalidateRemoteRefs(gitRoot);
       }
+    } finally {
+      writeLock.unlock();
     }
   }
 
@@ -187,14 +193,9 @@ public class GitMergeSupport implements MergeSupport, GitServerExtension {
                                 @NotNull String message,
                                 @NotNull MergeOptions options) throws IOException, MergeFailedException {
     if (!alwaysCreateMergeCommit(options)) {
-      RevWalk walk = new RevWalk(db);
-      try {
-        if (walk.isMergedInto(walk.parseCommit(dstCommit), walk.parseCommit(srcCommit))) {
-          LOG.debug("Commit " + srcCommit.name() + " already merged into " + dstCommit + ", skip the merge");
-          return srcCommit;
-        }
-      } finally {
-        walk.release();
+      if (myCommitLoader.getCommitGraph(db).isAncestor(db, dstCommit, srcCommit)) {
+        LOG.debug("Commit " + srcCommit.name() + " already merged into " + dstCommit + ", skip the merge");
+        return srcCommit;
       }
     }
 
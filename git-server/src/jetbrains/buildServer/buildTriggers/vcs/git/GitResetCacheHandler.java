@@ -93,6 +93,7 @@ public class GitResetCacheHandler implements ResetCacheHandler {
 
   private void resetMirror(@NotNull File mirror) {
     LOG.debug("Reset git mirror "  + mirror.getAbsolutePath());
+    myRepositoryManager.evictRepository(mirror);
     delete(mirror);
     LOG.debug("Git mirror "  + mirror.getAbsolutePath() + " reset");
   }
@@ -30,8 +30,10 @@ import org.eclipse.jgit.errors.ConfigInvalidException;
 import org.eclipse.jgit.errors.NotSupportedException;
 import org.eclipse.jgit.errors.TransportException;
 import org.eclipse.jgit.internal.JGitText;
+import org.eclipse.jgit.internal.storage.file.FileRepository;
 import org.eclipse.jgit.lib.*;
 import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.storage.file.FileBasedConfig;
 import org.eclipse.jgit.storage.file.WindowCacheConfig;
 import org.eclipse.jgit.transport.*;
@@ -42,9 +44,9 @@ import org.jetbrains.annotations.Nullable;
 import java.io.*;
 import java.lang.management.ManagementFactory;
 import java.lang.management.OperatingSystemMXBean;
+import java.lang.reflect.Method;
 import java.text.MessageFormat;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 
 import static com.intellij.openapi.util.text.StringUtil.isEmpty;
 
@@ -58,6 +60,8 @@ public class GitServerUtil {
   public static final long GB = 1024 * MB;
 
   private static Logger LOG = Logger.getInstance(GitServerUtil.class.getName());
+  private static volatile WindowCacheConfig ourWindowCacheConfig;
+  private static volatile boolean ourWindowCacheStatsUnavailable;
 
   /**
    * Amount of characters displayed for in the display version of revision number
@@ -272,40 +276,132 @@ public class GitServerUtil {
    */
   public static void checkFetchSuccessful(FetchResult result) throws VcsException {
     for (TrackingRefUpdate update : result.getTrackingRefUpdates()) {
-      RefUpdate.Result status = update.getResult();
-      if (status == RefUpdate.Result.REJECTED || status == RefUpdate.Result.LOCK_FAILURE || status == RefUpdate.Result.IO_FAILURE) {
-        throw new VcsException("Fail to update '" + update.getLocalName() + "' (" + status.name() + ").");
+      if (isFailed(update)) {
+        throw new VcsException("Fail to update '" + update.getLocalName() + "' (" + update.getResult().name() + ").");
       }
     }
   }
 
 
   /**
-   * Removes branches of a bare repository which are not present in a remote repository
+   * @return true if fetch failed to update some of the local refs
    */
-  public static void pruneRemovedBranches(@NotNull Repository db, @NotNull Transport tn) throws TransportException, NotSupportedException {
-    FetchConnection conn = null;
+  public static boolean hasFailedUpdates(@NotNull FetchResult result) {
+    for (TrackingRefUpdate update : result.getTrackingRefUpdates()) {
+      if (isFailed(update))
+        return true;
+    }
+    return false;
+  }
+
+
+  private static boolean isFailed(@NotNull TrackingRefUpdate update) {
+    RefUpdate.Result status = update.getResult();
+    return status == RefUpdate.Result.REJECTED || status == RefUpdate.Result.LOCK_FAILURE || status == RefUpdate.Result.IO_FAILURE;
+  }
+
+
+  /**
+   * Removes refs of a bare repository which are not present in a remote repository.
+   * Uses refs advertised to the given fetch, so no additional connection is made.
+   * @return names of removed refs
+   */
+  @NotNull
+  public static List<String> pruneRemovedBranches(@NotNull Repository db, @NotNull FetchResult result) throws IOException {
+    return pruneRemovedBranches(db, result.getAdvertisedRefMap());
+  }
+
+
+  /**
+   * Removes refs of a bare repository which are not present in a remote repository.
+   * Opens a fetch connection of the given transport to get remote refs, it is used
+   * when fetch fails and no advertised refs are available. The connection is closed
+   * before return, the transport should not be used for fetch afterwards.
+   * @return names of removed refs
+   */
+  @NotNull
+  public static List<String> pruneRemovedBranches(@NotNull Repository db, @NotNull Transport tn) throws IOException {
+    FetchConnection conn = tn.openFetch();
     try {
-      conn = tn.openFetch();
-      Map<String, Ref> remoteRefMap = conn.getRefsMap();
-      for (Map.Entry<String, Ref> e : db.getAllRefs().entrySet()) {
-        if (!remoteRefMap.containsKey(e.getKey())) {
-          try {
-            RefUpdate refUpdate = db.getRefDatabase().newUpdate(e.getKey(), false);
-            refUpdate.setForceUpdate(true);
-            refUpdate.delete();
-          } catch (IOException e1) {
-            e1.printStackTrace();
-          }
-        }
-      }
+      return pruneRemovedBranches(db, conn.getRefsMap());
     } finally {
-      if (conn != null)
-        conn.close();
+      conn.close();
     }
   }
 
 
+  /**
+   * Removes refs of a bare repository which are not in the given remote refs.
+   * Refs are removed in a single batch update.
+   * @return names of removed refs
+   */
+  @NotNull
+  private static List<String> pruneRemovedBranches(@NotNull Repository db, @NotNull Map<String, Ref> remoteRefMap) throws IOException {
+    BatchRefUpdate batch = db.getRefDatabase().newBatchUpdate();
+    batch.setAllowNonFastForwards(true);
+    for (Ref ref : db.getAllRefs().values()) {
+      if (ref.isSymbolic() || ref.getObjectId() == null || remoteRefMap.containsKey(ref.getName()))
+        continue;
+      batch.addCommand(new ReceiveCommand(ref.getObjectId(), ObjectId.zeroId(), ref.getName(), ReceiveCommand.Type.DELETE));
+    }
+    List<String> removed = new ArrayList<String>();
+    if (batch.getCommands().isEmpty())
+      return removed;
+    RevWalk walk = new RevWalk(db);
+    try {
+      batch.execute(walk, NullProgressMonitor.INSTANCE);
+    } finally {
+      walk.release();
+    }
+    for (ReceiveCommand cmd : batch.getCommands()) {
+      if (cmd.getResult() == ReceiveCommand.Result.OK) {
+        removed.add(cmd.getRefName());
+      } else {
+        LOG.warn("Cannot remove ref " + cmd.getRefName() + " from repository " + db.getDirectory() + ": " + cmd.getResult() +
+                 (cmd.getMessage() != null ? " " + cmd.getMessage() : ""));
+      }
+    }
+    return removed;
+  }
+
+
+  /**
+   * @return names of pack files in the given bare repository
+   */
+  @NotNull
+  public static Set<String> listPacks(@NotNull File gitDir) {
+    Set<String> result = new HashSet<String>();
+    File[] files = new File(gitDir, "objects" + File.separator + "pack").listFiles();
+    if (files == null)
+      return result;
+    for (File f : files) {
+      String name = f.getName();
+      if (name.startsWith("pack-") && name.endsWith(".pack"))
+        result.add(name);
+    }
+    return result;
+  }
+
+  /**
+   * Adds packs written by another process to the pack list of the repository.
+   * JGit rescans the pack directory only when its timestamp changes, a fast
+   * fetch can write new packs without changing the timestamp, so without this
+   * new objects could be invisible in the server process.
+   */
+  public static void openPacks(@NotNull Repository db, @NotNull Collection<String> packNames) {
+    if (packNames.isEmpty() || !(db instanceof FileRepository))
+      return;
+    FileRepository repository = (FileRepository) db;
+    File packDir = new File(repository.getObjectsDirectory(), "pack");
+    for (String packName : packNames) {
+      try {
+        repository.getObjectDatabase().openPack(new File(packDir, packName));
+      } catch (IOException e) {
+        LOG.warn("Cannot open pack " + packName + " in repository " + db.getDirectory().getAbsolutePath() + ": " + e.getMessage());
+      }
+    }
+  }
+
   public static boolean isCloned(@NotNull Repository db) throws VcsException, IOException {
     if (!db.getObjectDatabase().exists())
       return false;
@@ -348,16 +444,139 @@ public class GitServerUtil {
   }
 
 
-  public static void configureStreamFileThreshold(int thresholdBytes) {
-    WindowCacheConfig cfg = new WindowCacheConfig();
-    cfg.setStreamFileThreshold(thresholdBytes);
+  /**
+   * Installs jgit window cache settings. Settings not specified in the config
+   * are left at jgit defaults or, if automatic sizing is enabled, are computed
+   * from the max heap size and the number of mirrors.
+   * @param config plugin config
+   * @param streamFileThresholdBytes objects larger than this are streamed rather than loaded into memory
+   * @param mirrorsCount number of mirrors accessed by the process
+   * @return true if settings were installed, false if the same settings are already
+   * installed: install flushes the window cache, so it is skipped when nothing changes
+   */
+  public static synchronized boolean configureWindowCache(@NotNull ServerPluginConfig config, int streamFileThresholdBytes, int mirrorsCount) {
+    WindowCacheConfig cfg = createWindowCacheConfig(config, streamFileThresholdBytes, mirrorsCount, Runtime.getRuntime().maxMemory());
+    WindowCacheConfig installed = ourWindowCacheConfig;
+    if (installed != null && isSameWindowCacheConfig(installed, cfg))
+      return false;
     cfg.install();
+    ourWindowCacheConfig = cfg;
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("JGit window cache settings: packedGitWindowSize=" + cfg.getPackedGitWindowSize() +
+                ", packedGitLimit=" + cfg.getPackedGitLimit() +
+                ", packedGitOpenFiles=" + cfg.getPackedGitOpenFiles() +
+                ", packedGitMMAP=" + cfg.isPackedGitMMAP() +
+                ", deltaBaseCacheLimit=" + cfg.getDeltaBaseCacheLimit() +
+                ", streamFileThreshold=" + cfg.getStreamFileThreshold());
+    }
+    return true;
+  }
+
+
+  private static boolean isSameWindowCacheConfig(@NotNull WindowCacheConfig c1, @NotNull WindowCacheConfig c2) {
+    return c1.getPackedGitWindowSize() == c2.getPackedGitWindowSize() &&
+           c1.getPackedGitLimit() == c2.getPackedGitLimit() &&
+           c1.getPackedGitOpenFiles() == c2.getPackedGitOpenFiles() &&
+           c1.isPackedGitMMAP() == c2.isPackedGitMMAP() &&
+           c1.getDeltaBaseCacheLimit() == c2.getDeltaBaseCacheLimit() &&
+           c1.getStreamFileThreshold() == c2.getStreamFileThreshold();
+  }
+
+
+  /**
+   * @return stream file threshold in bytes used by the server process
+   */
+  public static int getStreamFileThresholdBytes(@NotNull ServerPluginConfig config) {
+    int thresholdBytes = config.getStreamFileThresholdMb() * WindowCacheConfig.MB;
+    if (thresholdBytes <= 0) {
+      //Config returns a threshold > 0, threshold in bytes can became non-positive due to integer overflow.
+      //Since users set a value larger than the max possible one, most likely they wanted a threshold
+      //to be large, so use maximum possible value.
+      thresholdBytes = Integer.MAX_VALUE;
+    }
+    return thresholdBytes;
+  }
+
+
+  @NotNull
+  public static WindowCacheConfig createWindowCacheConfig(@NotNull ServerPluginConfig config,
+                                                          int streamFileThresholdBytes,
+                                                          int mirrorsCount,
+                                                          long maxHeapBytes) {
+    WindowCacheConfig cfg = new WindowCacheConfig();
+    cfg.setStreamFileThreshold(streamFileThresholdBytes);
+    if (config.isWindowCacheAutoSize() && maxHeapBytes > 0 && maxHeapBytes != Long.MAX_VALUE) {
+      long packedGitLimit = Math.max(cfg.getPackedGitLimit(), maxHeapBytes / 8);
+      cfg.setPackedGitLimit(packedGitLimit);
+      if (packedGitLimit >= 256 * MB)
+        cfg.setPackedGitWindowSize(64 * WindowCacheConfig.KB);
+      cfg.setDeltaBaseCacheLimit((int) Math.min(Math.max(cfg.getDeltaBaseCacheLimit(), maxHeapBytes / 32), 256 * MB));
+      //the number of mirrors is rounded up to a power of 2, otherwise every new mirror changes
+      //settings and cleanup reinstalls the cache dropping all cached windows
+      long mirrorsBucket = mirrorsCount <= 1 ? 1 : Long.highestOneBit(mirrorsCount - 1) << 1;
+      cfg.setPackedGitOpenFiles(Math.max(cfg.getPackedGitOpenFiles(), (int) Math.min(4 * mirrorsBucket, 2048)));
+    }
+    int windowSizeKb = config.getPackedGitWindowSizeKb();
+    if (windowSizeKb > 0) //jgit requires a power of 2 not less than 4KB
+      cfg.setPackedGitWindowSize(Math.max(4, Integer.highestOneBit(Math.min(windowSizeKb, 1024 * 1024))) * WindowCacheConfig.KB);
+    int packedGitLimitMb = config.getPackedGitLimitMb();
+    if (packedGitLimitMb > 0)
+      cfg.setPackedGitLimit(packedGitLimitMb * MB);
+    int deltaBaseCacheLimitMb = config.getDeltaBaseCacheLimitMb();
+    if (deltaBaseCacheLimitMb > 0)
+      cfg.setDeltaBaseCacheLimit((int) Math.min(Integer.MAX_VALUE, deltaBaseCacheLimitMb * MB));
+    int openFiles = config.getPackedGitOpenFiles();
+    if (openFiles > 0)
+      cfg.setPackedGitOpenFiles(openFiles);
+    cfg.setPackedGitMMAP(config.isPackedGitMMAP());
+    if (cfg.getPackedGitLimit() < cfg.getPackedGitWindowSize())
+      cfg.setPackedGitLimit(cfg.getPackedGitWindowSize());
+    return cfg;
+  }
+
+
+  /**
+   * @return usage of the jgit window cache compared to its limits; jgit
+   * doesn't count cache hits, so usage close to the limits is the sign
+   * of a too small cache
+   */
+  @NotNull
+  public static String getWindowCacheStats() {
+    if (ourWindowCacheStatsUnavailable)
+      return "not available";
+    WindowCacheConfig cfg = ourWindowCacheConfig;
+    try {
+      //jgit doesn't provide public api for window cache stats
+      Class<?> cacheClass = Class.forName("org.eclipse.jgit.internal.storage.file.WindowCache");
+      Method getInstance = cacheClass.getDeclaredMethod("getInstance");
+      Method getOpenFiles = cacheClass.getDeclaredMethod("getOpenFiles");
+      Method getOpenBytes = cacheClass.getDeclaredMethod("getOpenBytes");
+      getInstance.setAccessible(true);
+      getOpenFiles.setAccessible(true);
+      getOpenBytes.setAccessible(true);
+      Object cache = getInstance.invoke(null);
+      Number openFiles = (Number) getOpenFiles.invoke(cache);
+      Number openBytes = (Number) getOpenBytes.invoke(cache);
+      return "open files: " + openFiles + (cfg != null ? " of " + cfg.getPackedGitOpenFiles() : "") +
+             ", open bytes: " + openBytes + (cfg != null ? " of " + cfg.getPackedGitLimit() : "");
+    } catch (Exception e) {
+      //stats are read from package-private jgit classes which can change in any jgit version
+      ourWindowCacheStatsUnavailable = true;
+      LOG.warn("Cannot read JGit window cache stats, JGit internals used to read them are not available in this JGit version. " +
+               "Window cache stats will not be reported. Error: " + e.toString());
+      return "not available";
+    }
   }
 
 
   public static void configureExternalProcessLogger(boolean debugEnabled) {
     org.apache.log4j.Logger.getRootLogger().addAppender(new ConsoleAppender(new PatternLayout("[%d] %6p - %30.30c - %m %n")));
     org.apache.log4j.Logger.getRootLogger().setLevel(Level.INFO);
+    configureExternalProcessLogLevel(debugEnabled);
+  }
+
+
+  public static void configureExternalProcessLogLevel(boolean debugEnabled) {
     org.apache.log4j.Logger.getLogger("org.eclipse.jgit").setLevel(debugEnabled ? Level.DEBUG : Level.OFF);
     org.apache.log4j.Logger.getLogger("jetbrains.buildServer.buildTriggers.vcs.git").setLevel(debugEnabled ? Level.DEBUG : Level.INFO);
   }
@@ -421,14 +640,4 @@ public class GitServerUtil {
     return null;
 
   }
-
-
-  public static boolean isAmazonCodeCommit(@Nullable String host, @NotNull ServerPluginConfig config) {
-    if (host == null)
-      return false;
-    if (host.startsWith("git-codecommit") && host.endsWith("amazonaws.com"))
-      return true;
-    List<String> amazonHosts = config.getAmazonHosts();
-    return amazonHosts.contains(host);
-  }
 }
@@ -29,7 +29,6 @@ import org.eclipse.jgit.errors.NotSupportedException;
 import org.eclipse.jgit.errors.TransportException;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.Repository;
-import org.eclipse.jgit.storage.file.WindowCacheConfig;
 import org.eclipse.jgit.transport.FetchConnection;
 import org.eclipse.jgit.transport.Transport;
 import org.eclipse.jgit.transport.URIish;
@@ -38,11 +37,10 @@ import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Callable;
 
 import static jetbrains.buildServer.buildTriggers.vcs.git.GitServerUtil.friendlyNotSupportedException;
 import static jetbrains.buildServer.buildTriggers.vcs.git.GitServerUtil.friendlyTransportException;
-import static jetbrains.buildServer.buildTriggers.vcs.git.GitUtils.getRevision;
-import static jetbrains.buildServer.buildTriggers.vcs.git.GitUtils.isTag;
 import static jetbrains.buildServer.util.CollectionsUtil.setOf;
 
 
@@ -64,6 +62,9 @@ public class GitVcsSupport extends ServerVcsSupport
   private final CommitLoader myCommitLoader;
   private final VcsRootSshKeyManager mySshKeyManager;
   private final VcsOperationProgressProvider myProgressProvider;
+  private final RemoteRefsCache myRemoteRefsCache;
+  private final ChangedPathsCache myChangedPathsCache;
+  private final CurrentStatesCollector myCurrentStatesCollector;
   private Collection<GitServerExtension> myExtensions = new ArrayList<GitServerExtension>();
 
   public GitVcsSupport(@NotNull ServerPluginConfig config,
@@ -81,7 +82,10 @@ public class GitVcsSupport extends ServerVcsSupport
     myCommitLoader = commitLoader;
     mySshKeyManager = sshKeyManager;
     myProgressProvider = progressProvider;
-    setStreamFileThreshold();
+    myRemoteRefsCache = new RemoteRefsCache(config);
+    myChangedPathsCache = new ChangedPathsCache(config);
+    myCurrentStatesCollector = new CurrentStatesCollector(this, repositoryManager, config);
+    configureWindowCache();
     resetCacheManager.registerHandler(new GitResetCacheHandler(repositoryManager));
   }
 
@@ -97,15 +101,9 @@ public class GitVcsSupport extends ServerVcsSupport
     myExtensions.add(extension);
   }
 
-  private void setStreamFileThreshold() {
-    int thresholdBytes = myConfig.getStreamFileThresholdMb() * WindowCacheConfig.MB;
-    if (thresholdBytes <= 0) {
-      //Config returns a threshold > 0, threshold in bytes can became non-positive due to integer overflow.
-      //Since users set a value larger than the max possible one, most likely they wanted a threshold
-      //to be large, so use maximum possible value.
-      thresholdBytes = Integer.MAX_VALUE;
-    }
-    GitServerUtil.configureStreamFileThreshold(thresholdBytes);
+  private void configureWindowCache() {
+    //the number of mirrors grows over time, cleanup reconfigures the cache with the actual number
+    GitServerUtil.configureWindowCache(myConfig, GitServerUtil.getStreamFileThresholdBytes(myConfig), myRepositoryManager.getMappings().size());
   }
 
   @NotNull
@@ -131,17 +129,34 @@ public class GitVcsSupport extends ServerVcsSupport
     return getCurrentState(gitRoot);
   }
 
+  /**
+   * Computes current states of the given roots in parallel, roots with the
+   * same fetch url share a single ls-remote. Roots whose state is not computed
+   * in {@link ServerPluginConfig#getCurrentStateTimeoutSeconds()} get an error.
+   * @return result for every given root in the order of the collection
+   */
+  @NotNull
+  public Map<VcsRoot, RepositoryStateResult> getCurrentStates(@NotNull Collection<VcsRoot> roots) {
+    return myCurrentStatesCollector.getCurrentStates(roots);
+  }
+
   @NotNull
   public RepositoryStateData getCurrentState(@NotNull GitVcsRoot gitRoot) throws VcsException {
+    return getCurrentState(gitRoot, getRemoteRefsState(gitRoot.getOriginalRoot()));
+  }
+
+  @NotNull
+  RepositoryStateData getCurrentState(@NotNull GitVcsRoot gitRoot, @NotNull RefsState remoteRefs) throws VcsException {
     String refInRoot = gitRoot.getRef();
     String fullRef = GitUtils.expandRef(refInRoot);
     Map<String, String> branchRevisions = new HashMap<String, String>();
-    for (Ref ref : getRemoteRefs(gitRoot.getOriginalRoot()).values()) {
-      if (!ref.getName().startsWith("ref"))
+    RefsState.Cursor ref = remoteRefs.cursor();
+    while (ref.next()) {
+      if (!ref.nameStartsWith("ref"))
         continue;
-      if (!gitRoot.isReportTags() && isTag(ref) && !fullRef.equals(ref.getName()))
+      if (!gitRoot.isReportTags() && ref.isTag() && !fullRef.equals(ref.getName()))
         continue;
-      branchRevisions.put(ref.getName(), getRevision(ref));
+      branchRevisions.put(ref.getName(), ref.getObjectId().name());
     }
     if (branchRevisions.get(fullRef) == null && !gitRoot.isIgnoreMissingDefaultBranch()) {
       throw new VcsException("Cannot find revision of the default branch '" + refInRoot + "' of vcs root " + LogUtil.describe(gitRoot));
@@ -296,7 +311,7 @@ public class GitVcsSupport extends ServerVcsSupport
 
   @NotNull
   public GitCollectChangesPolicy getCollectChangesPolicy() {
-    return new GitCollectChangesPolicy(this, myProgressProvider, myCommitLoader, myConfig);
+    return new GitCollectChangesPolicy(this, myProgressProvider, myCommitLoader, myConfig, myChangedPathsCache);
   }
 
   @NotNull
@@ -346,15 +361,25 @@ public class GitVcsSupport extends ServerVcsSupport
   }
 
 
+  /**
+   * @return remote refs in the form of the JGit API, use {@link #getRemoteRefsState(VcsRoot)}
+   * when Ref objects are not required
+   */
   @NotNull
   public Map<String, Ref> getRemoteRefs(@NotNull final VcsRoot root) throws VcsException {
+    return getRemoteRefsState(root).toRefs();
+  }
+
+
+  @NotNull
+  public RefsState getRemoteRefsState(@NotNull final VcsRoot root) throws VcsException {
     OperationContext context = createContext(root, "list remote refs");
     GitVcsRoot gitRoot = context.getGitRoot();
     try {
       Repository db = context.getRepository();
-      Map<String, Ref> remoteRefs = getRemoteRefs(db, gitRoot);
+      RefsState remoteRefs = getRemoteRefs(db, gitRoot);
       if (LOG.isDebugEnabled())
-        LOG.debug("Remote refs for VCS root " + LogUtil.describe(root) + ": " + remoteRefs);
+        LOG.debug("Remote refs for VCS root " + LogUtil.describe(root) + ": " + remoteRefs.size() + " refs");
       return remoteRefs;
     } catch (Exception e) {
       throw context.wrapException(e);
@@ -365,7 +390,30 @@ public class GitVcsSupport extends ServerVcsSupport
 
 
   @NotNull
-  private Map<String, Ref> getRemoteRefs(@NotNull Repository db, @NotNull GitVcsRoot gitRoot) throws Exception {
+  public RemoteRefsCache getRemoteRefsCache() {
+    return myRemoteRefsCache;
+  }
+
+  public void invalidateRemoteRefs(@NotNull GitVcsRoot gitRoot) {
+    myRemoteRefsCache.invalidate(gitRoot.getRepositoryFetchURL().toString());
+  }
+
+
+  @NotNull
+  private RefsState getRemoteRefs(@NotNull final Repository db, @NotNull final GitVcsRoot gitRoot) throws Exception {
+    RefsState result = myRemoteRefsCache.getRefs(gitRoot, new Callable<RefsState>() {
+      public RefsState call() throws Exception {
+        return lsRemote(db, gitRoot);
+      }
+    });
+    if (PERFORMANCE_LOG.isDebugEnabled())
+      PERFORMANCE_LOG.debug("[getRemoteRefs] remote refs cache " + myRemoteRefsCache.getStats());
+    return result;
+  }
+
+
+  @NotNull
+  private RefsState lsRemote(@NotNull Repository db, @NotNull GitVcsRoot gitRoot) throws Exception {
     long retryInterval = myConfig.getConnectionRetryIntervalMillis();
     int attemptsLeft = myConfig.getConnectionRetryAttempts();
     while (true) {
@@ -375,7 +423,7 @@ public class GitVcsSupport extends ServerVcsSupport
       try {
         transport = myTransportFactory.createTransport(db, gitRoot.getRepositoryFetchURL(), gitRoot.getAuthSettings());
         connection = transport.openFetch();
-        return connection.getRefsMap();
+        return RefsState.create(connection.getRefs());
       } catch (NotSupportedException nse) {
         throw friendlyNotSupportedException(gitRoot, nse);
       } catch (TransportException te) {
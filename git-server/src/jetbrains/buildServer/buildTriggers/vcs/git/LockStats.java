@@ -0,0 +1,134 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histograms of wait and hold times of the repository locks.
+ * Bucket i contains the number of times less than {@link #getBucketBounds()}[i] millis,
+ * the last bucket contains the number of times greater than all bounds.
+ */
+public final class LockStats {
+
+  public enum LockType {
+    CREATE("create"), WRITE("write"), RM_READ("rm read"), RM_WRITE("rm write");
+
+    private final String myName;
+
+    LockType(@NotNull String name) {
+      myName = name;
+    }
+
+    @Override
+    public String toString() {
+      return myName;
+    }
+  }
+
+  private static final long[] BUCKET_BOUNDS_MILLIS = {1, 10, 100, 1000, 10000, 60000};
+  private static final int BUCKETS = BUCKET_BOUNDS_MILLIS.length + 1;
+
+  private final AtomicLongArray myWaits = new AtomicLongArray(LockType.values().length * BUCKETS);
+  private final AtomicLongArray myHolds = new AtomicLongArray(LockType.values().length * BUCKETS);
+
+  void recordWait(@NotNull LockType type, long millis) {
+    myWaits.incrementAndGet(type.ordinal() * BUCKETS + getBucket(millis));
+  }
+
+  void recordHold(@NotNull LockType type, long millis) {
+    myHolds.incrementAndGet(type.ordinal() * BUCKETS + getBucket(millis));
+  }
+
+  @NotNull
+  public long[] getWaitHistogram(@NotNull LockType type) {
+    return getHistogram(myWaits, type);
+  }
+
+  @NotNull
+  public long[] getHoldHistogram(@NotNull LockType type) {
+    return getHistogram(myHolds, type);
+  }
+
+  @NotNull
+  public static long[] getBucketBounds() {
+    return BUCKET_BOUNDS_MILLIS.clone();
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder result = new StringBuilder();
+    for (LockType type : LockType.values()) {
+      long[] waits = getWaitHistogram(type);
+      if (isEmpty(waits))
+        continue;
+      if (result.length() > 0)
+        result.append("; ");
+      result.append(type).append(" wait ");
+      append(result, waits);
+      result.append(", hold ");
+      append(result, getHoldHistogram(type));
+    }
+    return result.toString();
+  }
+
+  private static int getBucket(long millis) {
+    for (int i = 0; i < BUCKET_BOUNDS_MILLIS.length; i++) {
+      if (millis < BUCKET_BOUNDS_MILLIS[i])
+        return i;
+    }
+    return BUCKET_BOUNDS_MILLIS.length;
+  }
+
+  @NotNull
+  private static long[] getHistogram(@NotNull AtomicLongArray counts, @NotNull LockType type) {
+    long[] result = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      result[i] = counts.get(type.ordinal() * BUCKETS + i);
+    }
+    return result;
+  }
+
+  private static boolean isEmpty(@NotNull long[] histogram) {
+    for (long count : histogram) {
+      if (count > 0)
+        return false;
+    }
+    return true;
+  }
+
+  private static void append(@NotNull StringBuilder sb, @NotNull long[] histogram) {
+    sb.append("[");
+    boolean first = true;
+    for (int i = 0; i < histogram.length; i++) {
+      if (histogram[i] == 0)
+        continue;
+      if (!first)
+        sb.append(", ");
+      first = false;
+      if (i < BUCKET_BOUNDS_MILLIS.length) {
+        sb.append("<").append(BUCKET_BOUNDS_MILLIS[i]).append("ms: ");
+      } else {
+        sb.append(">=").append(BUCKET_BOUNDS_MILLIS[BUCKET_BOUNDS_MILLIS.length - 1]).append("ms: ");
+      }
+      sb.append(histogram[i]);
+    }
+    sb.append("]");
+  }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * In-memory index of last used times of mirrors in the base mirrors dir.
+ *
+ * Times are updated in memory only and are written to a single index file
+ * by a background task at most once per flush interval and on {@link #flush()}.
+ * Index file contains lines 'dirName = time'. Before the index was introduced
+ * the time was stored in the 'timestamp' file inside every mirror, such files
+ * are moved into the index when it is loaded.
+ *
+ * Several processes can use the same mirrors dir, so flush merges the times
+ * with the times already saved in the file.
+ */
+final class MirrorLastUsedTimes {
+
+  private static final Logger LOG = Logger.getInstance(MirrorLastUsedTimes.class.getName());
+  static final String INDEX_FILE_NAME = "last-used-times";
+  private static final String OLD_TIMESTAMP_FILE_NAME = "timestamp";
+  private static final String SEPARATOR = " = ";
+  private static volatile ScheduledExecutorService ourFlushExecutor;
+
+  private final ServerPluginConfig myConfig;
+  private final File myBaseMirrorsDir;
+  private final File myIndexFile;
+  private final ConcurrentMap<String, Long> myTimes = new ConcurrentHashMap<String, Long>();
+  private final AtomicBoolean myFlushScheduled = new AtomicBoolean();
+  private final Object myFlushLock = new Object();
+  private volatile boolean myDirty;
+
+  MirrorLastUsedTimes(@NotNull ServerPluginConfig config, @NotNull File baseMirrorsDir) {
+    myConfig = config;
+    myBaseMirrorsDir = baseMirrorsDir;
+    myIndexFile = new File(baseMirrorsDir, INDEX_FILE_NAME);
+    load();
+  }
+
+
+  void markUsed(@NotNull File dir) {
+    myTimes.put(dir.getName(), System.currentTimeMillis());
+    myDirty = true;
+    scheduleFlush();
+  }
+
+
+  /**
+   * @return last used time of the mirror or null if the index knows nothing about it
+   */
+  @Nullable
+  Long getLastUsedTime(@NotNull File dir) {
+    return myTimes.get(dir.getName());
+  }
+
+
+  /**
+   * Writes the index file if some times were updated since the previous flush
+   */
+  void flush() {
+    synchronized (myFlushLock) {
+      if (!myDirty)
+        return;
+      myDirty = false;
+      Map<String, Long> saved = readIndex();
+      for (Map.Entry<String, Long> e : saved.entrySet()) {
+        merge(e.getKey(), e.getValue());
+      }
+      long now = System.currentTimeMillis();
+      long expirationTimeout = myConfig.getMirrorExpirationTimeoutMillis();
+      StringBuilder content = new StringBuilder();
+      for (Map.Entry<String, Long> e : myTimes.entrySet()) {
+        String dirName = e.getKey();
+        long time = e.getValue();
+        if (now - time > expirationTimeout && !new File(myBaseMirrorsDir, dirName).isDirectory()) {
+          //mirror was removed by cleanup
+          myTimes.remove(dirName, time);
+          continue;
+        }
+        content.append(dirName).append(SEPARATOR).append(time).append("\n");
+      }
+      File tmp = new File(myBaseMirrorsDir, INDEX_FILE_NAME + ".tmp");
+      try {
+        if (!myBaseMirrorsDir.isDirectory() && !myBaseMirrorsDir.mkdirs())
+          throw new IOException("Cannot create directory " + myBaseMirrorsDir.getAbsolutePath());
+        FileUtil.writeFileAndReportErrors(tmp, content.toString());
+        if (!tmp.renameTo(myIndexFile)) {
+          FileUtil.delete(myIndexFile);
+          if (!tmp.renameTo(myIndexFile))
+            throw new IOException("Cannot rename " + tmp.getAbsolutePath() + " to " + myIndexFile.getAbsolutePath());
+        }
+      } catch (IOException e) {
+        myDirty = true;
+        FileUtil.delete(tmp);
+        LOG.warn("Error while saving last used times of mirrors to " + myIndexFile.getAbsolutePath() + ": " + e.getMessage());
+      }
+    }
+  }
+
+
+  private void load() {
+    myTimes.putAll(readIndex());
+    File[] dirs = myBaseMirrorsDir.listFiles();
+    if (dirs == null)
+      return;
+    boolean migrated = false;
+    for (File dir : dirs) {
+      File timestamp = new File(dir, OLD_TIMESTAMP_FILE_NAME);
+      if (!timestamp.isFile())
+        continue;
+      Long time = readOldTimestamp(timestamp);
+      if (time != null)
+        merge(dir.getName(), time);
+      migrated = true;
+    }
+    if (!migrated)
+      return;
+    myDirty = true;
+    flush();
+    if (myDirty)
+      return; //keep old timestamps until the index is saved
+    for (File dir : dirs) {
+      FileUtil.delete(new File(dir, OLD_TIMESTAMP_FILE_NAME));
+    }
+  }
+
+
+  private void merge(@NotNull String dirName, long time) {
+    while (true) {
+      Long existing = myTimes.putIfAbsent(dirName, time);
+      if (existing == null || existing >= time || myTimes.replace(dirName, existing, time))
+        return;
+    }
+  }
+
+
+  @NotNull
+  private Map<String, Long> readIndex() {
+    Map<String, Long> result = new HashMap<String, Long>();
+    if (!myIndexFile.isFile())
+      return result;
+    List<String> lines;
+    try {
+      lines = FileUtil.readFile(myIndexFile);
+    } catch (IOException e) {
+      LOG.warn("Error while reading last used times of mirrors from " + myIndexFile.getAbsolutePath() + ": " + e.getMessage());
+      return result;
+    }
+    for (String line : lines) {
+      int separatorIndex = line.lastIndexOf(SEPARATOR);
+      if (separatorIndex == -1)
+        continue;
+      try {
+        result.put(line.substring(0, separatorIndex), Long.valueOf(line.substring(separatorIndex + SEPARATOR.length())));
+      } catch (NumberFormatException e) {
+        LOG.warn("Cannot parse last used time '" + line + "', skip it");
+      }
+    }
+    return result;
+  }
+
+
+  @Nullable
+  private static Long readOldTimestamp(@NotNull File timestamp) {
+    try {
+      List<String> lines = FileUtil.readFile(timestamp);
+      return lines.isEmpty() ? null : Long.valueOf(lines.get(0).trim());
+    } catch (IOException e) {
+      return null;
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+
+  private void scheduleFlush() {
+    if (!myFlushScheduled.compareAndSet(false, true))
+      return;
+    Runnable flushTask = new Runnable() {
+      public void run() {
+        myFlushScheduled.set(false);
+        flush();
+      }
+    };
+    try {
+      getFlushExecutor().schedule(flushTask, Math.max(0, myConfig.getMirrorLastUsedTimeFlushIntervalSeconds()), TimeUnit.SECONDS);
+    } catch (RejectedExecutionException e) {
+      myFlushScheduled.set(false);
+    }
+  }
+
+
+  @NotNull
+  private static ScheduledExecutorService getFlushExecutor() {
+    ScheduledExecutorService executor = ourFlushExecutor;
+    if (executor == null) {
+      synchronized (MirrorLastUsedTimes.class) {
+        if (ourFlushExecutor == null) {
+          ourFlushExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(@NotNull Runnable r) {
+              Thread t = new Thread(r, "Git mirrors last used times flush");
+              t.setDaemon(true);
+              return t;
+            }
+          });
+        }
+        executor = ourFlushExecutor;
+      }
+    }
+    return executor;
+  }
+}
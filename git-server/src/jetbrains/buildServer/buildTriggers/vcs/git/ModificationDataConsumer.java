@@ -0,0 +1,38 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import jetbrains.buildServer.vcs.ModificationData;
+import jetbrains.buildServer.vcs.VcsException;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Receives modification data as soon as it is collected, see
+ * {@link GitCollectChangesPolicy#collectChanges(jetbrains.buildServer.vcs.VcsRoot, jetbrains.buildServer.vcs.RepositoryStateData, jetbrains.buildServer.vcs.RepositoryStateData, jetbrains.buildServer.vcs.CheckoutRules, ModificationDataConsumer)}
+ */
+public interface ModificationDataConsumer {
+
+  void consume(@NotNull ModificationData data) throws VcsException;
+
+  /**
+   * Called when changes collection is stopped because the collected changes
+   * exceed the configured budget, no more data is reported after this call.
+   * Data reported so far contains the most recent commits.
+   * @param reason description of the exceeded limit
+   */
+  void truncated(@NotNull String reason);
+}
@@ -19,26 +19,30 @@ package jetbrains.buildServer.buildTriggers.vcs.git;
 import com.intellij.openapi.diagnostic.Logger;
 import jetbrains.buildServer.buildTriggers.vcs.git.submodules.IgnoreSubmoduleErrorsTreeFilter;
 import jetbrains.buildServer.buildTriggers.vcs.git.submodules.SubmoduleAwareTreeIterator;
+import jetbrains.buildServer.vcs.CheckoutRules;
 import jetbrains.buildServer.vcs.ModificationData;
 import jetbrains.buildServer.vcs.VcsChange;
 import jetbrains.buildServer.vcs.VcsException;
+import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.PersonIdent;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevSort;
 import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.AndTreeFilter;
+import org.eclipse.jgit.treewalk.filter.PathFilter;
 import org.eclipse.jgit.treewalk.filter.TreeFilter;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.nio.charset.UnsupportedCharsetException;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author dmitry.neverov
@@ -46,23 +50,37 @@ import java.util.Map;
 class ModificationDataRevWalk extends RevWalk {
 
   private static final Logger LOG = Logger.getInstance(ModificationDataRevWalk.class.getName());
+  private static final int PENDING_COMMITS_PER_THREAD = 8;
+  private static final AtomicInteger ourThreadsCount = new AtomicInteger();
+  private static volatile ThreadPoolExecutor ourExecutor;
 
   private final ServerPluginConfig myConfig;
+  private final ChangedPathsCache myChangedPathsCache;
   private final OperationContext myContext;
   private final GitVcsRoot myGitRoot;
   private final Repository myRepository;
+  private final CommitGraph myCommitGraph;
   private final int mySearchDepth;
   private int myNextCallCount = 0;
   private RevCommit myCurrentCommit;
   private int myNumberOfCommitsToVisit = -1;
+  private CheckoutRulesTreeFilter myCheckoutRulesFilter;
+  //submodule path + ':' + commit -> whether the submodule can be resolved in the commit
+  private final Map<String, Boolean> myFixedSubmoduleChecks = new HashMap<String, Boolean>();
+  //submodule path + ':' + commit -> previous commit with fixed submodule
+  private final Map<String, RevCommit> myCommitsWithFixedSubmodule = new HashMap<String, RevCommit>();
 
 
-  ModificationDataRevWalk(@NotNull ServerPluginConfig config, @NotNull OperationContext context) throws VcsException {
+  ModificationDataRevWalk(@NotNull ServerPluginConfig config,
+                          @NotNull ChangedPathsCache changedPathsCache,
+                          @NotNull OperationContext context) throws VcsException {
     super(context.getRepository());
     myConfig = config;
+    myChangedPathsCache = changedPathsCache;
     myContext = context;
     myGitRoot = context.getGitRoot();
     myRepository = context.getRepository();
+    myCommitGraph = context.getCommitGraph(myRepository);
     mySearchDepth = myConfig.getFixedSubmoduleCommitSearchDepth();
   }
 
@@ -83,57 +101,440 @@ class ModificationDataRevWalk extends RevWalk {
   }
 
 
+  /**
+   * Makes tree walks skip paths not mapped by the given rules
+   */
+  public void filterByCheckoutRules(@NotNull CheckoutRules rules) {
+    myCheckoutRulesFilter = CheckoutRulesTreeFilter.create(rules);
+  }
+
+
   @NotNull
   public ModificationData createModificationData() throws IOException, VcsException {
     if (myCurrentCommit == null)
       throw new IllegalStateException("Current commit is null");
+    CommitData commitData = new CommitData(myCurrentCommit);
+    return commitData.createModificationData(commitData.collectChanges(null));
+  }
+
+
+  /**
+   * Creates modification data for all remaining commits of the walk and passes
+   * them to the consumer in the walk order as soon as they are ready.
+   *
+   * Commits are read on the calling thread, diffs of commits with their parents
+   * are computed on a bounded pool of {@link ServerPluginConfig#getCollectChangesThreads()}
+   * threads, each thread uses its own ObjectReader. Roots with submodules are
+   * processed on the calling thread since submodule resolution is not thread-safe.
+   *
+   * Commit bodies are not retained by the walk. The walk stops when the number of
+   * reported commits or their estimated size exceeds the configured budget, in this
+   * case the consumer gets the {@link ModificationDataConsumer#truncated(String)} call.
+   *
+   * @return true if all commits were reported, false if the walk was truncated
+   */
+  public boolean walk(@NotNull ModificationDataConsumer consumer) throws IOException, VcsException {
+    return walk(consumer, new ChangesBudget(myConfig.getCollectChangesMaxCommits(), myConfig.getCollectChangesMaxMemory()));
+  }
+
+
+  /**
+   * Same as {@link #walk(ModificationDataConsumer)}, but reports all remaining
+   * commits regardless of the configured budget. Used by callers returning
+   * changes as a list: a truncated list cannot be told apart from a complete one.
+   */
+  public void walkAll(@NotNull ModificationDataConsumer consumer) throws IOException, VcsException {
+    walk(consumer, new ChangesBudget(0, 0));
+  }
+
+
+  private boolean walk(@NotNull ModificationDataConsumer consumer, @NotNull ChangesBudget budget) throws IOException, VcsException {
+    setRetainBody(false);
+    return walk(new CommitSource() {
+      public RevCommit nextCommit() throws IOException {
+        return next();
+      }
+    }, budget, consumer);
+  }
+
+
+  /**
+   * Creates modification data for the given commits parsed by this walk and
+   * passes them to the consumer in the given order. Commits are processed the
+   * same way as in {@link #walk(ModificationDataConsumer)}, but the budget is
+   * not applied since all commits were requested explicitly.
+   */
+  public void walk(@NotNull List<RevCommit> commits, @NotNull ModificationDataConsumer consumer) throws IOException, VcsException {
+    final Iterator<RevCommit> iter = commits.iterator();
+    walk(new CommitSource() {
+      public RevCommit nextCommit() {
+        myCurrentCommit = iter.hasNext() ? iter.next() : null;
+        return myCurrentCommit;
+      }
+    }, new ChangesBudget(0, 0), consumer);
+  }
 
-    final String commitId = myCurrentCommit.getId().name();
-    if (LOG.isDebugEnabled()) {
-      LOG.debug("Collecting changes in commit " + commitId + ":" + myCurrentCommit.getShortMessage() +
-                " (" + myCurrentCommit.getCommitterIdent().getWhen() + ") for " + myGitRoot.debugInfo());
+
+  private boolean walk(@NotNull CommitSource commits,
+                       @NotNull ChangesBudget budget,
+                       @NotNull ModificationDataConsumer consumer) throws IOException, VcsException {
+    int threads = myGitRoot.isCheckoutSubmodules() ? 1 : myConfig.getCollectChangesThreads();
+    if (threads <= 1) {
+      while (commits.nextCommit() != null) {
+        if (!budget.consume(consumer, createModificationData()))
+          return false;
+      }
+      return true;
     }
 
-    final String parentVersion = getFirstParentVersion(myCurrentCommit);
-    final CommitChangesBuilder builder = new CommitChangesBuilder(myCurrentCommit, commitId, parentVersion);
-    builder.collectCommitChanges();
-    final List<VcsChange> changes = builder.getChanges();
-
-    final PersonIdent authorIdent = getPersonIdent();
-    final ModificationData result = new ModificationData(
-      authorIdent.getWhen(),
-      changes,
-      getFullMessage(),
-      GitServerUtil.getUser(myGitRoot, authorIdent),
-      myGitRoot.getOriginalRoot(),
-      commitId,
-      commitId);
-
-    if (myCurrentCommit.getParentCount() > 0) {
-      for (RevCommit parent : myCurrentCommit.getParents()) {
-        parseBody(parent);
-        result.addParentRevision(parent.getId().name());
+    if (commits.nextCommit() == null)
+      return true;
+    CommitData first = new CommitData(myCurrentCommit);
+    if (commits.nextCommit() == null)
+      return budget.consume(consumer, first.createModificationData(first.collectChanges(null)));
+
+    ReaderPool readers = new ReaderPool();
+    ExecutorService executor = getExecutor(threads);
+    int maxPending = threads * PENDING_COMMITS_PER_THREAD;
+    LinkedList<Pending> pending = new LinkedList<Pending>();
+    try {
+      pending.add(new Pending(first, executor.submit(first.changesTask(readers))));
+      do {
+        CommitData commitData = new CommitData(myCurrentCommit);
+        pending.add(new Pending(commitData, executor.submit(commitData.changesTask(readers))));
+        if (pending.size() >= maxPending && !budget.consume(consumer, pending.removeFirst().get()))
+          return false;
+      } while (commits.nextCommit() != null);
+      while (!pending.isEmpty()) {
+        if (!budget.consume(consumer, pending.removeFirst().get()))
+          return false;
+      }
+      return true;
+    } finally {
+      for (Pending p : pending) {
+        p.cancel();
+      }
+      readers.close();
+    }
+  }
+
+
+  /**
+   * Returns the executor shared by all walks, its size is adjusted to the
+   * current number of collect changes threads
+   */
+  @NotNull
+  private static ThreadPoolExecutor getExecutor(int threads) {
+    ThreadPoolExecutor executor = ourExecutor;
+    if (executor == null) {
+      synchronized (ModificationDataRevWalk.class) {
+        executor = ourExecutor;
+        if (executor == null) {
+          executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            public Thread newThread(@NotNull Runnable r) {
+              Thread t = new Thread(r, "Git collect changes " + ourThreadsCount.incrementAndGet());
+              t.setDaemon(true);
+              return t;
+            }
+          });
+          executor.allowCoreThreadTimeOut(true);
+          ourExecutor = executor;
+        }
+      }
+    }
+    if (executor.getMaximumPoolSize() != threads) {
+      synchronized (executor) {
+        if (threads > executor.getMaximumPoolSize()) {
+          executor.setMaximumPoolSize(threads);
+          executor.setCorePoolSize(threads);
+        } else if (threads < executor.getMaximumPoolSize()) {
+          executor.setCorePoolSize(threads);
+          executor.setMaximumPoolSize(threads);
+        }
       }
-    } else {
-      result.addParentRevision(ObjectId.zeroId().name());
     }
-    return result;
+    return executor;
   }
 
-  private String getFullMessage() {
+
+  private interface CommitSource {
+    /**
+     * Makes the next commit to process current
+     * @return the next commit or null if there are no more commits
+     */
+    @Nullable
+    RevCommit nextCommit() throws IOException;
+  }
+
+
+  /**
+   * Limits the number and the estimated size of modification data reported by the walk
+   */
+  private final class ChangesBudget {
+    private final int myMaxCommits;
+    private final long myMaxSize;
+    private int myCommits;
+    private long mySize;
+    private String myLastReportedVersion;
+
+    /**
+     * @param maxCommits max number of commits to report, non-positive value means no limit
+     * @param maxSize max estimated size in bytes of reported data, non-positive value means no limit
+     */
+    private ChangesBudget(int maxCommits, long maxSize) {
+      myMaxCommits = maxCommits;
+      myMaxSize = maxSize;
+    }
+
+    /**
+     * Passes the data to the consumer if budget is not exceeded yet
+     * @return false if budget is exceeded and the walk should stop
+     */
+    boolean consume(@NotNull ModificationDataConsumer consumer, @NotNull ModificationData data) throws VcsException {
+      String reason = null;
+      if (myMaxCommits > 0 && myCommits >= myMaxCommits) {
+        reason = "the number of commits exceeds " + myMaxCommits;
+      } else if (myMaxSize > 0 && mySize >= myMaxSize) {
+        reason = "the size of collected changes exceeds " + myMaxSize + " bytes";
+      }
+      if (reason != null) {
+        String message = "Changes collection in " + myGitRoot.debugInfo() + " is truncated after " + myCommits +
+                         " commits (last reported commit " + myLastReportedVersion + "): " + reason;
+        LOG.warn(message);
+        consumer.truncated(message);
+        return false;
+      }
+      consumer.consume(data);
+      myCommits++;
+      mySize += estimateSize(data);
+      myLastReportedVersion = data.getVersion();
+      return true;
+    }
+  }
+
+
+  private static long estimateSize(@NotNull ModificationData data) {
+    long size = 256 + 2L * data.getDescription().length();
+    for (VcsChange change : data.getChanges()) {
+      size += 128 + 4L * change.getRelativeFileName().length();
+    }
+    return size;
+  }
+
+
+  /**
+   * Data of a commit read from the walk, it is collected in the walk thread
+   * since RevWalk is not thread-safe
+   */
+  private final class CommitData {
+    private final RevCommit myCommit;
+    private final String myCommitId;
+    private final String myParentVersion;
+    private final List<String> myParentRevisions = new ArrayList<String>();
+    private final boolean myIgnoreSubmodulesErrors;
+    private final String myMessage;
+    private final PersonIdent myAuthor;
+
+    private CommitData(@NotNull RevCommit commit) throws IOException {
+      myCommit = commit;
+      myCommitId = commit.getId().name();
+      RevCommit body = isRetainBody() ? commit : readBody(commit);
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Collecting changes in commit " + myCommitId + ":" + body.getShortMessage() +
+                  " (" + body.getCommitterIdent().getWhen() + ") for " + myGitRoot.debugInfo());
+      }
+      myMessage = getFullMessage(body);
+      myAuthor = getPersonIdent(body);
+      myParentVersion = getFirstParentVersion(commit);
+      if (commit.getParentCount() > 0) {
+        for (RevCommit parent : commit.getParents()) {
+          parseBody(parent);
+          myParentRevisions.add(parent.getId().name());
+        }
+      } else {
+        myParentRevisions.add(ObjectId.zeroId().name());
+      }
+      myIgnoreSubmodulesErrors = shouldIgnoreSubmodulesErrors();
+    }
+
+    /**
+     * @param reader reader to use or null if tree walks should create their own readers
+     */
+    @NotNull
+    List<VcsChange> collectChanges(@Nullable ObjectReader reader) throws IOException, VcsException {
+      if (!mayChangeIncludedPaths())
+        return new ArrayList<VcsChange>();
+      boolean useCache = !myGitRoot.isCheckoutSubmodules() && myChangedPathsCache.isEnabled();
+      if (useCache) {
+        List<ChangedPathsCache.ChangedPath> cached = myChangedPathsCache.get(myRepository.getDirectory(), myCommit);
+        if (cached != null) {
+          List<VcsChange> changes = new ArrayList<VcsChange>(cached.size());
+          for (ChangedPathsCache.ChangedPath path : cached) {
+            changes.add(path.toVcsChange(myCommitId, myParentVersion));
+          }
+          return changes;
+        }
+      }
+      CommitChangesBuilder builder = new CommitChangesBuilder(myCommit, myCommitId, myParentVersion, myIgnoreSubmodulesErrors);
+      builder.collectCommitChanges(reader);
+      if (useCache && myCheckoutRulesFilter == null)
+        myChangedPathsCache.put(myRepository.getDirectory(), myCommit, builder.getChangedPaths());
+      return builder.getChanges();
+    }
+
+    /**
+     * Checks changed path filter of the commit. Filter contains paths changed
+     * relatively to the first parent; a merge commit reports only paths
+     * different from all its parents, so if paths of include rules did not
+     * change relatively to the first parent, the commit has no changes for
+     * the root.
+     */
+    private boolean mayChangeIncludedPaths() {
+      if (myCheckoutRulesFilter == null || myGitRoot.isCheckoutSubmodules())
+        return true;
+      Collection<String> paths = myCheckoutRulesFilter.getIncludePaths();
+      return paths == null || myCommitGraph.mayChangePaths(myCommit, paths);
+    }
+
+    @NotNull
+    Callable<List<VcsChange>> changesTask(@NotNull final ReaderPool readers) {
+      return new Callable<List<VcsChange>>() {
+        public List<VcsChange> call() throws Exception {
+          ObjectReader reader = readers.acquire();
+          try {
+            return collectChanges(reader);
+          } finally {
+            readers.release(reader);
+          }
+        }
+      };
+    }
+
+    @NotNull
+    ModificationData createModificationData(@NotNull List<VcsChange> changes) {
+      final ModificationData result = new ModificationData(
+        myAuthor.getWhen(),
+        changes,
+        myMessage,
+        GitServerUtil.getUser(myGitRoot, myAuthor),
+        myGitRoot.getOriginalRoot(),
+        myCommitId,
+        myCommitId);
+      for (String parent : myParentRevisions) {
+        result.addParentRevision(parent);
+      }
+      return result;
+    }
+  }
+
+
+  /**
+   * Object readers of the walk repository used by tasks of the shared
+   * executor. Closing the pool waits for readers still used by running
+   * tasks, so the walk doesn't finish while its tasks access the repository.
+   */
+  private final class ReaderPool {
+    private final List<ObjectReader> myIdle = new ArrayList<ObjectReader>();
+    private int myInUse;
+    private boolean myClosed;
+
+    @NotNull
+    synchronized ObjectReader acquire() {
+      if (myClosed)
+        throw new CancellationException("Changes collection is finished");
+      myInUse++;
+      if (!myIdle.isEmpty())
+        return myIdle.remove(myIdle.size() - 1);
+      return myRepository.newObjectReader();
+    }
+
+    synchronized void release(@NotNull ObjectReader reader) {
+      myInUse--;
+      myIdle.add(reader);
+      if (myClosed && myInUse == 0)
+        notifyAll();
+    }
+
+    synchronized void close() {
+      myClosed = true;
+      boolean interrupted = false;
+      while (myInUse > 0) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      for (ObjectReader reader : myIdle) {
+        reader.release();
+      }
+      myIdle.clear();
+      if (interrupted)
+        Thread.currentThread().interrupt();
+    }
+  }
+
+
+  private static final class Pending {
+    private final CommitData myCommitData;
+    private final Future<List<VcsChange>> myChanges;
+
+    private Pending(@NotNull CommitData commitData, @NotNull Future<List<VcsChange>> changes) {
+      myCommitData = commitData;
+      myChanges = changes;
+    }
+
+    void cancel() {
+      myChanges.cancel(false);
+    }
+
+    @NotNull
+    ModificationData get() throws IOException, VcsException {
+      try {
+        return myCommitData.createModificationData(myChanges.get());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new VcsException("Interrupted while collecting changes in commit " + myCommitData.myCommitId);
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException)
+          throw (IOException) cause;
+        if (cause instanceof VcsException)
+          throw (VcsException) cause;
+        if (cause instanceof RuntimeException)
+          throw (RuntimeException) cause;
+        if (cause instanceof Error)
+          throw (Error) cause;
+        throw new VcsException(cause);
+      }
+    }
+  }
+
+
+  /**
+   * Parses the commit body without attaching it to the walk, the body is
+   * garbage collected once the commit is processed
+   */
+  @NotNull
+  private RevCommit readBody(@NotNull RevCommit commit) throws IOException {
+    return RevCommit.parse(getObjectReader().open(commit, Constants.OBJ_COMMIT).getCachedBytes());
+  }
+
+
+  private static String getFullMessage(@NotNull RevCommit commit) {
     try {
-      return myCurrentCommit.getFullMessage();
+      return commit.getFullMessage();
     } catch (UnsupportedCharsetException e) {
-      LOG.warn("Cannot parse the " + myCurrentCommit.name() + " commit message due to unknown commit encoding '" + e.getCharsetName() + "'");
+      LOG.warn("Cannot parse the " + commit.name() + " commit message due to unknown commit encoding '" + e.getCharsetName() + "'");
       return "Cannot parse commit message due to unknown commit encoding '" + e.getCharsetName() + "'";
     }
   }
 
-  private PersonIdent getPersonIdent() {
+  private static PersonIdent getPersonIdent(@NotNull RevCommit commit) {
     try {
-      return myCurrentCommit.getAuthorIdent();
+      return commit.getAuthorIdent();
     } catch (UnsupportedCharsetException e) {
-      LOG.warn("Cannot parse the " + myCurrentCommit.name() + " commit author due to unknown commit encoding '" + e.getCharsetName() + "'");
+      LOG.warn("Cannot parse the " + commit.name() + " commit author due to unknown commit encoding '" + e.getCharsetName() + "'");
       return new PersonIdent("Can not parse", "Can not parse");
     }
   }
@@ -165,7 +566,9 @@ class ModificationDataRevWalk extends RevWalk {
     private final RevCommit commit;
     private final String currentVersion;
     private final String parentVersion;
+    private final boolean ignoreSubmodulesErrors;
     private final List<VcsChange> changes = new ArrayList<VcsChange>();
+    private final List<ChangedPathsCache.ChangedPath> changedPaths = new ArrayList<ChangedPathsCache.ChangedPath>();
     private final String repositoryDebugInfo = myGitRoot.debugInfo();
     private final IgnoreSubmoduleErrorsTreeFilter filter = new IgnoreSubmoduleErrorsTreeFilter(myGitRoot);
     private final Map<String, RevCommit> commitsWithFix = new HashMap<String, RevCommit>();
@@ -174,13 +577,16 @@ class ModificationDataRevWalk extends RevWalk {
      * @param commit current commit
      * @param currentVersion teamcity version of current commit (sha@time)
      * @param parentVersion parent version to use in VcsChange objects
+     * @param ignoreSubmodulesErrors whether to ignore submodule errors in current commit
      */
     public CommitChangesBuilder(@NotNull final RevCommit commit,
                                 @NotNull final String currentVersion,
-                                @NotNull final String parentVersion) {
+                                @NotNull final String parentVersion,
+                                boolean ignoreSubmodulesErrors) {
       this.commit = commit;
       this.currentVersion = currentVersion;
       this.parentVersion = parentVersion;
+      this.ignoreSubmodulesErrors = ignoreSubmodulesErrors;
     }
 
     @NotNull
@@ -188,22 +594,34 @@ class ModificationDataRevWalk extends RevWalk {
       return changes;
     }
 
+    /**
+     * @return changes of the commit in the form stored in {@link ChangedPathsCache},
+     * contains all changes only when submodules are not checked out
+     */
+    @NotNull
+    public List<ChangedPathsCache.ChangedPath> getChangedPaths() {
+      return changedPaths;
+    }
+
     /**
      * collect changes for the commit
+     * @param reader reader shared by tree walks of the current thread, if null tree walk creates its own reader
      */
-    public void collectCommitChanges() throws IOException, VcsException {
-      final VcsChangeTreeWalk tw = new VcsChangeTreeWalk(myRepository, repositoryDebugInfo, myConfig.verboseTreeWalkLog());
+    public void collectCommitChanges(@Nullable final ObjectReader reader) throws IOException, VcsException {
+      final VcsChangeTreeWalk tw = reader != null ? new VcsChangeTreeWalk(reader, repositoryDebugInfo, myConfig.verboseTreeWalkLog())
+                                                  : new VcsChangeTreeWalk(myRepository, repositoryDebugInfo, myConfig.verboseTreeWalkLog());
       try {
-        tw.setFilter(filter);
+        tw.setFilter(myCheckoutRulesFilter != null ? AndTreeFilter.create(filter, myCheckoutRulesFilter) : filter);
         tw.setRecursive(true);
-        myContext.addTree(myGitRoot, tw, myRepository, commit, shouldIgnoreSubmodulesErrors());
+        myContext.addTree(myGitRoot, tw, myRepository, commit, ignoreSubmodulesErrors);
         for (RevCommit parentCommit : commit.getParents()) {
           myContext.addTree(myGitRoot, tw, myRepository, parentCommit, true);
         }
 
         new VcsChangesTreeWalker(tw).walk();
       } finally {
-        tw.release();
+        if (reader == null)
+          tw.release();
       }
     }
 
@@ -252,7 +670,7 @@ class ModificationDataRevWalk extends RevWalk {
       private void subWalk(@NotNull final String path, @NotNull final RevCommit commitWithFix) throws IOException, VcsException {
         final VcsChangeTreeWalk tw2 = new VcsChangeTreeWalk(myRepository, repositoryDebugInfo, myConfig.verboseTreeWalkLog());
         try {
-          tw2.setFilter(TreeFilter.ANY_DIFF);
+          tw2.setFilter(AndTreeFilter.create(PathFilter.create(path), TreeFilter.ANY_DIFF));
           tw2.setRecursive(true);
           myContext.addTree(myGitRoot, tw2, myRepository, commit, true);
           myContext.addTree(myGitRoot, tw2, myRepository, commitWithFix, true);
@@ -267,7 +685,11 @@ class ModificationDataRevWalk extends RevWalk {
       }
 
       private void addVcsChange() {
-        addVcsChange(currentVersion, parentVersion, tw);
+        final ChangedPathsCache.ChangedPath changedPath = tw.getChangedPath();
+        if (changedPath != null) {
+          changedPaths.add(changedPath);
+          changes.add(changedPath.toVcsChange(currentVersion, parentVersion));
+        }
       }
 
       private void addVcsChange(@NotNull final String currentVersion,
@@ -284,6 +706,10 @@ class ModificationDataRevWalk extends RevWalk {
       if (mySearchDepth == 0)
         return null;
 
+      final String key = submodulePath + ":" + fromCommit.name();
+      if (myCommitsWithFixedSubmodule.containsKey(key))
+        return myCommitsWithFixedSubmodule.get(key);
+
       final RevWalk revWalk = new RevWalk(myRepository);
       try {
         final RevCommit fromRev = revWalk.parseCommit(fromCommit.getId());
@@ -296,30 +722,45 @@ class ModificationDataRevWalk extends RevWalk {
         int depth = 0;
         while (result == null && depth < mySearchDepth && (prevRev = revWalk.next()) != null) {
           depth++;
-          final TreeWalk prevTreeWalk = new TreeWalk(myRepository);
-          try {
-            prevTreeWalk.setFilter(TreeFilter.ALL);
-            prevTreeWalk.setRecursive(true);
-            myContext.addTree(myGitRoot, prevTreeWalk, myRepository, prevRev, true, false);
-            while(prevTreeWalk.next()) {
-              String path = prevTreeWalk.getPathString();
-              if (path.startsWith(submodulePath + "/")) {
-                final SubmoduleAwareTreeIterator iter = prevTreeWalk.getTree(0, SubmoduleAwareTreeIterator.class);
-                final SubmoduleAwareTreeIterator parentIter = iter.getParent();
-                if (iter != null && !iter.isSubmoduleError() && parentIter != null && parentIter.isOnSubmodule()) {
-                  result = prevRev;
-                  break;
-                }
-              }
-            }
-          } finally {
-            prevTreeWalk.release();
-          }
+          if (isSubmoduleFixed(prevRev, submodulePath))
+            result = prevRev;
         }
+        myCommitsWithFixedSubmodule.put(key, result);
         return result;
       } finally {
         revWalk.release();
       }
     }
+
+    private boolean isSubmoduleFixed(@NotNull final RevCommit commit, @NotNull final String submodulePath) throws IOException, VcsException {
+      final String key = submodulePath + ":" + commit.name();
+      Boolean fixed = myFixedSubmoduleChecks.get(key);
+      if (fixed != null)
+        return fixed;
+      fixed = false;
+      final TreeWalk prevTreeWalk = new TreeWalk(myRepository);
+      try {
+        prevTreeWalk.setFilter(PathFilter.create(submodulePath));
+        prevTreeWalk.setRecursive(true);
+        myContext.addTree(myGitRoot, prevTreeWalk, myRepository, commit, true, false);
+        while (prevTreeWalk.next()) {
+          String path = prevTreeWalk.getPathString();
+          if (path.startsWith(submodulePath + "/")) {
+            final SubmoduleAwareTreeIterator iter = prevTreeWalk.getTree(0, SubmoduleAwareTreeIterator.class);
+            if (iter == null || iter.isSubmoduleError())
+              continue;
+            final SubmoduleAwareTreeIterator parentIter = iter.getParent();
+            if (parentIter != null && parentIter.isOnSubmodule()) {
+              fixed = true;
+              break;
+            }
+          }
+        }
+      } finally {
+        prevTreeWalk.release();
+      }
+      myFixedSubmoduleChecks.put(key, fixed);
+      return fixed;
+    }
   }
 }
@@ -55,6 +55,7 @@ public class OperationContext {
   private final Map<String, Repository> myRepositories = new HashMap<String, Repository>(); //repository path -> repository
   private final Set<String> myAlreadyFetched = new HashSet<String>();
   private final GitProgress myProgress;
+  private volatile FetchPriority myFetchPriority = FetchPriority.INTERACTIVE;
 
   public OperationContext(@NotNull final CommitLoader commitLoader,
                           @NotNull final RepositoryManager repositoryManager,
@@ -73,6 +74,18 @@ public class OperationContext {
     return myRoot;
   }
 
+  /**
+   * @return priority of fetches made during the operation, including fetches of submodules
+   */
+  @NotNull
+  public FetchPriority getFetchPriority() {
+    return myFetchPriority;
+  }
+
+  public void setFetchPriority(@NotNull FetchPriority priority) {
+    myFetchPriority = priority;
+  }
+
   public Repository getRepository() throws VcsException {
     return getRepository(getGitRoot());
   }
@@ -114,7 +127,7 @@ public class OperationContext {
     if (alreadyFetched(fetchURI, refSpecs))
       return;
     try {
-      myCommitLoader.fetch(db, fetchURI, refSpecs, new FetchSettings(auth));
+      myCommitLoader.fetch(db, fetchURI, refSpecs, new FetchSettings(auth, GitProgress.NO_OP, myFetchPriority));
     } finally {
       markAsFetched(fetchURI, refSpecs);
     }
@@ -214,6 +227,11 @@ public class OperationContext {
     return myCommitLoader.findCommit(r, sha);
   }
 
+  @NotNull
+  public CommitGraph getCommitGraph(@NotNull Repository r) {
+    return myCommitLoader.getCommitGraph(r);
+  }
+
   @NotNull
   public GitVcsRoot makeRootWithTags() throws VcsException {
     GitVcsRoot gitRoot = getGitRoot(myRoot);
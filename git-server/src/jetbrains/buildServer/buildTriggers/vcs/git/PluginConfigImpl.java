@@ -56,7 +56,6 @@ import java.text.ParseException;
 import java.util.*;
 
 import static com.intellij.openapi.util.text.StringUtil.isEmpty;
-import static com.intellij.openapi.util.text.StringUtil.isEmptyOrSpaces;
 import static java.util.Arrays.asList;
 import static jetbrains.buildServer.util.CollectionsUtil.setOf;
 
@@ -72,6 +71,12 @@ public class PluginConfigImpl implements ServerPluginConfig {
   private static final String TEAMCITY_GIT_ALWAYS_CHECK_CIPHERS = "teamcity.git.always.check.ciphers";
   private static final String HTTP_CONNECTION_FACTORY = "teamcity.git.httpConnectionFactory";
   private static final String HTTP_CONNECTION_SSL_PROTOCOL = "teamcity.git.httpConnectionSslProtocol";
+  private static final String PACKED_GIT_WINDOW_SIZE_KB = "teamcity.git.packedGitWindowSizeKb";
+  private static final String PACKED_GIT_LIMIT_MB = "teamcity.git.packedGitLimitMb";
+  private static final String PACKED_GIT_OPEN_FILES = "teamcity.git.packedGitOpenFiles";
+  private static final String PACKED_GIT_MMAP = "teamcity.git.packedGitMMAP";
+  private static final String DELTA_BASE_CACHE_LIMIT_MB = "teamcity.git.deltaBaseCacheLimitMb";
+  private static final String WINDOW_CACHE_AUTO_SIZE = "teamcity.git.windowCacheAutoSize";
   private final static Logger LOG = Logger.getInstance(PluginConfigImpl.class.getName());
   private final static int GB = 1024 * 1024 * 1024;//bytes
   private final File myCachesDir;
@@ -82,7 +87,12 @@ public class PluginConfigImpl implements ServerPluginConfig {
                                                            TEAMCITY_GIT_ALWAYS_CHECK_CIPHERS,
                                                            HTTP_CONNECTION_FACTORY,
                                                            HTTP_CONNECTION_SSL_PROTOCOL,
-                                                           Constants.AMAZON_HOSTS);
+                                                           PACKED_GIT_WINDOW_SIZE_KB,
+                                                           PACKED_GIT_LIMIT_MB,
+                                                           PACKED_GIT_OPEN_FILES,
+                                                           PACKED_GIT_MMAP,
+                                                           DELTA_BASE_CACHE_LIMIT_MB,
+                                                           WINDOW_CACHE_AUTO_SIZE);
 
   public PluginConfigImpl() {
     myCachesDir = null;
@@ -115,6 +125,36 @@ public class PluginConfigImpl implements ServerPluginConfig {
   }
 
 
+  public int getPackedGitWindowSizeKb() {
+    return TeamCityProperties.getInteger(PACKED_GIT_WINDOW_SIZE_KB, 0);
+  }
+
+
+  public int getPackedGitLimitMb() {
+    return TeamCityProperties.getInteger(PACKED_GIT_LIMIT_MB, 0);
+  }
+
+
+  public int getPackedGitOpenFiles() {
+    return TeamCityProperties.getInteger(PACKED_GIT_OPEN_FILES, 0);
+  }
+
+
+  public int getDeltaBaseCacheLimitMb() {
+    return TeamCityProperties.getInteger(DELTA_BASE_CACHE_LIMIT_MB, 0);
+  }
+
+
+  public boolean isPackedGitMMAP() {
+    return TeamCityProperties.getBoolean(PACKED_GIT_MMAP);
+  }
+
+
+  public boolean isWindowCacheAutoSize() {
+    return TeamCityProperties.getBoolean(WINDOW_CACHE_AUTO_SIZE);
+  }
+
+
   public String getFetchProcessJavaPath() {
     final String jdkHome = System.getProperty("java.home");
     File defaultJavaExec = new File(jdkHome.replace('/', File.separatorChar) + File.separator + "bin" + File.separator + "java");
@@ -173,6 +213,34 @@ public class PluginConfigImpl implements ServerPluginConfig {
     return TeamCityProperties.getBooleanOrTrue("teamcity.git.buildPatchInSeparateProcess");
   }
 
+  public boolean isFetcherDaemonEnabled() {
+    return TeamCityProperties.getBoolean("teamcity.git.fetcherDaemon.enabled");
+  }
+
+  public int getFetcherDaemonWorkers() {
+    return TeamCityProperties.getInteger("teamcity.git.fetcherDaemon.workers", 2);
+  }
+
+  public int getFetcherDaemonIdleTimeoutSeconds() {
+    return TeamCityProperties.getInteger(FetcherDaemon.IDLE_TIMEOUT_PROPERTY, 600);
+  }
+
+  public int getFetcherDaemonMaxJobs() {
+    return TeamCityProperties.getInteger("teamcity.git.fetcherDaemon.maxJobs", 500);
+  }
+
+  public int getFetchMaxConcurrency() {
+    return TeamCityProperties.getInteger("teamcity.git.fetch.maxConcurrency", 0);
+  }
+
+  public int getFetchMaxConcurrencyPerHost() {
+    return TeamCityProperties.getInteger("teamcity.git.fetch.maxConcurrencyPerHost", 0);
+  }
+
+  public int getFetchPriorityAgingSeconds() {
+    return TeamCityProperties.getInteger("teamcity.git.fetch.priorityAgingSeconds", 60);
+  }
+
   public boolean isRunNativeGC() {
     return TeamCityProperties.getBoolean("teamcity.server.git.gc.enabled");
   }
@@ -276,6 +344,10 @@ public class PluginConfigImpl implements ServerPluginConfig {
     return days * Dates.ONE_DAY;
   }
 
+  public int getMirrorLastUsedTimeFlushIntervalSeconds() {
+    return TeamCityProperties.getInteger("teamcity.git.mirror.lastUsedTime.flushIntervalSeconds", 60);
+  }
+
   @NotNull
   public List<String> getProxySettingsForSeparateProcess() {
     List<String> proxySettings = new ArrayList<String>();
@@ -407,6 +479,54 @@ public class PluginConfigImpl implements ServerPluginConfig {
     return TeamCityProperties.getInteger("teamcity.git.connectionRetryAttempts", 3);
   }
 
+  public int getRemoteRefsCacheTtlSeconds() {
+    return TeamCityProperties.getInteger("teamcity.git.remoteRefsCacheTtlSeconds", 0);
+  }
+
+  public int getCurrentStateThreads() {
+    return TeamCityProperties.getInteger("teamcity.git.currentStateThreads", 8);
+  }
+
+  public int getCurrentStatePerHostThreads() {
+    return TeamCityProperties.getInteger("teamcity.git.currentStatePerHostThreads", 2);
+  }
+
+  public int getCurrentStateTimeoutSeconds() {
+    return TeamCityProperties.getInteger("teamcity.git.currentStateTimeoutSeconds", 120);
+  }
+
+  public int getCollectChangesThreads() {
+    return TeamCityProperties.getInteger("teamcity.git.collectChangesThreads", Math.min(4, Runtime.getRuntime().availableProcessors()));
+  }
+
+  public int getCollectChangesMaxCommits() {
+    return TeamCityProperties.getInteger("teamcity.git.collectChanges.maxCommits", 0);
+  }
+
+  public long getCollectChangesMaxMemory() {
+    return TeamCityProperties.getInteger("teamcity.git.collectChanges.maxMemoryMb", 0) * 1024L * 1024L;
+  }
+
+  public int getChangedPathsCacheMaxSizeMb() {
+    return TeamCityProperties.getInteger("teamcity.git.changedPathsCache.maxSizeMb", 64);
+  }
+
+  public int getRepositoryCacheIdleTimeoutSeconds() {
+    return TeamCityProperties.getInteger("teamcity.git.repositoryCache.idleTimeoutSeconds", 300);
+  }
+
+  public int getRepositoryCacheMaxIdleRepositories() {
+    return TeamCityProperties.getInteger("teamcity.git.repositoryCache.maxIdleRepositories", 50);
+  }
+
+  public int getRepositoryCacheMaxOpenFiles() {
+    return TeamCityProperties.getInteger("teamcity.git.repositoryCache.maxOpenFiles", 500);
+  }
+
+  public int getRepositoryLockTimeoutSeconds() {
+    return TeamCityProperties.getInteger("teamcity.git.repositoryLockTimeoutSeconds", 60);
+  }
+
   public boolean ignoreFetchedCommits() {
     return TeamCityProperties.getBoolean("teamcity.git.mapFullPathIgnoresFetchedCommits");
   }
@@ -458,13 +578,4 @@ public class PluginConfigImpl implements ServerPluginConfig {
   public static boolean showKnownHostsDbOption() {
     return TeamCityProperties.getBoolean("teamcity.git.showKnownHostsDbOption");
   }
-
-  @NotNull
-  public List<String> getAmazonHosts() {
-    String amazonHosts = TeamCityProperties.getProperty(Constants.AMAZON_HOSTS);
-    if (isEmptyOrSpaces(amazonHosts))
-      return Collections.emptyList();
-    String[] hosts = amazonHosts.split(",");
-    return asList(hosts);
-  }
 }
@@ -0,0 +1,390 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdRef;
+import org.eclipse.jgit.lib.Ref;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.*;
+
+/**
+ * Immutable compact snapshot of refs in a repository: ref name -> revision
+ * (peeled revision for annotated tags, see {@link GitUtils#getObjectId(Ref)}).
+ *
+ * Names are sorted by their UTF-8 bytes and front-coded: every name stores
+ * only the suffix which differs from the previous name, every
+ * {@link #RESTART_INTERVAL}-th name is stored whole so lookups can use a
+ * binary search. Revisions are stored as raw ints. With 100k of refs a
+ * snapshot takes a few megabytes instead of hundreds of thousands of String
+ * and Ref objects; conversion to API types should be done only at the
+ * boundary, e.g. when the RepositoryStateData is created.
+ */
+public final class RefsState {
+
+  private static final int RESTART_INTERVAL = 16;
+  private static final RefsState EMPTY = new RefsState(0, new byte[0], new int[0], new int[0]);
+
+  private final int mySize;
+  private final byte[] myNames;
+  private final int[] myRestarts;
+  private final int[] myIds;
+
+  private RefsState(int size, @NotNull byte[] names, @NotNull int[] restarts, @NotNull int[] ids) {
+    mySize = size;
+    myNames = names;
+    myRestarts = restarts;
+    myIds = ids;
+  }
+
+
+  @NotNull
+  public static RefsState empty() {
+    return EMPTY;
+  }
+
+
+  @NotNull
+  public static RefsState create(@NotNull Collection<Ref> refs) {
+    if (refs.isEmpty())
+      return EMPTY;
+    List<Entry> entries = new ArrayList<Entry>(refs.size());
+    for (Ref ref : refs) {
+      ObjectId id = GitUtils.getObjectId(ref);
+      if (id != null)
+        entries.add(new Entry(utf8(ref.getName()), id));
+    }
+    Collections.sort(entries);
+    ByteArrayOutputStream names = new ByteArrayOutputStream(entries.size() * 16);
+    int[] restarts = new int[(entries.size() + RESTART_INTERVAL - 1) / RESTART_INTERVAL];
+    int[] ids = new int[5 * entries.size()];
+    int size = 0;
+    byte[] prev = null;
+    for (Entry e : entries) {
+      if (prev != null && compare(prev, prev.length, e.myName, e.myName.length) == 0)
+        continue;//duplicate name
+      int shared = 0;
+      if (size % RESTART_INTERVAL == 0) {
+        restarts[size / RESTART_INTERVAL] = names.size();
+      } else {
+        int max = Math.min(prev.length, e.myName.length);
+        while (shared < max && prev[shared] == e.myName[shared])
+          shared++;
+      }
+      writeVarInt(names, shared);
+      writeVarInt(names, e.myName.length - shared);
+      names.write(e.myName, shared, e.myName.length - shared);
+      e.myId.copyRawTo(ids, 5 * size);
+      prev = e.myName;
+      size++;
+    }
+    int restartsCount = (size + RESTART_INTERVAL - 1) / RESTART_INTERVAL;
+    return new RefsState(size, names.toByteArray(),
+                         restartsCount == restarts.length ? restarts : Arrays.copyOf(restarts, restartsCount),
+                         ids.length == 5 * size ? ids : Arrays.copyOf(ids, 5 * size));
+  }
+
+
+  public int size() {
+    return mySize;
+  }
+
+
+  public boolean isEmpty() {
+    return mySize == 0;
+  }
+
+
+  public boolean contains(@NotNull String refName) {
+    return get(refName) != null;
+  }
+
+
+  /**
+   * @return revision of the ref with the given full name or null if there is no such ref
+   */
+  @Nullable
+  public ObjectId get(@NotNull String refName) {
+    byte[] name = utf8(refName);
+    int low = 0;
+    int high = myRestarts.length - 1;
+    //find the last restart point with name <= the given name
+    int block = -1;
+    Cursor cursor = cursor();
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      cursor.seekToRestart(mid);
+      int cmp = compare(cursor.myName, cursor.myNameLength, name, name.length);
+      if (cmp == 0)
+        return cursor.getObjectId();
+      if (cmp < 0) {
+        block = mid;
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    if (block < 0)
+      return null;
+    cursor.seekToRestart(block);
+    int end = Math.min(mySize, (block + 1) * RESTART_INTERVAL);
+    while (cursor.myIndex + 1 < end && cursor.next()) {
+      int cmp = compare(cursor.myName, cursor.myNameLength, name, name.length);
+      if (cmp == 0)
+        return cursor.getObjectId();
+      if (cmp > 0)
+        return null;
+    }
+    return null;
+  }
+
+
+  /**
+   * @return cursor positioned before the first ref, refs are iterated in the order of their names
+   */
+  @NotNull
+  public Cursor cursor() {
+    return new Cursor();
+  }
+
+
+  /**
+   * Computes refs which differ in this and the given states. Both states are
+   * iterated once without creating Strings for unchanged refs.
+   * @return names of refs which were added, removed or point to different revisions
+   */
+  @NotNull
+  public List<String> getChangedRefs(@NotNull RefsState other) {
+    List<String> result = new ArrayList<String>();
+    Cursor c1 = cursor();
+    Cursor c2 = other.cursor();
+    boolean has1 = c1.next();
+    boolean has2 = c2.next();
+    while (has1 || has2) {
+      int cmp;
+      if (!has1) {
+        cmp = 1;
+      } else if (!has2) {
+        cmp = -1;
+      } else {
+        cmp = compare(c1.myName, c1.myNameLength, c2.myName, c2.myNameLength);
+      }
+      if (cmp < 0) {
+        result.add(c1.getName());
+        has1 = c1.next();
+      } else if (cmp > 0) {
+        result.add(c2.getName());
+        has2 = c2.next();
+      } else {
+        if (!c1.hasSameObjectId(c2))
+          result.add(c1.getName());
+        has1 = c1.next();
+        has2 = c2.next();
+      }
+    }
+    return result;
+  }
+
+
+  /**
+   * @return refs in the form of the JGit API, should be used only when other
+   * code needs Ref objects
+   */
+  @NotNull
+  public Map<String, Ref> toRefs() {
+    Map<String, Ref> result = new HashMap<String, Ref>(mySize * 4 / 3 + 1);
+    Cursor cursor = cursor();
+    while (cursor.next()) {
+      String name = cursor.getName();
+      result.put(name, new ObjectIdRef.Unpeeled(Ref.Storage.NETWORK, name, cursor.getObjectId()));
+    }
+    return result;
+  }
+
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o)
+      return true;
+    if (o == null || getClass() != o.getClass())
+      return false;
+    RefsState other = (RefsState) o;
+    return mySize == other.mySize && Arrays.equals(myIds, other.myIds) && Arrays.equals(myNames, other.myNames);
+  }
+
+
+  @Override
+  public int hashCode() {
+    return 31 * Arrays.hashCode(myNames) + Arrays.hashCode(myIds);
+  }
+
+
+  @Override
+  public String toString() {
+    StringBuilder result = new StringBuilder("{");
+    Cursor cursor = cursor();
+    while (cursor.next()) {
+      if (result.length() > 1)
+        result.append(", ");
+      result.append(cursor.getName()).append("=").append(cursor.getObjectId().name());
+    }
+    return result.append("}").toString();
+  }
+
+
+  public final class Cursor {
+    private int myIndex = -1;
+    private int myOffset = 0;
+    private byte[] myName = new byte[64];
+    private int myNameLength = 0;
+
+    private Cursor() {
+    }
+
+    /**
+     * Moves the cursor to the next ref
+     * @return false if there are no more refs
+     */
+    public boolean next() {
+      if (myIndex + 1 >= mySize)
+        return false;
+      myIndex++;
+      int shared = readVarInt();
+      int suffix = readVarInt();
+      if (myName.length < shared + suffix)
+        myName = Arrays.copyOf(myName, Math.max(2 * myName.length, shared + suffix));
+      System.arraycopy(myNames, myOffset, myName, shared, suffix);
+      myOffset += suffix;
+      myNameLength = shared + suffix;
+      return true;
+    }
+
+    /**
+     * @return true if the name of the current ref starts with the given ASCII prefix
+     */
+    public boolean nameStartsWith(@NotNull String prefix) {
+      if (prefix.length() > myNameLength)
+        return false;
+      for (int i = 0; i < prefix.length(); i++) {
+        if (myName[i] != (byte) prefix.charAt(i))
+          return false;
+      }
+      return true;
+    }
+
+    public boolean isTag() {
+      return nameStartsWith(Constants.R_TAGS);
+    }
+
+    @NotNull
+    public String getName() {
+      try {
+        return new String(myName, 0, myNameLength, "UTF-8");
+      } catch (UnsupportedEncodingException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    @NotNull
+    public ObjectId getObjectId() {
+      return ObjectId.fromRaw(myIds, 5 * myIndex);
+    }
+
+    private boolean hasSameObjectId(@NotNull Cursor other) {
+      int[] otherIds = other.getIds();
+      for (int i = 0; i < 5; i++) {
+        if (myIds[5 * myIndex + i] != otherIds[5 * other.myIndex + i])
+          return false;
+      }
+      return true;
+    }
+
+    @NotNull
+    private int[] getIds() {
+      return myIds;
+    }
+
+    private void seekToRestart(int restart) {
+      myIndex = restart * RESTART_INTERVAL - 1;
+      myOffset = myRestarts[restart];
+      next();
+    }
+
+    private int readVarInt() {
+      int result = 0;
+      int shift = 0;
+      byte b;
+      do {
+        b = myNames[myOffset++];
+        result |= (b & 0x7f) << shift;
+        shift += 7;
+      } while ((b & 0x80) != 0);
+      return result;
+    }
+  }
+
+
+  private static void writeVarInt(@NotNull ByteArrayOutputStream out, int value) {
+    while ((value & ~0x7f) != 0) {
+      out.write((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+
+  private static int compare(@NotNull byte[] a, int aLength, @NotNull byte[] b, int bLength) {
+    int length = Math.min(aLength, bLength);
+    for (int i = 0; i < length; i++) {
+      int cmp = (a[i] & 0xff) - (b[i] & 0xff);
+      if (cmp != 0)
+        return cmp;
+    }
+    return aLength - bLength;
+  }
+
+
+  @NotNull
+  private static byte[] utf8(@NotNull String s) {
+    try {
+      return s.getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+
+  private static final class Entry implements Comparable<Entry> {
+    private final byte[] myName;
+    private final AnyObjectId myId;
+
+    private Entry(@NotNull byte[] name, @NotNull AnyObjectId id) {
+      myName = name;
+      myId = id;
+    }
+
+    public int compareTo(@NotNull Entry other) {
+      return compare(myName, myName.length, other.myName, other.myName.length);
+    }
+  }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shares results of ls-remote between VCS roots with the same fetch url and
+ * credentials. Concurrent requests for the same key are coalesced into a single
+ * remote call; completed results are reused for the configured TTL.
+ */
+public final class RemoteRefsCache {
+
+  private static final Logger LOG = Logger.getInstance(RemoteRefsCache.class.getName());
+
+  private final ServerPluginConfig myConfig;
+  private final ConcurrentMap<Key, Entry> myEntries = new ConcurrentHashMap<Key, Entry>();
+  private final AtomicLong myHits = new AtomicLong();
+  private final AtomicLong myMisses = new AtomicLong();
+  private final AtomicLong myCoalesced = new AtomicLong();
+
+  public RemoteRefsCache(@NotNull ServerPluginConfig config) {
+    myConfig = config;
+  }
+
+  @NotNull
+  public RefsState getRefs(@NotNull GitVcsRoot root, @NotNull Callable<RefsState> loader) throws Exception {
+    Key key = new Key(root);
+    while (true) {
+      Entry existing = myEntries.get(key);
+      if (existing != null) {
+        if (!existing.isDone()) {
+          myCoalesced.incrementAndGet();
+          return existing.get();
+        }
+        if (existing.isValid(System.currentTimeMillis(), getTtlMillis())) {
+          myHits.incrementAndGet();
+          return existing.get();
+        }
+      }
+      Entry entry = new Entry(loader);
+      boolean installed = existing == null ? myEntries.putIfAbsent(key, entry) == null : myEntries.replace(key, existing, entry);
+      if (!installed)
+        continue;
+      myMisses.incrementAndGet();
+      entry.run();
+      if (entry.isFailed() || getTtlMillis() <= 0)
+        myEntries.remove(key, entry);
+      RefsState refs = entry.get();
+      if (existing != null && !existing.isFailed() && LOG.isDebugEnabled())
+        logChangedRefs(key, existing.get(), refs);
+      return refs;
+    }
+  }
+
+  /**
+   * Forgets refs of all roots with the given fetch url, should be called after
+   * the remote repository is modified by the server (e.g. after push)
+   */
+  public void invalidate(@NotNull String fetchUrl) {
+    Iterator<Key> iter = myEntries.keySet().iterator();
+    while (iter.hasNext()) {
+      if (iter.next().myFetchUrl.equals(fetchUrl))
+        iter.remove();
+    }
+  }
+
+  /**
+   * @return object identifying roots which share remote refs in this cache
+   */
+  @NotNull
+  static Object keyOf(@NotNull GitVcsRoot root) {
+    return new Key(root);
+  }
+
+  public void invalidateAll() {
+    myEntries.clear();
+  }
+
+  public long getHits() {
+    return myHits.get();
+  }
+
+  public long getMisses() {
+    return myMisses.get();
+  }
+
+  public long getCoalesced() {
+    return myCoalesced.get();
+  }
+
+  @NotNull
+  public String getStats() {
+    return "hits: " + getHits() + ", misses: " + getMisses() + ", coalesced: " + getCoalesced();
+  }
+
+  private static void logChangedRefs(@NotNull Key key, @NotNull RefsState previous, @NotNull RefsState current) {
+    List<String> changed = current.getChangedRefs(previous);
+    LOG.debug("Remote refs of " + key + ": " + current.size() + " refs, " + changed.size() + " changed since the previous request" +
+              (changed.isEmpty() || changed.size() > 10 ? "" : " " + changed));
+  }
+
+  private long getTtlMillis() {
+    return myConfig.getRemoteRefsCacheTtlSeconds() * 1000L;
+  }
+
+
+  private static final class Entry {
+    private final FutureTask<RefsState> myTask;
+    private volatile long myCompletedTime;
+    private volatile boolean myFailed;
+
+    private Entry(@NotNull final Callable<RefsState> loader) {
+      myTask = new FutureTask<RefsState>(new Callable<RefsState>() {
+        public RefsState call() throws Exception {
+          try {
+            return loader.call();
+          } catch (Exception e) {
+            myFailed = true;
+            throw e;
+          } catch (Error e) {
+            myFailed = true;
+            throw e;
+          } finally {
+            myCompletedTime = System.currentTimeMillis();
+          }
+        }
+      });
+    }
+
+    void run() {
+      myTask.run();
+    }
+
+    boolean isDone() {
+      return myTask.isDone();
+    }
+
+    boolean isFailed() {
+      return myFailed;
+    }
+
+    boolean isValid(long now, long ttlMillis) {
+      return !myFailed && now - myCompletedTime < ttlMillis;
+    }
+
+    @NotNull
+    RefsState get() throws Exception {
+      try {
+        return myTask.get();
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof Exception)
+          throw (Exception) cause;
+        if (cause instanceof Error)
+          throw (Error) cause;
+        throw e;
+      }
+    }
+  }
+
+
+  private static final class Key {
+    private final String myFetchUrl;
+    private final Map<String, String> myAuth;
+    private final String myTeamCitySshKeyId;
+
+    private Key(@NotNull GitVcsRoot root) {
+      myFetchUrl = root.getRepositoryFetchURL().toString();
+      AuthSettings auth = root.getAuthSettings();
+      myAuth = auth.toMap();
+      myTeamCitySshKeyId = auth.getTeamCitySshKeyId();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o)
+        return true;
+      if (o == null || getClass() != o.getClass())
+        return false;
+      Key key = (Key) o;
+      return myFetchUrl.equals(key.myFetchUrl) &&
+             myAuth.equals(key.myAuth) &&
+             equal(myTeamCitySshKeyId, key.myTeamCitySshKeyId);
+    }
+
+    @Override
+    public int hashCode() {
+      int result = myFetchUrl.hashCode();
+      result = 31 * result + myAuth.hashCode();
+      result = 31 * result + (myTeamCitySshKeyId != null ? myTeamCitySshKeyId.hashCode() : 0);
+      return result;
+    }
+
+    @Override
+    public String toString() {
+      return myFetchUrl;
+    }
+
+    private static boolean equal(@Nullable String s1, @Nullable String s2) {
+      return s1 == null ? s2 == null : s1.equals(s2);
+    }
+  }
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.buildTriggers.vcs.git.LockStats.LockType;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Registry of repository locks used by {@link RepositoryManagerImpl}.
+ *
+ * Locks of a repository are identified by the canonical path of its dir,
+ * canonical paths are computed once per dir. Registry holds locks weakly
+ * while they are not locked, so locks of unused repositories are garbage
+ * collected and are created again on the next request.
+ *
+ * All locks are fair. A thread waiting for a lock longer than
+ * {@link ServerPluginConfig#getRepositoryLockTimeoutSeconds()} logs a warning
+ * and continues waiting, {@link Lock#lockInterruptibly()} stops waiting when
+ * the thread is interrupted. Wait and hold times are collected per repository.
+ */
+final class RepositoryLocks {
+
+  private static final Logger LOG = Logger.getInstance(RepositoryLocks.class.getName());
+
+  private final ServerPluginConfig myConfig;
+  private final ConcurrentMap<File, File> myCanonicalDirs = new ConcurrentHashMap<File, File>();
+  private final ConcurrentMap<File, LocksRef> myLocks = new ConcurrentHashMap<File, LocksRef>();
+  private final ReferenceQueue<Entry> myCollectedLocks = new ReferenceQueue<Entry>();
+  /*locks which are currently locked, they should not be garbage collected*/
+  private final ConcurrentMap<File, Entry> myLockedLocks = new ConcurrentHashMap<File, Entry>();
+  private final ConcurrentMap<File, LockStats> myStats = new ConcurrentHashMap<File, LockStats>();
+  /*locks held by the current thread -> {holds count, start time of the first hold}*/
+  private final ThreadLocal<Map<Lock, long[]>> myThreadHolds = new ThreadLocal<Map<Lock, long[]>>() {
+    @Override
+    protected Map<Lock, long[]> initialValue() {
+      return new HashMap<Lock, long[]>();
+    }
+  };
+
+  RepositoryLocks(@NotNull ServerPluginConfig config) {
+    myConfig = config;
+  }
+
+  @NotNull
+  Lock getCreateLock(@NotNull File dir) {
+    return getEntry(dir).myCreateLock;
+  }
+
+  @NotNull
+  Lock getWriteLock(@NotNull File dir) {
+    return getEntry(dir).myWriteLock;
+  }
+
+  @NotNull
+  ReadWriteLock getRmLock(@NotNull File dir) {
+    return getEntry(dir).myRmLock;
+  }
+
+  /**
+   * Forgets locks and statistics of the given dir
+   */
+  void remove(@NotNull File dir) {
+    File id = getId(dir);
+    myLocks.remove(id);
+    myStats.remove(id);
+    Iterator<File> iter = myCanonicalDirs.values().iterator();
+    while (iter.hasNext()) {
+      if (iter.next().equals(id))
+        iter.remove();
+    }
+  }
+
+  @NotNull
+  Map<File, LockStats> getStats() {
+    return new HashMap<File, LockStats>(myStats);
+  }
+
+  @NotNull
+  private Entry getEntry(@NotNull File dir) {
+    removeCollectedLocks();
+    File id = getId(dir);
+    while (true) {
+      LocksRef ref = myLocks.get(id);
+      Entry existing = ref != null ? ref.get() : null;
+      if (existing != null)
+        return existing;
+      Entry entry = new Entry(id, getStats(id));
+      LocksRef newRef = new LocksRef(id, entry, myCollectedLocks);
+      boolean installed = ref == null ? myLocks.putIfAbsent(id, newRef) == null : myLocks.replace(id, ref, newRef);
+      if (installed)
+        return entry;
+    }
+  }
+
+  @NotNull
+  private File getId(@NotNull File dir) {
+    File canonical = myCanonicalDirs.get(dir);
+    if (canonical != null)
+      return canonical;
+    try {
+      canonical = dir.getCanonicalFile();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    myCanonicalDirs.putIfAbsent(dir, canonical);
+    return canonical;
+  }
+
+  @NotNull
+  private LockStats getStats(@NotNull File id) {
+    LockStats stats = myStats.get(id);
+    if (stats != null)
+      return stats;
+    stats = new LockStats();
+    LockStats existing = myStats.putIfAbsent(id, stats);
+    return existing != null ? existing : stats;
+  }
+
+  private void removeCollectedLocks() {
+    LocksRef ref;
+    while ((ref = (LocksRef) myCollectedLocks.poll()) != null) {
+      myLocks.remove(ref.myId, ref);
+    }
+  }
+
+
+  private static final class LocksRef extends WeakReference<Entry> {
+    private final File myId;
+
+    private LocksRef(@NotNull File id, @NotNull Entry entry, @NotNull ReferenceQueue<Entry> queue) {
+      super(entry, queue);
+      myId = id;
+    }
+  }
+
+
+  private final class Entry {
+    private final File myId;
+    private final LockStats myStats;
+    private final Lock myCreateLock;
+    private final Lock myWriteLock;
+    private final ReadWriteLock myRmLock;
+    private int myHolds; //guarded by this
+
+    private Entry(@NotNull File id, @NotNull LockStats stats) {
+      myId = id;
+      myStats = stats;
+      myCreateLock = new TimedLock(new ReentrantLock(true), LockType.CREATE);
+      myWriteLock = new TimedLock(new ReentrantLock(true), LockType.WRITE);
+      final ReentrantReadWriteLock rmLock = new ReentrantReadWriteLock(true);
+      final Lock readLock = new TimedLock(rmLock.readLock(), LockType.RM_READ);
+      final Lock writeLock = new TimedLock(rmLock.writeLock(), LockType.RM_WRITE);
+      myRmLock = new ReadWriteLock() {
+        @NotNull
+        public Lock readLock() {
+          return readLock;
+        }
+
+        @NotNull
+        public Lock writeLock() {
+          return writeLock;
+        }
+      };
+    }
+
+    private synchronized void acquired() {
+      if (myHolds++ == 0)
+        myLockedLocks.put(myId, this);
+    }
+
+    private synchronized void released() {
+      if (--myHolds == 0)
+        myLockedLocks.remove(myId, this);
+    }
+
+
+    private final class TimedLock implements Lock {
+      private final Lock myDelegate;
+      private final LockType myType;
+
+      private TimedLock(@NotNull Lock delegate, @NotNull LockType type) {
+        myDelegate = delegate;
+        myType = type;
+      }
+
+      /**
+       * Cannot be interrupted as required by the Lock contract,
+       * callers which can handle interruption should use lockInterruptibly()
+       */
+      public void lock() {
+        long start = System.currentTimeMillis();
+        boolean interrupted = false;
+        while (true) {
+          try {
+            if (awaitLock(start))
+              break;
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
+        }
+        if (interrupted)
+          Thread.currentThread().interrupt();
+        onLock(start);
+      }
+
+      public void lockInterruptibly() throws InterruptedException {
+        long start = System.currentTimeMillis();
+        while (!awaitLock(start)) {
+          //warning is logged, continue waiting
+        }
+        onLock(start);
+      }
+
+      public boolean tryLock() {
+        long start = System.currentTimeMillis();
+        if (!myDelegate.tryLock())
+          return false;
+        onLock(start);
+        return true;
+      }
+
+      public boolean tryLock(long time, @NotNull TimeUnit unit) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        if (!myDelegate.tryLock(time, unit))
+          return false;
+        onLock(start);
+        return true;
+      }
+
+      public void unlock() {
+        Map<Lock, long[]> holds = myThreadHolds.get();
+        long[] hold = holds.get(this);
+        if (hold != null && hold[0] == 1)
+          myStats.recordHold(myType, System.currentTimeMillis() - hold[1]);
+        myDelegate.unlock();
+        if (hold != null && --hold[0] == 0)
+          holds.remove(this);
+        released();
+      }
+
+      @NotNull
+      public Condition newCondition() {
+        return myDelegate.newCondition();
+      }
+
+      /**
+       * Waits for the lock for the configured timeout
+       * @return true if the lock is acquired, false if a timeout warning was logged
+       */
+      private boolean awaitLock(long start) throws InterruptedException {
+        long timeoutSeconds = Math.max(1, myConfig.getRepositoryLockTimeoutSeconds());
+        if (myDelegate.tryLock(timeoutSeconds, TimeUnit.SECONDS))
+          return true;
+        LOG.warn("Waiting for the " + myType + " lock of " + myId.getAbsolutePath() + " for " +
+                 (System.currentTimeMillis() - start) / 1000 + "s, thread: " + Thread.currentThread().getName());
+        return false;
+      }
+
+      private void onLock(long start) {
+        acquired();
+        long now = System.currentTimeMillis();
+        myStats.recordWait(myType, now - start);
+        Map<Lock, long[]> holds = myThreadHolds.get();
+        long[] hold = holds.get(this);
+        if (hold == null) {
+          hold = new long[] {0, now};
+          holds.put(this, hold);
+        }
+        hold[0]++;
+      }
+    }
+  }
+}
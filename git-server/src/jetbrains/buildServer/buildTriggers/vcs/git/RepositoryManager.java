@@ -23,6 +23,8 @@ import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 
 /**
@@ -42,10 +44,22 @@ public interface RepositoryManager extends MirrorManager {
   void closeRepository(@NotNull Repository repository);
 
   @NotNull
-  public Object getWriteLock(@NotNull File dir);
+  public Lock getWriteLock(@NotNull File dir);
 
   @NotNull
   public ReadWriteLock getRmLock(@NotNull File dir);
 
   void cleanLocksFor(@NotNull File dir);
+
+  /**
+   * Closes the cached repository in the given dir, should be called before
+   * the dir is removed. Repository which is in use is closed when released.
+   */
+  void evictRepository(@NotNull File dir);
+
+  /**
+   * @return wait and hold times of locks of repositories used since the start
+   */
+  @NotNull
+  Map<File, LockStats> getLockStats();
 }
@@ -17,7 +17,6 @@
 package jetbrains.buildServer.buildTriggers.vcs.git;
 
 import com.intellij.openapi.diagnostic.Logger;
-import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.vcs.VcsException;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.lib.RepositoryCache;
@@ -26,15 +25,11 @@ import org.eclipse.jgit.util.FS;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static jetbrains.buildServer.buildTriggers.vcs.git.GitServerUtil.getWrongUrlError;
 
@@ -48,27 +43,23 @@ public final class RepositoryManagerImpl implements RepositoryManager {
   private final MirrorManager myMirrorManager;
   private final long myExpirationTimeout;
   /**
-   * During repository creation jgit checks existence of some files and directories. When several threads
-   * try to create repository concurrently some of them could see it in inconsistent state. This map contains
-   * locks for repository creation, so only one thread at a time will create repository at give dir.
-   */
-  private final ConcurrentMap<File, Object> myCreateLocks = new ConcurrentHashMap<File, Object>();
-  /**
-   * In the past jgit has some concurrency problems, in order to fix them we do only one fetch at a time.
+   * Contains 3 kinds of locks for every repository:
+   * <ul>
+   * <li>create lock: during repository creation jgit checks existence of some files and directories. When several
+   * threads try to create repository concurrently some of them could see it in inconsistent state, so only one
+   * thread at a time creates repository in the given dir;</li>
+   * <li>write lock: in the past jgit has some concurrency problems, in order to fix them we do only one fetch at a time.
    * Also several concurrent fetches in single repository does not make sense since only one of them succeed.
-   * This map contains locks used for fetch and push operations.
+   * This lock is used for fetch and push operations;</li>
+   * <li>rm lock: during cleanup unused bare repositories are removed. Fetch/push/create operations should be done with
+   * read lock hold, remove operation is done with write lock hold, see {@link Cleanup}.</li>
+   * </ul>
    */
-  private final ConcurrentMap<File, Object> myWriteLocks = new ConcurrentHashMap<File, Object>();
-  /**
-   * During cleanup unused bare repositories are removed. This map contains rw locks for repository removal.
-   * Fetch/push/create operations should be done with read lock hold, remove operation is done with write lock hold.
-   * @see Cleanup
-   */
-  private final ConcurrentMap<File, ReadWriteLock> myRmLocks = new ConcurrentHashMap<File, ReadWriteLock>();
+  private final RepositoryLocks myLocks;
 
-  private final ConcurrentMap<File, Object> myUpdateLastUsedTimeLocks = new ConcurrentHashMap<File, Object>();
+  private final MirrorLastUsedTimes myLastUsedTimes;
 
-  private final AutoCloseRepositoryCache myRepositoryCache = new AutoCloseRepositoryCache();
+  private final AutoCloseRepositoryCache myRepositoryCache;
 
   private final ServerPluginConfig myConfig;
 
@@ -76,6 +67,17 @@ public final class RepositoryManagerImpl implements RepositoryManager {
     myConfig = config;
     myExpirationTimeout = config.getMirrorExpirationTimeoutMillis();
     myMirrorManager = mirrorManager;
+    myRepositoryCache = new AutoCloseRepositoryCache(config);
+    myLocks = new RepositoryLocks(config);
+    myLastUsedTimes = new MirrorLastUsedTimes(config, mirrorManager.getBaseMirrorsDir());
+  }
+
+
+  /**
+   * Saves last used times of mirrors, should be called before the process exits
+   */
+  public void dispose() {
+    myLastUsedTimes.flush();
   }
 
 
@@ -122,6 +124,11 @@ public final class RepositoryManagerImpl implements RepositoryManager {
 
 
   public long getLastUsedTime(@NotNull File dir) {
+    if (isDefaultMirrorDir(dir)) {
+      Long lastUsedTime = myLastUsedTimes.getLastUsedTime(dir);
+      if (lastUsedTime != null)
+        return lastUsedTime;
+    }
     return myMirrorManager.getLastUsedTime(dir);
   }
 
@@ -137,7 +144,7 @@ public final class RepositoryManagerImpl implements RepositoryManager {
   public Repository openRepository(@NotNull final File dir, @NotNull final URIish fetchUrl) throws VcsException {
     final URIish canonicalURI = getCanonicalURI(fetchUrl);
     if (isDefaultMirrorDir(dir))
-      updateLastUsedTime(dir);
+      myLastUsedTimes.markUsed(dir);
     Repository result = myRepositoryCache.get(RepositoryCache.FileKey.exact(dir, FS.DETECTED));
     if (result == null)
       return createRepository(dir, canonicalURI);
@@ -158,9 +165,13 @@ public final class RepositoryManagerImpl implements RepositoryManager {
     Lock rmLock = getRmLock(dir).readLock();
     rmLock.lock();
     try {
-      synchronized (getCreateLock(dir)) {
+      Lock createLock = getCreateLock(dir);
+      createLock.lock();
+      try {
         Repository result = GitServerUtil.getRepository(dir, fetchUrl);
         return myRepositoryCache.add(RepositoryCache.FileKey.exact(dir, FS.DETECTED), result);
+      } finally {
+        createLock.unlock();
       }
     } finally {
       rmLock.unlock();
@@ -168,26 +179,6 @@ public final class RepositoryManagerImpl implements RepositoryManager {
   }
 
 
-  private void updateLastUsedTime(@NotNull final File dir) {
-    Lock rmLock = getRmLock(dir).readLock();
-    try {
-      rmLock.lock();
-      synchronized (getUpdateLastUsedTimeLock(dir)) {
-        File timestamp = new File(dir, "timestamp");
-        if (!dir.exists() && !dir.mkdirs())
-          throw new IOException("Cannot create directory " + dir.getAbsolutePath());
-        if (!timestamp.exists())
-          timestamp.createNewFile();
-        FileUtil.writeFileAndReportErrors(timestamp, String.valueOf(System.currentTimeMillis()));
-      }
-    } catch (IOException e) {
-      LOG.error("Error while updating timestamp in " + dir.getAbsolutePath(), e);
-    } finally {
-      rmLock.unlock();
-    }
-  }
-
-
   private boolean isDefaultMirrorDir(@NotNull final File dir) {
     File baseDir = myMirrorManager.getBaseMirrorsDir();
     return baseDir.equals(dir.getParentFile());
@@ -195,66 +186,35 @@ public final class RepositoryManagerImpl implements RepositoryManager {
 
 
   @NotNull
-  private Object getUpdateLastUsedTimeLock(@NotNull File dir) {
-    try {
-      File canonical = dir.getCanonicalFile();
-      return getOrCreate(myUpdateLastUsedTimeLocks, canonical, new Object());
-    } catch (IOException e) {
-      throw new RuntimeException(e);
-    }
-  }
-
-
-  @NotNull
-  public Object getWriteLock(@NotNull final File dir) {
-    try {
-      File canonical = dir.getCanonicalFile();
-      return getOrCreate(myWriteLocks, canonical, new Object());
-    } catch (IOException e) {
-      throw new RuntimeException(e);
-    }
+  public Lock getWriteLock(@NotNull final File dir) {
+    return myLocks.getWriteLock(dir);
   }
 
 
   @NotNull
   public ReadWriteLock getRmLock(@NotNull final File dir) {
-    try {
-      File canonical = dir.getCanonicalFile();
-      return getOrCreate(myRmLocks, canonical, new ReentrantReadWriteLock());
-    } catch (IOException e) {
-      throw new RuntimeException(e);
-    }
+    return myLocks.getRmLock(dir);
   }
 
 
   @NotNull
-  public Object getCreateLock(File dir) {
-    try {
-      File canonical = dir.getCanonicalFile();
-      return getOrCreate(myCreateLocks, canonical, new Object());
-    } catch (IOException e) {
-      throw new RuntimeException(e);
-    }
+  public Lock getCreateLock(@NotNull File dir) {
+    return myLocks.getCreateLock(dir);
   }
 
 
   public void cleanLocksFor(@NotNull final File dir) {
-    try {
-      File canonical = dir.getCanonicalFile();
-      myWriteLocks.remove(canonical);
-      myCreateLocks.remove(canonical);
-      myRmLocks.remove(canonical);
-    } catch (IOException e) {
-      throw new RuntimeException(e);
-    }
+    evictRepository(dir);
+    myLocks.remove(dir);
+  }
+
+  public void evictRepository(@NotNull File dir) {
+    myRepositoryCache.evict(RepositoryCache.FileKey.exact(dir, FS.DETECTED));
   }
 
-  private <K, V> V getOrCreate(ConcurrentMap<K, V> map, K key, V value) {
-    V existing = map.putIfAbsent(key, value);
-    if (existing != null)
-      return existing;
-    else
-      return value;
+  @NotNull
+  public Map<File, LockStats> getLockStats() {
+    return myLocks.getStats();
   }
 
 
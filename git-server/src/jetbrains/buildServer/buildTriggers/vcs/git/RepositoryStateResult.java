@@ -0,0 +1,64 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import jetbrains.buildServer.vcs.RepositoryStateData;
+import jetbrains.buildServer.vcs.VcsException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Current state of a single VCS root computed by a batch request:
+ * either the state or the error occurred while computing it
+ */
+public final class RepositoryStateResult {
+
+  private final RepositoryStateData myState;
+  private final VcsException myError;
+
+  private RepositoryStateResult(@Nullable RepositoryStateData state, @Nullable VcsException error) {
+    myState = state;
+    myError = error;
+  }
+
+  @NotNull
+  public static RepositoryStateResult success(@NotNull RepositoryStateData state) {
+    return new RepositoryStateResult(state, null);
+  }
+
+  @NotNull
+  public static RepositoryStateResult error(@NotNull VcsException error) {
+    return new RepositoryStateResult(null, error);
+  }
+
+  @Nullable
+  public RepositoryStateData getState() {
+    return myState;
+  }
+
+  @Nullable
+  public VcsException getError() {
+    return myError;
+  }
+
+  @NotNull
+  public RepositoryStateData get() throws VcsException {
+    if (myError != null)
+      throw myError;
+    return myState;
+  }
+}
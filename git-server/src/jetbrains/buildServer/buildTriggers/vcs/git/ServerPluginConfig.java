@@ -34,6 +34,34 @@ public interface ServerPluginConfig extends PluginConfig {
    */
   int getStreamFileThresholdMb();
 
+  /**
+   * @return size of the jgit pack window in KB, 0 means the default size
+   */
+  int getPackedGitWindowSizeKb();
+
+  /**
+   * @return max memory used by jgit pack windows in MB, 0 means the default limit
+   */
+  int getPackedGitLimitMb();
+
+  /**
+   * @return max number of pack files kept open by jgit, 0 means the default limit
+   */
+  int getPackedGitOpenFiles();
+
+  /**
+   * @return size of the jgit delta base cache in MB, 0 means the default size
+   */
+  int getDeltaBaseCacheLimitMb();
+
+  boolean isPackedGitMMAP();
+
+  /**
+   * @return true if jgit window cache settings which are not set explicitly
+   * should be computed from max heap size and the number of mirrors
+   */
+  boolean isWindowCacheAutoSize();
+
   int getFetchTimeout();
 
   int getPatchProcessIdleTimeoutSeconds();
@@ -53,6 +81,35 @@ public interface ServerPluginConfig extends PluginConfig {
 
   boolean isSeparateProcessForPatch();
 
+  /**
+   * @return true if fetch in a separate process should reuse long-living fetch processes
+   */
+  boolean isFetcherDaemonEnabled();
+
+  int getFetcherDaemonWorkers();
+
+  int getFetcherDaemonIdleTimeoutSeconds();
+
+  int getFetcherDaemonMaxJobs();
+
+  /**
+   * @return max number of fetches running simultaneously, non-positive value means no limit,
+   * fetches are not limited by default
+   */
+  int getFetchMaxConcurrency();
+
+  /**
+   * @return max number of fetches from a single host running simultaneously, non-positive value means no limit,
+   * fetches are not limited by default
+   */
+  int getFetchMaxConcurrencyPerHost();
+
+  /**
+   * @return time in seconds after which a waiting fetch is promoted to the next
+   * {@link FetchPriority}, non-positive value disables promotion
+   */
+  int getFetchPriorityAgingSeconds();
+
   boolean isRunNativeGC();
 
   boolean isRunJGitGC();
@@ -77,6 +134,11 @@ public interface ServerPluginConfig extends PluginConfig {
 
   long getMirrorExpirationTimeoutMillis();
 
+  /**
+   * @return how often last used times of mirrors are saved to disk
+   */
+  int getMirrorLastUsedTimeFlushIntervalSeconds();
+
   @NotNull
   List<String> getProxySettingsForSeparateProcess();
 
@@ -108,6 +170,68 @@ public interface ServerPluginConfig extends PluginConfig {
 
   int getConnectionRetryAttempts();
 
+  /**
+   * @return for how long remote refs of a fetch url are reused between VCS roots,
+   * non-positive value means only concurrent requests are shared
+   */
+  int getRemoteRefsCacheTtlSeconds();
+
+  int getCurrentStateThreads();
+
+  int getCurrentStatePerHostThreads();
+
+  /**
+   * @return max time in seconds to compute current states of many VCS roots at once,
+   * roots whose state is not computed in time get an error
+   */
+  int getCurrentStateTimeoutSeconds();
+
+  /**
+   * @return max number of threads computing changes of commits during changes collection,
+   * 1 means commits are processed one by one in the collecting thread
+   */
+  int getCollectChangesThreads();
+
+  /**
+   * @return max number of commits reported by a single streaming changes collection,
+   * non-positive value means no limit. Changes returned as a list are never limited.
+   */
+  int getCollectChangesMaxCommits();
+
+  /**
+   * @return max estimated size in bytes of changes reported by a single
+   * streaming changes collection, non-positive value (default) means no limit.
+   * Changes returned as a list are never limited.
+   */
+  long getCollectChangesMaxMemory();
+
+  /**
+   * @return max size of the changed paths cache of a single mirror in megabytes,
+   * non-positive value disables the cache
+   */
+  int getChangedPathsCacheMaxSizeMb();
+
+  /**
+   * @return how long a repository stays open after its last usage,
+   * non-positive value means repository is closed right after usage
+   */
+  int getRepositoryCacheIdleTimeoutSeconds();
+
+  /**
+   * @return max number of repositories kept open while they are not used
+   */
+  int getRepositoryCacheMaxIdleRepositories();
+
+  /**
+   * @return max estimated number of files kept open by repositories which are not used
+   */
+  int getRepositoryCacheMaxOpenFiles();
+
+  /**
+   * @return time after which a thread waiting for a repository lock logs a warning
+   */
+  int getRepositoryLockTimeoutSeconds();
+
   boolean ignoreFetchedCommits();
 
   @Nullable
@@ -128,7 +252,4 @@ public interface ServerPluginConfig extends PluginConfig {
 
   @NotNull
   String getHttpConnectionSslProtocol();
-
-  @NotNull
-  List<String> getAmazonHosts();
 }
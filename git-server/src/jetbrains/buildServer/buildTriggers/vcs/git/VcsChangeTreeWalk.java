@@ -56,6 +56,16 @@ public class VcsChangeTreeWalk extends TreeWalk {
 
   @Nullable
   VcsChange getVcsChange(String currentVersion, String parentVersion) {
+    final ChangedPathsCache.ChangedPath changedPath = getChangedPath();
+    return changedPath != null ? changedPath.toVcsChange(currentVersion, parentVersion) : null;
+  }
+
+
+  /**
+   * @return change of the current path or null if path is not changed
+   */
+  @Nullable
+  ChangedPathsCache.ChangedPath getChangedPath() {
     final String path = getPathString();
     final ChangeType gitChangeType = classifyChange();
 
@@ -66,8 +76,7 @@ public class VcsChangeTreeWalk extends TreeWalk {
     if (type == VcsChange.Type.NOT_CHANGED) {
       return null;
     } else {
-      String description = gitChangeType == ChangeType.FILE_MODE_CHANGED ? "File mode changed" : null;
-      return new VcsChange(type, description, path, path, parentVersion, currentVersion);
+      return new ChangedPathsCache.ChangedPath(type, path, gitChangeType == ChangeType.FILE_MODE_CHANGED);
     }
   }
 
@@ -54,6 +54,7 @@ public class GitCommitsInfoBuilder implements CommitsInfoBuilder, GitServerExten
                              @NotNull final CheckoutRules rules,
                              @NotNull final CommitsConsumer consumer) throws VcsException {
     final OperationContext ctx = myVcs.createContext(root, "collecting commits");
+    ctx.setFetchPriority(FetchPriority.COMMIT_INFO);
     try {
       //fetch service is called before, so we may re-use results of it to avoid extra CPU waste
       final RepositoryStateData currentStateWithTags = myFetchService.getOrCreateRepositoryState(ctx);
@@ -38,17 +38,17 @@ public class GitPatchProcess {
     Map<String, String> properties = VcsUtil.stringToProperties(GitServerUtil.readInput());
     GitPatchProcessSettings settings = new GitPatchProcessSettings(properties);
     GitServerUtil.configureInternalProperties(settings.getInternalProperties());
-    GitServerUtil.configureStreamFileThreshold(Integer.MAX_VALUE);
     GitServerUtil.configureExternalProcessLogger(settings.isDebugEnabled());
 
     PluginConfigImpl config = new PluginConfigImpl(new ConstantCachePaths(settings.getGitCachesDir()));
-    RepositoryManager repositoryManager = new RepositoryManagerImpl(config, new MirrorManagerImpl(config, new HashCalculatorImpl()));
+    GitServerUtil.configureWindowCache(config, Integer.MAX_VALUE, 1);
+    RepositoryManagerImpl repositoryManager = new RepositoryManagerImpl(config, new MirrorManagerImpl(config, new HashCalculatorImpl()));
     GitMapFullPath mapFullPath = new GitMapFullPath(config);
     VcsRootSshKeyManager sshKeyManager = new ConstantSshKeyManager(settings.getKeyBytes());
     TransportFactory transportFactory = new TransportFactoryImpl(config, sshKeyManager);
     FetcherProperties fetcherProperties = new FetcherProperties(config);
     FetchCommand fetchCommand = new FetchCommandImpl(config, transportFactory, fetcherProperties, sshKeyManager);
-    CommitLoader commitLoader = new CommitLoaderImpl(repositoryManager, fetchCommand, mapFullPath);
+    CommitLoader commitLoader = new CommitLoaderImpl(config, repositoryManager, fetchCommand, mapFullPath);
 
     OperationContext context = new OperationContext(commitLoader, repositoryManager, settings.getRoot(), "build patch", GitProgress.NO_OP);
     OutputStream fos = new BufferedOutputStream(new FileOutputStream(settings.getPatchFile()));
@@ -80,6 +80,7 @@ public class GitPatchProcess {
       System.exit(1);
     } finally {
       fos.close();
+      repositoryManager.dispose();
     }
   }
 
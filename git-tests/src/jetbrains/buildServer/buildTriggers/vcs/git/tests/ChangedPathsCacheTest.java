@@ -0,0 +1,211 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git.tests;
+
+import jetbrains.buildServer.TempFiles;
+import jetbrains.buildServer.buildTriggers.vcs.git.ChangedPathsCache;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.vcs.VcsChange;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.RepositoryBuilder;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static jetbrains.buildServer.buildTriggers.vcs.git.tests.GitTestUtil.dataFile;
+import static org.testng.AssertJUnit.*;
+
+@Test
+public class ChangedPathsCacheTest {
+
+  private TempFiles myTempFiles;
+  private ServerPaths myServerPaths;
+  private File myRepositoryDir;
+  private RevCommit myCommit1;
+  private RevCommit myCommit2;
+  private RevCommit myCommit3;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    myTempFiles = new TempFiles();
+    myServerPaths = new ServerPaths(myTempFiles.createTempDir().getAbsolutePath());
+    myRepositoryDir = myTempFiles.createTempDir();
+    Repository r = new RepositoryBuilder().setGitDir(dataFile("repo.git")).build();
+    RevWalk walk = new RevWalk(r);
+    try {
+      myCommit1 = walk.parseCommit(ObjectId.fromString("97442a720324a0bd092fb9235f72246dc8b345bc"));
+      myCommit2 = walk.parseCommit(ObjectId.fromString("ad4528ed5c84092fdbe9e0502163cf8d6e6141e7"));
+      myCommit3 = walk.parseCommit(ObjectId.fromString("3b9fbfbb43e7edfad018b482e15e7f93cca4e69f"));
+    } finally {
+      walk.release();
+      r.close();
+    }
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    myTempFiles.cleanup();
+  }
+
+
+  public void entries_should_survive_reload() {
+    ChangedPathsCache cache = createCache(1);
+    cache.put(myRepositoryDir, myCommit1, paths("dir/a", 3));
+    cache.put(myRepositoryDir, myCommit2, paths("dir/b", 2));
+
+    ChangedPathsCache reloaded = createCache(1);
+    assertEquals(describe(paths("dir/a", 3)), describe(reloaded.get(myRepositoryDir, myCommit1)));
+    assertEquals(describe(paths("dir/b", 2)), describe(reloaded.get(myRepositoryDir, myCommit2)));
+    assertNull(reloaded.get(myRepositoryDir, myCommit3));
+  }
+
+
+  public void cache_size_should_be_limited() {
+    ChangedPathsCache cache = createCache(1);
+    cache.put(myRepositoryDir, myCommit1, largePaths("a"));
+    cache.put(myRepositoryDir, myCommit2, largePaths("b"));
+    cache.put(myRepositoryDir, myCommit3, largePaths("c"));
+
+    assertNull(cache.get(myRepositoryDir, myCommit1));
+    assertNotNull(cache.get(myRepositoryDir, myCommit2));
+    assertNotNull(cache.get(myRepositoryDir, myCommit3));
+    assertTrue(getCacheSize() <= 1024 * 1024);
+  }
+
+
+  public void least_recently_used_entry_should_be_evicted() {
+    ChangedPathsCache cache = createCache(1);
+    cache.put(myRepositoryDir, myCommit1, largePaths("a"));
+    cache.put(myRepositoryDir, myCommit2, largePaths("b"));
+    assertNotNull(cache.get(myRepositoryDir, myCommit1));
+    cache.put(myRepositoryDir, myCommit3, largePaths("c"));
+
+    assertNotNull(cache.get(myRepositoryDir, myCommit1));
+    assertNull(cache.get(myRepositoryDir, myCommit2));
+    assertNotNull(cache.get(myRepositoryDir, myCommit3));
+  }
+
+
+  public void access_order_should_survive_reload() {
+    ChangedPathsCache cache = createCache(1);
+    cache.put(myRepositoryDir, myCommit1, largePaths("a"));
+    cache.put(myRepositoryDir, myCommit2, largePaths("b"));
+    assertNotNull(cache.get(myRepositoryDir, myCommit1));
+
+    ChangedPathsCache reloaded = createCache(1);
+    reloaded.put(myRepositoryDir, myCommit3, largePaths("c"));
+    assertNotNull(reloaded.get(myRepositoryDir, myCommit1));
+    assertNull(reloaded.get(myRepositoryDir, myCommit2));
+    assertNotNull(reloaded.get(myRepositoryDir, myCommit3));
+  }
+
+
+  public void entries_should_not_be_stored_in_separate_files() {
+    ChangedPathsCache cache = createCache(1);
+    cache.put(myRepositoryDir, myCommit1, paths("dir/a", 3));
+    cache.put(myRepositoryDir, myCommit2, paths("dir/b", 2));
+    cache.put(myRepositoryDir, myCommit3, paths("dir/c", 1));
+
+    File[] files = new File(myRepositoryDir, "teamcity-changed-paths").listFiles();
+    assertNotNull(files);
+    assertEquals(1, files.length);
+    assertEquals(describe(paths("dir/c", 1)), describe(cache.get(myRepositoryDir, myCommit3)));
+  }
+
+
+  public void incomplete_entry_should_be_skipped_on_reload() throws Exception {
+    ChangedPathsCache cache = createCache(1);
+    cache.put(myRepositoryDir, myCommit1, paths("dir/a", 3));
+    cache.put(myRepositoryDir, myCommit2, paths("dir/b", 2));
+    File[] files = new File(myRepositoryDir, "teamcity-changed-paths").listFiles();
+    assertNotNull(files);
+    RandomAccessFile segment = new RandomAccessFile(files[0], "rw");
+    try {
+      segment.setLength(segment.length() - 1);
+    } finally {
+      segment.close();
+    }
+
+    ChangedPathsCache reloaded = createCache(1);
+    assertEquals(describe(paths("dir/a", 3)), describe(reloaded.get(myRepositoryDir, myCommit1)));
+    assertNull(reloaded.get(myRepositoryDir, myCommit2));
+    reloaded.put(myRepositoryDir, myCommit2, paths("dir/b", 2));
+    assertEquals(describe(paths("dir/b", 2)), describe(reloaded.get(myRepositoryDir, myCommit2)));
+  }
+
+
+  @NotNull
+  private ChangedPathsCache createCache(int maxSizeMb) {
+    return new ChangedPathsCache(new PluginConfigBuilder(myServerPaths).withChangedPathsCacheMaxSizeMb(maxSizeMb).build());
+  }
+
+
+  private long getCacheSize() {
+    long size = 0;
+    File[] files = new File(myRepositoryDir, "teamcity-changed-paths").listFiles();
+    if (files != null) {
+      for (File f : files) {
+        size += f.length();
+      }
+    }
+    return size;
+  }
+
+
+  /**
+   * @return paths taking about 400Kb in the cache
+   */
+  @NotNull
+  private static List<ChangedPathsCache.ChangedPath> largePaths(@NotNull String prefix) {
+    StringBuilder dir = new StringBuilder(prefix);
+    while (dir.length() < 100) {
+      dir.append("/dir");
+    }
+    return paths(dir.toString(), 4000);
+  }
+
+
+  @NotNull
+  private static List<ChangedPathsCache.ChangedPath> paths(@NotNull String prefix, int count) {
+    List<ChangedPathsCache.ChangedPath> result = new ArrayList<ChangedPathsCache.ChangedPath>();
+    for (int i = 0; i < count; i++) {
+      result.add(new ChangedPathsCache.ChangedPath(VcsChange.Type.CHANGED, prefix + "/file" + i, false));
+    }
+    return result;
+  }
+
+
+  @NotNull
+  private static List<String> describe(@NotNull List<ChangedPathsCache.ChangedPath> paths) {
+    List<String> result = new ArrayList<String>();
+    for (ChangedPathsCache.ChangedPath path : paths) {
+      VcsChange change = path.toVcsChange("2", "1");
+      result.add(change.getType() + " " + change.getRelativeFileName());
+    }
+    return result;
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git.tests;
+
+import jetbrains.buildServer.buildTriggers.vcs.git.CheckoutRulesTreeFilter;
+import jetbrains.buildServer.vcs.CheckoutRules;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.RepositoryBuilder;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static jetbrains.buildServer.buildTriggers.vcs.git.tests.GitTestUtil.dataFile;
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNull;
+
+@Test
+public class CheckoutRulesTreeFilterTest {
+
+  //tree contains dir/subdir/b/f1, dir/subdir/c/f2, dir/subdir/d/f3, dir1/..., other files in the root
+  private static final String COMMIT = "27de3d118ca320d3a8a08320ff05aa0567996590";
+  private Repository myRepository;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    myRepository = new RepositoryBuilder().setGitDir(dataFile("repo.git")).build();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    myRepository.close();
+  }
+
+
+  public void rules_including_everything_should_not_create_filter() {
+    assertNull(CheckoutRulesTreeFilter.create(new CheckoutRules("")));
+    assertNull(CheckoutRulesTreeFilter.create(new CheckoutRules("+:.")));
+  }
+
+
+  public void exclude_inside_include() throws Exception {
+    assertEquals(Arrays.asList("dir/subdir/b/f1", "dir/subdir/d/f3"),
+                 listFiles("+:dir\n-:dir/subdir/c"));
+  }
+
+
+  public void include_inside_exclude() throws Exception {
+    List<String> files = listFiles("+:.\n-:dir\n+:dir/subdir/d");
+    assertEquals(Arrays.asList("dir/subdir/d/f3"), filter(files, "dir/"));
+    assertEquals(Arrays.asList("dir1/file1.txt", "dir1/file3.txt", "dir1/subdir/file2.txt"), filter(files, "dir1/"));
+  }
+
+
+  public void include_rules_should_ignore_case() throws Exception {
+    assertEquals(Arrays.asList("dir/subdir/b/f1", "dir/subdir/c/f2", "dir/subdir/d/f3"),
+                 listFiles("+:DIR/Subdir"));
+  }
+
+
+  public void exclude_rules_should_not_ignore_case() throws Exception {
+    assertEquals(Arrays.asList("dir/subdir/b/f1", "dir/subdir/c/f2", "dir/subdir/d/f3"),
+                 listFiles("+:dir\n-:DIR/subdir/c"));
+    assertEquals(Arrays.asList("dir/subdir/b/f1", "dir/subdir/d/f3"),
+                 listFiles("+:DIR\n-:dir/subdir/c"));
+  }
+
+
+  @NotNull
+  private List<String> listFiles(@NotNull String rules) throws IOException {
+    RevWalk revWalk = new RevWalk(myRepository);
+    TreeWalk tw = new TreeWalk(myRepository);
+    try {
+      tw.addTree(revWalk.parseCommit(ObjectId.fromString(COMMIT)).getTree());
+      tw.setRecursive(true);
+      tw.setFilter(CheckoutRulesTreeFilter.create(new CheckoutRules(rules)));
+      List<String> result = new ArrayList<String>();
+      while (tw.next()) {
+        result.add(tw.getPathString());
+      }
+      return result;
+    } finally {
+      tw.release();
+      revWalk.release();
+    }
+  }
+
+
+  @NotNull
+  private static List<String> filter(@NotNull List<String> files, @NotNull String prefix) {
+    List<String> result = new ArrayList<String>();
+    for (String file : files) {
+      if (file.startsWith(prefix))
+        result.add(file);
+    }
+    return result;
+  }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git.tests;
+
+import jetbrains.buildServer.TempFiles;
+import jetbrains.buildServer.buildTriggers.vcs.git.CommitGraph;
+import jetbrains.buildServer.buildTriggers.vcs.git.GitVcsSupport;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.vcs.CheckoutRules;
+import jetbrains.buildServer.vcs.ModificationData;
+import jetbrains.buildServer.vcs.RepositoryStateData;
+import jetbrains.buildServer.vcs.VcsChange;
+import jetbrains.buildServer.vcs.VcsRoot;
+import org.eclipse.jgit.lib.*;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+import static jetbrains.buildServer.buildTriggers.vcs.git.tests.GitSupportBuilder.gitSupport;
+import static jetbrains.buildServer.buildTriggers.vcs.git.tests.GitTestUtil.copyRepository;
+import static jetbrains.buildServer.buildTriggers.vcs.git.tests.GitTestUtil.dataFile;
+import static jetbrains.buildServer.buildTriggers.vcs.git.tests.VcsRootBuilder.vcsRoot;
+import static org.testng.AssertJUnit.*;
+
+@Test
+public class CommitGraphTest {
+
+  private TempFiles myTempFiles;
+  private File myRemoteRepositoryDir;
+  private ServerPaths myServerPaths;
+  private VcsRoot myRoot;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    myTempFiles = new TempFiles();
+    myRemoteRepositoryDir = myTempFiles.createTempDir();
+    copyRepository(dataFile("repo.git"), myRemoteRepositoryDir);
+    myServerPaths = new ServerPaths(myTempFiles.createTempDir().getAbsolutePath());
+    myRoot = vcsRoot().withFetchUrl(myRemoteRepositoryDir.getAbsolutePath()).withBranch("master").build();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    myTempFiles.cleanup();
+  }
+
+
+  public void changes_skipped_by_path_filters_should_match_full_walk() throws Exception {
+    GitSupportBuilder builder = gitSupport().withServerPaths(myServerPaths);
+    GitVcsSupport git = builder.build();
+    //the graph is created by the first fetch, filters are computed for commits fetched later
+    setRemoteMaster("97442a720324a0bd092fb9235f72246dc8b345bc");
+    RepositoryStateData state1 = git.getCurrentState(myRoot);
+    git.getCollectChangesPolicy().collectChanges(myRoot, RepositoryStateData.createSingleVersionState("2276eaf76a658f96b5cf3eb25f3e1fda90f6b653"), state1, CheckoutRules.DEFAULT);
+    setRemoteMaster("465ad9f630e451b9f2b782ffb09804c6a98c4bb9");
+    RepositoryStateData state2 = git.getCurrentState(myRoot);
+
+    CheckoutRules rules = new CheckoutRules("+:dir");
+    List<String> filtered = describe(git.getCollectChangesPolicy().collectChanges(myRoot, state1, state2, rules));
+
+    File mirror = builder.getRepositoryManager().getMappings().values().iterator().next();
+    File filters = new File(mirror, "teamcity-changed-path-filters");
+    assertTrue("Changed path filters are not computed", filters.isFile());
+    assertTrue(filters.delete());
+
+    List<String> full = describe(gitSupport().withServerPaths(myServerPaths).build().getCollectChangesPolicy().collectChanges(myRoot, state1, state2, rules));
+    assertFalse(full.isEmpty());
+    assertEquals(full, filtered);
+  }
+
+
+  public void merge_base_of_criss_cross_merges() throws Exception {
+    Repository r = createRepository();
+    try {
+      ObjectId root = commit(r, 1);
+      ObjectId a1 = commit(r, 2, root);
+      ObjectId b1 = commit(r, 3, root);
+      ObjectId a2 = commit(r, 4, a1, b1);
+      ObjectId b2 = commit(r, 5, b1, a1);
+      ObjectId unrelated = commit(r, 6);
+
+      CommitGraph graph = new CommitGraph(r.getDirectory());
+      ObjectId base = graph.getMergeBase(r, a2, b2);
+      assertTrue("Unexpected merge base " + base, a1.equals(base) || b1.equals(base));
+      assertEquals(root, graph.getMergeBase(r, a1, b1));
+      assertEquals(a1, graph.getMergeBase(r, a1, a2));
+      assertEquals(a2, graph.getMergeBase(r, a2, a2));
+      assertNull(graph.getMergeBase(r, a2, unrelated));
+    } finally {
+      r.close();
+    }
+  }
+
+
+  public void ancestry_across_generations() throws Exception {
+    Repository r = createRepository();
+    try {
+      ObjectId root = commit(r, 1);
+      List<ObjectId> main = new ArrayList<ObjectId>();
+      ObjectId tip = root;
+      for (int i = 0; i < 10; i++) {
+        tip = commit(r, 10 + i, tip);
+        main.add(tip);
+      }
+      ObjectId side = commit(r, 100, root);
+      ObjectId merge = commit(r, 101, tip, side);
+
+      CommitGraph graph = new CommitGraph(r.getDirectory());
+      assertTrue(graph.isAncestor(r, side, merge));
+      assertTrue(graph.isAncestor(r, main.get(4), merge));
+      assertTrue(graph.isAncestor(r, root, merge));
+      assertTrue(graph.isAncestor(r, tip, tip));
+      assertFalse(graph.isAncestor(r, side, tip));
+      assertFalse(graph.isAncestor(r, merge, main.get(4)));
+      assertFalse(graph.isAncestor(r, main.get(0), side));
+      assertEquals(root, graph.getMergeBase(r, side, tip));
+    } finally {
+      r.close();
+    }
+  }
+
+
+  public void graph_should_be_appended_and_reloaded() throws Exception {
+    Repository r = createRepository();
+    try {
+      List<ObjectId> commits = chain(r, 5);
+      File file = new File(r.getDirectory(), "teamcity-commit-graph");
+
+      CommitGraph graph = new CommitGraph(r.getDirectory());
+      assertTrue(graph.isAncestor(r, commits.get(0), commits.get(2)));
+      long length = file.length();
+      assertTrue(length > 0);
+      assertTrue(graph.isAncestor(r, commits.get(0), commits.get(4)));
+      long appendedLength = file.length();
+      assertTrue(appendedLength > length);
+
+      CommitGraph reloaded = new CommitGraph(r.getDirectory());
+      assertTrue(reloaded.isAncestor(r, commits.get(1), commits.get(4)));
+      assertFalse(reloaded.isAncestor(r, commits.get(4), commits.get(1)));
+      assertEquals(commits.get(3), reloaded.getMergeBase(r, commits.get(3), commits.get(4)));
+      assertEquals("Commits should not be indexed again", appendedLength, file.length());
+    } finally {
+      r.close();
+    }
+  }
+
+
+  public void partial_record_should_be_truncated() throws Exception {
+    Repository r = createRepository();
+    try {
+      List<ObjectId> commits = chain(r, 3);
+      File file = new File(r.getDirectory(), "teamcity-commit-graph");
+      assertTrue(new CommitGraph(r.getDirectory()).isAncestor(r, commits.get(0), commits.get(2)));
+      long length = file.length();
+
+      //interrupted append
+      FileOutputStream out = new FileOutputStream(file, true);
+      try {
+        out.write(new byte[]{1, 2, 3, 4, 5, 6, 7});
+      } finally {
+        out.close();
+      }
+
+      CommitGraph reloaded = new CommitGraph(r.getDirectory());
+      assertTrue(reloaded.isAncestor(r, commits.get(0), commits.get(2)));
+      assertEquals(length, file.length());
+    } finally {
+      r.close();
+    }
+  }
+
+
+  @NotNull
+  private Repository createRepository() throws IOException {
+    Repository r = new RepositoryBuilder().setBare().setGitDir(myTempFiles.createTempDir()).build();
+    r.create(true);
+    return r;
+  }
+
+
+  @NotNull
+  private static List<ObjectId> chain(@NotNull Repository r, int length) throws IOException {
+    List<ObjectId> result = new ArrayList<ObjectId>();
+    ObjectId parent = null;
+    for (int i = 0; i < length; i++) {
+      parent = parent == null ? commit(r, i) : commit(r, i, parent);
+      result.add(parent);
+    }
+    return result;
+  }
+
+
+  /**
+   * Creates a commit with an empty tree, time is used as a commit message to make commits unique
+   */
+  @NotNull
+  private static ObjectId commit(@NotNull Repository r, int time, @NotNull ObjectId... parents) throws IOException {
+    ObjectInserter inserter = r.newObjectInserter();
+    try {
+      PersonIdent ident = new PersonIdent("user", "user@example.com", new Date(1000L * (1400000000 + time)), TimeZone.getTimeZone("UTC"));
+      CommitBuilder commit = new CommitBuilder();
+      commit.setTreeId(inserter.insert(new TreeFormatter()));
+      commit.setParentIds(parents);
+      commit.setAuthor(ident);
+      commit.setCommitter(ident);
+      commit.setMessage("commit " + time);
+      ObjectId result = inserter.insert(commit);
+      inserter.flush();
+      return result;
+    } finally {
+      inserter.release();
+    }
+  }
+
+
+  private void setRemoteMaster(@NotNull String commit) throws IOException {
+    Repository r = new RepositoryBuilder().setGitDir(myRemoteRepositoryDir).build();
+    try {
+      RefUpdate update = r.updateRef("refs/heads/master");
+      update.setNewObjectId(ObjectId.fromString(commit));
+      update.setForceUpdate(true);
+      update.forceUpdate();
+    } finally {
+      r.close();
+    }
+  }
+
+
+  @NotNull
+  private static List<String> describe(@NotNull List<ModificationData> changes) {
+    List<String> result = new ArrayList<String>();
+    for (ModificationData m : changes) {
+      StringBuilder sb = new StringBuilder(m.getVersion()).append(':');
+      for (VcsChange change : m.getChanges()) {
+        sb.append(' ').append(change.getType()).append(' ').append(change.getRelativeFileName());
+      }
+      result.add(sb.toString());
+    }
+    return result;
+  }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git.tests;
+
+import jetbrains.buildServer.TempFiles;
+import jetbrains.buildServer.buildTriggers.vcs.git.*;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.vcs.VcsException;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.RepositoryBuilder;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.URIish;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Tests merging of concurrent fetches into the same repository
+ */
+@Test
+public class FetchCoalescerTest {
+
+  private static final String A = "refs/heads/a";
+  private static final String B = "refs/heads/b";
+  private static final String C = "refs/heads/c";
+
+  private TempFiles myTempFiles;
+  private ExecutorService myExecutor;
+  private RecordingFetchCommand myFetchCommand;
+  private CommitLoaderImpl myCommitLoader;
+  private Repository myRepository;
+  private URIish myFetchUrl;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    myTempFiles = new TempFiles();
+    myExecutor = Executors.newCachedThreadPool();
+    myFetchCommand = new RecordingFetchCommand();
+    GitSupportBuilder builder = GitSupportBuilder.gitSupport()
+      .withServerPaths(new ServerPaths(myTempFiles.createTempDir().getAbsolutePath()))
+      .withFetchCommand(myFetchCommand);
+    builder.build();
+    myCommitLoader = (CommitLoaderImpl) builder.getCommitLoader();
+    myRepository = new RepositoryBuilder().setBare().setGitDir(myTempFiles.createTempDir()).build();
+    myRepository.create(true);
+    myFetchUrl = new URIish("git://some.org/repository.git");
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    myExecutor.shutdownNow();
+    myRepository.close();
+    myTempFiles.cleanup();
+  }
+
+
+  public void requests_arriving_during_fetch_should_be_merged() throws Exception {
+    Future<?> first = startFetchBlockingOthers(A);
+    Future<?> second = startFetch(B);
+    Future<?> third = startFetch(C);
+    waitForMergedRequests(1);
+
+    myFetchCommand.release();
+    first.get(10, TimeUnit.SECONDS);
+    second.get(10, TimeUnit.SECONDS);
+    third.get(10, TimeUnit.SECONDS);
+
+    //the leader of the second batch fetches refspecs of both requests
+    List<Set<String>> fetches = myFetchCommand.getFetches();
+    assertEquals(2, fetches.size());
+    assertEquals(set(A), fetches.get(0));
+    assertEquals(set(B, C), fetches.get(1));
+  }
+
+
+  public void error_of_merged_fetch_should_be_reported_to_all_requests() throws Exception {
+    myFetchCommand.failMergedFetch("Connection refused");
+    Future<?> first = startFetchBlockingOthers(A);
+    Future<?> second = startFetch(B);
+    Future<?> third = startFetch(C);
+    waitForMergedRequests(1);
+
+    myFetchCommand.release();
+    first.get(10, TimeUnit.SECONDS);
+    assertFailed(second, "Connection refused");
+    assertFailed(third, "Connection refused");
+    //the error is not caused by refspecs, so requests don't retry separately
+    assertEquals(2, myFetchCommand.getFetches().size());
+  }
+
+
+  public void request_should_fetch_separately_when_merged_fetch_fails_because_of_other_request() throws Exception {
+    myFetchCommand.failFetchOf(C, "Remote does not have " + C + " available for fetch.");
+    Future<?> first = startFetchBlockingOthers(A);
+    Future<?> second = startFetch(B);
+    Future<?> third = startFetch(C);
+    waitForMergedRequests(1);
+
+    myFetchCommand.release();
+    first.get(10, TimeUnit.SECONDS);
+    second.get(10, TimeUnit.SECONDS);
+    assertFailed(third, "Remote does not have " + C);
+
+    List<Set<String>> fetches = myFetchCommand.getFetches();
+    assertEquals(3, fetches.size());
+    assertEquals(set(B, C), fetches.get(1));
+    assertEquals(set(B), fetches.get(2));
+  }
+
+
+  @NotNull
+  private Future<?> startFetchBlockingOthers(@NotNull String ref) throws Exception {
+    Future<?> result = startFetch(ref);
+    myFetchCommand.awaitBlockedFetch();
+    return result;
+  }
+
+
+  @NotNull
+  private Future<?> startFetch(@NotNull final String ref) {
+    return myExecutor.submit(new Callable<Void>() {
+      public Void call() throws Exception {
+        RefSpec spec = new RefSpec(ref + ":" + ref).setForceUpdate(true);
+        myCommitLoader.fetch(myRepository, myFetchUrl, singletonList(spec), new FetchSettings(new AuthSettings(new HashMap<String, String>())));
+        return null;
+      }
+    });
+  }
+
+
+  private void waitForMergedRequests(long count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (myCommitLoader.getMergedFetchRequestsCount() < count) {
+      if (System.currentTimeMillis() > deadline)
+        fail("Requests are not merged");
+      Thread.sleep(10);
+    }
+  }
+
+
+  private static void assertFailed(@NotNull Future<?> fetch, @NotNull String expectedError) throws Exception {
+    try {
+      fetch.get(10, TimeUnit.SECONDS);
+      fail("Fetch error is not reported");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof VcsException);
+      assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains(expectedError));
+    }
+  }
+
+
+  @NotNull
+  private static Set<String> set(@NotNull String... refs) {
+    return new HashSet<String>(asList(refs));
+  }
+
+
+  /**
+   * Records refs of every fetch, the first fetch waits for the {@link #release()} call
+   */
+  private static class RecordingFetchCommand implements FetchCommand {
+    private final List<Set<String>> myFetches = new ArrayList<Set<String>>();
+    private final CountDownLatch myBlockedFetchStarted = new CountDownLatch(1);
+    private final CountDownLatch myRelease = new CountDownLatch(1);
+    private String myMergedFetchError;
+    private String myFailingRef;
+    private String myFailingRefError;
+
+    @NotNull
+    public FetchRefUpdates fetch(@NotNull Repository db,
+                                 @NotNull URIish fetchURI,
+                                 @NotNull Collection<RefSpec> refspecs,
+                                 @NotNull FetchSettings settings) throws VcsException {
+      Set<String> refs = new HashSet<String>();
+      for (RefSpec spec : refspecs) {
+        refs.add(spec.getSource());
+      }
+      boolean first;
+      synchronized (myFetches) {
+        first = myFetches.isEmpty();
+        myFetches.add(refs);
+      }
+      if (first) {
+        myBlockedFetchStarted.countDown();
+        try {
+          myRelease.await();
+        } catch (InterruptedException e) {
+          throw new VcsException(e);
+        }
+      }
+      if (myMergedFetchError != null && refs.size() > 1)
+        throw new VcsException(myMergedFetchError);
+      if (myFailingRef != null && refs.contains(myFailingRef))
+        throw new VcsException(myFailingRefError);
+      return FetchRefUpdates.unknown();
+    }
+
+    void failMergedFetch(@NotNull String error) {
+      myMergedFetchError = error;
+    }
+
+    void failFetchOf(@NotNull String ref, @NotNull String error) {
+      myFailingRef = ref;
+      myFailingRefError = error;
+    }
+
+    void awaitBlockedFetch() throws InterruptedException {
+      assertTrue(myBlockedFetchStarted.await(10, TimeUnit.SECONDS));
+    }
+
+    void release() {
+      myRelease.countDown();
+    }
+
+    @NotNull
+    List<Set<String>> getFetches() {
+      synchronized (myFetches) {
+        return new ArrayList<Set<String>>(myFetches);
+      }
+    }
+  }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git.tests;
+
+import jetbrains.buildServer.TempFiles;
+import jetbrains.buildServer.buildTriggers.vcs.git.FetchPriority;
+import jetbrains.buildServer.buildTriggers.vcs.git.FetchScheduler;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import org.eclipse.jgit.transport.URIish;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.Arrays.asList;
+import static org.testng.AssertJUnit.*;
+
+@Test
+public class FetchSchedulerTest {
+
+  private TempFiles myTempFiles;
+  private PluginConfigBuilder myConfig;
+  private ExecutorService myExecutor;
+  private List<FetchPriority> myStartOrder;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    myTempFiles = new TempFiles();
+    myConfig = new PluginConfigBuilder(new ServerPaths(myTempFiles.createTempDir().getAbsolutePath()));
+    myExecutor = Executors.newCachedThreadPool();
+    myStartOrder = new ArrayList<FetchPriority>();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    myExecutor.shutdownNow();
+    myTempFiles.cleanup();
+  }
+
+
+  public void should_limit_number_of_running_fetches() throws Exception {
+    FetchScheduler scheduler = new FetchScheduler(myConfig.withFetchMaxConcurrency(2, 0).build());
+    FetchScheduler.Ticket t1 = scheduler.acquire(uri("host1"), FetchPriority.INTERACTIVE);
+    scheduler.acquire(uri("host2"), FetchPriority.INTERACTIVE);
+
+    Future<?> third = startFetch(scheduler, uri("host3"), FetchPriority.INTERACTIVE);
+    waitForQueued(scheduler, 1);
+    assertFalse(third.isDone());
+
+    scheduler.release(t1);
+    third.get(10, TimeUnit.SECONDS);
+  }
+
+
+  public void should_limit_number_of_running_fetches_per_host() throws Exception {
+    FetchScheduler scheduler = new FetchScheduler(myConfig.withFetchMaxConcurrency(0, 1).build());
+    FetchScheduler.Ticket t1 = scheduler.acquire(uri("host1"), FetchPriority.INTERACTIVE);
+    scheduler.acquire(uri("host2"), FetchPriority.INTERACTIVE);
+
+    Future<?> sameHost = startFetch(scheduler, uri("host1"), FetchPriority.INTERACTIVE);
+    waitForQueued(scheduler, 1);
+    assertFalse(sameHost.isDone());
+
+    scheduler.release(t1);
+    scheduler.release(t1);//second release has no effect
+    sameHost.get(10, TimeUnit.SECONDS);
+  }
+
+
+  public void should_start_fetches_in_order_of_priority() throws Exception {
+    FetchScheduler scheduler = new FetchScheduler(myConfig.withFetchMaxConcurrency(1, 0).build());
+    FetchScheduler.Ticket running = scheduler.acquire(uri("host"), FetchPriority.INTERACTIVE);
+
+    Future<?> commitInfo = startFetch(scheduler, uri("host"), FetchPriority.COMMIT_INFO);
+    waitForQueued(scheduler, 1);
+    Future<?> polling = startFetch(scheduler, uri("host"), FetchPriority.POLLING);
+    waitForQueued(scheduler, 2);
+    Future<?> interactive = startFetch(scheduler, uri("host"), FetchPriority.INTERACTIVE);
+    waitForQueued(scheduler, 3);
+
+    scheduler.release(running);
+    commitInfo.get(10, TimeUnit.SECONDS);
+    polling.get(10, TimeUnit.SECONDS);
+    interactive.get(10, TimeUnit.SECONDS);
+    assertEquals(asList(FetchPriority.INTERACTIVE, FetchPriority.POLLING, FetchPriority.COMMIT_INFO), getStartOrder());
+  }
+
+
+  public void waiting_fetch_should_be_promoted() throws Exception {
+    final AtomicLong now = new AtomicLong(1000000);
+    FetchScheduler scheduler = new FetchScheduler(myConfig.withFetchMaxConcurrency(1, 0).withFetchPriorityAgingSeconds(1).build(), new FetchScheduler.Clock() {
+      public long currentTimeMillis() {
+        return now.get();
+      }
+    });
+    FetchScheduler.Ticket running = scheduler.acquire(uri("host"), FetchPriority.INTERACTIVE);
+
+    Future<?> commitInfo = startFetch(scheduler, uri("host"), FetchPriority.COMMIT_INFO);
+    waitForQueued(scheduler, 1);
+    now.addAndGet(2500);//2 promotions: COMMIT_INFO -> INTERACTIVE
+    Future<?> interactive = startFetch(scheduler, uri("host"), FetchPriority.INTERACTIVE);
+    waitForQueued(scheduler, 2);
+
+    scheduler.release(running);
+    commitInfo.get(10, TimeUnit.SECONDS);
+    interactive.get(10, TimeUnit.SECONDS);
+    assertEquals(asList(FetchPriority.COMMIT_INFO, FetchPriority.INTERACTIVE), getStartOrder());
+  }
+
+
+  public void promoted_ticket_should_be_reordered_in_queue() throws Exception {
+    FetchScheduler scheduler = new FetchScheduler(myConfig.withFetchMaxConcurrency(1, 0).build());
+    FetchScheduler.Ticket running = scheduler.acquire(uri("host"), FetchPriority.INTERACTIVE);
+
+    FetchScheduler.Ticket commitInfoTicket = scheduler.newTicket(uri("host"), FetchPriority.COMMIT_INFO);
+    Future<?> commitInfo = startFetch(scheduler, commitInfoTicket, FetchPriority.COMMIT_INFO);
+    waitForQueued(scheduler, 1);
+    Future<?> polling = startFetch(scheduler, uri("host"), FetchPriority.POLLING);
+    waitForQueued(scheduler, 2);
+    //e.g. an interactive request joined the merged commit info fetch
+    scheduler.promote(commitInfoTicket, FetchPriority.INTERACTIVE);
+    scheduler.promote(commitInfoTicket, FetchPriority.COMMIT_INFO);//lower priority has no effect
+
+    scheduler.release(running);
+    commitInfo.get(10, TimeUnit.SECONDS);
+    polling.get(10, TimeUnit.SECONDS);
+    assertEquals(asList(FetchPriority.COMMIT_INFO, FetchPriority.POLLING), getStartOrder());
+  }
+
+
+  public void interrupted_fetch_should_leave_the_queue() throws Exception {
+    FetchScheduler scheduler = new FetchScheduler(myConfig.withFetchMaxConcurrency(1, 0).build());
+    FetchScheduler.Ticket running = scheduler.acquire(uri("host"), FetchPriority.INTERACTIVE);
+
+    Future<?> interrupted = startFetch(scheduler, uri("host"), FetchPriority.INTERACTIVE);
+    waitForQueued(scheduler, 1);
+    interrupted.cancel(true);
+    waitForQueued(scheduler, 0);
+
+    scheduler.release(running);
+    scheduler.acquire(uri("host"), FetchPriority.COMMIT_INFO);
+    assertTrue(getStartOrder().isEmpty());
+  }
+
+
+  /**
+   * Acquires a ticket in a separate thread, records the priority of the started
+   * fetch and releases the ticket
+   */
+  @NotNull
+  private Future<?> startFetch(@NotNull FetchScheduler scheduler, @NotNull URIish uri, @NotNull FetchPriority priority) {
+    return startFetch(scheduler, scheduler.newTicket(uri, priority), priority);
+  }
+
+
+  @NotNull
+  private Future<?> startFetch(@NotNull final FetchScheduler scheduler, @NotNull final FetchScheduler.Ticket ticket, @NotNull final FetchPriority priority) {
+    return myExecutor.submit(new Callable<Void>() {
+      public Void call() throws Exception {
+        scheduler.acquire(ticket);
+        synchronized (myStartOrder) {
+          myStartOrder.add(priority);
+        }
+        scheduler.release(ticket);
+        return null;
+      }
+    });
+  }
+
+
+  @NotNull
+  private List<FetchPriority> getStartOrder() {
+    synchronized (myStartOrder) {
+      return new ArrayList<FetchPriority>(myStartOrder);
+    }
+  }
+
+
+  private static void waitForQueued(@NotNull FetchScheduler scheduler, int queued) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (!scheduler.getStats().contains("queued: " + queued + ",") && !scheduler.getStats().endsWith("queued: " + queued)) {
+      if (System.currentTimeMillis() > deadline)
+        fail("Fetch is not queued, scheduler state: " + scheduler.getStats());
+      Thread.sleep(10);
+    }
+  }
+
+
+  @NotNull
+  private static URIish uri(@NotNull String host) throws Exception {
+    return new URIish("git://" + host + "/repository.git");
+  }
+}
@@ -109,6 +109,8 @@ public class GitResetCacheHandlerTest {
       atLeast(1).of(myRepositoryManager).getMappings(); will(returnValue(mapping));
       atLeast(1).of(myRepositoryManager).getRmLock(mirror1);
       atLeast(1).of(myRepositoryManager).getRmLock(mirror2);
+      one(myRepositoryManager).evictRepository(mirror1);
+      one(myRepositoryManager).evictRepository(mirror2);
     }});
 
     myCacheHandler.resetCache("git");
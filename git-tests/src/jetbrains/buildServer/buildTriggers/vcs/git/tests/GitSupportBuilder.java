@@ -74,13 +74,14 @@ public class GitSupportBuilder {
       } else {
         final FetchCommand originalCommand = new FetchCommandImpl(myPluginConfig, myTransportFactory, new FetcherProperties(myPluginConfig), new EmptyVcsRootSshKeyManager());
         myFetchCommand = new FetchCommand() {
-          public void fetch(@NotNull Repository db,
-                            @NotNull URIish fetchURI,
-                            @NotNull Collection<RefSpec> refspecs,
-                            @NotNull FetchSettings settings)
+          @NotNull
+          public FetchRefUpdates fetch(@NotNull Repository db,
+                                       @NotNull URIish fetchURI,
+                                       @NotNull Collection<RefSpec> refspecs,
+                                       @NotNull FetchSettings settings)
             throws NotSupportedException, TransportException, VcsException {
             myBeforeFetchHook.run();
-            originalCommand.fetch(db, fetchURI, refspecs, settings);
+            return originalCommand.fetch(db, fetchURI, refspecs, settings);
           }
         };
       }
@@ -98,7 +99,7 @@ public class GitSupportBuilder {
       resetCacheManager = myResetCacheManager;
     }
     myMapFullPath = new GitMapFullPath(myPluginConfig);
-    myCommitLoader = new CommitLoaderImpl(myRepositoryManager, myFetchCommand, myMapFullPath);
+    myCommitLoader = new CommitLoaderImpl(myPluginConfig, myRepositoryManager, myFetchCommand, myMapFullPath);
     GitVcsSupport git = new GitVcsSupport(myPluginConfig, resetCacheManager, myTransportFactory, myRepositoryManager, myMapFullPath, myCommitLoader,
                                           new EmptyVcsRootSshKeyManager(), new MockVcsOperationProgressProvider());
     git.addExtensions(myExtensions);
@@ -58,6 +58,8 @@ import org.testng.annotations.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
 import java.net.URISyntaxException;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -576,6 +578,52 @@ public class GitVcsSupportTest extends PatchTestCase {
   }
 
 
+  @Test
+  public void fixed_submodule_search_should_use_submodule_path_of_each_commit() throws Exception {
+    ObjectId submoduleCommit = ObjectId.fromString("293a6e0d110fdbeed9729d87945876a0c52da182");
+    ObjectId submoduleCommitWithDir = ObjectId.fromString("42fd2819d05e5b2b733f0a20e9b8b918e6e62141");
+    ObjectId missingCommit = ObjectId.fromString("ded023a236d184753f826e62ac16b1612060e9d0");
+    Repository r = new RepositoryBuilder().setGitDir(myMainRepositoryDir).build();
+    String fixedAtNewPath;
+    String brokenAfterFixAtNewPath;
+    String fixedAgainAtNewPath;
+    String brokenAfterMove;
+    String fixedAfterMove;
+    try {
+      ObjectId atOldPath = commitWithSubmodule(r, "old", submoduleCommit);
+      fixedAtNewPath = commitWithSubmodule(r, "new", submoduleCommit, atOldPath).name();
+      brokenAfterFixAtNewPath = commitWithSubmodule(r, "new", missingCommit, ObjectId.fromString(fixedAtNewPath)).name();
+      fixedAgainAtNewPath = commitWithSubmodule(r, "new", submoduleCommitWithDir, ObjectId.fromString(brokenAfterFixAtNewPath)).name();
+      brokenAfterMove = commitWithSubmodule(r, "new", missingCommit, atOldPath).name();
+      fixedAfterMove = commitWithSubmodule(r, "new", submoduleCommitWithDir, ObjectId.fromString(brokenAfterMove)).name();
+      updateRef(r, "refs/heads/moved-submodule", fixedAgainAtNewPath);
+      updateRef(r, "refs/heads/moved-broken-submodule", fixedAfterMove);
+    } finally {
+      r.close();
+    }
+
+    //the submodule was fixed at the new path before it got broken, changes are reported relatively to that commit
+    VcsRoot root = getRoot("moved-submodule", true);
+    List<ModificationData> mds = getSupport().collectChanges(root, brokenAfterFixAtNewPath, fixedAgainAtNewPath, CheckoutRules.DEFAULT);
+    assertEquals(1, mds.size());
+    List<VcsChange> changes = mds.get(0).getChanges();
+    assertEquals(1, changes.size());
+    assertEquals("new/dir/test", changes.get(0).getRelativeFileName());
+    assertEquals(VcsChange.Type.ADDED, changes.get(0).getType());
+    assertEquals(fixedAtNewPath, changes.get(0).getBeforeChangeRevisionNumber());
+
+    //the submodule was fine only at the old path, it is not a fix for the new path, so all submodule files are reported
+    root = getRoot("moved-broken-submodule", true);
+    mds = getSupport().collectChanges(root, brokenAfterMove, fixedAfterMove, CheckoutRules.DEFAULT);
+    assertEquals(1, mds.size());
+    Set<String> paths = new HashSet<String>();
+    for (VcsChange change : mds.get(0).getChanges()) {
+      paths.add(change.getRelativeFileName());
+    }
+    assertTrue(paths.containsAll(Arrays.asList("new/dir/test", "new/file.txt", "new/new file.txt")));
+  }
+
+
   // Test collecting changes with non-recursive submodule checkout: only first level submodule files are checked out
   @Test(dataProvider = "doFetchInSeparateProcess", dataProviderClass = FetchOptionsDataProvider.class)
   public void testCollectBuildChangesSubSubmodulesNonRecursive(boolean fetchInSeparateProcess) throws Exception {
@@ -670,6 +718,99 @@ public class GitVcsSupportTest extends PatchTestCase {
   }
 
 
+  @Test
+  public void collect_changes_should_not_report_paths_excluded_by_checkout_rules() throws Exception {
+    VcsRoot root = getRoot("master");
+    List<ModificationData> changes = getSupport().collectChanges(root, CUD1_VERSION, MERGE_VERSION, new CheckoutRules("-:dir/a.txt"));
+    assertEquals(3, changes.size());
+    for (ModificationData m : changes) {
+      for (VcsChange change : m.getChanges()) {
+        assertFalse("dir/a.txt".equals(change.getFileName()), "Excluded path is reported in " + m.getVersion());
+      }
+    }
+    ModificationData merge = changes.get(0);
+    assertEquals(MERGE_VERSION, merge.getVersion());
+    assertEquals(2, merge.getChanges().size());
+  }
+
+
+  @Test
+  public void collect_changes_should_stop_when_budget_is_exceeded() throws Exception {
+    myConfigBuilder.withCollectChangesMaxCommits(2);
+    VcsRoot root = vcsRoot().withBranch("refs/heads/master").withFetchUrl(myMainRepositoryDir.getAbsolutePath()).build();
+    RepositoryStateData fromState = createVersionState("refs/heads/master", map("refs/heads/master", CUD1_VERSION));
+    RepositoryStateData toState = createVersionState("refs/heads/master", map("refs/heads/master", MERGE_VERSION));
+    final List<ModificationData> changes = new ArrayList<ModificationData>();
+    final List<String> truncationReasons = new ArrayList<String>();
+    boolean complete = getSupport().getCollectChangesPolicy().collectChanges(root, fromState, toState, CheckoutRules.DEFAULT, new ModificationDataConsumer() {
+      public void consume(@NotNull ModificationData data) {
+        changes.add(data);
+      }
+
+      public void truncated(@NotNull String reason) {
+        truncationReasons.add(reason);
+      }
+    });
+    assertFalse(complete);
+    assertEquals(2, changes.size());
+    assertEquals(MERGE_VERSION, changes.get(0).getVersion());
+    assertEquals(1, truncationReasons.size());
+  }
+
+
+  @Test
+  public void collect_changes_returning_list_should_not_apply_budget() throws Exception {
+    VcsRoot root = vcsRoot().withBranch("refs/heads/master").withFetchUrl(myMainRepositoryDir.getAbsolutePath()).build();
+    RepositoryStateData fromState = createVersionState("refs/heads/master", map("refs/heads/master", CUD1_VERSION));
+    RepositoryStateData toState = createVersionState("refs/heads/master", map("refs/heads/master", MERGE_VERSION));
+    List<ModificationData> unlimited = getSupport().getCollectChangesPolicy().collectChanges(root, fromState, toState, CheckoutRules.DEFAULT);
+    assertTrue(unlimited.size() > 2);
+
+    myConfigBuilder.withCollectChangesMaxCommits(2);
+    List<ModificationData> changes = getSupport().getCollectChangesPolicy().collectChanges(root, fromState, toState, CheckoutRules.DEFAULT);
+    assertEquals(unlimited.size(), changes.size());
+    for (int i = 0; i < changes.size(); i++) {
+      assertEquals(unlimited.get(i).getVersion(), changes.get(i).getVersion());
+    }
+
+    List<ModificationData> betweenVersions = getSupport().getCollectChangesPolicy().collectChanges(root, CUD1_VERSION, root, MERGE_VERSION, CheckoutRules.DEFAULT);
+    assertEquals(unlimited.size(), betweenVersions.size());
+  }
+
+
+  @Test
+  public void parallel_changes_collection_should_report_same_changes_as_serial() throws Exception {
+    VcsRoot root = vcsRoot().withBranch("refs/heads/master").withFetchUrl(myMainRepositoryDir.getAbsolutePath()).build();
+    RepositoryStateData fromState = createVersionState("refs/heads/master", map("refs/heads/master", CUD1_VERSION));
+    RepositoryStateData toState = createVersionState("refs/heads/master", map("refs/heads/master", MERGE_VERSION));
+
+    myConfigBuilder.withChangedPathsCacheMaxSizeMb(0).withCollectChangesThreads(1);
+    List<ModificationData> serial = getSupport().getCollectChangesPolicy().collectChanges(root, fromState, toState, CheckoutRules.DEFAULT);
+    assertTrue(serial.size() > 2);
+
+    myConfigBuilder.withCollectChangesThreads(4);
+    for (int attempt = 0; attempt < 3; attempt++) {
+      List<ModificationData> parallel = getSupport().getCollectChangesPolicy().collectChanges(root, fromState, toState, CheckoutRules.DEFAULT);
+      assertEquals(serial.size(), parallel.size());
+      for (int i = 0; i < serial.size(); i++) {
+        ModificationData expected = serial.get(i);
+        ModificationData actual = parallel.get(i);
+        assertEquals(expected.getVersion(), actual.getVersion());
+        assertEquals(expected.getParentRevisions(), actual.getParentRevisions());
+        assertEquals(expected.getChanges().size(), actual.getChanges().size());
+        for (int j = 0; j < expected.getChanges().size(); j++) {
+          VcsChange expectedChange = expected.getChanges().get(j);
+          VcsChange actualChange = actual.getChanges().get(j);
+          assertEquals(expectedChange.getRelativeFileName(), actualChange.getRelativeFileName());
+          assertEquals(expectedChange.getType(), actualChange.getType());
+          assertEquals(expectedChange.getBeforeChangeRevisionNumber(), actualChange.getBeforeChangeRevisionNumber());
+          assertEquals(expectedChange.getAfterChangeRevisionNumber(), actualChange.getAfterChangeRevisionNumber());
+        }
+      }
+    }
+  }
+
+
   @Test
   public void default_autocrlf_should_not_be_included_in_checkout_properties() throws VcsException {
     VcsRoot root = vcsRoot().withAutoCrlf(false).withFetchUrl(myMainRepositoryDir.getAbsolutePath()).build();
@@ -932,6 +1073,93 @@ public class GitVcsSupportTest extends PatchTestCase {
   }
 
 
+  @Test
+  public void current_states_should_be_reported_for_every_root_in_order() throws Exception {
+    GitVcsSupport git = getSupport();
+    String url = GitUtils.toURL(myMainRepositoryDir);
+    VcsRoot master = vcsRoot().withId(1).withFetchUrl(url).withBranch("master").build();
+    VcsRoot versionTest = vcsRoot().withId(2).withFetchUrl(url).withBranch("version-test").build();
+    VcsRoot unknownBranch = vcsRoot().withId(3).withFetchUrl(url).withBranch("no-such-branch").build();
+    VcsRoot unknownRepository = vcsRoot().withId(4).withFetchUrl(GitUtils.toURL(new File(myTmpDir, "no-such-repo"))).withBranch("master").build();
+
+    Map<VcsRoot, RepositoryStateResult> states = git.getCurrentStates(Arrays.asList(unknownRepository, master, unknownBranch, versionTest));
+
+    assertEquals(Arrays.asList(unknownRepository, master, unknownBranch, versionTest), new ArrayList<VcsRoot>(states.keySet()));
+    assertEquals(git.getCurrentState(master).getBranchRevisions(), states.get(master).get().getBranchRevisions());
+    assertEquals(git.getCurrentState(versionTest).getBranchRevisions(), states.get(versionTest).get().getBranchRevisions());
+    assertNotNull(states.get(unknownBranch).getError());
+    assertNotNull(states.get(unknownRepository).getError());
+  }
+
+
+  @Test
+  public void slow_host_should_not_hold_current_states_of_other_roots() throws Exception {
+    //accepts connections but never responds
+    ServerSocket slowServer = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+    try {
+      myConfigBuilder.withCurrentStateTimeoutSeconds(2);
+      GitVcsSupport git = getSupport();
+      VcsRoot slowRoot = vcsRoot().withId(1).withFetchUrl("git://127.0.0.1:" + slowServer.getLocalPort() + "/repo.git").withBranch("master").build();
+      VcsRoot root = vcsRoot().withId(2).withFetchUrl(GitUtils.toURL(myMainRepositoryDir)).withBranch("master").build();
+
+      long start = System.currentTimeMillis();
+      Map<VcsRoot, RepositoryStateResult> states = git.getCurrentStates(Arrays.asList(slowRoot, root));
+      long duration = System.currentTimeMillis() - start;
+
+      assertTrue("Current states took " + duration + "ms", duration < 10000);
+      assertEquals(git.getCurrentState(root).getBranchRevisions(), states.get(root).get().getBranchRevisions());
+      VcsException error = states.get(slowRoot).getError();
+      assertNotNull(error);
+      assertTrue(error.getMessage(), error.getMessage().contains("was not computed in 2 seconds"));
+    } finally {
+      slowServer.close();
+    }
+  }
+
+
+  @Test
+  public void hanging_host_should_not_exhaust_current_state_threads() throws Exception {
+    //accepts connections but never responds
+    ServerSocket slowServer = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+    try {
+      myConfigBuilder.withCurrentStateTimeoutSeconds(1);
+      GitVcsSupport git = getSupport();
+      List<VcsRoot> roots = new ArrayList<VcsRoot>();
+      for (int i = 0; i < 3; i++) {
+        roots.add(vcsRoot().withId(10 + i).withFetchUrl("git://127.0.0.1:" + slowServer.getLocalPort() + "/repo" + i + ".git").withBranch("master").build());
+      }
+      VcsRoot root = vcsRoot().withId(2).withFetchUrl(GitUtils.toURL(myMainRepositoryDir)).withBranch("master").build();
+      roots.add(root);
+      Map<String, String> expected = git.getCurrentState(root).getBranchRevisions();
+
+      //every call leaves workers blocked on the slow host, they should not take all threads of the pool
+      for (int call = 0; call < 5; call++) {
+        Map<VcsRoot, RepositoryStateResult> states = git.getCurrentStates(roots);
+        assertNull("Call " + call + " failed", states.get(root).getError());
+        assertEquals(expected, states.get(root).get().getBranchRevisions());
+        for (int i = 0; i < 3; i++) {
+          assertNotNull(states.get(roots.get(i)).getError());
+        }
+      }
+    } finally {
+      slowServer.close();
+    }
+  }
+
+
+  @Test
+  public void fetcher_daemon_should_run_several_fetches() throws Exception {
+    myConfigBuilder.setSeparateProcessForFetch(true).setFetcherDaemonEnabled(true);
+    GitVcsSupport support = getSupport();
+    List<ModificationData> changes = support.collectChanges(getRoot("master"), VERSION_TEST_HEAD, CUD1_VERSION, CheckoutRules.DEFAULT);
+    assertEquals(2, changes.size());
+    VcsRootImpl rootWithCustomDir = (VcsRootImpl) getRoot("master");
+    rootWithCustomDir.addProperty(Constants.PATH, new File(myTmpDir, "custom-dir").getAbsolutePath());
+    changes = support.collectChanges(rootWithCustomDir, VERSION_TEST_HEAD, CUD1_VERSION, CheckoutRules.DEFAULT);
+    assertEquals(2, changes.size());
+  }
+
+
   @Test
   @TestFor(issues = "TW-17910")
   public void fetch_process_should_respect_fetch_timeout() throws Exception {
@@ -1588,6 +1816,101 @@ public class GitVcsSupportTest extends PatchTestCase {
     getSupport().getCollectChangesPolicy().collectChanges(root, s2, s3, CheckoutRules.DEFAULT);
   }
 
+
+  @Test(dataProvider = "doFetchInSeparateProcess", dataProviderClass = FetchOptionsDataProvider.class)
+  public void fetch_retried_after_pruning_should_report_updates_of_both_attempts(boolean fetchInSeparateProcess) throws Exception {
+    ServerPluginConfig config = myConfigBuilder.setSeparateProcessForFetch(fetchInSeparateProcess).build();
+    VcsRootSshKeyManager manager = new EmptyVcsRootSshKeyManager();
+    FetchCommand fetchCommand = new FetchCommandImpl(config, new TransportFactoryImpl(config, manager), new FetcherProperties(config), manager);
+    URIish uri = new URIish(GitUtils.toURL(myMainRepositoryDir));
+    List<RefSpec> specs = Arrays.asList(new RefSpec("+refs/heads/*:refs/heads/*"));
+    FetchSettings settings = new FetchSettings(new AuthSettings(new HashMap<String, String>()));
+    Repository mirror = new RepositoryBuilder().setBare().setGitDir(myTempFiles.createTempDir()).build();
+    Repository remote = new RepositoryBuilder().setGitDir(myMainRepositoryDir).build();
+    try {
+      mirror.create(true);
+      fetchCommand.fetch(mirror, uri, specs, settings);
+
+      //the first fetch attempt updates master but cannot create refs/heads/patch-tests/a
+      //while refs/heads/patch-tests exists, the ref is created by the attempt after pruning
+      updateRef(remote, "refs/heads/master", "3b9fbfbb43e7edfad018b482e15e7f93cca4e69f");
+      remote.getRefDatabase().newRename("refs/heads/patch-tests", "refs/heads/patch-tests/a").rename();
+      updateRef(remote, "refs/heads/patch-tests/a", "39679cc440c83671fbf6ad8083d92517f9602300");
+
+      FetchRefUpdates updates = fetchCommand.fetch(mirror, uri, specs, settings);
+      assertTrue(updates.isKnown());
+      Map<String, String> updatedRefs = new HashMap<String, String>();
+      for (FetchRefUpdates.Update update : updates.getUpdates()) {
+        updatedRefs.put(update.getRefName(), update.getNewId().name());
+      }
+      assertEquals("3b9fbfbb43e7edfad018b482e15e7f93cca4e69f", updatedRefs.get("refs/heads/master"));
+      assertEquals("39679cc440c83671fbf6ad8083d92517f9602300", updatedRefs.get("refs/heads/patch-tests/a"));
+    } finally {
+      remote.close();
+      mirror.close();
+    }
+  }
+
+  public void failed_fetch_should_prune_removed_branches_and_retry() throws Exception {
+    ServerPluginConfig config = myConfigBuilder.setSeparateProcessForFetch(false).build();
+    VcsRootSshKeyManager manager = new EmptyVcsRootSshKeyManager();
+    final TransportFactory transportFactory = new TransportFactoryImpl(config, manager);
+    final AtomicBoolean failNextFetch = new AtomicBoolean(false);
+    TransportFactory failingFactory = new TransportFactory() {
+      public Transport createTransport(@NotNull Repository r, @NotNull final URIish url, @NotNull AuthSettings authSettings)
+        throws NotSupportedException, VcsException, TransportException {
+        if (!failNextFetch.getAndSet(false))
+          return transportFactory.createTransport(r, url, authSettings);
+        return new Transport(r, url) {
+          @Override
+          public FetchConnection openFetch() throws TransportException {
+            throw new TransportException(url, "Cannot update local refs");
+          }
+          @Override
+          public PushConnection openPush() throws TransportException {
+            throw new TransportException(url, "Push is not supported");
+          }
+          @Override
+          public void close() {
+          }
+        };
+      }
+    };
+    FetchCommand fetchCommand = new FetchCommandImpl(config, failingFactory, new FetcherProperties(config), manager);
+    URIish uri = new URIish(GitUtils.toURL(myMainRepositoryDir));
+    List<RefSpec> specs = Arrays.asList(new RefSpec("+refs/heads/*:refs/heads/*"));
+    FetchSettings settings = new FetchSettings(new AuthSettings(new HashMap<String, String>()));
+    Repository mirror = new RepositoryBuilder().setBare().setGitDir(myTempFiles.createTempDir()).build();
+    Repository remote = new RepositoryBuilder().setGitDir(myMainRepositoryDir).build();
+    try {
+      mirror.create(true);
+      fetchCommand.fetch(mirror, uri, specs, settings);
+
+      //nothing to prune: the fetch error is reported
+      failNextFetch.set(true);
+      try {
+        fetchCommand.fetch(mirror, uri, specs, settings);
+        fail("Fetch error is not reported");
+      } catch (TransportException e) {
+        //expected
+      }
+
+      //stale refs/heads/patch-tests blocks creation of refs/heads/patch-tests/a,
+      //it is pruned using refs of a new connection and the fetch is retried
+      remote.getRefDatabase().newRename("refs/heads/patch-tests", "refs/heads/patch-tests/a").rename();
+      updateRef(remote, "refs/heads/patch-tests/a", "39679cc440c83671fbf6ad8083d92517f9602300");
+      failNextFetch.set(true);
+      fetchCommand.fetch(mirror, uri, specs, settings);
+      assertNull(mirror.getRef("refs/heads/patch-tests"));
+      Ref created = mirror.getRef("refs/heads/patch-tests/a");
+      assertNotNull(created);
+      assertEquals("39679cc440c83671fbf6ad8083d92517f9602300", created.getObjectId().name());
+    } finally {
+      remote.close();
+      mirror.close();
+    }
+  }
+
   private static class FetchCommandCountDecorator implements FetchCommand {
 
     private final FetchCommand myDelegate;
@@ -1597,9 +1920,11 @@ public class GitVcsSupportTest extends PatchTestCase {
       myDelegate = delegate;
     }
 
-    public void fetch(@NotNull Repository db, @NotNull URIish fetchURI, @NotNull Collection<RefSpec> refspecs, @NotNull FetchSettings settings) throws NotSupportedException, VcsException, TransportException {
-      myDelegate.fetch(db, fetchURI, refspecs, settings);
+    @NotNull
+    public FetchRefUpdates fetch(@NotNull Repository db, @NotNull URIish fetchURI, @NotNull Collection<RefSpec> refspecs, @NotNull FetchSettings settings) throws NotSupportedException, VcsException, TransportException {
+      FetchRefUpdates updates = myDelegate.fetch(db, fetchURI, refspecs, settings);
       inc();
+      return updates;
     }
 
     private synchronized void inc() {
@@ -1668,6 +1993,43 @@ public class GitVcsSupportTest extends PatchTestCase {
   }
 
 
+  @NotNull
+  private static ObjectId commitWithSubmodule(@NotNull Repository r,
+                                              @NotNull String path,
+                                              @NotNull ObjectId submoduleCommit,
+                                              @NotNull ObjectId... parents) throws IOException {
+    ObjectInserter inserter = r.newObjectInserter();
+    try {
+      String gitmodules = "[submodule \"" + path + "\"]\n" +
+                          "\tpath = " + path + "\n" +
+                          "\turl = ../submodule\n";
+      TreeFormatter tree = new TreeFormatter();
+      tree.append(".gitmodules", FileMode.REGULAR_FILE, inserter.insert(org.eclipse.jgit.lib.Constants.OBJ_BLOB, gitmodules.getBytes("UTF-8")));
+      tree.append(path, FileMode.GITLINK, submoduleCommit);
+      PersonIdent ident = new PersonIdent("user", "user@example.com");
+      CommitBuilder commit = new CommitBuilder();
+      commit.setTreeId(inserter.insert(tree));
+      commit.setParentIds(parents);
+      commit.setAuthor(ident);
+      commit.setCommitter(ident);
+      commit.setMessage("submodule at " + path);
+      ObjectId result = inserter.insert(commit);
+      inserter.flush();
+      return result;
+    } finally {
+      inserter.release();
+    }
+  }
+
+
+  private static void updateRef(@NotNull Repository r, @NotNull String ref, @NotNull String commit) throws IOException {
+    RefUpdate update = r.updateRef(ref);
+    update.setNewObjectId(ObjectId.fromString(commit));
+    update.setForceUpdate(true);
+    update.forceUpdate();
+  }
+
+
   private File createBranchLockFile(File repositoryDir, String branch) throws IOException {
     String branchRefPath = "refs" + File.separator + "heads" + File.separator + branch;
     File refFile  = new File(repositoryDir, branchRefPath);
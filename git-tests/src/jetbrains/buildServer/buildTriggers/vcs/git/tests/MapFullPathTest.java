@@ -28,8 +28,9 @@ import jetbrains.buildServer.vcs.CheckoutRules;
 import jetbrains.buildServer.vcs.RepositoryStateData;
 import jetbrains.buildServer.vcs.VcsRoot;
 import jetbrains.buildServer.vcs.VcsRootEntry;
+import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Repository;
-import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.lib.RepositoryBuilder;
 import org.hamcrest.Description;
 import org.hamcrest.TypeSafeMatcher;
 import org.jetbrains.annotations.NotNull;
@@ -42,12 +43,15 @@ import org.testng.annotations.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 
 import static jetbrains.buildServer.buildTriggers.vcs.git.tests.GitSupportBuilder.gitSupport;
 import static jetbrains.buildServer.buildTriggers.vcs.git.tests.GitTestUtil.copyRepository;
 import static jetbrains.buildServer.buildTriggers.vcs.git.tests.GitTestUtil.dataFile;
 import static jetbrains.buildServer.buildTriggers.vcs.git.tests.VcsRootBuilder.vcsRoot;
+import static org.testng.AssertJUnit.assertEquals;
 import static org.testng.AssertJUnit.assertFalse;
 import static org.testng.AssertJUnit.assertTrue;
 
@@ -59,6 +63,7 @@ public class MapFullPathTest {
   private File myRemoteRepositoryDir2;
   private GitVcsSupport myGit;
   private GitMapFullPath myMapFullPath;
+  private CommitLoader myCommitLoader;
   private VcsRoot myRoot;
   private VcsRootEntry myRootEntry;
   private VcsRoot myRoot2;
@@ -79,6 +84,7 @@ public class MapFullPathTest {
     GitSupportBuilder gitBuilder = gitSupport().withServerPaths(paths);
     myGit = gitBuilder.build();
     myMapFullPath = gitBuilder.getMapFullPath();
+    myCommitLoader = gitBuilder.getCommitLoader();
     myRoot = vcsRoot().withFetchUrl(myRemoteRepositoryDir.getAbsolutePath()).build();
     myRootEntry = new VcsRootEntry(myRoot, CheckoutRules.DEFAULT);
     myRoot2 = vcsRoot().withFetchUrl(myRemoteRepositoryDir2.getAbsolutePath()).build();
@@ -119,12 +125,11 @@ public class MapFullPathTest {
     final String nonExistingCommit = "abababababababababababababababababababab";
 
     final CommitLoader commitLoader = myContext.mock(CommitLoader.class);
-    final RevCommit commit = myContext.mock(RevCommit.class);
     myMapFullPath.setCommitLoader(commitLoader);
     myContext.checking(new Expectations() {{
       //ask for existing commit only once:
-      one(commitLoader).findCommit(with(any(Repository.class)), with(existingCommit)); will(returnValue(commit));
-      one(commitLoader).findCommit(with(any(Repository.class)), with(nonExistingCommit)); will(returnValue(null));
+      one(commitLoader).hasCommit(with(any(Repository.class)), with(ObjectId.fromString(existingCommit))); will(returnValue(true));
+      one(commitLoader).hasCommit(with(any(Repository.class)), with(ObjectId.fromString(nonExistingCommit))); will(returnValue(false));
     }});
 
     RepositoryStateData state0 = RepositoryStateData.createSingleVersionState("a7274ca8e024d98c7d59874f19f21d26ee31d41d");
@@ -149,7 +154,6 @@ public class MapFullPathTest {
     //root1 contains the commit
     //root2 doesn't
     final CommitLoader commitLoader = myContext.mock(CommitLoader.class);
-    final RevCommit commit = myContext.mock(RevCommit.class);
     myMapFullPath.setCommitLoader(commitLoader);
 
     final String hintCommit = "a7274ca8e024d98c7d59874f19f21d26ee31d41d";
@@ -158,11 +162,11 @@ public class MapFullPathTest {
     final String remoteUrl1 = myRemoteRepositoryDir.getAbsolutePath();
     final String remoteUrl2 = myRemoteRepositoryDir2.getAbsolutePath();
     myContext.checking(new Expectations() {{
-      one(commitLoader).findCommit(with(repositoryWithUrl(remoteUrl1)), with(hintCommit)); will(returnValue(commit));
-      one(commitLoader).findCommit(with(repositoryWithUrl(remoteUrl1)), with(lastCommonCommit1)); will(returnValue(commit));
-      one(commitLoader).findCommit(with(repositoryWithUrl(remoteUrl1)), with(lastCommonCommit2)); will(returnValue(commit));
+      one(commitLoader).hasCommit(with(repositoryWithUrl(remoteUrl1)), with(ObjectId.fromString(hintCommit))); will(returnValue(true));
+      one(commitLoader).hasCommit(with(repositoryWithUrl(remoteUrl1)), with(ObjectId.fromString(lastCommonCommit1))); will(returnValue(true));
+      one(commitLoader).hasCommit(with(repositoryWithUrl(remoteUrl1)), with(ObjectId.fromString(lastCommonCommit2))); will(returnValue(true));
       //only single check for repository which doesn't contain a hint commit:
-      one(commitLoader).findCommit(with(repositoryWithUrl(remoteUrl2)), with(hintCommit)); will(returnValue(null));
+      one(commitLoader).hasCommit(with(repositoryWithUrl(remoteUrl2)), with(ObjectId.fromString(hintCommit))); will(returnValue(false));
     }});
 
     String fullPath1 = hintCommit + "-" + lastCommonCommit1 + "||.";
@@ -182,6 +186,23 @@ public class MapFullPathTest {
   }
 
 
+  public void missing_commits_should_be_found_by_object_lookup() throws Exception {
+    final ObjectId commit = ObjectId.fromString("5711cbfe566b6c92e331f95d4b236483f4532eed");
+    final ObjectId annotatedTag = ObjectId.fromString("44f5d50fbf5bd4b2640bd61c5157f4add83f5d0f");
+    final ObjectId missing = ObjectId.fromString("abababababababababababababababababababab");
+    Repository r = new RepositoryBuilder().setGitDir(myRemoteRepositoryDir2).setBare().build();
+    try {
+      //existence is checked without object type, so an annotated tag is present as well
+      assertEquals(Collections.singleton(missing), myCommitLoader.getMissingCommits(r, Arrays.asList(commit, annotatedTag, missing)));
+      assertTrue(myCommitLoader.hasCommit(r, commit));
+      assertTrue(myCommitLoader.hasCommit(r, annotatedTag));
+      assertFalse(myCommitLoader.hasCommit(r, missing));
+    } finally {
+      r.close();
+    }
+  }
+
+
   private void remoteRepositoryUpdated() throws IOException {
     FileUtil.delete(myRemoteRepositoryDir);
     copyRepository(dataFile("repo_for_fetch.2"), myRemoteRepositoryDir);
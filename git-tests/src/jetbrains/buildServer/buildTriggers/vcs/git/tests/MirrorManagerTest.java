@@ -26,6 +26,7 @@ import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
@@ -117,6 +118,32 @@ public class MirrorManagerTest {
   }
 
 
+  public void should_remember_mappings_after_restart() throws Exception {
+    MirrorManager mirrorManager = new MirrorManagerImpl(myConfig, new HashCalculatorImpl());
+    File dir1 = mirrorManager.getMirrorDir("git://some.org/repository1.git");
+    File dir2 = mirrorManager.getMirrorDir("git://some.org/repository2.git");
+    File dir3 = mirrorManager.getMirrorDir("git://some.org/repository3.git");
+    mirrorManager.invalidate(dir2);
+
+    File map = new File(myConfig.getCachesDir(), "map");
+    FileOutputStream out = new FileOutputStream(map, true);
+    try {
+      out.write("git://some.org/interrupted-write.git = git-".getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+
+    mirrorManager = new MirrorManagerImpl(myConfig, new HashCalculatorImpl()); //restart
+    assertEquals(dir1, mirrorManager.getMirrorDir("git://some.org/repository1.git"));
+    assertEquals(dir3, mirrorManager.getMirrorDir("git://some.org/repository3.git"));
+    assertFalse(dir2.equals(mirrorManager.getMirrorDir("git://some.org/repository2.git")));
+    assertFalse(mirrorManager.getMappings().containsKey("git://some.org/interrupted-write.git"));
+
+    mirrorManager = new MirrorManagerImpl(myConfig, new HashCalculatorImpl()); //restart
+    assertEquals(3, mirrorManager.getMappings().size());
+  }
+
+
   private void createRepositories(File baseDir, Map<String, String> url2dir) throws Exception {
     for (Map.Entry<String, String> entry : url2dir.entrySet()) {
       String url = entry.getKey();
@@ -39,6 +39,7 @@ public class PluginConfigBuilder {
   private PluginConfigImpl myDelegate;
   private Boolean mySeparateProcessForFetch;
   private Boolean mySeparateProcessForPatch;
+  private boolean myFetcherDaemonEnabled;
   private Boolean myRunNativeGC;
   private Boolean myRunJGitGC;
   private String  myPathToGit;
@@ -55,6 +56,16 @@ public class PluginConfigBuilder {
   private boolean myUsePerBranchFetch;
   private int myGetConnectionRetryAttempts = -1;
   private long myConnectionRetryIntervalMillis = -1;
+  private int myRemoteRefsCacheTtlSeconds = 0;
+  private int myCurrentStateTimeoutSeconds = 120;
+  private int myCollectChangesMaxCommits = 0;
+  private int myCollectChangesThreads = 2;
+  private int myFetchMaxConcurrency = 0;
+  private int myFetchMaxConcurrencyPerHost = 0;
+  private int myFetchPriorityAgingSeconds = 0;
+  private Integer myRepositoryCacheIdleTimeoutSeconds = null;
+  private Integer myChangedPathsCacheMaxSizeMb = null;
+  private Integer myRepositoryLockTimeoutSeconds = null;
   private Integer myStreamFileThreshold = null;
   private String myPatchBuilderClassName;
   private String myPatchClassPath;
@@ -85,6 +96,30 @@ public class PluginConfigBuilder {
         return myStreamFileThreshold != null ? myStreamFileThreshold : myDelegate.getStreamFileThresholdMb();
       }
 
+      public int getPackedGitWindowSizeKb() {
+        return myDelegate.getPackedGitWindowSizeKb();
+      }
+
+      public int getPackedGitLimitMb() {
+        return myDelegate.getPackedGitLimitMb();
+      }
+
+      public int getPackedGitOpenFiles() {
+        return myDelegate.getPackedGitOpenFiles();
+      }
+
+      public int getDeltaBaseCacheLimitMb() {
+        return myDelegate.getDeltaBaseCacheLimitMb();
+      }
+
+      public boolean isPackedGitMMAP() {
+        return myDelegate.isPackedGitMMAP();
+      }
+
+      public boolean isWindowCacheAutoSize() {
+        return myDelegate.isWindowCacheAutoSize();
+      }
+
       public int getFetchTimeout() {
         return myFetchTimeoutSeconds != null ? myFetchTimeoutSeconds : myDelegate.getFetchTimeout();
       }
@@ -118,6 +153,34 @@ public class PluginConfigBuilder {
         return mySeparateProcessForPatch != null ? mySeparateProcessForPatch : myDelegate.isSeparateProcessForPatch();
       }
 
+      public boolean isFetcherDaemonEnabled() {
+        return myFetcherDaemonEnabled;
+      }
+
+      public int getFetcherDaemonWorkers() {
+        return 2;
+      }
+
+      public int getFetcherDaemonIdleTimeoutSeconds() {
+        return 60;
+      }
+
+      public int getFetcherDaemonMaxJobs() {
+        return 100;
+      }
+
+      public int getFetchMaxConcurrency() {
+        return myFetchMaxConcurrency;
+      }
+
+      public int getFetchMaxConcurrencyPerHost() {
+        return myFetchMaxConcurrencyPerHost;
+      }
+
+      public int getFetchPriorityAgingSeconds() {
+        return myFetchPriorityAgingSeconds;
+      }
+
       public boolean isRunNativeGC() {
         return myRunNativeGC != null ? myRunNativeGC : myDelegate.isRunNativeGC();
       }
@@ -166,6 +229,10 @@ public class PluginConfigBuilder {
         return myMirrorExpirationTimeoutMillis != null ? myMirrorExpirationTimeoutMillis : myDelegate.getMirrorExpirationTimeoutMillis();
       }
 
+      public int getMirrorLastUsedTimeFlushIntervalSeconds() {
+        return myDelegate.getMirrorLastUsedTimeFlushIntervalSeconds();
+      }
+
       @NotNull
       public List<String> getProxySettingsForSeparateProcess() {
         return myDelegate.getProxySettingsForSeparateProcess();
@@ -218,6 +285,54 @@ public class PluginConfigBuilder {
         return myGetConnectionRetryAttempts != -1 ? myGetConnectionRetryAttempts : myDelegate.getConnectionRetryAttempts();
       }
 
+      public int getRemoteRefsCacheTtlSeconds() {
+        return myRemoteRefsCacheTtlSeconds;
+      }
+
+      public int getCurrentStateThreads() {
+        return 4;
+      }
+
+      public int getCurrentStatePerHostThreads() {
+        return 2;
+      }
+
+      public int getCurrentStateTimeoutSeconds() {
+        return myCurrentStateTimeoutSeconds;
+      }
+
+      public int getCollectChangesThreads() {
+        return myCollectChangesThreads;
+      }
+
+      public int getCollectChangesMaxCommits() {
+        return myCollectChangesMaxCommits;
+      }
+
+      public long getCollectChangesMaxMemory() {
+        return myDelegate.getCollectChangesMaxMemory();
+      }
+
+      public int getChangedPathsCacheMaxSizeMb() {
+        return myChangedPathsCacheMaxSizeMb != null ? myChangedPathsCacheMaxSizeMb : myDelegate.getChangedPathsCacheMaxSizeMb();
+      }
+
+      public int getRepositoryCacheIdleTimeoutSeconds() {
+        return myRepositoryCacheIdleTimeoutSeconds != null ? myRepositoryCacheIdleTimeoutSeconds : myDelegate.getRepositoryCacheIdleTimeoutSeconds();
+      }
+
+      public int getRepositoryCacheMaxIdleRepositories() {
+        return myDelegate.getRepositoryCacheMaxIdleRepositories();
+      }
+
+      public int getRepositoryCacheMaxOpenFiles() {
+        return myDelegate.getRepositoryCacheMaxOpenFiles();
+      }
+
+      public int getRepositoryLockTimeoutSeconds() {
+        return myRepositoryLockTimeoutSeconds != null ? myRepositoryLockTimeoutSeconds : myDelegate.getRepositoryLockTimeoutSeconds();
+      }
+
       public boolean ignoreFetchedCommits() {
         return false;
       }
@@ -253,11 +368,6 @@ public class PluginConfigBuilder {
       public String getHttpConnectionSslProtocol() {
         return myDelegate.getHttpConnectionSslProtocol();
       }
-
-      @NotNull
-      public List<String> getAmazonHosts() {
-        return myDelegate.getAmazonHosts();
-      }
     };
   }
 
@@ -274,6 +384,12 @@ public class PluginConfigBuilder {
   }
 
 
+  PluginConfigBuilder setFetcherDaemonEnabled(boolean enabled) {
+    myFetcherDaemonEnabled = enabled;
+    return this;
+  }
+
+
   PluginConfigBuilder setRunNativeGC(boolean run) {
     myRunNativeGC = run;
     return this;
@@ -358,6 +474,52 @@ public class PluginConfigBuilder {
     return this;
   }
 
+  public PluginConfigBuilder withRemoteRefsCacheTtlSeconds(int ttlSeconds) {
+    myRemoteRefsCacheTtlSeconds = ttlSeconds;
+    return this;
+  }
+
+  public PluginConfigBuilder withCurrentStateTimeoutSeconds(int timeoutSeconds) {
+    myCurrentStateTimeoutSeconds = timeoutSeconds;
+    return this;
+  }
+
+  public PluginConfigBuilder withCollectChangesMaxCommits(int maxCommits) {
+    myCollectChangesMaxCommits = maxCommits;
+    return this;
+  }
+
+  public PluginConfigBuilder withCollectChangesThreads(int threads) {
+    myCollectChangesThreads = threads;
+    return this;
+  }
+
+  public PluginConfigBuilder withFetchMaxConcurrency(int maxConcurrency, int maxConcurrencyPerHost) {
+    myFetchMaxConcurrency = maxConcurrency;
+    myFetchMaxConcurrencyPerHost = maxConcurrencyPerHost;
+    return this;
+  }
+
+  public PluginConfigBuilder withFetchPriorityAgingSeconds(int agingSeconds) {
+    myFetchPriorityAgingSeconds = agingSeconds;
+    return this;
+  }
+
+  public PluginConfigBuilder withChangedPathsCacheMaxSizeMb(int maxSizeMb) {
+    myChangedPathsCacheMaxSizeMb = maxSizeMb;
+    return this;
+  }
+
+  public PluginConfigBuilder withRepositoryCacheIdleTimeoutSeconds(int idleTimeoutSeconds) {
+    myRepositoryCacheIdleTimeoutSeconds = idleTimeoutSeconds;
+    return this;
+  }
+
+  public PluginConfigBuilder withRepositoryLockTimeoutSeconds(int timeoutSeconds) {
+    myRepositoryLockTimeoutSeconds = timeoutSeconds;
+    return this;
+  }
+
   public PluginConfigBuilder setStreamFileThreshold(final Integer streamFileThreshold) {
     myStreamFileThreshold = streamFileThreshold;
     return this;
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git.tests;
+
+import jetbrains.buildServer.buildTriggers.vcs.git.RefsState;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdRef;
+import org.eclipse.jgit.lib.Ref;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.testng.AssertJUnit.*;
+
+@Test
+public class RefsStateTest {
+
+  public void should_find_refs_by_name() {
+    List<Ref> refs = new ArrayList<Ref>();
+    for (int i = 0; i < 1000; i++) {
+      refs.add(ref("refs/pull/" + i + "/head", id(i)));
+    }
+    refs.add(ref("refs/heads/master", id(1000)));
+    RefsState state = RefsState.create(refs);
+
+    assertEquals(1001, state.size());
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(id(i), state.get("refs/pull/" + i + "/head"));
+    }
+    assertEquals(id(1000), state.get("refs/heads/master"));
+    assertNull(state.get("refs/heads/topic"));
+    assertNull(state.get("refs/pull/1000/head"));
+    assertNull(state.get("HEAD"));
+    assertNull(state.get("refs/tags/v1"));
+  }
+
+
+  public void should_use_peeled_revision_of_tags() {
+    Ref tag = new ObjectIdRef.PeeledTag(Ref.Storage.NETWORK, "refs/tags/v1", id(1), id(2));
+    RefsState state = RefsState.create(Arrays.asList(tag));
+    assertEquals(id(2), state.get("refs/tags/v1"));
+    RefsState.Cursor cursor = state.cursor();
+    assertTrue(cursor.next());
+    assertTrue(cursor.isTag());
+    assertFalse(cursor.next());
+  }
+
+
+  public void should_report_changed_refs() {
+    RefsState state1 = RefsState.create(Arrays.asList(ref("refs/heads/master", id(1)),
+                                                      ref("refs/heads/removed", id(2)),
+                                                      ref("refs/heads/same", id(3))));
+    RefsState state2 = RefsState.create(Arrays.asList(ref("refs/heads/same", id(3)),
+                                                      ref("refs/heads/master", id(4)),
+                                                      ref("refs/heads/added", id(5))));
+    assertEquals(Arrays.asList("refs/heads/added", "refs/heads/master", "refs/heads/removed"), state2.getChangedRefs(state1));
+    assertTrue(state2.getChangedRefs(RefsState.create(Arrays.asList(ref("refs/heads/master", id(4)),
+                                                                    ref("refs/heads/same", id(3)),
+                                                                    ref("refs/heads/added", id(5))))).isEmpty());
+  }
+
+
+  private static Ref ref(String name, ObjectId id) {
+    return new ObjectIdRef.Unpeeled(Ref.Storage.NETWORK, name, id);
+  }
+
+  private static ObjectId id(int i) {
+    return ObjectId.fromString(String.format("%040x", i + 1));
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git.tests;
+
+import jetbrains.buildServer.TempFiles;
+import jetbrains.buildServer.buildTriggers.vcs.git.*;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static jetbrains.buildServer.buildTriggers.vcs.git.tests.VcsRootBuilder.vcsRoot;
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.fail;
+
+@Test
+public class RemoteRefsCacheTest {
+
+  private TempFiles myTempFiles = new TempFiles();
+  private ServerPaths myPaths;
+  private MirrorManager myMirrorManager;
+
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    myPaths = new ServerPaths(myTempFiles.createTempDir().getAbsolutePath());
+    myMirrorManager = new MirrorManagerImpl(new PluginConfigBuilder(myPaths).build(), new HashCalculatorImpl());
+  }
+
+
+  @AfterMethod
+  public void tearDown() {
+    myTempFiles.cleanup();
+  }
+
+
+  public void concurrent_requests_should_be_coalesced() throws Exception {
+    final RemoteRefsCache cache = new RemoteRefsCache(new PluginConfigBuilder(myPaths).build());
+    final GitVcsRoot root = new GitVcsRoot(myMirrorManager, vcsRoot().withFetchUrl("git://some.org/repository.git").build());
+    final CountDownLatch loaderStarted = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger loads = new AtomicInteger();
+    final Callable<RefsState> loader = new Callable<RefsState>() {
+      public RefsState call() throws Exception {
+        loads.incrementAndGet();
+        loaderStarted.countDown();
+        release.await();
+        return RefsState.empty();
+      }
+    };
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Future<RefsState> first = executor.submit(new Callable<RefsState>() {
+        public RefsState call() throws Exception {
+          return cache.getRefs(root, loader);
+        }
+      });
+      loaderStarted.await();
+      Future<RefsState> second = executor.submit(new Callable<RefsState>() {
+        public RefsState call() throws Exception {
+          return cache.getRefs(root, loader);
+        }
+      });
+      while (cache.getCoalesced() == 0) {
+        Thread.sleep(10);
+      }
+      release.countDown();
+      first.get();
+      second.get();
+    } finally {
+      executor.shutdownNow();
+    }
+    assertEquals(1, loads.get());
+    assertEquals(1, cache.getMisses());
+    assertEquals(1, cache.getCoalesced());
+  }
+
+
+  public void should_reuse_refs_within_ttl() throws Exception {
+    RemoteRefsCache cache = new RemoteRefsCache(new PluginConfigBuilder(myPaths).withRemoteRefsCacheTtlSeconds(60).build());
+    GitVcsRoot root1 = new GitVcsRoot(myMirrorManager, vcsRoot().withFetchUrl("git://some.org/repository.git").withBranch("master").build());
+    GitVcsRoot root2 = new GitVcsRoot(myMirrorManager, vcsRoot().withFetchUrl("git://some.org/repository.git").withBranch("topic").build());
+    GitVcsRoot otherUser = new GitVcsRoot(myMirrorManager, vcsRoot().withFetchUrl("git://some.org/repository.git").withAuthMethod(AuthenticationMethod.PASSWORD).withUsername("user").withPassword("pwd").build());
+    final AtomicInteger loads = new AtomicInteger();
+    Callable<RefsState> loader = new Callable<RefsState>() {
+      public RefsState call() throws Exception {
+        loads.incrementAndGet();
+        return RefsState.empty();
+      }
+    };
+    cache.getRefs(root1, loader);
+    cache.getRefs(root2, loader);
+    assertEquals(1, loads.get());
+    assertEquals(1, cache.getHits());
+
+    cache.getRefs(otherUser, loader);
+    assertEquals("roots with different credentials should not share refs", 2, loads.get());
+
+    cache.invalidate(root1.getRepositoryFetchURL().toString());
+    cache.getRefs(root2, loader);
+    assertEquals(3, loads.get());
+  }
+
+
+  public void failures_should_not_be_cached() throws Exception {
+    RemoteRefsCache cache = new RemoteRefsCache(new PluginConfigBuilder(myPaths).withRemoteRefsCacheTtlSeconds(60).build());
+    GitVcsRoot root = new GitVcsRoot(myMirrorManager, vcsRoot().withFetchUrl("git://some.org/repository.git").build());
+    final AtomicInteger loads = new AtomicInteger();
+    Callable<RefsState> loader = new Callable<RefsState>() {
+      public RefsState call() throws Exception {
+        if (loads.incrementAndGet() == 1)
+          throw new LsRemoteError();
+        return RefsState.empty();
+      }
+    };
+    try {
+      cache.getRefs(root, loader);
+      fail("Loader error should be rethrown");
+    } catch (LsRemoteError e) {
+      //expected
+    }
+    cache.getRefs(root, loader);
+    assertEquals(2, loads.get());
+  }
+
+
+  private static class LsRemoteError extends Exception {
+  }
+}
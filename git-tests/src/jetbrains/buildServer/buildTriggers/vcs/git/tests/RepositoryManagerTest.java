@@ -32,6 +32,8 @@ import org.testng.annotations.Test;
 
 import java.io.File;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 
 import static org.testng.AssertJUnit.*;
@@ -80,6 +82,67 @@ public class RepositoryManagerTest {
   }
 
 
+  public void should_return_same_lock_while_it_is_locked() throws Exception {
+    RepositoryManager repositoryManager = getRepositoryManager();
+    File dir = repositoryManager.getMirrorDir("git://some.org/repo.git");
+    repositoryManager.getRmLock(dir).writeLock().lock();
+    System.gc();
+    ReadWriteLock rmLock = repositoryManager.getRmLock(new File(dir.getParentFile(), "." + File.separator + dir.getName()));
+    rmLock.writeLock().unlock();
+
+    LockStats stats = repositoryManager.getLockStats().get(dir.getCanonicalFile());
+    assertNotNull(stats);
+    assertEquals(1, sum(stats.getWaitHistogram(LockStats.LockType.RM_WRITE)));
+    assertEquals(1, sum(stats.getHoldHistogram(LockStats.LockType.RM_WRITE)));
+  }
+
+
+  public void reentrant_lock_hold_should_be_recorded_once() throws Exception {
+    RepositoryManager repositoryManager = getRepositoryManager();
+    File dir = repositoryManager.getMirrorDir("git://some.org/repo.git");
+    Lock writeLock = repositoryManager.getWriteLock(dir);
+    writeLock.lock();
+    writeLock.lock();
+    writeLock.unlock();
+    writeLock.unlock();
+
+    LockStats stats = repositoryManager.getLockStats().get(dir.getCanonicalFile());
+    assertNotNull(stats);
+    assertEquals(2, sum(stats.getWaitHistogram(LockStats.LockType.WRITE)));
+    assertEquals(1, sum(stats.getHoldHistogram(LockStats.LockType.WRITE)));
+  }
+
+
+  public void interruptible_lock_wait_should_stop_on_interrupt() throws Exception {
+    myPluginConfig.withRepositoryLockTimeoutSeconds(1);
+    RepositoryManager repositoryManager = getRepositoryManager();
+    File dir = repositoryManager.getMirrorDir("git://some.org/repo.git");
+    final Lock writeLock = repositoryManager.getWriteLock(dir);
+    final AtomicBoolean interrupted = new AtomicBoolean(false);
+    writeLock.lock();
+    try {
+      Thread waiter = new Thread(new Runnable() {
+        public void run() {
+          try {
+            writeLock.lockInterruptibly();
+            writeLock.unlock();
+          } catch (InterruptedException e) {
+            interrupted.set(true);
+          }
+        }
+      });
+      waiter.start();
+      Thread.sleep(1500);//wait longer than the lock timeout
+      waiter.interrupt();
+      waiter.join(5000);
+      assertFalse(waiter.isAlive());
+      assertTrue(interrupted.get());
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+
   public void expired_dirs_should_not_include_map_file() throws Exception {
     myPluginConfig.setMirrorExpirationTimeoutMillis(100);
     RepositoryManager repositoryManager = getRepositoryManager();
@@ -140,6 +203,7 @@ public class RepositoryManagerTest {
 
 
   public void should_release_repository_if_it_is_not_used_anymore() throws Exception {
+    myPluginConfig.withRepositoryCacheIdleTimeoutSeconds(0);
     RepositoryManager repositoryManager = getRepositoryManager();
     Repository r1 = repositoryManager.openRepository(new URIish("git://some.org/repo.git"));
     repositoryManager.closeRepository(r1);
@@ -149,6 +213,7 @@ public class RepositoryManagerTest {
 
 
   public void should_not_keep_repo_opened_in_case_of_error() throws Exception {
+    myPluginConfig.withRepositoryCacheIdleTimeoutSeconds(0);
     File customDir = myTempFiles.createTempDir();
     FileUtil.delete(customDir);
     RepositoryManager repositoryManager = getRepositoryManager();
@@ -176,6 +241,55 @@ public class RepositoryManagerTest {
   }
 
 
+  public void should_keep_released_repository_open_while_it_is_idle() throws Exception {
+    myPluginConfig.withRepositoryCacheIdleTimeoutSeconds(60);
+    RepositoryManager repositoryManager = getRepositoryManager();
+    Repository r1 = repositoryManager.openRepository(new URIish("git://some.org/repo.git"));
+    repositoryManager.closeRepository(r1);
+    Repository r2 = repositoryManager.openRepository(new URIish("git://some.org/repo.git"));
+    assertSame(r1, r2);
+    repositoryManager.closeRepository(r2);
+
+    repositoryManager.evictRepository(r2.getDirectory());
+    Repository r3 = repositoryManager.openRepository(new URIish("git://some.org/repo.git"));
+    assertNotSame(r2, r3);
+  }
+
+
+  public void should_close_idle_repository_when_idle_timeout_expires() throws Exception {
+    myPluginConfig.withRepositoryCacheIdleTimeoutSeconds(1);
+    RepositoryManager repositoryManager = getRepositoryManager();
+    Repository r1 = repositoryManager.openRepository(new URIish("git://some.org/repo.git"));
+    repositoryManager.closeRepository(r1);
+
+    //no other repository is added or released meanwhile, the repository is closed by the background sweep
+    Thread.sleep(2500);
+    Repository r2 = repositoryManager.openRepository(new URIish("git://some.org/repo.git"));
+    assertNotSame(r1, r2);
+  }
+
+
+  public void should_keep_last_used_times_in_index() throws Exception {
+    RepositoryManager repositoryManager = getRepositoryManager();
+    File dir = repositoryManager.getMirrorDir("git://some.org/repo.git");
+    assertTrue(dir.mkdirs());
+    File timestamp = new File(dir, "timestamp");
+    FileUtil.writeFileAndReportErrors(timestamp, "1000");
+
+    repositoryManager = getRepositoryManager();
+    assertFalse(timestamp.exists());
+    assertEquals(1000, repositoryManager.getLastUsedTime(dir));
+
+    long before = System.currentTimeMillis();
+    repositoryManager.openRepository(new URIish("git://some.org/repo.git"));
+    assertFalse(timestamp.exists());
+    assertTrue(repositoryManager.getLastUsedTime(dir) >= before);
+
+    ((RepositoryManagerImpl) repositoryManager).dispose();
+    assertTrue(getRepositoryManager().getLastUsedTime(dir) >= before);
+  }
+
+
   public void get_repository_in_dir_with_existing_config_without_teamcity_remote() throws Exception {
     File customDir = myTempFiles.createTempDir();
     Repository r = new RepositoryBuilder().setGitDir(customDir).setBare().build();
@@ -188,6 +302,14 @@ public class RepositoryManagerTest {
   }
 
 
+  private static long sum(@NotNull long[] histogram) {
+    long result = 0;
+    for (long count : histogram) {
+      result += count;
+    }
+    return result;
+  }
+
   private String getRepositoryPath(@NotNull RepositoryManager repositoryManager, @NotNull final String url) throws Exception {
     Repository repository = repositoryManager.openRepository(new URIish(url));
     return repository.getDirectory().getCanonicalPath();
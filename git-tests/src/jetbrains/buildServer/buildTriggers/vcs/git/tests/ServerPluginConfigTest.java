@@ -20,7 +20,7 @@ import com.intellij.openapi.util.SystemInfo;
 import com.jcraft.jsch.Proxy;
 import com.jcraft.jsch.ProxyHTTP;
 import jetbrains.buildServer.TempFiles;
-import jetbrains.buildServer.buildTriggers.vcs.git.Constants;
+import jetbrains.buildServer.buildTriggers.vcs.git.GitServerUtil;
 import jetbrains.buildServer.buildTriggers.vcs.git.PluginConfig;
 import jetbrains.buildServer.buildTriggers.vcs.git.PluginConfigImpl;
 import jetbrains.buildServer.buildTriggers.vcs.git.ServerPluginConfig;
@@ -28,6 +28,7 @@ import jetbrains.buildServer.serverSide.BasePropertiesModel;
 import jetbrains.buildServer.serverSide.ServerPaths;
 import jetbrains.buildServer.serverSide.TeamCityProperties;
 import jetbrains.buildServer.util.TestFor;
+import org.eclipse.jgit.storage.file.WindowCacheConfig;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
@@ -39,7 +40,6 @@ import java.util.Properties;
 import static java.util.Arrays.asList;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.hasItem;
-import static org.hamcrest.Matchers.hasItems;
 import static org.testng.AssertJUnit.*;
 
 /**
@@ -86,6 +86,19 @@ public class ServerPluginConfigTest {
   }
 
 
+  public void fetch_scheduling_defaults() {
+    ServerPluginConfig config = new PluginConfigImpl(myServerPaths);
+    assertEquals(0, config.getFetchMaxConcurrency());
+    assertEquals(0, config.getFetchMaxConcurrencyPerHost());
+    assertEquals(60, config.getFetchPriorityAgingSeconds());
+
+    System.setProperty("teamcity.git.fetch.maxConcurrency", "4");
+    System.setProperty("teamcity.git.fetch.priorityAgingSeconds", "0");
+    assertEquals(4, config.getFetchMaxConcurrency());
+    assertEquals(0, config.getFetchPriorityAgingSeconds());
+  }
+
+
   public void should_correct_negative_stream_threshold() {
     System.setProperty("teamcity.git.stream.file.threshold.mb", "-1");
     ServerPluginConfig config = new PluginConfigImpl(myServerPaths);
@@ -100,6 +113,43 @@ public class ServerPluginConfigTest {
   }
 
 
+  public void window_cache_settings() {
+    System.setProperty("teamcity.git.packedGitWindowSizeKb", "100");
+    System.setProperty("teamcity.git.packedGitLimitMb", "512");
+    System.setProperty("teamcity.git.windowCacheAutoSize", "true");
+    ServerPluginConfig config = new PluginConfigImpl(myServerPaths);
+    assertEquals("512", config.getFetcherProperties().get("teamcity.git.packedGitLimitMb"));
+
+    WindowCacheConfig cfg = GitServerUtil.createWindowCacheConfig(config, 1024, 1000, 4 * GitServerUtil.GB);
+    assertEquals(64 * WindowCacheConfig.KB, cfg.getPackedGitWindowSize());
+    assertEquals(512 * GitServerUtil.MB, cfg.getPackedGitLimit());
+    assertEquals(128 * WindowCacheConfig.MB, cfg.getDeltaBaseCacheLimit());
+    assertEquals(2048, cfg.getPackedGitOpenFiles());
+    assertEquals(1024, cfg.getStreamFileThreshold());
+  }
+
+
+  public void open_files_should_change_only_when_number_of_mirrors_doubles() {
+    System.setProperty("teamcity.git.windowCacheAutoSize", "true");
+    ServerPluginConfig config = new PluginConfigImpl(myServerPaths);
+    int openFiles = GitServerUtil.createWindowCacheConfig(config, 1024, 100, GitServerUtil.GB).getPackedGitOpenFiles();
+    assertEquals(4 * 128, openFiles);
+    assertEquals(openFiles, GitServerUtil.createWindowCacheConfig(config, 1024, 128, GitServerUtil.GB).getPackedGitOpenFiles());
+    assertEquals(4 * 256, GitServerUtil.createWindowCacheConfig(config, 1024, 129, GitServerUtil.GB).getPackedGitOpenFiles());
+  }
+
+
+  public void window_cache_should_be_reinstalled_only_when_settings_change() {
+    ServerPluginConfig config = new PluginConfigImpl(myServerPaths);
+    GitServerUtil.configureWindowCache(config, Integer.MAX_VALUE, 1);
+    assertFalse(GitServerUtil.configureWindowCache(config, Integer.MAX_VALUE, 1));
+
+    System.setProperty("teamcity.git.packedGitOpenFiles", "300");
+    assertTrue(GitServerUtil.configureWindowCache(config, Integer.MAX_VALUE, 1));
+    assertFalse(GitServerUtil.configureWindowCache(config, Integer.MAX_VALUE, 1));
+  }
+
+
   public void test_proxy_settings() {
     final String httpProxyHost = "some.org";
     final String httpProxyPort = "3128";
@@ -142,14 +192,4 @@ public class ServerPluginConfigTest {
     assertThat(separateProcessProxySettings, hasItem("-Dteamcity.git.sshProxyHost=" + sshProxyHost));
     assertThat(separateProcessProxySettings, hasItem("-Dteamcity.git.sshProxyPort=" + sshProxyPort));
   }
-
-
-  public void amazon_hosts() {
-    ServerPluginConfig config = new PluginConfigImpl();
-    assertTrue(config.getAmazonHosts().isEmpty());
-    System.setProperty(Constants.AMAZON_HOSTS, "host1");
-    assertThat(config.getAmazonHosts(), hasItems("host1"));
-    System.setProperty(Constants.AMAZON_HOSTS, "host1,host2");
-    assertThat(config.getAmazonHosts(), hasItems("host1", "host2"));
-  }
 }